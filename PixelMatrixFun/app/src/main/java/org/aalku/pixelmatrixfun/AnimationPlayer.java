@@ -0,0 +1,173 @@
+package org.aalku.pixelmatrixfun;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Plays frames at a target rate without queueing more than the link can take.
+ *
+ * There is at most one frame being sent and one pending. A new frame replaces the pending one,
+ * which is counted as dropped, so a slow link shows fewer but always recent frames.
+ */
+public class AnimationPlayer {
+
+    public interface FrameSource {
+        /**
+         * @return the next frame in device format or null when the animation is over
+         */
+        byte[] nextFrame();
+    }
+
+    public interface FrameSink {
+        CompletionStage<Boolean> sendFrame(byte[] frame);
+    }
+
+    public static class Stats {
+        public final long sent;
+        public final long dropped;
+        public final long failed;
+        public final double fps;
+        public final double avgLatencyMs;
+        public final double maxLatencyMs;
+
+        Stats(long sent, long dropped, long failed, double fps, double avgLatencyMs, double maxLatencyMs) {
+            this.sent = sent;
+            this.dropped = dropped;
+            this.failed = failed;
+            this.fps = fps;
+            this.avgLatencyMs = avgLatencyMs;
+            this.maxLatencyMs = maxLatencyMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f fps, %d sent, %d dropped, %d failed, latency avg %.1fms max %.1fms",
+                    fps, sent, dropped, failed, avgLatencyMs, maxLatencyMs);
+        }
+    }
+
+    private static class Frame {
+        final byte[] bytes;
+        final long createdNanos;
+
+        Frame(byte[] bytes, long createdNanos) {
+            this.bytes = bytes;
+            this.createdNanos = createdNanos;
+        }
+    }
+
+    private final FrameSource source;
+    private final FrameSink sink;
+    private final ScheduledExecutorService executor;
+
+    private final AtomicReference<Frame> pending = new AtomicReference<>(null);
+    private final AtomicBoolean sending = new AtomicBoolean(false);
+    private final AtomicBoolean sourceDone = new AtomicBoolean(false);
+    private ScheduledFuture<?> ticker;
+
+    private final AtomicLong sent = new AtomicLong(0L);
+    private final AtomicLong dropped = new AtomicLong(0L);
+    private final AtomicLong failed = new AtomicLong(0L);
+    private final AtomicLong latencyTotalNanos = new AtomicLong(0L);
+    private final AtomicLong latencyMaxNanos = new AtomicLong(0L);
+    private final AtomicLong startNanos = new AtomicLong(0L);
+    private final AtomicLong lastSentNanos = new AtomicLong(0L);
+
+    public AnimationPlayer(FrameSource source, FrameSink sink, ScheduledExecutorService executor) {
+        this.source = source;
+        this.sink = sink;
+        this.executor = executor;
+    }
+
+    public synchronized void start(double fps) {
+        stop();
+        sourceDone.set(false);
+        startNanos.set(0L);
+        long periodNanos = (long) (1e9 / fps);
+        ticker = executor.scheduleAtFixedRate(this::tick, 0, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops taking frames. The one being sent, if any, is still waited for by isRunning().
+     */
+    public synchronized void stop() {
+        sourceDone.set(true);
+        if (ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+        if (pending.getAndSet(null) != null) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public boolean isRunning() {
+        return !sourceDone.get() || pending.get() != null || sending.get();
+    }
+
+    /**
+     * Takes the next frame from the source. Called at the target rate.
+     */
+    void tick() {
+        if (sourceDone.get()) {
+            return;
+        }
+        startNanos.compareAndSet(0L, System.nanoTime());
+        byte[] bytes = source.nextFrame();
+        if (bytes == null) {
+            sourceDone.set(true);
+            synchronized (this) {
+                if (ticker != null) {
+                    ticker.cancel(false);
+                }
+            }
+            return;
+        }
+        if (pending.getAndSet(new Frame(bytes, System.nanoTime())) != null) {
+            dropped.incrementAndGet();
+        }
+        sendPending();
+    }
+
+    private void sendPending() {
+        while (!sending.getAndSet(true)) {
+            Frame frame = pending.getAndSet(null);
+            if (frame == null) {
+                sending.set(false);
+                /* A frame could arrive after the check and before releasing the flag */
+                if (pending.get() == null) {
+                    return;
+                }
+                continue;
+            }
+            sink.sendFrame(frame.bytes).whenComplete((ok, e) -> {
+                if (e == null && Boolean.TRUE.equals(ok)) {
+                    long now = System.nanoTime();
+                    long latency = now - frame.createdNanos;
+                    sent.incrementAndGet();
+                    lastSentNanos.set(now);
+                    latencyTotalNanos.addAndGet(latency);
+                    latencyMaxNanos.accumulateAndGet(latency, Math::max);
+                } else {
+                    failed.incrementAndGet();
+                }
+                sending.set(false);
+                sendPending();
+            });
+            return;
+        }
+    }
+
+    public Stats getStats() {
+        long sent = this.sent.get();
+        long elapsed = lastSentNanos.get() - startNanos.get();
+        double fps = sent > 0 && elapsed > 0 ? sent * 1e9 / elapsed : 0d;
+        double avgLatency = sent > 0 ? latencyTotalNanos.get() / 1e6 / sent : 0d;
+        return new Stats(sent, dropped.get(), failed.get(), fps, avgLatency, latencyMaxNanos.get() / 1e6);
+    }
+}
@@ -0,0 +1,247 @@
+package org.aalku.pixelmatrixfun;
+
+import java.util.Arrays;
+
+/**
+ * Scales ARGB pixels by exact area averaging: every output pixel is the mean of the source area
+ * it covers, partial pixels weighted by how much of them is covered. Bilinear filtering only
+ * looks at 4 source pixels, so it aliases when a panel pixel covers hundreds of them.
+ *
+ * Weights are integers, precomputed once per size. Along an axis of n source and m output pixels,
+ * source pixel i spans [i * m, (i + 1) * m) and output pixel j spans [j * n, (j + 1) * n), the
+ * weight is their overlap, so the weights of an output pixel add up to exactly n.
+ *
+ * The output can be quantized to fewer levels per channel, with ordered or error diffusion
+ * dithering, for panels that show fewer colors than 8 bits per channel. Channels are averaged as
+ * they are, not premultiplied nor linearized.
+ *
+ * Not thread safe, it has per row buffers.
+ */
+public class AreaScaler {
+
+    public enum Dither {
+        NONE,
+        /* 4x4 Bayer matrix, stable between frames of video */
+        ORDERED,
+        /* Floyd-Steinberg, less banding on still images */
+        ERROR_DIFFUSION
+    }
+
+    private static final int[] BAYER_4X4 = {
+            0, 8, 2, 10,
+            12, 4, 14, 6,
+            3, 11, 1, 9,
+            15, 7, 13, 5};
+
+    private final int srcWidth;
+    private final int srcHeight;
+    private final int width;
+    private final int height;
+
+    /* Per output column and row: first source index, how many and where their weights start */
+    private final int[] xFirst;
+    private final int[] xCount;
+    private final int[] xWeightStart;
+    private final int[] xWeights;
+    private final int[] yFirst;
+    private final int[] yCount;
+    private final int[] yWeightStart;
+    private final int[] yWeights;
+    private final long total;
+
+    private final int[] rowSums;
+    private final long[] sums;
+
+    private int levels = 256;
+    private Dither dither = Dither.NONE;
+    /* Error diffusion of this row and the next one, r g b per pixel, one pixel margin each side */
+    private int[] errors = new int[0];
+    private int[] nextErrors = new int[0];
+
+    public AreaScaler(int srcWidth, int srcHeight, int width, int height) {
+        if (srcWidth <= 0 || srcHeight <= 0 || width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Bad size " + srcWidth + "x" + srcHeight + " -> " + width + "x" + height);
+        }
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.width = width;
+        this.height = height;
+        xFirst = new int[width];
+        xCount = new int[width];
+        xWeightStart = new int[width];
+        xWeights = weights(srcWidth, width, xFirst, xCount, xWeightStart);
+        yFirst = new int[height];
+        yCount = new int[height];
+        yWeightStart = new int[height];
+        yWeights = weights(srcHeight, height, yFirst, yCount, yWeightStart);
+        total = (long) srcWidth * srcHeight;
+        rowSums = new int[width * 4];
+        sums = new long[width * 4];
+    }
+
+    private static int[] weights(int n, int m, int[] first, int[] count, int[] start) {
+        int[] res = new int[n + m];
+        int pos = 0;
+        for (int j = 0; j < m; j++) {
+            long from = (long) j * n;
+            long to = from + n;
+            int i0 = (int) (from / m);
+            int i1 = (int) ((to + m - 1) / m);
+            first[j] = i0;
+            count[j] = i1 - i0;
+            start[j] = pos;
+            for (int i = i0; i < i1; i++) {
+                long overlap = Math.min(to, (long) (i + 1) * m) - Math.max(from, (long) i * m);
+                res[pos++] = (int) overlap;
+            }
+        }
+        return res;
+    }
+
+    public int getSourceWidth() {
+        return srcWidth;
+    }
+
+    public int getSourceHeight() {
+        return srcHeight;
+    }
+
+    /**
+     * @param levels per channel in the output, 2 to 256, 256 keeps 8 bits
+     */
+    public void setDither(Dither dither, int levels) {
+        if (levels < 2 || levels > 256) {
+            throw new IllegalArgumentException("Levels must be 2 to 256: " + levels);
+        }
+        this.dither = dither;
+        this.levels = levels;
+    }
+
+    /**
+     * Scales the getSourceWidth() x getSourceHeight() area of src starting at offset into dst,
+     * both row major.
+     *
+     * @param stride source pixels from a row to the next one
+     */
+    public void scale(int[] src, int offset, int stride, int[] dst) {
+        if (dither == Dither.ERROR_DIFFUSION && levels < 256) {
+            if (errors.length != (width + 2) * 3) {
+                errors = new int[(width + 2) * 3];
+                nextErrors = new int[(width + 2) * 3];
+            } else {
+                /* What the last row of the previous frame left */
+                Arrays.fill(nextErrors, 0);
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            Arrays.fill(sums, 0L);
+            int wy = yWeightStart[y];
+            int sy = yFirst[y];
+            for (int k = 0; k < yCount[y]; k++) {
+                horizontal(src, offset + (sy + k) * stride);
+                long w = yWeights[wy + k];
+                for (int i = 0; i < sums.length; i++) {
+                    sums[i] += rowSums[i] * w;
+                }
+            }
+            output(y, dst);
+        }
+    }
+
+    /**
+     * Weighted sums of a source row per output column, a r g b.
+     */
+    private void horizontal(int[] src, int rowStart) {
+        for (int x = 0; x < width; x++) {
+            int a = 0;
+            int r = 0;
+            int g = 0;
+            int b = 0;
+            int p = rowStart + xFirst[x];
+            int wp = xWeightStart[x];
+            for (int k = xCount[x]; k > 0; k--) {
+                int c = src[p++];
+                int w = xWeights[wp++];
+                a += (c >>> 24) * w;
+                r += ((c >> 16) & 0xFF) * w;
+                g += ((c >> 8) & 0xFF) * w;
+                b += (c & 0xFF) * w;
+            }
+            int i = x * 4;
+            rowSums[i] = a;
+            rowSums[i + 1] = r;
+            rowSums[i + 2] = g;
+            rowSums[i + 3] = b;
+        }
+    }
+
+    private void output(int y, int[] dst) {
+        long half = total / 2;
+        int row = y * width;
+        if (levels == 256 || dither == Dither.NONE) {
+            for (int x = 0; x < width; x++) {
+                int i = x * 4;
+                int a = (int) ((sums[i] + half) / total);
+                int r = quantize((int) ((sums[i + 1] + half) / total));
+                int g = quantize((int) ((sums[i + 2] + half) / total));
+                int b = quantize((int) ((sums[i + 3] + half) / total));
+                dst[row + x] = a << 24 | r << 16 | g << 8 | b;
+            }
+        } else if (dither == Dither.ORDERED) {
+            int step = 255 / (levels - 1);
+            for (int x = 0; x < width; x++) {
+                int i = x * 4;
+                /* Threshold -0.5 to +0.5 of a step */
+                int t = (BAYER_4X4[(y & 3) * 4 + (x & 3)] * 2 - 15) * step / 32;
+                int a = (int) ((sums[i] + half) / total);
+                int r = quantize(clamp((int) ((sums[i + 1] + half) / total) + t));
+                int g = quantize(clamp((int) ((sums[i + 2] + half) / total) + t));
+                int b = quantize(clamp((int) ((sums[i + 3] + half) / total) + t));
+                dst[row + x] = a << 24 | r << 16 | g << 8 | b;
+            }
+        } else {
+            int[] e = nextErrors;
+            nextErrors = errors;
+            errors = e;
+            Arrays.fill(nextErrors, 0);
+            /* Serpentine, so the error does not pile up on one side */
+            boolean ltr = (y & 1) == 0;
+            for (int n = 0; n < width; n++) {
+                int x = ltr ? n : width - 1 - n;
+                int dir = ltr ? 1 : -1;
+                int i = x * 4;
+                int a = (int) ((sums[i] + half) / total);
+                int c = a << 24;
+                for (int ch = 0; ch < 3; ch++) {
+                    int ei = (x + 1) * 3 + ch;
+                    /* Errors are in 1/16 */
+                    int v = (int) ((sums[i + 1 + ch] + half) / total) + (errors[ei] + 8 >> 4);
+                    v = clamp(v);
+                    int q = quantize(v);
+                    int err = v - q;
+                    errors[ei + dir * 3] += err * 7;
+                    nextErrors[ei - dir * 3] += err * 3;
+                    nextErrors[ei] += err * 5;
+                    nextErrors[ei + dir * 3] += err;
+                    c |= q << (16 - ch * 8);
+                }
+                dst[row + x] = c;
+            }
+        }
+    }
+
+    private static int clamp(int v) {
+        return v < 0 ? 0 : v > 255 ? 255 : v;
+    }
+
+    /**
+     * @return v rounded to the nearest of the output levels
+     */
+    private int quantize(int v) {
+        if (levels == 256) {
+            return v;
+        }
+        int l = (v * (levels - 1) + 127) / 255;
+        return l * 255 / (levels - 1);
+    }
+}
@@ -0,0 +1,284 @@
+package org.aalku.pixelmatrixfun;
+
+import java.util.Arrays;
+
+/**
+ * Lossless encodings of the 3 bytes per pixel frames sent to SEND_BITMAP.
+ *
+ * <ul>
+ *     <li>RAW: rgb * pixels.</li>
+ *     <li>RLE: [count, r, g, b] runs, count 1..255.</li>
+ *     <li>PALETTE: [colors - 1, rgb * colors, indexes] with indexes packed MSB first using 1, 2, 4 or 8 bits.</li>
+ *     <li>PALETTE_RLE: [colors - 1, rgb * colors, [count, index] runs].</li>
+ * </ul>
+ *
+ * The device announces the encodings it can decode as a bit mask in the HELO notification
+ * (bit n set means it supports the encoding with id n).
+ */
+class BitmapCodec {
+
+    static final int RAW = 0;
+    static final int RLE = 1;
+    static final int PALETTE = 2;
+    static final int PALETTE_RLE = 3;
+
+    static final int RAW_ONLY = 1 << RAW;
+    static final int ALL = (1 << RAW) | (1 << RLE) | (1 << PALETTE) | (1 << PALETTE_RLE);
+
+    private static final int PIXEL_SIZE = 3;
+    private static final int MAX_RUN = 255;
+    private static final int MAX_COLORS = 256;
+
+    /* Reused between frames, callers must not encode from several threads at once */
+    private final int[] palette = new int[MAX_COLORS];
+    private final int[] paletteHash = new int[MAX_COLORS * 2];
+    private final byte[] indexes;
+    private final byte[] out;
+    private int colors;
+
+    BitmapCodec(int frameLen) {
+        indexes = new byte[frameLen / PIXEL_SIZE];
+        out = new byte[frameLen + MAX_COLORS * PIXEL_SIZE + 1];
+    }
+
+    static class Encoded {
+        final int encoding;
+        final byte[] bytes;
+
+        Encoded(int encoding, byte[] bytes) {
+            this.encoding = encoding;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * @return the smallest encoding of the frame among the supported ones
+     */
+    Encoded encode(byte[] frame, int supported) {
+        int bestEncoding = RAW;
+        int bestLen = frame.length;
+        if ((supported & (1 << RLE)) != 0) {
+            int len = rleLength(frame);
+            if (len < bestLen) {
+                bestEncoding = RLE;
+                bestLen = len;
+            }
+        }
+        if ((supported & ((1 << PALETTE) | (1 << PALETTE_RLE))) != 0 && buildPalette(frame)) {
+            if ((supported & (1 << PALETTE)) != 0) {
+                int len = 1 + colors * PIXEL_SIZE + (indexes.length * bitsPerIndex(colors) + 7) / 8;
+                if (len < bestLen) {
+                    bestEncoding = PALETTE;
+                    bestLen = len;
+                }
+            }
+            if ((supported & (1 << PALETTE_RLE)) != 0) {
+                int len = 1 + colors * PIXEL_SIZE + indexRunsLength();
+                if (len < bestLen) {
+                    bestEncoding = PALETTE_RLE;
+                    bestLen = len;
+                }
+            }
+        }
+        switch (bestEncoding) {
+            case RLE:
+                return new Encoded(RLE, copyOut(writeRle(frame)));
+            case PALETTE:
+                return new Encoded(PALETTE, copyOut(writePalette()));
+            case PALETTE_RLE:
+                return new Encoded(PALETTE_RLE, copyOut(writePaletteRle()));
+            default:
+                return new Encoded(RAW, frame);
+        }
+    }
+
+    /**
+     * Decodes as the device does. Used for testing.
+     */
+    static byte[] decode(int encoding, byte[] data, int frameLen) {
+        byte[] frame = new byte[frameLen];
+        int pixels = frameLen / PIXEL_SIZE;
+        int pos = 0;
+        int p = 0;
+        switch (encoding) {
+            case RAW:
+                System.arraycopy(data, 0, frame, 0, frameLen);
+                return frame;
+            case RLE:
+                while (p < pixels) {
+                    int count = data[pos++] & 0xFF;
+                    for (int i = 0; i < count; i++, p++) {
+                        System.arraycopy(data, pos, frame, p * PIXEL_SIZE, PIXEL_SIZE);
+                    }
+                    pos += PIXEL_SIZE;
+                }
+                return frame;
+            case PALETTE:
+            case PALETTE_RLE:
+                int colors = (data[pos++] & 0xFF) + 1;
+                int paletteStart = pos;
+                pos += colors * PIXEL_SIZE;
+                if (encoding == PALETTE) {
+                    int bits = bitsPerIndex(colors);
+                    for (; p < pixels; p++) {
+                        int bitPos = p * bits;
+                        int index = ((data[pos + bitPos / 8] & 0xFF) >> (8 - bits - bitPos % 8)) & ((1 << bits) - 1);
+                        System.arraycopy(data, paletteStart + index * PIXEL_SIZE, frame, p * PIXEL_SIZE, PIXEL_SIZE);
+                    }
+                } else {
+                    while (p < pixels) {
+                        int count = data[pos++] & 0xFF;
+                        int index = data[pos++] & 0xFF;
+                        for (int i = 0; i < count; i++, p++) {
+                            System.arraycopy(data, paletteStart + index * PIXEL_SIZE, frame, p * PIXEL_SIZE, PIXEL_SIZE);
+                        }
+                    }
+                }
+                return frame;
+            default:
+                throw new IllegalArgumentException("Unknown encoding " + encoding);
+        }
+    }
+
+    static int bitsPerIndex(int colors) {
+        if (colors <= 2) {
+            return 1;
+        } else if (colors <= 4) {
+            return 2;
+        } else if (colors <= 16) {
+            return 4;
+        } else {
+            return 8;
+        }
+    }
+
+    private static int rgb(byte[] frame, int p) {
+        int i = p * PIXEL_SIZE;
+        return ((frame[i] & 0xFF) << 16) | ((frame[i + 1] & 0xFF) << 8) | (frame[i + 2] & 0xFF);
+    }
+
+    private static int rleLength(byte[] frame) {
+        int pixels = frame.length / PIXEL_SIZE;
+        int len = 0;
+        int p = 0;
+        while (p < pixels) {
+            int color = rgb(frame, p);
+            int end = p + 1;
+            while (end < pixels && end - p < MAX_RUN && rgb(frame, end) == color) {
+                end++;
+            }
+            len += 1 + PIXEL_SIZE;
+            p = end;
+        }
+        return len;
+    }
+
+    private int writeRle(byte[] frame) {
+        int pixels = frame.length / PIXEL_SIZE;
+        int len = 0;
+        int p = 0;
+        while (p < pixels) {
+            int color = rgb(frame, p);
+            int end = p + 1;
+            while (end < pixels && end - p < MAX_RUN && rgb(frame, end) == color) {
+                end++;
+            }
+            out[len] = (byte) (end - p);
+            System.arraycopy(frame, p * PIXEL_SIZE, out, len + 1, PIXEL_SIZE);
+            len += 1 + PIXEL_SIZE;
+            p = end;
+        }
+        return len;
+    }
+
+    /**
+     * Fills palette and indexes. paletteHash is an open addressing table of palette index + 1 by color.
+     *
+     * @return false if there are too many colors
+     */
+    private boolean buildPalette(byte[] frame) {
+        Arrays.fill(paletteHash, 0);
+        colors = 0;
+        int mask = paletteHash.length - 1;
+        for (int p = 0; p < indexes.length; p++) {
+            int color = rgb(frame, p);
+            int h = (color * 0x9E3779B1) >>> 23 & mask;
+            while (true) {
+                int entry = paletteHash[h];
+                if (entry == 0) {
+                    if (colors == MAX_COLORS) {
+                        return false;
+                    }
+                    palette[colors] = color;
+                    paletteHash[h] = colors + 1;
+                    indexes[p] = (byte) colors;
+                    colors++;
+                    break;
+                } else if (palette[entry - 1] == color) {
+                    indexes[p] = (byte) (entry - 1);
+                    break;
+                }
+                h = (h + 1) & mask;
+            }
+        }
+        return true;
+    }
+
+    private int indexRunsLength() {
+        int len = 0;
+        int p = 0;
+        while (p < indexes.length) {
+            int end = p + 1;
+            while (end < indexes.length && end - p < MAX_RUN && indexes[end] == indexes[p]) {
+                end++;
+            }
+            len += 2;
+            p = end;
+        }
+        return len;
+    }
+
+    private int writePaletteHeader() {
+        out[0] = (byte) (colors - 1);
+        for (int i = 0; i < colors; i++) {
+            out[1 + i * PIXEL_SIZE] = (byte) (palette[i] >> 16);
+            out[2 + i * PIXEL_SIZE] = (byte) (palette[i] >> 8);
+            out[3 + i * PIXEL_SIZE] = (byte) palette[i];
+        }
+        return 1 + colors * PIXEL_SIZE;
+    }
+
+    private int writePalette() {
+        int start = writePaletteHeader();
+        int bits = bitsPerIndex(colors);
+        int len = (indexes.length * bits + 7) / 8;
+        Arrays.fill(out, start, start + len, (byte) 0);
+        for (int p = 0; p < indexes.length; p++) {
+            int bitPos = p * bits;
+            out[start + bitPos / 8] |= (byte) ((indexes[p] & 0xFF) << (8 - bits - bitPos % 8));
+        }
+        return start + len;
+    }
+
+    private int writePaletteRle() {
+        int len = writePaletteHeader();
+        int p = 0;
+        while (p < indexes.length) {
+            int end = p + 1;
+            while (end < indexes.length && end - p < MAX_RUN && indexes[end] == indexes[p]) {
+                end++;
+            }
+            out[len] = (byte) (end - p);
+            out[len + 1] = indexes[p];
+            len += 2;
+            p = end;
+        }
+        return len;
+    }
+
+    private byte[] copyOut(int len) {
+        byte[] res = new byte[len];
+        System.arraycopy(out, 0, res, 0, len);
+        return res;
+    }
+}
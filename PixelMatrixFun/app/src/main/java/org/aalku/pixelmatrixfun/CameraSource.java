@@ -0,0 +1,317 @@
+package org.aalku.pixelmatrixfun;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Size;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Frames of the back camera for the live preview, at the smallest YUV size it has, as the panel
+ * is smaller anyway. They are turned to the sensor orientation, so portrait is upright.
+ *
+ * Only the latest frame is kept, a frame the pipeline was too slow for is dropped by the camera.
+ */
+@RequiresApi(api = Build.VERSION_CODES.N)
+class CameraSource implements PreviewPipeline.Source, Closeable {
+
+    /* No frame for this long and the camera is taken as gone */
+    private static final long FRAME_TIMEOUT_MS = 2000;
+
+    private final int sensorWidth;
+    private final int sensorHeight;
+    private final int orientation;
+    private final HandlerThread thread = new HandlerThread("Camera");
+    private final Handler handler;
+    private final ImageReader reader;
+
+    private final Object lock = new Object();
+    private Image latest = null;
+    private CameraDevice camera = null;
+    private boolean closed = false;
+    /* The reader is closed after the frame being read, its image would be gone */
+    private boolean reading = false;
+
+    private CameraSource(Size size, int orientation) {
+        this.sensorWidth = size.getWidth();
+        this.sensorHeight = size.getHeight();
+        this.orientation = orientation;
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        /* One being read, one latest and one being written */
+        reader = ImageReader.newInstance(sensorWidth, sensorHeight, ImageFormat.YUV_420_888, 3);
+        reader.setOnImageAvailableListener(r -> {
+            Image image = r.acquireLatestImage();
+            if (image == null) {
+                return;
+            }
+            synchronized (lock) {
+                if (closed) {
+                    image.close();
+                    return;
+                }
+                if (latest != null) {
+                    latest.close();
+                }
+                latest = image;
+                lock.notifyAll();
+            }
+        }, handler);
+    }
+
+    /**
+     * Needs the CAMERA permission.
+     *
+     * @return the source once the camera is sending frames
+     */
+    static CompletionStage<CameraSource> open(Context context) {
+        CompletableFuture<CameraSource> res = new CompletableFuture<>();
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            String id = backCamera(manager);
+            CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
+            StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            CameraSource source = new CameraSource(smallest(map.getOutputSizes(ImageFormat.YUV_420_888)),
+                    orientation == null ? 0 : orientation);
+            try {
+                source.start(manager, id, res);
+            } catch (CameraAccessException | SecurityException e) {
+                source.close();
+                throw e;
+            }
+        } catch (CameraAccessException | IOException | SecurityException e) {
+            res.completeExceptionally(e);
+        }
+        return res;
+    }
+
+    private static String backCamera(CameraManager manager) throws CameraAccessException, IOException {
+        String any = null;
+        for (String id : manager.getCameraIdList()) {
+            Integer facing = manager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK) {
+                return id;
+            }
+            any = any == null ? id : any;
+        }
+        if (any == null) {
+            throw new IOException("No camera");
+        }
+        return any;
+    }
+
+    private static Size smallest(Size[] sizes) {
+        Size res = sizes[0];
+        for (Size s : sizes) {
+            if ((long) s.getWidth() * s.getHeight() < (long) res.getWidth() * res.getHeight()) {
+                res = s;
+            }
+        }
+        return res;
+    }
+
+    private void start(CameraManager manager, String id, CompletableFuture<CameraSource> res) throws CameraAccessException {
+        manager.openCamera(id, new CameraDevice.StateCallback() {
+            @Override
+            public void onOpened(CameraDevice device) {
+                synchronized (lock) {
+                    if (closed) {
+                        device.close();
+                        res.cancel(false);
+                        return;
+                    }
+                    camera = device;
+                }
+                try {
+                    createSession(device, res);
+                } catch (CameraAccessException | IllegalStateException e) {
+                    fail(res, e);
+                }
+            }
+
+            @Override
+            public void onDisconnected(CameraDevice device) {
+                fail(res, new IOException("Camera disconnected"));
+            }
+
+            @Override
+            public void onError(CameraDevice device, int error) {
+                fail(res, new IOException("Camera error " + error));
+            }
+        }, handler);
+    }
+
+    /* The session configuration that replaces it needs API 28 */
+    @SuppressWarnings("deprecation")
+    private void createSession(CameraDevice device, CompletableFuture<CameraSource> res) throws CameraAccessException {
+        device.createCaptureSession(Collections.singletonList(reader.getSurface()), new CameraCaptureSession.StateCallback() {
+            @Override
+            public void onConfigured(CameraCaptureSession session) {
+                try {
+                    CaptureRequest.Builder request = device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                    request.addTarget(reader.getSurface());
+                    session.setRepeatingRequest(request.build(), null, handler);
+                    res.complete(CameraSource.this);
+                } catch (CameraAccessException | IllegalStateException e) {
+                    fail(res, e);
+                }
+            }
+
+            @Override
+            public void onConfigureFailed(CameraCaptureSession session) {
+                fail(res, new IOException("Camera session failed"));
+            }
+        }, handler);
+    }
+
+    private void fail(CompletableFuture<CameraSource> res, Exception e) {
+        res.completeExceptionally(e);
+        close();
+    }
+
+    @Override
+    public int getWidth() {
+        return orientation % 180 == 0 ? sensorWidth : sensorHeight;
+    }
+
+    @Override
+    public int getHeight() {
+        return orientation % 180 == 0 ? sensorHeight : sensorWidth;
+    }
+
+    /**
+     * Waits for a frame newer than the last one read.
+     */
+    @Override
+    public boolean read(int[] argb) {
+        Image image;
+        synchronized (lock) {
+            long end = System.currentTimeMillis() + FRAME_TIMEOUT_MS;
+            long wait;
+            while (latest == null && !closed && (wait = end - System.currentTimeMillis()) > 0) {
+                try {
+                    lock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (latest == null || closed) {
+                return false;
+            }
+            image = latest;
+            latest = null;
+            reading = true;
+        }
+        try {
+            toArgb(image, argb);
+        } finally {
+            image.close();
+            synchronized (lock) {
+                reading = false;
+                if (closed) {
+                    release();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * BT.601 full range, as camera YUV is, in 16 bit fixed point.
+     */
+    private void toArgb(Image image, int[] argb) {
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer yBuffer = planes[0].getBuffer();
+        ByteBuffer uBuffer = planes[1].getBuffer();
+        ByteBuffer vBuffer = planes[2].getBuffer();
+        int yRow = planes[0].getRowStride();
+        int yPixel = planes[0].getPixelStride();
+        int uvRow = planes[1].getRowStride();
+        int uvPixel = planes[1].getPixelStride();
+        int w = sensorWidth;
+        int h = sensorHeight;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int lum = yBuffer.get(y * yRow + x * yPixel) & 0xFF;
+                int uv = (y >> 1) * uvRow + (x >> 1) * uvPixel;
+                int u = (uBuffer.get(uv) & 0xFF) - 128;
+                int v = (vBuffer.get(uv) & 0xFF) - 128;
+                int r = clamp(lum + (91881 * v >> 16));
+                int g = clamp(lum - (22554 * u + 46802 * v >> 16));
+                int b = clamp(lum + (116130 * u >> 16));
+                int i;
+                switch (orientation) {
+                    case 90:
+                        i = x * h + (h - 1 - y);
+                        break;
+                    case 180:
+                        i = (h - 1 - y) * w + (w - 1 - x);
+                        break;
+                    case 270:
+                        i = (w - 1 - x) * h + y;
+                        break;
+                    default:
+                        i = y * w + x;
+                        break;
+                }
+                argb[i] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+    }
+
+    private static int clamp(int level) {
+        return level < 0 ? 0 : level > 255 ? 255 : level;
+    }
+
+    /**
+     * Stops the camera. A read() waiting for a frame returns false.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            /* Closing the camera closes its session */
+            if (camera != null) {
+                camera.close();
+                camera = null;
+            }
+            if (latest != null) {
+                latest.close();
+                latest = null;
+            }
+            lock.notifyAll();
+            if (!reading) {
+                release();
+            }
+        }
+    }
+
+    private void release() {
+        reader.close();
+        thread.quitSafely();
+    }
+}
@@ -0,0 +1,137 @@
+package org.aalku.pixelmatrixfun;
+
+/**
+ * Chooses the size of each GATT write from the negotiated MTU and the measured throughput.
+ *
+ * Candidate sizes are multiples of the ATT payload (MTU - 3) up to the max write size, as long
+ * writes are split in ATT payload fragments anyway. It measures bytes/s of each candidate over
+ * a few chunks, sticks to the best one and now and then tries a neighbour in case the link changed.
+ * A failed write penalizes the current size and moves to a smaller one.
+ */
+class ChunkSizer {
+
+    static final int DEFAULT_MTU = 23;
+    static final int ATT_HEADER = 3;
+    static final int MAX_WRITE_SIZE = 512;
+
+    private static final int SAMPLE_CHUNKS = 8;
+    private static final int EXPLORE_EVERY = 4;
+    private static final double EWMA = 0.3;
+
+    private int mtu = DEFAULT_MTU;
+    private int[] sizes;
+    private double[] rates;
+    private int index;
+    private boolean probeUp = true;
+    private int samples = 0;
+
+    private int sampleChunks = 0;
+    private long sampleBytes = 0;
+    private long sampleNanos = 0;
+    private double bytesPerSecond = 0;
+
+    ChunkSizer(int initialSize, boolean withResponse) {
+        setLimits(DEFAULT_MTU, withResponse);
+        index = nearest(initialSize);
+    }
+
+    synchronized int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * Recomputes candidate sizes. Writes without response must fit in a single ATT payload.
+     */
+    synchronized void setLimits(int mtu, boolean withResponse) {
+        int fragment = mtu - ATT_HEADER;
+        int max = withResponse ? MAX_WRITE_SIZE : Math.min(fragment, MAX_WRITE_SIZE);
+        int current = sizes == null ? max : sizes[index];
+        int count = max / fragment;
+        boolean exact = max % fragment == 0;
+        this.mtu = mtu;
+        sizes = new int[exact ? count : count + 1];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = (i + 1) * fragment;
+        }
+        if (!exact) {
+            sizes[count] = max;
+        }
+        rates = new double[sizes.length];
+        index = nearest(current);
+        resetSample();
+    }
+
+    synchronized int getChunkSize() {
+        return sizes[index];
+    }
+
+    /**
+     * @return exponentially weighted bytes/s of the writes measured so far
+     */
+    synchronized double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    synchronized void onChunkAcked(int bytes, long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        double rate = bytes * 1e9 / nanos;
+        bytesPerSecond = bytesPerSecond == 0 ? rate : bytesPerSecond * (1 - EWMA) + rate * EWMA;
+        sampleChunks++;
+        sampleBytes += bytes;
+        sampleNanos += nanos;
+        if (sampleChunks >= SAMPLE_CHUNKS) {
+            endSample();
+        }
+    }
+
+    synchronized void onChunkFailed() {
+        rates[index] = rates[index] * 0.5;
+        if (index > 0) {
+            index--;
+        }
+        resetSample();
+    }
+
+    private void endSample() {
+        double rate = sampleBytes * 1e9 / sampleNanos;
+        rates[index] = rates[index] == 0 ? rate : rates[index] * (1 - EWMA) + rate * EWMA;
+        resetSample();
+        int best = 0;
+        for (int i = 1; i < rates.length; i++) {
+            if (rates[i] > rates[best]) {
+                best = i;
+            }
+        }
+        samples++;
+        int up = Math.min(sizes.length - 1, best + 1);
+        int down = Math.max(0, best - 1);
+        if (rates[up] == 0) {
+            index = up;
+        } else if (rates[down] == 0) {
+            index = down;
+        } else if (samples % EXPLORE_EVERY == 0) {
+            index = probeUp ? up : down;
+            probeUp = !probeUp;
+        } else {
+            index = best;
+        }
+    }
+
+    private void resetSample() {
+        sampleChunks = 0;
+        sampleBytes = 0;
+        sampleNanos = 0;
+    }
+
+    private int nearest(int size) {
+        int res = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            if (sizes[i] <= size) {
+                res = i;
+            }
+        }
+        return res;
+    }
+}
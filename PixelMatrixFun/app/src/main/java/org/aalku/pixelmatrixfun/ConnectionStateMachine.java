@@ -0,0 +1,273 @@
+package org.aalku.pixelmatrixfun;
+
+import java.util.concurrent.Future;
+
+/**
+ * Connection life cycle, driven by GATT callbacks and one-shot timeouts. Nothing runs while the
+ * state is stable except the HELO watchdog, which is pushed back by every HELO.
+ *
+ * IDLE -> CONNECTING (cached address) or SCANNING -> CONNECTING -> DISCOVERING -> READY.
+ * READY -> DEGRADED when HELO stops, and back with the next HELO. Any failure or timeout goes to
+ * BACKOFF, which tries again after an exponential delay. A cached address that fails is scanned
+ * for right away instead.
+ *
+ * Actions run with the machine locked, they must not wait for GATT callbacks.
+ */
+class ConnectionStateMachine {
+
+    public enum State {
+        IDLE,
+        SCANNING,
+        CONNECTING,
+        DISCOVERING,
+        READY,
+        /* Connected but HELO is late */
+        DEGRADED,
+        BACKOFF;
+
+        public boolean isConnected() {
+            return this == READY || this == DEGRADED;
+        }
+    }
+
+    interface Actions {
+        /**
+         * @return false if there is no cached address to connect to
+         */
+        boolean connectCached();
+
+        void startScan();
+
+        void stopScan();
+
+        /**
+         * The link is up. Discover services and set notifications, then call onReady.
+         */
+        void discover();
+
+        /**
+         * Drops the link or the connection attempt. No callback is expected from it after this.
+         */
+        void close();
+
+        void stateChanged(State from, State to);
+    }
+
+    interface Timer {
+        Future<?> schedule(Runnable task, long delayMs);
+    }
+
+    static final long WARM_CONNECT_TIMEOUT_MS = 3000;
+    static final long SCAN_TIMEOUT_MS = 4000;
+    static final long CONNECT_TIMEOUT_MS = 5000;
+    /* Services, MTU and notifications */
+    static final long DISCOVERY_TIMEOUT_MS = 5000;
+    static final long HELO_TIMEOUT_MS = 5000;
+    /* Degraded this long and the link is reset, a reconnection to the cached address is fast */
+    static final long DEGRADED_TIMEOUT_MS = 5000;
+    static final long BACKOFF_BASE_MS = 500;
+    static final long BACKOFF_MAX_MS = 30000;
+
+    private final Timer timer;
+    private final Actions actions;
+
+    private State state = State.IDLE;
+    private Future<?> timeout = null;
+    private int timeoutGeneration = 0;
+    private long timerWakeups = 0;
+
+    private boolean warm = false;
+    private boolean cachedFailed = false;
+    private int failures = 0;
+    private long attemptStartNanos = 0L;
+    private long lastTimeToReadyNanos = 0L;
+
+    ConnectionStateMachine(Timer timer, Actions actions) {
+        this.timer = timer;
+        this.actions = actions;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return true if the current or last connection went to the cached address without scanning
+     */
+    synchronized boolean isWarm() {
+        return warm;
+    }
+
+    /**
+     * @return time from the first attempt to the last READY, 0 if never ready
+     */
+    synchronized long getLastTimeToReadyNanos() {
+        return lastTimeToReadyNanos;
+    }
+
+    /**
+     * @return timeouts that fired
+     */
+    synchronized long getTimerWakeups() {
+        return timerWakeups;
+    }
+
+    synchronized void start() {
+        if (state == State.IDLE) {
+            attempt();
+        }
+    }
+
+    synchronized void stop() {
+        if (state == State.SCANNING) {
+            actions.stopScan();
+        } else if (state != State.IDLE && state != State.BACKOFF) {
+            actions.close();
+        }
+        moveTo(State.IDLE, 0, null);
+    }
+
+    /**
+     * A scan found the device.
+     *
+     * @return true if it has to be connected now
+     */
+    synchronized boolean onDeviceFound() {
+        if (state != State.SCANNING) {
+            return false;
+        }
+        actions.stopScan();
+        moveTo(State.CONNECTING, CONNECT_TIMEOUT_MS, this::onConnectTimeout);
+        return true;
+    }
+
+    synchronized void onLinkUp() {
+        if (state == State.CONNECTING) {
+            moveTo(State.DISCOVERING, DISCOVERY_TIMEOUT_MS, this::resetLink);
+            actions.discover();
+        }
+    }
+
+    /**
+     * Services found and notifications set, the pipeline can send.
+     *
+     * @param helo the device sends HELO, so it is watched for
+     */
+    synchronized void onReady(boolean helo) {
+        if (state != State.DISCOVERING) {
+            return;
+        }
+        failures = 0;
+        cachedFailed = false;
+        lastTimeToReadyNanos = System.nanoTime() - attemptStartNanos;
+        attemptStartNanos = 0L;
+        moveTo(State.READY, helo ? HELO_TIMEOUT_MS : 0, this::onHeloTimeout);
+    }
+
+    synchronized void onHelo() {
+        if (state.isConnected()) {
+            moveTo(State.READY, HELO_TIMEOUT_MS, this::onHeloTimeout);
+        }
+    }
+
+    /**
+     * The link went down or could not be set up.
+     */
+    synchronized void onLinkDown() {
+        if (state == State.CONNECTING || state == State.DISCOVERING || state.isConnected()) {
+            boolean warmFailed = state == State.CONNECTING && warm;
+            actions.close();
+            if (warmFailed) {
+                cachedFailed = true;
+                scan();
+            } else {
+                backoff();
+            }
+        }
+    }
+
+    /**
+     * Something went wrong during discovery, the link is reset.
+     */
+    synchronized void onDiscoveryFailed() {
+        if (state == State.DISCOVERING) {
+            resetLink();
+        }
+    }
+
+    private void attempt() {
+        if (attemptStartNanos == 0L) {
+            attemptStartNanos = System.nanoTime();
+        }
+        if (!cachedFailed && actions.connectCached()) {
+            warm = true;
+            moveTo(State.CONNECTING, WARM_CONNECT_TIMEOUT_MS, this::onConnectTimeout);
+        } else {
+            scan();
+        }
+    }
+
+    private void scan() {
+        warm = false;
+        actions.startScan();
+        moveTo(State.SCANNING, SCAN_TIMEOUT_MS, this::onScanTimeout);
+    }
+
+    private void onScanTimeout() {
+        actions.stopScan();
+        backoff();
+    }
+
+    private void onConnectTimeout() {
+        actions.close();
+        if (warm) {
+            cachedFailed = true;
+            scan();
+        } else {
+            backoff();
+        }
+    }
+
+    private void onHeloTimeout() {
+        moveTo(State.DEGRADED, DEGRADED_TIMEOUT_MS, this::resetLink);
+    }
+
+    private void resetLink() {
+        actions.close();
+        backoff();
+    }
+
+    private void backoff() {
+        long delay = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(failures, 16));
+        failures++;
+        moveTo(State.BACKOFF, delay, this::attempt);
+    }
+
+    /**
+     * @param timeoutMs time to run onTimeout if nothing else happens, 0 for none
+     */
+    private void moveTo(State to, long timeoutMs, Runnable onTimeout) {
+        if (timeout != null) {
+            timeout.cancel(false);
+            timeout = null;
+        }
+        int generation = ++timeoutGeneration;
+        if (timeoutMs > 0) {
+            timeout = timer.schedule(() -> onTimeout(generation, onTimeout), timeoutMs);
+        }
+        State from = state;
+        state = to;
+        if (from != to) {
+            actions.stateChanged(from, to);
+        }
+    }
+
+    private synchronized void onTimeout(int generation, Runnable task) {
+        /* A timeout cancelled too late to stop it */
+        if (generation == timeoutGeneration) {
+            timerWakeups++;
+            timeout = null;
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.aalku.pixelmatrixfun;
+
+import java.util.Arrays;
+
+/**
+ * Channel levels the panel is estimated to show, so pixels and clears keep to the current budget
+ * as frames do.
+ *
+ * Pixels are drawn at the budget scale of the frame or clear they are drawn on, so they look the
+ * same as in a full frame, and are scaled down further if they would still go over the budget.
+ * Frames come already converted; if one is at the budget its scale is taken from its brightest
+ * channel, which is never more than the real one.
+ */
+class CurrentEstimate {
+
+    private final int width;
+    private final int height;
+    /* Sum of the channel levels of each pixel, row major */
+    private final int[] levels;
+    private long total = 0L;
+    private int scale = FrameConverter.SCALE_ONE;
+
+    CurrentEstimate(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.levels = new int[width * height];
+    }
+
+    /**
+     * Nothing known of what is shown, as after connecting: black.
+     */
+    synchronized void reset() {
+        Arrays.fill(levels, 0);
+        total = 0L;
+        scale = FrameConverter.SCALE_ONE;
+    }
+
+    /**
+     * @param frame device frame, already converted within the budget
+     */
+    synchronized void frame(byte[] frame, long maxLevels) {
+        if (frame.length != levels.length * FrameFormat.PIXEL_SIZE) {
+            /* Of another geometry, not going to be sent */
+            return;
+        }
+        total = 0L;
+        int brightest = 0;
+        int p = 0;
+        for (int x = 0; x < width; x++) {
+            for (int i = x; i < levels.length; i += width) {
+                int r = frame[p] & 0xFF;
+                int g = frame[p + 1] & 0xFF;
+                int b = frame[p + 2] & 0xFF;
+                levels[i] = r + g + b;
+                total += levels[i];
+                brightest = Math.max(brightest, Math.max(r, Math.max(g, b)));
+                p += FrameFormat.PIXEL_SIZE;
+            }
+        }
+        /* Scaling rounds every channel down, so a frame that was scaled is this close to the budget */
+        if (maxLevels > 0 && total > maxLevels - (long) levels.length * FrameFormat.PIXEL_SIZE) {
+            /* Level 255 scaled by this is brightest again */
+            scale = ((brightest + 1) << 16) / 256;
+        } else {
+            scale = FrameConverter.SCALE_ONE;
+        }
+    }
+
+    /**
+     * @param rgb levels of the color of every pixel, already scaled
+     * @param scale budget scale rgb was given
+     */
+    synchronized void clear(int rgb, int scale) {
+        int sum = FrameConverter.levelSum(rgb);
+        Arrays.fill(levels, sum);
+        total = (long) sum * levels.length;
+        this.scale = scale;
+    }
+
+    /**
+     * @param rgb levels of the color with gamma and brightness, before the budget
+     * @return the levels to send
+     */
+    synchronized int pixel(int x, int y, int rgb, long maxLevels) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return rgb;
+        }
+        rgb = FrameConverter.scale(rgb, scale);
+        int sum = FrameConverter.levelSum(rgb);
+        int i = y * width + x;
+        long others = total - levels[i];
+        if (maxLevels > 0 && others + sum > maxLevels) {
+            /* A frame sent over the budget is not made darker, but not brighter either */
+            long allowed = Math.max(maxLevels - others, levels[i]);
+            rgb = allowed <= 0 ? 0 : FrameConverter.scale(rgb, FrameConverter.budgetScale(sum, allowed));
+            sum = FrameConverter.levelSum(rgb);
+        }
+        levels[i] = sum;
+        total = others + sum;
+        return rgb;
+    }
+
+    synchronized long getTotal() {
+        return total;
+    }
+}
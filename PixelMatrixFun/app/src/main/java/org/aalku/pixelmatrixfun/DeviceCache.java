@@ -0,0 +1,99 @@
+package org.aalku.pixelmatrixfun;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * The last PixelMatrixFun we were connected to, kept in a file so the next connection can go
+ * straight to its address instead of scanning.
+ *
+ * Handles are the attribute handles of the characteristics, as BluetoothGattCharacteristic
+ * getInstanceId() returns them. Android caches the attribute table of a known address and
+ * has no public API to skip discovery, so they are kept to tell when the firmware layout changed.
+ */
+class DeviceCache {
+
+    private static final String ADDRESS = "address";
+    private static final String HANDLE_PREFIX = "handle.";
+
+    private final String address;
+    private final Map<UUID, Integer> handles;
+
+    DeviceCache(String address, Map<UUID, Integer> handles) {
+        this.address = address;
+        this.handles = Collections.unmodifiableMap(new TreeMap<>(handles));
+    }
+
+    String getAddress() {
+        return address;
+    }
+
+    Map<UUID, Integer> getHandles() {
+        return handles;
+    }
+
+    /**
+     * @return true if the device at the address still has the same attribute layout
+     */
+    boolean sameLayout(Map<UUID, Integer> discovered) {
+        return handles.equals(discovered);
+    }
+
+    /**
+     * @return the cache or null if there is none or it can't be read
+     */
+    static DeviceCache load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            p.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+        String address = p.getProperty(ADDRESS);
+        if (address == null || address.isEmpty()) {
+            return null;
+        }
+        Map<UUID, Integer> handles = new TreeMap<>();
+        for (String key : p.stringPropertyNames()) {
+            if (key.startsWith(HANDLE_PREFIX)) {
+                try {
+                    handles.put(UUID.fromString(key.substring(HANDLE_PREFIX.length())), Integer.valueOf(p.getProperty(key)));
+                } catch (IllegalArgumentException e) {
+                    /* Ignored, the layout will just not match */
+                }
+            }
+        }
+        return new DeviceCache(address, handles);
+    }
+
+    void save(File file) throws IOException {
+        Properties p = new Properties();
+        p.setProperty(ADDRESS, address);
+        for (Map.Entry<UUID, Integer> e : handles.entrySet()) {
+            p.setProperty(HANDLE_PREFIX + e.getKey(), String.valueOf(e.getValue()));
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            p.store(out, "PixelMatrixFun");
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Can't replace " + file);
+        }
+    }
+
+    static void delete(File file) {
+        file.delete();
+    }
+}
@@ -0,0 +1,211 @@
+package org.aalku.pixelmatrixfun;
+
+import org.aalku.pixelmatrixfun.LaneScheduler.Lane;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Several panels mounted as one canvas, columns x rows of them, first row first.
+ *
+ * Each panel has its own connection and send queue, so tiles are sent in parallel. Every panel
+ * holds its last page until all of them are ready to show the frame, or PRESENT_TIMEOUT_MS has
+ * passed, so the tiles change at about the same time.
+ */
+public class DeviceGroup {
+
+    public interface Panel {
+        /**
+         * @param prepared to complete when everything but the last page is sent
+         * @param present the last page is sent once it completes
+         */
+        CompletionStage<Boolean> sendFrame(byte[] frame, Lane lane, CompletableFuture<Void> prepared, CompletionStage<?> present);
+
+        boolean isConnected();
+
+        TransferMetrics.Snapshot getMetrics();
+
+        void close();
+    }
+
+    public static class Stats {
+        public final long frames;
+        public final double fps;
+        /* Bytes sent over the time since the first frame */
+        public final double[] panelBytesPerSecond;
+        public final double bytesPerSecond;
+        /* First to last tile acknowledged, for frames every panel showed */
+        public final double avgSkewMs;
+        public final double maxSkewMs;
+
+        Stats(long frames, double fps, double[] panelBytesPerSecond, double bytesPerSecond, double avgSkewMs, double maxSkewMs) {
+            this.frames = frames;
+            this.fps = fps;
+            this.panelBytesPerSecond = panelBytesPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+            this.avgSkewMs = avgSkewMs;
+            this.maxSkewMs = maxSkewMs;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder panels = new StringBuilder();
+            for (double b : panelBytesPerSecond) {
+                panels.append(panels.length() == 0 ? "" : " + ").append(String.format("%.0f", b));
+            }
+            return String.format("%d frames, %.1f fps, %s = %.0f B/s, skew avg %.1fms max %.1fms",
+                    frames, fps, panels, bytesPerSecond, avgSkewMs, maxSkewMs);
+        }
+    }
+
+    /* Longest wait for the slowest panel before the others show their tile anyway */
+    static final long PRESENT_TIMEOUT_MS = 500;
+
+    private final int columns;
+    private final int rows;
+    private final int panelWidth;
+    private final int panelHeight;
+    private final List<Panel> panels;
+    private final ScheduledExecutorService executor;
+
+    private final AtomicLong frames = new AtomicLong(0L);
+    private final AtomicLong skewFrames = new AtomicLong(0L);
+    private final AtomicLong skewTotalNanos = new AtomicLong(0L);
+    private final AtomicLong skewMaxNanos = new AtomicLong(0L);
+    private final long[] bytesAtStart;
+    private volatile long startNanos = 0L;
+
+    /**
+     * @param panels columns * rows of them, first row first
+     * @param executor for present timeouts
+     */
+    public DeviceGroup(int columns, int rows, int panelWidth, int panelHeight, List<? extends Panel> panels, ScheduledExecutorService executor) {
+        if (panels.size() != columns * rows) {
+            throw new IllegalArgumentException("Expected " + columns * rows + " panels, got " + panels.size());
+        }
+        this.columns = columns;
+        this.rows = rows;
+        this.panelWidth = panelWidth;
+        this.panelHeight = panelHeight;
+        this.panels = Collections.unmodifiableList(new ArrayList<>(panels));
+        this.executor = executor;
+        this.bytesAtStart = new long[panels.size()];
+    }
+
+    public int getWidth() {
+        return columns * panelWidth;
+    }
+
+    public int getHeight() {
+        return rows * panelHeight;
+    }
+
+    public List<Panel> getPanels() {
+        return panels;
+    }
+
+    public boolean isConnected() {
+        for (Panel p : panels) {
+            if (!p.isConnected()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param canvas a frame of getWidth() x getHeight() in device format
+     * @return true when every panel showed its tile, it fails if any of them failed
+     */
+    public CompletionStage<Boolean> sendFrame(byte[] canvas, Lane lane) {
+        if (canvas.length != FrameFormat.frameLength(getWidth(), getHeight())) {
+            throw new IllegalArgumentException("Canvas is " + canvas.length + " bytes, expected " + getWidth() + "x" + getHeight());
+        }
+        if (startNanos == 0L) {
+            synchronized (this) {
+                if (startNanos == 0L) {
+                    for (int i = 0; i < panels.size(); i++) {
+                        bytesAtStart[i] = panels.get(i).getMetrics().bytesSent;
+                    }
+                    startNanos = System.nanoTime();
+                }
+            }
+        }
+        frames.incrementAndGet();
+        int n = panels.size();
+        CompletableFuture<Void> present = new CompletableFuture<>();
+        List<CompletableFuture<Boolean>> sent = new ArrayList<>(n);
+        CompletableFuture<?>[] prepared = new CompletableFuture<?>[n];
+        long[] shownNanos = new long[n];
+        for (int i = 0; i < n; i++) {
+            /* Each panel keeps its tile until sent, so they are not reused */
+            byte[] tile = new byte[FrameFormat.frameLength(panelWidth, panelHeight)];
+            FrameFormat.copyTile(canvas, getHeight(), (i % columns) * panelWidth, (i / columns) * panelHeight, tile, panelWidth, panelHeight);
+            CompletableFuture<Void> ready = new CompletableFuture<>();
+            prepared[i] = ready;
+            int panel = i;
+            sent.add(panels.get(i).sendFrame(tile, lane, ready, present).toCompletableFuture().whenComplete((r, e) -> {
+                shownNanos[panel] = System.nanoTime();
+                /* A failed panel is not waited for */
+                ready.complete(null);
+            }));
+        }
+        CompletableFuture.allOf(prepared).thenRun(() -> present.complete(null));
+        executor.schedule(() -> present.complete(null), PRESENT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[n])).thenApply(v -> {
+            boolean all = true;
+            for (CompletableFuture<Boolean> f : sent) {
+                all &= f.join();
+            }
+            if (all) {
+                recordSkew(shownNanos);
+            }
+            return all;
+        });
+    }
+
+    private void recordSkew(long[] shownNanos) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (long t : shownNanos) {
+            min = Math.min(min, t);
+            max = Math.max(max, t);
+        }
+        long skew = max - min;
+        skewFrames.incrementAndGet();
+        skewTotalNanos.addAndGet(skew);
+        long m;
+        while ((m = skewMaxNanos.get()) < skew && !skewMaxNanos.compareAndSet(m, skew)) {
+            // Retry
+        }
+    }
+
+    public Stats getStats() {
+        long start = startNanos;
+        double seconds = start == 0L ? 0d : (System.nanoTime() - start) / 1e9;
+        double[] panelBytesPerSecond = new double[panels.size()];
+        double total = 0d;
+        for (int i = 0; i < panels.size(); i++) {
+            long bytes = panels.get(i).getMetrics().bytesSent - bytesAtStart[i];
+            panelBytesPerSecond[i] = seconds > 0 ? bytes / seconds : 0d;
+            total += panelBytesPerSecond[i];
+        }
+        long n = frames.get();
+        long skewN = skewFrames.get();
+        return new Stats(n, seconds > 0 ? n / seconds : 0d, panelBytesPerSecond, total,
+                skewN > 0 ? skewTotalNanos.get() / 1e6 / skewN : 0d, skewMaxNanos.get() / 1e6);
+    }
+
+    public void close() {
+        for (Panel p : panels) {
+            p.close();
+        }
+        executor.shutdown();
+    }
+}
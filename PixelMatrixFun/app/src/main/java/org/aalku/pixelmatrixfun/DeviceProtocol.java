@@ -0,0 +1,35 @@
+package org.aalku.pixelmatrixfun;
+
+import java.util.UUID;
+
+/**
+ * GATT service of the PixelMatrixFun firmware.
+ *
+ * Bitmap and delta writes are pages: [seq, totalLenHi, totalLenLo, offsetHi, offsetLo] plus the
+ * encoding tag once the device announced encodings, then the data. Devices that announce their
+ * geometry take wide pages, with 24 bit totalLen and offset. The last page is followed by an empty
+ * write. Pixel writes are [x, y, r, g, b] tuples, with 16 bit x and y if the panel is larger than
+ * 256, and clear is [r, g, b, seq].
+ */
+final class DeviceProtocol {
+
+    static final UUID SERVICE_UUID = UUID.fromString("5e92c674-3f45-420c-bb53-af2bcaff68b2");
+    static final UUID SEND_BITMAP_UUID = UUID.fromString("2de8d042-9a37-45f0-8233-5160faea472d");
+    static final UUID HELO_UUID = UUID.fromString("3ca58a89-0754-44d3-83e5-371aac29ca36");
+    static final UUID SEND_DELTA_UUID = UUID.fromString("8c3a4e0e-6f1b-4a4c-9d52-2b7d1f0e6a91");
+    static final UUID SEND_PIXEL_UUID = UUID.fromString("5038a8b8-5e8e-4f1f-97dd-8cf76c8e90e1");
+    static final UUID CREDITS_UUID = UUID.fromString("b1f4a0c2-7d3e-4b8a-a6f1-3e9c5d2a7b40");
+    static final UUID CLEAR_UUID = UUID.fromString("2ae4ad40-f1e2-4f4d-893c-f0109c024381");
+
+    /* HELO may carry capabilities: [HELO_CAPS_MAGIC, bitmap encodings mask, widthHi, widthLo, heightHi, heightLo] */
+    static final byte HELO_CAPS_MAGIC = (byte) 0xC0;
+    static final int HELO_CAPS_LENGTH = 2;
+    static final int HELO_GEOMETRY_LENGTH = 6;
+
+    /* Geometry of devices that don't announce one */
+    static final int WIDTH = 16;
+    static final int HEIGHT = 16;
+
+    private DeviceProtocol() {
+    }
+}
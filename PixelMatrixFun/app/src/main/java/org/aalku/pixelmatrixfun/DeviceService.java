@@ -15,320 +15,282 @@ import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.os.Build;
 import android.util.Log;
 
 import androidx.annotation.RequiresApi;
 
+import org.aalku.pixelmatrixfun.ConnectionStateMachine.State;
+import org.aalku.pixelmatrixfun.LaneScheduler.Lane;
+
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
+import static org.aalku.pixelmatrixfun.DeviceProtocol.*;
+
 @RequiresApi(api = Build.VERSION_CODES.N)
-public class DeviceService {
+public class DeviceService implements AnimationPlayer.FrameSink, DeviceGroup.Panel {
 
-    public static DeviceService instance;
+    public static final int TX_SIZE = SendPipeline.TX_SIZE;
 
-    public static final int TX_SIZE = 256; // Max 512
+    private static final int REQUESTED_MTU = 517;
 
-    private static final UUID SERVICE_UUID = UUID.fromString("5e92c674-3f45-420c-bb53-af2bcaff68b2");
-    private static final UUID SEND_BITMAP_UUID = UUID.fromString("2de8d042-9a37-45f0-8233-5160faea472d");
-    private static final UUID HELO_UUID = UUID.fromString("3ca58a89-0754-44d3-83e5-371aac29ca36");
-    private static final UUID SEND_PIXEL_UUID = UUID.fromString("5038a8b8-5e8e-4f1f-97dd-8cf76c8e90e1");
-    private static final UUID CLEAR_UUID = UUID.fromString("2ae4ad40-f1e2-4f4d-893c-f0109c024381");
     private static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
     private static final String REFERENCE_DEVICE_NAME = "PixelMatrixFun";
 
+    private static final String DEVICE_CACHE_FILE = "device-cache.properties";
+
     private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
 
-    private final AtomicLong bleConnectingSince = new AtomicLong(0L);
-    private final AtomicBoolean bleConnected = new AtomicBoolean(false);
+    private final ConnectionStateMachine machine = new ConnectionStateMachine(this::schedule, new BleActions());
+
+    /* Connection being set up or connected, callbacks from any other are stale */
     private final AtomicReference<BluetoothGatt> gattRef = new AtomicReference<>(null);
     private final AtomicReference<BluetoothGattService> serviceRef = new AtomicReference<>(null);
+    private final AtomicReference<ScanCallback> scanCallback = new AtomicReference<>(null);
 
-    private final ConcurrentLinkedDeque<WriteBytesMessage> sendQueue = new ConcurrentLinkedDeque<>();
-    private final AtomicReference<WriteBytesMessage> currentlySending = new AtomicReference<>(null);
-    private final AtomicBoolean sendLock = new AtomicBoolean(true);
+    private final AtomicReference<DeviceCache> deviceCache = new AtomicReference<>(null);
 
-    private final ArrayList<Path> pendingPaths = new ArrayList<>();
+    private final ConcurrentLinkedDeque<BluetoothGattDescriptor> pendingDescriptors = new ConcurrentLinkedDeque<>();
+    /* HELO is read once before ready, for the capabilities and geometry */
+    private final AtomicReference<BluetoothGattCharacteristic> pendingHeloRead = new AtomicReference<>(null);
 
-    private final AtomicLong lastHelo =  new AtomicLong(0L);
-    private final AtomicReference<BluetoothGattCharacteristic> heloChar = new AtomicReference<>(null);
+    /* Status text is for humans, a few updates per second are enough */
+    private static final long STATUS_INTERVAL_MS = 250;
 
-    private AtomicReference<String> statusText = new AtomicReference<>("");
-    private Collection<Consumer<String>> statusListeners = new ArrayList<>();
-    private Context context;
+    private final EventBus eventBus = new EventBus();
+    private final EventBus.Topic<String> status = eventBus.topic(STATUS_INTERVAL_MS, "");
+    private final EventBus.Topic<Boolean> connection = eventBus.topic(0, false);
+    private final EventBus.Topic<PanelGeometry> geometry = eventBus.topic(0, PanelGeometry.DEFAULT);
 
-    private Collection<Consumer<Boolean>> connectionListeners = new ArrayList<>();
+    private final SendPipeline pipeline = new SendPipeline(executor, status::publish);
+    private final FrameConverter frameConverter = pipeline.getFrameConverter();
+    /* Bitmap pixels for getBitmapBytes, sized again when the bitmap size changes */
+    private int[] bitmapPixels = new int[0];
 
-    private ConcurrentHashMap<UUID, AtomicInteger> seq = new ConcurrentHashMap<>();
+    private final Context context;
+    /* Address of the device this service is bound to, null for the last one used or any found */
+    private final String address;
 
+    /**
+     * Connects to the last PixelMatrixFun used, or to any that is found.
+     */
     @RequiresApi(api = Build.VERSION_CODES.N)
     public DeviceService(Context baseContext) {
-        synchronized (this.getClass()) {
-            if (instance != null) {
-                throw new IllegalStateException("DeviceService was created twice");
-            }
-            instance = this;
-        }
-        context = baseContext;
-
-        executor.scheduleWithFixedDelay(() -> {
-            long lastHelo = this.lastHelo.get();
-            double lastHeloAgoSeconds = lastHelo <= 0L ? 0L : (System.currentTimeMillis() - lastHelo) / 1000.0;
-            Log.d("BLE", this + " - Last HELO was " + lastHeloAgoSeconds + "s ago");
-            if (bleConnected.get()) {
-                if (lastHelo > 0 && lastHeloAgoSeconds > 5d) {
-                    setStatusText("Connection might be lost!");
-                    /* Disconnecting seems not useful. You can't connect fast after that */
-                    // Optional.ofNullable(gattRef.get()).ifPresent(g->g.disconnect());
-                } else if (lastHelo > 0) {
-                    setStatusText("PixelMatrixFun is connected and ready.");
-                } else {
-                    setStatusText("Connected?");
-                }
-            } else if (bleConnectingSince.get() > 0) {
-                long since = bleConnectingSince.get();
-                if (since > 0 && (System.currentTimeMillis() - since) > 5000) {
-                    BluetoothGatt gatt = gattRef.get();
-                    if (gatt != null) {
-                        gatt.disconnect();
-                    } else {
-                        synchronized (bleConnected) {
-                            bleConnectingSince.set(0L);
-                        }
-                    }
-                }
+        this(baseContext, null);
+    }
+
+    /**
+     * @param address of the device to connect to, null for the last one used or any found
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    public DeviceService(Context baseContext, String address) {
+        this.context = baseContext;
+        this.address = address;
+
+        executor.execute(() -> {
+            if (address != null) {
+                deviceCache.set(new DeviceCache(address, Collections.emptyMap()));
             } else {
-                bleTryConnect();
+                deviceCache.set(DeviceCache.load(getDeviceCacheFile()));
             }
-        }, 0, 1, TimeUnit.SECONDS);
+            machine.start();
+        });
+    }
 
+    /**
+     * One service per address, tiled columns x rows, first row first.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    public static DeviceGroup connectGroup(Context context, int columns, int rows, List<String> addresses) {
+        return connectGroup(context, columns, rows, PanelGeometry.DEFAULT, addresses);
     }
 
-    public CompletionStage<Boolean> sendBitmap(Bitmap bitmap) {
-        BluetoothGattService s = serviceRef.get();
-        BluetoothGatt gatt = gattRef.get();
-        if (checkConnected(s, gatt)) {
-            BluetoothGattCharacteristic c = s.getCharacteristic(SEND_BITMAP_UUID);
-            Log.i("BLE", "Sending image...");
-            if (bitmap != null) {
-                return internalSendBitmap(gatt, c, bitmap);
-            } else {
-                bitmap = Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
-                // Black?
-                return internalSendBitmap(gatt, c, bitmap);
-            }
+    /**
+     * @param panel geometry of every panel, the group is laid out before they are connected
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    public static DeviceGroup connectGroup(Context context, int columns, int rows, PanelGeometry panel, List<String> addresses) {
+        List<DeviceService> panels = new ArrayList<>();
+        for (String a : addresses) {
+            panels.add(new DeviceService(context, a));
         }
-        CompletableFuture<Boolean> errorCf = new CompletableFuture<>();
-        errorCf.completeExceptionally(new IOException("Not connected"));
-        return errorCf;
+        return new DeviceGroup(columns, rows, panel.width, panel.height, panels, Executors.newSingleThreadScheduledExecutor());
     }
 
-    public void sendPixel(int x, int y, int color) {
-
-        synchronized (pendingPaths) {
-            Path p = null;
-            for (Path pp: pendingPaths) {
-                if (pp.merge(x, y, color)) {
-                    p = pp;
-                    break;
-                }
-            }
-            if (p == null) {
-                pendingPaths.add(p = new Path(x, y, color));
-            }
-            if (p.isFull() || this.sendQueue.isEmpty()) {
-                pendingPaths.remove(p);
-                sendPath(p);
-            }
+    private Future<?> schedule(Runnable task, long delayMs) {
+        try {
+            return executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            /* Closed */
+            return null;
         }
     }
 
-    private void sendPath(Path p) {
-        if (p == null) {
-            synchronized (pendingPaths) {
-                if (pendingPaths.isEmpty()) {
-                    return;
-                } else {
-                    sendPath(pendingPaths.remove(0));
-                }
-            }
-        } else {
-            setStatusText("Sending pixels...");
-            BluetoothGattService s = serviceRef.get();
-            BluetoothGatt gatt = gattRef.get();
-            if (checkConnected(s, gatt)) {
-                BluetoothGattCharacteristic c = s.getCharacteristic(SEND_PIXEL_UUID);
-                Log.i("BLE", "Sending pixels...");
-                writeBytesCharacteristic(gatt, p.getBytes(), c);
-            }
+    /**
+     * Bitmaps of another size are scaled to the panel.
+     */
+    public CompletionStage<Boolean> sendBitmap(Bitmap bitmap) {
+        Log.i("BLE", "Sending image...");
+        PanelGeometry g = getGeometry();
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(g.width, g.height, Bitmap.Config.ARGB_8888);
+            // Black?
+        } else if (bitmap.getWidth() != g.width || bitmap.getHeight() != g.height) {
+            bitmap = Bitmap.createScaledBitmap(bitmap, g.width, g.height, true);
         }
+        setStatusText("Sending bitmap...");
+        return sendFrame(getBitmapBytes(bitmap), Lane.BULK);
     }
 
-    public CompletionStage<Boolean> clearBitmap(int color) {
-        setStatusText("Clearing bitmap...");
-        BluetoothGattService s = serviceRef.get();
-        BluetoothGatt gatt = gattRef.get();
-        if (checkConnected(s, gatt)) {
-            BluetoothGattCharacteristic c = s.getCharacteristic(CLEAR_UUID);
-            Log.i("BLE", "Clearing bitmap...");
-            byte[] pixelsBytes = new byte[4];
-            pixelsBytes[0] = (byte) ((color >> 16) & 0xff);
-            pixelsBytes[1] = (byte) ((color >> 8 ) & 0xff);
-            pixelsBytes[2] = (byte) ((color      ) & 0xff);
-            pixelsBytes[3 ] = (byte) (getSeq(CLEAR_UUID) & 0xff);
-            return writeBytesCharacteristic(gatt, pixelsBytes, c);
+    /**
+     * Like sendBitmap for row major ARGB pixels, as DrawingLibrary loads them.
+     */
+    public CompletionStage<Boolean> sendPixels(int[] argb, int width, int height) {
+        PanelGeometry g = getGeometry();
+        if (width != g.width || height != g.height) {
+            int[] scaled = new int[g.getPixels()];
+            new AreaScaler(width, height, g.width, g.height).scale(argb, 0, width, scaled);
+            argb = scaled;
         }
-        CompletableFuture<Boolean> errorCf = new CompletableFuture<>();
-        errorCf.completeExceptionally(new IOException("Not connected"));
-        return errorCf;
+        byte[] out = new byte[g.getFrameLength()];
+        frameConverter.toFrame(argb, g.width, g.height, out);
+        setStatusText("Sending bitmap...");
+        return sendFrame(out, Lane.BULK);
     }
 
-    private int getSeq(UUID key) {
-        return seq.computeIfAbsent(key, k->new AtomicInteger(0)).incrementAndGet();
+    /**
+     * Sends a full frame already in device format, as getBitmapBytes makes them, in the normal lane.
+     */
+    @Override
+    public CompletionStage<Boolean> sendFrame(byte[] frame) {
+        return sendFrame(frame, Lane.NORMAL);
     }
 
-    private boolean checkConnected(BluetoothGattService s, BluetoothGatt gatt) {
-        return bleConnected.get() && s != null && gatt != null;
+    public CompletionStage<Boolean> sendFrame(byte[] frame, Lane lane) {
+        return pipeline.sendFrame(frame, lane);
     }
 
-    private byte[] getBitmapBytes(Bitmap bitmap) {
+    /**
+     * For a DeviceGroup: the last page waits for present so the tiles are shown together.
+     */
+    @Override
+    public CompletionStage<Boolean> sendFrame(byte[] frame, Lane lane, CompletableFuture<Void> prepared, CompletionStage<?> present) {
+        return pipeline.sendFrame(frame, lane, prepared, present);
+    }
+
+    public void sendPixel(int x, int y, int color) {
+        pipeline.sendPixel(x, y, color);
+    }
+
+    /**
+     * @param ms longest time a pixel waits for others to share its write, 0 sends it right away
+     */
+    public void setPixelFlushDeadline(long ms) {
+        pipeline.setPixelFlushDeadline(ms);
+    }
+
+    public long getPixelFlushDeadline() {
+        return pipeline.getPixelFlushDeadline();
+    }
+
+    public CompletionStage<Boolean> clearBitmap(int color) {
+        setStatusText("Clearing bitmap...");
+        Log.i("BLE", "Clearing bitmap...");
+        return pipeline.clear(color);
+    }
+
+    /**
+     * @return a new frame, the pipeline keeps it until it's sent
+     */
+    synchronized byte[] getBitmapBytes(Bitmap bitmap) {
         int w = bitmap.getWidth();
         int h = bitmap.getHeight();
-        int[] pixelsInt = new int[w * h];
-        byte[] out = new byte[pixelsInt.length * 3];
-        bitmap.getPixels(pixelsInt, 0, w, 0, 0, w, h);
-        for (int x = 0; x < w; x++) {
-            for (int y = 0; y < h; y++) {
-                int argb = pixelsInt[y*w+x];
-                byte red = (byte) Color.red(argb);
-                byte green = (byte) Color.green(argb);
-                byte blue = (byte) Color.blue(argb);
-                int p = (x * h + y) * 3;
-                out[p] = red;
-                out[p + 1] = green;
-                out[p + 2] = blue;
-            }
+        if (bitmapPixels.length != w * h) {
+            bitmapPixels = new int[w * h];
         }
+        byte[] out = new byte[FrameFormat.frameLength(w, h)];
+        bitmap.getPixels(bitmapPixels, 0, w, 0, 0, w, h);
+        frameConverter.toFrame(bitmapPixels, w, h, out);
         return out;
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.N)
-    void bleTryConnect() {
-        Log.d("BLE", this + " - bleConnect()");
-        synchronized (bleConnected) {
-            if (bleConnected.get()) {
-                Log.d("BLE", this + " - Already connected.");
-                return;
-            } else if (bleConnectingSince.get() > 0) {
-                Log.d("BLE", this + " - Already connecting.");
-                return;
-            } else {
-                Log.d("BLE", this + " - Need to scan.");
-                bleConnectingSince.set(System.currentTimeMillis());
+    /**
+     * @return panel size of the device, the default until it announces one
+     */
+    public PanelGeometry getGeometry() {
+        return pipeline.getGeometry();
+    }
+
+    /**
+     * Gamma, brightness and current budget used for bitmaps, pixels and clears.
+     */
+    public FrameConverter getFrameConverter() {
+        return frameConverter;
+    }
+
+    /**
+     * What the connection state machine does to the Android stack.
+     */
+    private class BleActions implements ConnectionStateMachine.Actions {
+
+        @Override
+        public boolean connectCached() {
+            DeviceCache cache = deviceCache.get();
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            if (cache == null || adapter == null || !BluetoothAdapter.checkBluetoothAddress(cache.getAddress())) {
+                return false;
             }
+            Log.d("BLE", "Connecting to cached address " + cache.getAddress());
+            return connect(adapter.getRemoteDevice(cache.getAddress()));
         }
-        setStatusText("...");
-        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
-        adapter.cancelDiscovery();
-        BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
-
-        if (scanner != null) {
-            setStatusText("Scanning...");
-            ScanSettings scanSettings = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_BALANCED).setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES).setReportDelay(1000).build();
-            List<ScanFilter> filters = Collections.singletonList(new ScanFilter.Builder().setDeviceName(REFERENCE_DEVICE_NAME).build());
-            ScanCallback scanCallback = new ScanCallback() {
-                @RequiresApi(api = Build.VERSION_CODES.N)
+
+        /**
+         * Low latency scan, the first result is used right away.
+         */
+        @Override
+        public void startScan() {
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            BluetoothLeScanner scanner = adapter == null ? null : adapter.getBluetoothLeScanner();
+            if (scanner == null) {
+                /* Bluetooth is off, the scan times out and is tried again later */
+                Log.e("BLE", "could not get scanner object");
+                return;
+            }
+            adapter.cancelDiscovery();
+            ScanSettings scanSettings = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES).setReportDelay(0).build();
+            ScanFilter.Builder filter = new ScanFilter.Builder().setDeviceName(REFERENCE_DEVICE_NAME);
+            if (address != null) {
+                filter.setDeviceAddress(address);
+            }
+            List<ScanFilter> filters = Collections.singletonList(filter.build());
+            ScanCallback callback = new ScanCallback() {
                 @Override
-                public void onBatchScanResults(List<ScanResult> results) {
-                    if (bleConnected.get()) {
-                        // Ignored because already connected
-                        return;
-                    }
-                    Log.d("BLE", this + " -   onBatchScanResults(results.size=" + results.size() + ")");
-                    scanner.stopScan(this); // Enough
-                    if (results.size() == 0) {
-                        synchronized (bleConnected) {
-                            bleConnectingSince.set(0L);
-                            setStatusText("MatrixPixelFun not found");
-                            return;
-                        }
-                    }
-                    for (ScanResult r : results) {
-                        Log.w("BLE", "  onBatchScanResults[*]: " + r);
-                        String deviceName = r.getScanRecord().getDeviceName();
-                        if (deviceName != null && deviceName.equals(REFERENCE_DEVICE_NAME)) {
-                            setStatusText("Found MatrixPixelFun ...");
-                            Log.w("BLE", "  connecting to " + deviceName + "...");
-                            BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
-
-                                @Override
-                                public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                                    if (newState == BluetoothProfile.STATE_CONNECTED) {
-                                        onBleConnected(gatt);
-                                    } else {
-                                        onDisconnected(gatt);
-                                    }
-                                }
-
-                                @Override
-                                public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-                                    if (status != BluetoothGatt.GATT_SUCCESS) {
-                                        Log.e("BLE", this + " - Can't discover services!!");
-                                        gatt.disconnect();
-                                        return;
-                                    }
-                                    BluetoothGattService s = gatt.getService(SERVICE_UUID);
-                                    if (s != null) {
-                                        Log.i("BLE", this + " - Found service!!");
-                                        onFullyConnected(gatt, s);
-                                    } else {
-                                        Log.i("BLE", this + " - Service not found!!");
-                                        gatt.discoverServices();
-                                    }
-                                }
-
-                                @Override
-                                public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-                                    Log.d("BLE", "CharacteristicsChanged: " + characteristic);
-                                    if (characteristic.getUuid().equals(HELO_UUID)) {
-                                        lastHelo.set(System.currentTimeMillis());
-                                    }
-                                }
-
-                                @Override
-                                public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic c, int status) {
-                                    DeviceService.this.onCharacteristicWrite(gatt, c, status);
-                                }
-                            };
-                            r.getDevice().connectGatt(context, false, gattCallback, BluetoothDevice.TRANSPORT_LE);
+                public void onScanResult(int callbackType, ScanResult r) {
+                    if (scanCallback.get() == this && machine.onDeviceFound()) {
+                        Log.w("BLE", "  connecting to " + r.getDevice().getAddress() + "...");
+                        if (!connect(r.getDevice())) {
+                            machine.onLinkDown();
                         }
                     }
-                    super.onBatchScanResults(results);
-                }
-
-                @Override
-                public void onScanResult(int callbackType, ScanResult result) {
-                    Log.d("BLE", this + " - onScanResult(" + result +")");
                 }
 
                 @Override
@@ -337,106 +299,372 @@ public class DeviceService {
                     super.onScanFailed(errorCode);
                 }
             };
-            scanner.startScan(filters, scanSettings, scanCallback);
-            Log.d("BLE", this + " - scan started");
-            // scanner.flushPendingScanResults(scanCallback);
-        }  else {
-            Log.e("BLE", this + " - could not get scanner object");
+            scanCallback.set(callback);
+            scanner.startScan(filters, scanSettings, callback);
+            Log.d("BLE", "scan started");
+        }
+
+        @Override
+        public void stopScan() {
+            ScanCallback callback = scanCallback.getAndSet(null);
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            BluetoothLeScanner scanner = adapter == null ? null : adapter.getBluetoothLeScanner();
+            if (callback != null && scanner != null) {
+                scanner.stopScan(callback);
+            }
         }
+
+        @Override
+        public void discover() {
+            BluetoothGatt gatt = gattRef.get();
+            schedule(() -> {
+                if (gatt != null && gattRef.get() == gatt) {
+                    gatt.discoverServices();
+                }
+            }, 100);
+        }
+
+        @Override
+        public void close() {
+            BluetoothGatt gatt = gattRef.getAndSet(null);
+            serviceRef.set(null);
+            if (pipeline.isConnected()) {
+                pipeline.disconnected();
+            }
+            if (gatt != null) {
+                gatt.disconnect();
+                gatt.close();
+            }
+        }
+
+        @Override
+        public void stateChanged(State from, State to) {
+            Log.i("BLE", "Connection " + from + " -> " + to);
+            setStatusText(statusText(to));
+            if (from == State.DISCOVERING && to == State.READY) {
+                long nanos = machine.getLastTimeToReadyNanos();
+                boolean warm = machine.isWarm();
+                pipeline.recordTimeToReady(warm, nanos);
+                Log.i("BLE", String.format("Ready in %.0fms after %s", nanos / 1e6, warm ? "connecting to the cached address" : "scanning"));
+            }
+            if (from.isConnected() != to.isConnected()) {
+                notifyConnectionListeners(to.isConnected());
+            }
+        }
+    }
+
+    private static String statusText(State state) {
+        switch (state) {
+            case SCANNING:
+                return "Scanning...";
+            case CONNECTING:
+                return "Connecting to MatrixPixelFun ...";
+            case DISCOVERING:
+                return "Discovering device services ...";
+            case READY:
+                return "PixelMatrixFun is connected and ready.";
+            case DEGRADED:
+                return "Connection might be lost!";
+            case BACKOFF:
+                return "MatrixPixelFun is not connected";
+            default:
+                return "...";
+        }
+    }
+
+    private boolean connect(BluetoothDevice device) {
+        BluetoothGatt gatt = device.connectGatt(context, false, newGattCallback(), BluetoothDevice.TRANSPORT_LE);
+        gattRef.set(gatt);
+        return gatt != null;
+    }
+
+    private BluetoothGattCallback newGattCallback() {
+        return new BluetoothGattCallback() {
+
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+                if (gattRef.get() != gatt) {
+                    /* From a connection given up already */
+                    gatt.disconnect();
+                    gatt.close();
+                } else if (newState == BluetoothProfile.STATE_CONNECTED) {
+                    machine.onLinkUp();
+                } else {
+                    Log.i("BLE", "Disconnected, status " + status);
+                    machine.onLinkDown();
+                }
+            }
+
+            @Override
+            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.e("BLE", this + " - Can't discover services!!");
+                    machine.onDiscoveryFailed();
+                    return;
+                }
+                BluetoothGattService s = gatt.getService(SERVICE_UUID);
+                if (s != null) {
+                    Log.i("BLE", this + " - Found service!!");
+                    onFullyConnected(gatt, s);
+                } else {
+                    Log.i("BLE", this + " - Service not found!!");
+                    gatt.discoverServices();
+                }
+            }
+
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+                Log.d("BLE", "CharacteristicsChanged: " + characteristic);
+                if (gattRef.get() != gatt) {
+                    /* Credits of a closed connection would open the window of the new one */
+                    return;
+                }
+                pipeline.onNotification(characteristic.getUuid(), characteristic.getValue());
+                if (characteristic.getUuid().equals(HELO_UUID)) {
+                    machine.onHelo();
+                    publishGeometry();
+                }
+            }
+
+            @Override
+            public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic c, int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS && c.getUuid().equals(HELO_UUID)) {
+                    pipeline.onNotification(HELO_UUID, c.getValue());
+                } else {
+                    Log.w("BLE", "Can't read " + c.getUuid() + ", status " + status);
+                }
+                if (isSettingUp(gatt)) {
+                    writeNextDescriptor(gatt);
+                }
+            }
+
+            @Override
+            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic c, int status) {
+                if (gattRef.get() != gatt) {
+                    /* Of a connection closed meanwhile, the write in flight is of the new one */
+                    return;
+                }
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.e("BLE", "Write error: " + status);
+                }
+                pipeline.onWriteComplete(status == BluetoothGatt.GATT_SUCCESS);
+            }
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+                if (isSettingUp(gatt)) {
+                    writeNextDescriptor(gatt);
+                }
+            }
+
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                Log.i("BLE", "MTU changed to " + mtu + ", status " + status);
+                if (status == BluetoothGatt.GATT_SUCCESS && gattRef.get() == gatt) {
+                    pipeline.setMtu(mtu);
+                }
+                /* Not when renegotiated after setup */
+                if (isSettingUp(gatt)) {
+                    writeNextDescriptor(gatt);
+                }
+            }
+        };
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
     private void onFullyConnected(BluetoothGatt gatt, BluetoothGattService s) {
         BluetoothGattCharacteristic heloChar = s.getCharacteristic(HELO_UUID);
-        DeviceService.this.heloChar.set(heloChar);
-        if (heloChar == null) {
-            lastHelo.set(-1);
-        } else {
-            lastHelo.set(0L);
+        pendingDescriptors.clear();
+        enableNotification(gatt, heloChar);
+        boolean heloReadable = heloChar != null && (heloChar.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) != 0;
+        pendingHeloRead.set(heloReadable ? heloChar : null);
+        BluetoothGattCharacteristic creditsChar = s.getCharacteristic(CREDITS_UUID);
+        boolean credits = creditsChar != null && enableNotification(gatt, creditsChar);
+        pipeline.connected(new GattTransport(gatt, s), credits);
+        serviceRef.set(s);
+        updateDeviceCache(gatt, s);
+        /* Sending starts after the MTU, every notification and the HELO read, the stack only accepts one request at a time */
+        if (!gatt.requestMtu(REQUESTED_MTU)) {
+            writeNextDescriptor(gatt);
         }
-        if (gatt.setCharacteristicNotification(heloChar, true)) {
-            BluetoothGattDescriptor descriptor = heloChar.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            gatt.writeDescriptor(descriptor);
+    }
+
+    private boolean enableNotification(BluetoothGatt gatt, BluetoothGattCharacteristic c) {
+        if (c != null && gatt.setCharacteristicNotification(c, true)) {
+            BluetoothGattDescriptor descriptor = c.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+            if (descriptor != null) {
+                descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                pendingDescriptors.add(descriptor);
+                return true;
+            }
         }
+        return false;
+    }
+
+    /**
+     * @return true while the connection of gatt is between services found and ready, the setup
+     * callbacks of a dropped or finished setup must not go on with it
+     */
+    private boolean isSettingUp(BluetoothGatt gatt) {
+        return gattRef.get() == gatt && machine.getState() == State.DISCOVERING;
+    }
 
-        setStatusText("MatrixPixelFun is ready.");
-        // gatt.requestMtu(256);
-        synchronized (bleConnected) {
-            gattRef.set(gatt);
-            serviceRef.set(s);
-            bleConnected.set(true);
-            bleConnectingSince.set(0L);
-            sendLock.set(false);
-            notifyConnectionListeners(true);
+    private void writeNextDescriptor(BluetoothGatt gatt) {
+        BluetoothGattDescriptor descriptor = pendingDescriptors.poll();
+        BluetoothGattCharacteristic helo;
+        if (descriptor != null) {
+            if (!gatt.writeDescriptor(descriptor)) {
+                Log.e("BLE", "Can't enable notifications of " + descriptor.getCharacteristic().getUuid());
+                writeNextDescriptor(gatt);
+            }
+        } else if ((helo = pendingHeloRead.getAndSet(null)) != null && gatt.readCharacteristic(helo)) {
+            /* Continues in onCharacteristicRead */
+        } else if (gattRef.get() == gatt) {
+            publishGeometry();
+            pipeline.ready();
+            /* -1 if the device has no HELO */
+            machine.onReady(pipeline.getLastHelo() >= 0);
         }
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.N)
-    private void onBleConnected(BluetoothGatt gatt) {
-        executor.schedule(()->{
-            setStatusText("Discovering device services ...");
-            gatt.discoverServices();
-        }, 100, TimeUnit.MILLISECONDS);
+    private File getDeviceCacheFile() {
+        return new File(context.getFilesDir(), DEVICE_CACHE_FILE);
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.N)
-    private void onDisconnected(BluetoothGatt gatt) {
-        synchronized (bleConnected) {
-            sendLock.set(true);
-            BluetoothGattCharacteristic heloChar = DeviceService.this.heloChar.get();
-            if (heloChar != null && gatt.setCharacteristicNotification(heloChar, true)) {
-                BluetoothGattDescriptor descriptor = heloChar.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
-                descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-                gatt.writeDescriptor(descriptor);
-                DeviceService.this.heloChar.set(null);
+    /**
+     * Saves the address and handles if they changed, so the next connection skips the scan.
+     */
+    private void updateDeviceCache(BluetoothGatt gatt, BluetoothGattService s) {
+        if (address != null) {
+            /* Bound to its address, nothing to remember */
+            return;
+        }
+        Map<UUID, Integer> handles = new TreeMap<>();
+        for (BluetoothGattCharacteristic c : s.getCharacteristics()) {
+            handles.put(c.getUuid(), c.getInstanceId());
+        }
+        String address = gatt.getDevice().getAddress();
+        DeviceCache old = deviceCache.get();
+        if (old != null && old.getAddress().equals(address) && old.sameLayout(handles)) {
+            return;
+        }
+        if (old != null && old.getAddress().equals(address)) {
+            Log.w("BLE", "Device attribute layout changed: " + old.getHandles() + " -> " + handles);
+        }
+        DeviceCache cache = new DeviceCache(address, handles);
+        deviceCache.set(cache);
+        executor.execute(() -> {
+            try {
+                cache.save(getDeviceCacheFile());
+            } catch (IOException e) {
+                Log.e("BLE", "Can't save device cache", e);
             }
-            gatt.disconnect();
-            gatt.close();
-            setStatusText("MatrixPixelFun was disconnected");
-            bleConnected.set(false);
-            serviceRef.set(null);
-            gattRef.set(null);
-            bleConnectingSince.set(0L);
-            notifyConnectionListeners(false);
+        });
+    }
+
+    /**
+     * The next connection scans for any PixelMatrixFun instead of going to the last one.
+     */
+    public void forgetDevice() {
+        if (address != null) {
+            return;
         }
+        deviceCache.set(null);
+        executor.execute(() -> DeviceCache.delete(getDeviceCacheFile()));
     }
 
-    private CompletionStage<Boolean> internalSendBitmap(BluetoothGatt gatt, BluetoothGattCharacteristic c, Bitmap bitmap) {
-        byte[] pixelsBytes = getBitmapBytes(bitmap);
-        setStatusText("Sending bitmap...");
-        return writeBytesCharacteristic(gatt, pixelsBytes, c);
+    public boolean isDeltaEnabled() {
+        return pipeline.isDeltaEnabled();
+    }
+
+    /**
+     * Send only the pixels that changed since the last acknowledged frame when the device supports it.
+     */
+    public void setDeltaEnabled(boolean enabled) {
+        pipeline.setDeltaEnabled(enabled);
+    }
+
+    public int getPipelineWindow() {
+        return pipeline.getPipelineWindow();
+    }
+
+    /**
+     * Max chunks written without response before the device returns credits. 0 waits for
+     * every write response, as devices without the credits characteristic need.
+     */
+    public void setPipelineWindow(int chunks) {
+        pipeline.setPipelineWindow(chunks);
+    }
+
+    public int getMtu() {
+        return pipeline.getMtu();
+    }
+
+    /**
+     * @return bytes per GATT write currently chosen, page header included
+     */
+    public int getChunkSize() {
+        return pipeline.getChunkSize();
+    }
+
+    /**
+     * @return observed write throughput
+     */
+    public double getBytesPerSecond() {
+        return pipeline.getBytesPerSecond();
     }
 
     public String getStatusText() {
-        return statusText.get();
+        return status.get();
     }
 
+    /**
+     * Never blocks. Listeners get the latest text a few times per second at most.
+     */
     private void setStatusText(String s) {
-        this.statusText.set(s);
-        for (Consumer<String> c: statusListeners) {
-            c.accept(s);
-        }
+        status.publish(s);
     }
 
+    /**
+     * Listeners are called on the event bus thread, never on the BLE thread.
+     */
     public void addStatusListener(Consumer<String> x) {
-        statusListeners.add(x);
-        Log.d("StatusListener", "addStatusListener(" + x + "); total=" + statusListeners.size());
+        status.subscribe(x);
+        Log.d("StatusListener", "addStatusListener(" + x + "); total=" + status.getListenerCount());
     }
 
     public void removeStatusListener(Consumer<String> x) {
-        statusListeners.remove(x);
-        Log.d("StatusListener", "removeStatusListener(" + x + "); total=" + statusListeners.size());
+        status.unsubscribe(x);
+        Log.d("StatusListener", "removeStatusListener(" + x + "); total=" + status.getListenerCount());
+    }
+
+    /**
+     * Called when the device announces a geometry other than the last one.
+     */
+    public void addGeometryListener(Consumer<PanelGeometry> x) {
+        geometry.subscribe(x);
+    }
+
+    public void removeGeometryListener(Consumer<PanelGeometry> x) {
+        geometry.unsubscribe(x);
+    }
+
+    private void publishGeometry() {
+        PanelGeometry g = pipeline.getGeometry();
+        if (!g.equals(geometry.get())) {
+            Log.i("BLE", "Panel geometry " + g);
+            geometry.publish(g);
+        }
     }
 
     public void removeConnectionListener(Consumer<Boolean> x) {
-        connectionListeners.remove(x);
-        Log.d("ConnectionListener", "removeConnectionListener(" + x + "); total=" + connectionListeners.size());
+        connection.unsubscribe(x);
+        Log.d("ConnectionListener", "removeConnectionListener(" + x + "); total=" + connection.getListenerCount());
     }
 
     public void addConnectionListener(Consumer<Boolean> x) {
-        connectionListeners.add(x);
-        Log.d("ConnectionListener", "addConnectionListener(" + x + "); total=" + connectionListeners.size());
+        connection.subscribe(x);
+        Log.d("ConnectionListener", "addConnectionListener(" + x + "); total=" + connection.getListenerCount());
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
@@ -446,212 +674,79 @@ public class DeviceService {
         });
     }
 
+    @Override
     public void close() {
+        machine.stop();
         executor.shutdown();
-        disconnect();
+        eventBus.close();
     }
 
-    private synchronized CompletionStage<Boolean> writeBytesCharacteristic(BluetoothGatt gatt, byte[] bytes, BluetoothGattCharacteristic c) {
-        WriteBytesMessage msg = new WriteBytesMessage(c, bytes);
-        sendQueue.add(msg);
-        internalWrite(gatt);
-        return msg.getFuture();
+    public LaneScheduler.LaneStats getLaneStats(Lane lane) {
+        return pipeline.getLaneStats(lane);
     }
 
-    private synchronized void internalWrite(BluetoothGatt gatt) {
-        if (!sendLock.getAndSet(true)) {
-            WriteBytesMessage msg = currentlySending.get();
-            boolean isContinuation = (msg != null);
-            if (msg == null) {
-                /* Let's see if there is something else to send */
-                if (this.sendQueue.isEmpty()) {
-                    sendPath(null);
-                }
-                msg = this.sendQueue.poll();
-                if (msg == null) {
-                    Log.i("BLE", "Nothing to send.");
-                    sendLock.set(false);
-                    return;
-                }
-            }
-            currentlySending.set(msg);
-            int offset = msg.getOffset();
-            int totalLen = msg.getLength();
-            byte[] bytes = msg.next();
-            UUID cUUID = msg.getCharacteristic().getUuid();
-            if (bytes.length > 0 && cUUID.equals(SEND_BITMAP_UUID)) {
-                bytes = makePage(getSeq(cUUID), totalLen, offset, bytes);
-            }
-            BluetoothGattCharacteristic c = gatt.getService(SERVICE_UUID).getCharacteristic(cUUID);
-            c.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-            c.setValue(bytes);
-            boolean ok = gatt.writeCharacteristic(c);
-            if (ok) {
-                setStatusText(String.format("Sent %d/%d to %s", msg.getOffset(), msg.getLength(), c.getUuid().toString()));
-            } else {
-                sendLock.set(false);
-                setStatusText("Error sending");
-                executor.schedule(() -> internalWrite(gatt), 100, TimeUnit.MILLISECONDS);
-            }
-        }
+    /**
+     * @return frames cancelled because a newer one was sent before they started
+     */
+    public long getSupersededFrames() {
+        return pipeline.getSupersededFrames();
     }
 
-    private byte[] makePage(int seq, int totalLen, int offset, byte[] bytes) {
-        byte[] res = new byte[bytes.length+5];
-        System.arraycopy(bytes, 0, res, res.length - bytes.length, bytes.length);
-        res[0]=(byte)(seq & 0xFF);
-        res[1]=(byte)((totalLen >> 8) & 0xFF);
-        res[2]=(byte)((totalLen     ) & 0xFF);
-        res[3]=(byte)((offset >> 8) & 0xFF);
-        res[4]=(byte)((offset     ) & 0xFF);
-        return res;
+    @Override
+    public TransferMetrics.Snapshot getMetrics() {
+        return pipeline.getMetrics();
     }
 
-    private synchronized void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic c, int status) {
-        sendLock.set(false);
-        WriteBytesMessage sending = currentlySending.get();
-        if (sending == null) {
-            Log.e("BLE", "onCharacteristicWrite without currentlySending", new IllegalStateException());
-            return;
-        }
-        if (status == BluetoothGatt.GATT_SUCCESS) {
-            Log.d("BLE", "onCharacteristicWrite: OK");
-            if (sending.isDone()) {
-                currentlySending.set(null);
-                sending.complete(true);
-                internalWrite(gatt);
-            } else {
-                internalWrite(gatt);
-            }
-        } else {
-            Log.e("BLE", "Disconnecting due to write error: " + status);
-            currentlySending.set(null);
-            sending.completeExceptionally(new IOException("Write error: " + status));
-            gatt.disconnect();
-        }
+    /**
+     * Appends a metrics snapshot to the file.
+     */
+    public void dumpMetrics(File file) throws IOException {
+        TransferMetrics.dump(getMetrics(), file);
     }
 
-    private static class WriteBytesMessage {
-        private final BluetoothGattCharacteristic c;
-        private final byte[] bytes;
-        private int offset = 0;
-        private final CompletableFuture<Boolean> cf = new CompletableFuture<>();
-
-        public int getOffset() {
-            return offset;
-        }
-
-        public CompletionStage<Boolean> getFuture() {
-            return cf;
-        }
+    /**
+     * Transport over the GATT connection. Results come back through the BluetoothGattCallback.
+     */
+    private static class GattTransport implements Transport {
+        private final BluetoothGatt gatt;
+        private final BluetoothGattService service;
 
-        private WriteBytesMessage(BluetoothGattCharacteristic c, byte[] bytes) {
-            this.c = c;
-            this.bytes = bytes;
+        GattTransport(BluetoothGatt gatt, BluetoothGattService service) {
+            this.gatt = gatt;
+            this.service = service;
         }
 
-        public byte[] next() {
-            int len = Math.min(bytes.length-offset, TX_SIZE);
-            byte[] res = new byte[len];
-            System.arraycopy(bytes, offset, res, 0, len);
-            if (len == 0) {
-                /* Special case to send an empty msg at the end. This and isDone() work together to achieve that. */
-                offset++;
-            } else {
-                offset += len;
-            }
-            return res;
+        @Override
+        public boolean hasCharacteristic(UUID uuid) {
+            return service.getCharacteristic(uuid) != null;
         }
 
-        public boolean isDone() {
-            /* We use > so there is an empty msg in the end.
-             This is important since the las characteristicWrite may be automatically repeated later */
-            return offset > bytes.length;
+        @Override
+        public boolean write(UUID uuid, byte[] value, boolean withResponse) {
+            BluetoothGattCharacteristic c = service.getCharacteristic(uuid);
+            c.setWriteType(withResponse ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            /* The value is copied when the write is requested */
+            c.setValue(value);
+            return gatt.writeCharacteristic(c);
         }
 
-        public BluetoothGattCharacteristic getCharacteristic() {
-            return c;
-        }
-
-        public void complete(boolean value) {
-            cf.complete(value);
-        }
-
-        public void completeExceptionally(Throwable ex) {
-            cf.completeExceptionally(ex);
-        }
-
-        public int getLength() {
-            return bytes.length;
-        }
-    }
-
-    private static class Path {
-        final static int PW = 5;
-        final static int MAX = 16;
-        int color;
-        int lx;
-        int ly;
-        int count = 0;
-        byte[] bytes = new byte[MAX*PW];
-        Path(int x, int y, int color) {
-            this.lx = x;
-            this.ly = y;
-            this.color = color;
-            add(x,y);
-        }
-        boolean merge(int x, int y, int color) {
-            if (color != this.color) {
-                return false;
-            }
-            if (Math.abs(x-lx)>1) {
-                return false;
-            }
-            if (Math.abs(y-ly)>1) {
-                return false;
-            }
-            return add(x,y);
-        }
-        private boolean add(int x, int y) {
-            if (count < MAX) {
-                int pos = count * PW;
-                bytes[pos+0] = (byte)(x & 0xFF);
-                bytes[pos+1] = (byte)(y & 0xFF);
-                bytes[pos+2] = (byte) ((color >> 16) & 0xff);
-                bytes[pos+3] = (byte) ((color >> 8 ) & 0xff);
-                bytes[pos+4] = (byte) ((color      ) & 0xff);
-                lx = x;
-                ly = y;
-                count++;
-                return true;
-            } else {
-                return false;
-            }
-        }
-        public byte[] getBytes() {
-            byte[] res;
-            if (count == MAX) {
-                res = bytes;
-            } else {
-                res = new byte[count*PW];
-                System.arraycopy(bytes, 0, res, 0, count*PW);
-            }
-            return res;
-        }
-
-        public boolean isFull() {
-            return count == MAX;
+        @Override
+        public void disconnect() {
+            gatt.disconnect();
         }
     }
 
     private void notifyConnectionListeners(boolean connected) {
-        for (Consumer<Boolean> l: connectionListeners) {
-            l.accept(connected);
-        }
+        connection.publish(connected);
     }
 
+    @Override
     public boolean isConnected() {
-        return bleConnected.get();
+        return machine.getState().isConnected();
+    }
+
+    public State getConnectionState() {
+        return machine.getState();
     }
 
 }
\ No newline at end of file
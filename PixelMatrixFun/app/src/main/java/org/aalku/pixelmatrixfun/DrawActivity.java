@@ -3,12 +3,22 @@ package org.aalku.pixelmatrixfun;
 import androidx.annotation.RequiresApi;
 import androidx.appcompat.app.AppCompatActivity;
 
+import android.app.AlertDialog;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.Typeface;
+import android.graphics.drawable.BitmapDrawable;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.Gravity;
 import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.EditText;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
 import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.ToggleButton;
@@ -18,6 +28,9 @@ import com.google.android.material.resources.TextAppearance;
 
 import org.aalku.pixelmatrixfun.DrawView.DrawListener;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -34,7 +47,8 @@ public class DrawActivity extends AppCompatActivity implements DrawListener {
     private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
 
     private Consumer<String> statusListener = s->setStatusText(s);
-    private Consumer<Boolean> connectionListener = c->onConnectionChanged(c);
+    private Consumer<Boolean> connectionListener = c->runOnUiThread(()->onConnectionChanged(c));
+    private Consumer<PanelGeometry> geometryListener = g->runOnUiThread(()->onGeometryChanged(g));
 
     private DrawView drawView;
     private TextView statusText;
@@ -42,6 +56,15 @@ public class DrawActivity extends AppCompatActivity implements DrawListener {
     private TextView syncSwitchText;
 
     private DeviceService deviceService;
+    private DrawingLibrary library;
+    /* Saving again replaces it, unless the name is changed */
+    private DrawingLibrary.Entry openedEntry = null;
+
+    /* Touch to sendPixel latency, logged on pause */
+    private long latencyCount = 0;
+    private long latencyTotalMs = 0;
+    private long latencyMaxMs = 0;
+    private long handlingTotalNanos = 0;
 
     private ScheduledFuture<?> initTask;
     private ColorSet frontColor;
@@ -78,17 +101,26 @@ public class DrawActivity extends AppCompatActivity implements DrawListener {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        deviceService = DeviceService.instance;
+        deviceService = ((PixelMatrixFunApp) getApplication()).getDeviceService();
         setContentView(R.layout.activity_draw);
         statusText = this.findViewById(R.id.statusText);
         drawView = this.findViewById(R.id.drawView);
         syncSwitch = this.findViewById(R.id.syncSwitch);
         syncSwitchText = this.findViewById(R.id.syncText);
 
+        onGeometryChanged(deviceService.getGeometry());
+        deviceService.addGeometryListener(geometryListener);
         deviceService.addConnectionListener(connectionListener);
         deviceService.addStatusListener(statusListener);
         setStatusText(deviceService.getStatusText());
         drawView.setOnDrawListener(this);
+        drawView.setLatencyListener((eventUptimeMs, handlingNanos) -> {
+            long ms = SystemClock.uptimeMillis() - eventUptimeMs;
+            latencyCount++;
+            latencyTotalMs += ms;
+            latencyMaxMs = Math.max(latencyMaxMs, ms);
+            handlingTotalNanos += handlingNanos;
+        });
         frontColor = new ColorSet(
                 this.findViewById(R.id.frontColorButton),
                 this.findViewById(R.id.frontChangeColor),
@@ -109,10 +141,21 @@ public class DrawActivity extends AppCompatActivity implements DrawListener {
         syncSwitchText.setEnabled(syncSwitch.isEnabled());
     }
 
+    @Override
+    protected void onPause() {
+        if (latencyCount > 0) {
+            Log.i("DRAW", String.format("%d pixels, touch to send avg %.1fms max %dms, handling avg %.1fus",
+                    latencyCount, (double) latencyTotalMs / latencyCount, latencyMaxMs, handlingTotalNanos / 1e3 / latencyCount));
+            latencyCount = latencyTotalMs = latencyMaxMs = handlingTotalNanos = 0;
+        }
+        super.onPause();
+    }
+
     @Override
     protected void onDestroy() {
         deviceService.removeStatusListener(statusListener);
         deviceService.removeConnectionListener(connectionListener);
+        deviceService.removeGeometryListener(geometryListener);
         executor.shutdown();
         super.onDestroy();
     }
@@ -171,6 +214,145 @@ public class DrawActivity extends AppCompatActivity implements DrawListener {
         }
     }
 
+    public void onSaveClick(View view) {
+        DrawingLibrary library = getLibrary();
+        if (library == null) {
+            return;
+        }
+        EditText nameText = new EditText(this);
+        nameText.setSingleLine();
+        nameText.setText(openedEntry != null ? openedEntry.name : "Drawing " + (library.getEntries().size() + 1));
+        new AlertDialog.Builder(this)
+                .setTitle("Save drawing")
+                .setView(nameText)
+                .setPositiveButton("Save", (d, which) -> save(library, nameText.getText().toString()))
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void save(DrawingLibrary library, String name) {
+        PanelGeometry g = new PanelGeometry(drawView.getImageWidth(), drawView.getImageHeight());
+        List<int[]> frames = Collections.singletonList(drawView.getPixels());
+        try {
+            if (openedEntry != null && openedEntry.name.equals(name)) {
+                openedEntry = library.replace(openedEntry, g, 0, frames);
+            } else {
+                openedEntry = library.add(name, g, 0, frames);
+            }
+            setStatusText("Saved " + openedEntry.name);
+        } catch (IOException e) {
+            Log.e("LIBRARY", "Can't save " + name, e);
+            setStatusText("Can't save " + name);
+        }
+    }
+
+    /**
+     * Lists the drawings from the library index, only the visible thumbnails are read.
+     */
+    public void onOpenClick(View view) {
+        DrawingLibrary library = getLibrary();
+        if (library == null) {
+            return;
+        }
+        if (library.getEntries().isEmpty()) {
+            setStatusText("No saved drawings");
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Drawings")
+                .setAdapter(new GalleryAdapter(library), (d, which) -> open(library, library.getEntries().get(which)))
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    /**
+     * Shows the first frame and sends it if the drawing is synchronized.
+     */
+    private void open(DrawingLibrary library, DrawingLibrary.Entry entry) {
+        try {
+            int[] pixels = library.load(entry).get(0);
+            PanelGeometry g = entry.geometry;
+            drawView.setPixels(pixels, g.width, g.height);
+            openedEntry = entry;
+            if (syncSwitch.isChecked()) {
+                deviceService.sendPixels(pixels, g.width, g.height);
+            }
+            setStatusText("Opened " + entry.name);
+        } catch (IOException e) {
+            Log.e("LIBRARY", "Can't open " + entry.name, e);
+            setStatusText("Can't open " + entry.name);
+        }
+    }
+
+    private DrawingLibrary getLibrary() {
+        if (library == null) {
+            try {
+                library = ((PixelMatrixFunApp) getApplication()).getDrawingLibrary();
+            } catch (IOException e) {
+                Log.e("LIBRARY", "Can't open the library", e);
+                setStatusText("Can't open the library");
+            }
+        }
+        return library;
+    }
+
+    private class GalleryAdapter extends BaseAdapter {
+        private final DrawingLibrary library;
+        private final int thumbSize = (int) (48 * getResources().getDisplayMetrics().density);
+
+        GalleryAdapter(DrawingLibrary library) {
+            this.library = library;
+        }
+
+        @Override
+        public int getCount() {
+            return library.getEntries().size();
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return library.getEntries().get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return library.getEntries().get(position).id;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            LinearLayout row = (LinearLayout) convertView;
+            if (row == null) {
+                row = new LinearLayout(DrawActivity.this);
+                row.setOrientation(LinearLayout.HORIZONTAL);
+                row.setGravity(Gravity.CENTER_VERTICAL);
+                row.setPadding(thumbSize / 4, thumbSize / 8, thumbSize / 4, thumbSize / 8);
+                ImageView thumb = new ImageView(DrawActivity.this);
+                thumb.setScaleType(ImageView.ScaleType.FIT_CENTER);
+                row.addView(thumb, new LinearLayout.LayoutParams(thumbSize, thumbSize));
+                TextView name = new TextView(DrawActivity.this);
+                name.setPadding(thumbSize / 4, 0, 0, 0);
+                row.addView(name);
+            }
+            DrawingLibrary.Entry entry = library.getEntries().get(position);
+            ImageView thumb = (ImageView) row.getChildAt(0);
+            try {
+                int[] pixels = library.readThumbnail(entry);
+                BitmapDrawable d = new BitmapDrawable(getResources(),
+                        Bitmap.createBitmap(pixels, entry.thumbWidth, entry.thumbHeight, Bitmap.Config.ARGB_8888));
+                /* Sharp pixels */
+                d.setFilterBitmap(false);
+                thumb.setImageDrawable(d);
+            } catch (IOException e) {
+                thumb.setImageDrawable(null);
+            }
+            String size = entry.geometry.width + "x" + entry.geometry.height
+                    + (entry.frameCount > 1 ? ", " + entry.frameCount + " frames" : "");
+            ((TextView) row.getChildAt(1)).setText(entry.name + "\n" + size);
+            return row;
+        }
+    }
+
     public static int getContrastVersionForColor(int color) {
         float[] hsv = new float[3];
         Color.RGBToHSV(Color.red(color), Color.green(color), Color.blue(color),
@@ -184,6 +366,16 @@ public class DrawActivity extends AppCompatActivity implements DrawListener {
         return Color.HSVToColor(hsv);
     }
 
+    /**
+     * The drawing starts again at the panel size, it's not synced meanwhile.
+     */
+    private void onGeometryChanged(PanelGeometry g) {
+        if (g.width != drawView.getImageWidth() || g.height != drawView.getImageHeight()) {
+            drawView.setImageSize(g.width, g.height);
+            syncSwitch.setChecked(false);
+        }
+    }
+
     private void onConnectionChanged(Boolean c) {
         if (c) {
             syncSwitch.setEnabled(true);
@@ -205,7 +397,7 @@ public class DrawActivity extends AppCompatActivity implements DrawListener {
                 syncSwitch.setEnabled(false);
                 syncSwitchText.setEnabled(syncSwitch.isEnabled());
                 // CompletionStage<Boolean> cf = deviceService.clearBitmap(Color.BLACK);
-                CompletionStage<Boolean> cf = deviceService.sendBitmap(drawView.getBitmap());
+                CompletionStage<Boolean> cf = deviceService.sendPixels(drawView.getPixels(), drawView.getImageWidth(), drawView.getImageHeight());
                 cf.whenComplete((r, e) -> {
                     this.runOnUiThread(()->{
                         syncSwitch.setEnabled(true);
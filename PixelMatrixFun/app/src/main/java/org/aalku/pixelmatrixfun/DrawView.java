@@ -8,22 +8,34 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.os.Build;
 import android.util.AttributeSet;
-import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 
 import androidx.annotation.RequiresApi;
 
 /**
- * Bitmap to draw on
+ * Pixels to draw on with any number of fingers.
+ *
+ * The pixels are a PixelGrid, the bitmap only shows them: the cells changed since the last frame
+ * are copied into it in onDraw and only their part of the view is invalidated. Touch handling
+ * allocates nothing and every point of every pointer is used in order, history first.
  */
-public class DrawView extends View {
-    private final Bitmap bitmap;
-    private int imageWidth = 16;
-    private int imageHeight = 16;
-    private Rect paintRect;
+public class DrawView extends View implements PixelGrid.CellListener {
+    private PixelGrid grid;
+    private Bitmap bitmap;
+    private int imageWidth = DeviceProtocol.WIDTH;
+    private int imageHeight = DeviceProtocol.HEIGHT;
+    private int contentWidth = 0;
+    private int contentHeight = 0;
+    /* Where the image is painted, as large as it fits keeping its aspect ratio */
+    private final Rect paintRect = new Rect();
     private final Paint paint = new Paint(0);
     private DrawListener onDrawListener = null;
+    private LatencyListener latencyListener = null;
+
+    /* Of the event being handled, for the latency listener */
+    private long eventUptimeMs;
+    private long eventStartNanos;
 
     public int getColor() {
         return color;
@@ -41,70 +53,150 @@ public class DrawView extends View {
 
     public DrawView(Context context, AttributeSet attrs) {
         super(context, attrs);
-        bitmap = Bitmap.createBitmap(imageWidth, imageHeight, Bitmap.Config.ARGB_8888);
-        bitmap.eraseColor(Color.BLACK);
+        newImage();
         paint.setAntiAlias(false);
         paint.setDither(false);
         paint.setFilterBitmap(false);
         if (isInEditMode()) {
             for (int x = 0; x < imageWidth; x++) {
                 if (x > 0) {
-                    bitmap.setPixel(x, x*imageHeight/imageWidth-1, Color.RED);
+                    grid.set(x, x*imageHeight/imageWidth-1, Color.RED);
                 }
-                bitmap.setPixel(x, x*imageHeight/imageWidth, Color.GREEN);
+                grid.set(x, x*imageHeight/imageWidth, Color.GREEN);
                 if (x < imageWidth - 1) {
-                    bitmap.setPixel(x, x*imageHeight/imageWidth+1, Color.BLUE);
+                    grid.set(x, x*imageHeight/imageWidth+1, Color.BLUE);
                 }
             }
         }
     }
 
+    private void newImage() {
+        grid = new PixelGrid(imageWidth, imageHeight, Color.BLACK);
+        grid.setListener(this);
+        bitmap = Bitmap.createBitmap(imageWidth, imageHeight, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Starts a new black image of the panel size.
+     */
+    public void setImageSize(int width, int height) {
+        if (width == imageWidth && height == imageHeight) {
+            return;
+        }
+        imageWidth = width;
+        imageHeight = height;
+        newImage();
+        updatePaintRect();
+        invalidate();
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.N)
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        if (grid.isDirty()) {
+            int l = grid.getDirtyLeft();
+            int t = grid.getDirtyTop();
+            bitmap.setPixels(grid.pixels(), t * imageWidth + l, imageWidth, l, t,
+                    grid.getDirtyRight() - l + 1, grid.getDirtyBottom() - t + 1);
+            grid.clearDirty();
+        }
         canvas.drawBitmap(bitmap, null, this.paintRect, paint);
     }
 
-    private void drawPixel(int x, int y, int width, int height) {
+    /**
+     * @return the cell under a view coordinate, clamped to the image
+     */
+    private int cellX(float x) {
+        return Math.max(Math.min((int) (imageWidth * (x - paintRect.left) / paintRect.width()), imageWidth - 1), 0);
+    }
 
-        int rx = Math.max(Math.min(imageWidth*x/width,imageHeight - 1), 0);
-        int ry = Math.max(Math.min(imageHeight*y/height, imageHeight - 1), 0);
-        Log.d("DRAW", String.format("[%s,%s] out of [%s,%s]", rx, ry, bitmap.getWidth(), bitmap.getHeight()));
-        int prev = bitmap.getPixel(rx, ry);
-        if (prev != color) {
-            onDrawListener.notifyPixel(rx, ry, color);
-            bitmap.setPixel(rx, ry, color);
-            invalidate();
+    private int cellY(float y) {
+        return Math.max(Math.min((int) (imageHeight * (y - paintRect.top) / paintRect.height()), imageHeight - 1), 0);
+    }
+
+    @Override
+    public void onCell(int x, int y, int color) {
+        DrawListener l = onDrawListener;
+        if (l != null) {
+            l.notifyPixel(x, y, color);
+        }
+        LatencyListener ll = latencyListener;
+        if (ll != null) {
+            ll.onPixelLatency(eventUptimeMs, System.nanoTime() - eventStartNanos);
         }
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-
-        for (int p = 0; p < event.getPointerCount(); p++) {
-            float x = event.getX(p);
-            float y = event.getY(p);
-
-            switch(event.getAction()) {
-                case MotionEvent.ACTION_DOWN :
-                    drawPixel((int)x, (int)y, this.getWidth(), this.getHeight());
-                    break;
-                case MotionEvent.ACTION_MOVE :
-                    drawPixel((int)x, (int)y, this.getWidth(), this.getHeight());
-                    for (int i = 0; i < event.getHistorySize(); i++) {
-                        drawPixel((int)event.getHistoricalX(p, i), (int)event.getHistoricalY(p, i), this.getWidth(), this.getHeight());
+        eventStartNanos = System.nanoTime();
+        if (paintRect.isEmpty()) {
+            return true;
+        }
+        int c = color;
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_POINTER_DOWN: {
+                int p = event.getActionIndex();
+                eventUptimeMs = event.getEventTime();
+                grid.down(event.getPointerId(p), cellX(event.getX(p)), cellY(event.getY(p)), c);
+                break;
+            }
+            case MotionEvent.ACTION_MOVE: {
+                /* Batched: every pointer has the same older points first, then the current ones */
+                int history = event.getHistorySize();
+                for (int h = 0; h < history; h++) {
+                    eventUptimeMs = event.getHistoricalEventTime(h);
+                    for (int p = 0; p < event.getPointerCount(); p++) {
+                        grid.moveTo(event.getPointerId(p), cellX(event.getHistoricalX(p, h)), cellY(event.getHistoricalY(p, h)), c);
                     }
-                    break;
-                case MotionEvent.ACTION_UP :
-                    //touchUp();
-                    invalidate();
-                    break;
+                }
+                eventUptimeMs = event.getEventTime();
+                for (int p = 0; p < event.getPointerCount(); p++) {
+                    grid.moveTo(event.getPointerId(p), cellX(event.getX(p)), cellY(event.getY(p)), c);
+                }
+                break;
             }
+            case MotionEvent.ACTION_POINTER_UP:
+                grid.up(event.getPointerId(event.getActionIndex()));
+                break;
+            case MotionEvent.ACTION_UP:
+                grid.upAll();
+                performClick();
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                grid.upAll();
+                break;
         }
+        invalidateDirty();
         return true;
     }
 
+    /**
+     * Invalidates the view area of the changed cells. Hardware accelerated views redraw all of it
+     * anyway, the bitmap upload is still only the changed cells.
+     */
+    @SuppressWarnings("deprecation") // Only a hint since API 21, still what software rendering (minSdk 16) redraws
+    private void invalidateDirty() {
+        if (!grid.isDirty()) {
+            return;
+        }
+        int w = paintRect.width();
+        int h = paintRect.height();
+        invalidate(paintRect.left + grid.getDirtyLeft() * w / imageWidth,
+                paintRect.top + grid.getDirtyTop() * h / imageHeight,
+                paintRect.left + ((grid.getDirtyRight() + 1) * w + imageWidth - 1) / imageWidth,
+                paintRect.top + ((grid.getDirtyBottom() + 1) * h + imageHeight - 1) / imageHeight);
+    }
+
     @Override
     public boolean performClick() {
         return super.performClick();
@@ -118,23 +210,73 @@ public class DrawView extends View {
             int paddingRight = getPaddingRight();
             int paddingBottom = getPaddingBottom();
 
-            int contentWidth = getWidth() - paddingLeft - paddingRight;
-            int contentHeight = getHeight() - paddingTop - paddingBottom;
-            this.paintRect = new Rect(0, 0, contentWidth, contentHeight);
+            contentWidth = getWidth() - paddingLeft - paddingRight;
+            contentHeight = getHeight() - paddingTop - paddingBottom;
+            updatePaintRect();
         }
 
         super.onLayout(changed, left, top, right, bottom);
     }
 
+    private void updatePaintRect() {
+        int w = contentWidth;
+        int h = contentHeight;
+        if (w * imageHeight > h * imageWidth) {
+            w = h * imageWidth / imageHeight;
+        } else {
+            h = w * imageHeight / imageWidth;
+        }
+        int l = (contentWidth - w) / 2;
+        int t = (contentHeight - h) / 2;
+        this.paintRect.set(l, t, l + w, t + h);
+    }
+
     public Bitmap getBitmap() {
-        return Bitmap.createBitmap(bitmap);
+        return Bitmap.createBitmap(getPixels(), imageWidth, imageHeight, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * @return a copy of the image, row major ARGB of getImageWidth() x getImageHeight()
+     */
+    public int[] getPixels() {
+        int[] res = new int[imageWidth * imageHeight];
+        grid.getPixels(res);
+        return res;
+    }
+
+    /**
+     * Replaces the image with row major ARGB pixels of width x height.
+     */
+    public void setPixels(int[] argb, int width, int height) {
+        setImageSize(width, height);
+        grid.setPixels(argb);
+        invalidate();
     }
 
     public void setOnDrawListener(DrawListener drawListener) {
         this.onDrawListener = drawListener;
     }
 
+    /**
+     * @param latencyListener told of every changed pixel after the draw listener, null for none
+     */
+    public void setLatencyListener(LatencyListener latencyListener) {
+        this.latencyListener = latencyListener;
+    }
+
     interface DrawListener {
         void notifyPixel(int x, int y, int color);
     }
-}
\ No newline at end of file
+
+    /**
+     * Instrumentation of the touch to notification path.
+     */
+    interface LatencyListener {
+        /**
+         * @param eventUptimeMs time of the touch point, SystemClock.uptimeMillis() minus this is
+         *                      the latency from the input system
+         * @param handlingNanos from onTouchEvent being called to the draw listener returning
+         */
+        void onPixelLatency(long eventUptimeMs, long handlingNanos);
+    }
+}
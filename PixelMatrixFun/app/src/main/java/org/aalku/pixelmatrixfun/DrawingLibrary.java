@@ -0,0 +1,456 @@
+package org.aalku.pixelmatrixfun;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Saved drawings and animations, a file each, and an index of all of them with their thumbnails
+ * so the gallery opens reading only the index.
+ *
+ * Pixels are kept as the panel takes them, FrameFormat frames of the drawing size before color
+ * correction, so loading one is a copy, there is nothing to decode.
+ *
+ * Drawing file: DRAWING_MAGIC, version, width, height, frame count, frame interval in ms (2 bytes
+ * each), name length (1 byte) and UTF-8 name, then the frames.
+ *
+ * Index file: INDEX_MAGIC, version, THUMB_SIZE (2 bytes each), entry count (4 bytes), then a
+ * record of RECORD_LENGTH per entry: id, modified time (8 bytes each), width, height, frame count,
+ * frame interval (2 bytes each), thumbnail width and height, name length (1 byte each), name
+ * (NAME_BYTES) and the thumbnail frame (THUMB_SIZE * THUMB_SIZE pixels). Records are fixed size so
+ * an entry is written in place. The count is written after the record, so a record without it
+ * is ignored. If the index can't be read it's rebuilt from the drawing files.
+ *
+ * Not thread safe.
+ */
+class DrawingLibrary {
+
+    static final int INDEX_MAGIC = 0x504D4649;
+    static final int DRAWING_MAGIC = 0x504D4644;
+    static final int VERSION = 1;
+
+    /* Thumbnails fit in THUMB_SIZE x THUMB_SIZE */
+    static final int THUMB_SIZE = 16;
+    static final int NAME_BYTES = 37;
+    static final int INDEX_HEADER_LENGTH = 12;
+    static final int META_LENGTH = 27 + NAME_BYTES;
+    static final int RECORD_LENGTH = META_LENGTH + THUMB_SIZE * THUMB_SIZE * FrameFormat.PIXEL_SIZE;
+    static final int DRAWING_HEADER_LENGTH = 15;
+
+    private static final String INDEX = "index.bin";
+    private static final String SUFFIX = ".pmf";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * What the index knows of a drawing.
+     */
+    static class Entry {
+        final long id;
+        final String name;
+        final long modified;
+        final PanelGeometry geometry;
+        final int frameCount;
+        final int frameIntervalMs;
+        final int thumbWidth;
+        final int thumbHeight;
+        /* Record in the index */
+        private int slot;
+
+        private Entry(long id, String name, long modified, PanelGeometry geometry, int frameCount, int frameIntervalMs,
+                      int thumbWidth, int thumbHeight, int slot) {
+            this.id = id;
+            this.name = name;
+            this.modified = modified;
+            this.geometry = geometry;
+            this.frameCount = frameCount;
+            this.frameIntervalMs = frameIntervalMs;
+            this.thumbWidth = thumbWidth;
+            this.thumbHeight = thumbHeight;
+            this.slot = slot;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final File dir;
+    private final File indexFile;
+    private final List<Entry> entries = new ArrayList<>();
+    /* Mapped index, null after a write until a thumbnail is read again */
+    private ByteBuffer index = null;
+    /* Thumbnails of the entries while the whole index is written */
+    private final List<byte[]> thumbs = new ArrayList<>();
+    private long nextId = 1L;
+
+    DrawingLibrary(File dir) throws IOException {
+        this.dir = dir;
+        this.indexFile = new File(dir, INDEX);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        try {
+            readIndex();
+        } catch (IOException | IllegalArgumentException e) {
+            rebuildIndex();
+        }
+        for (Entry e : entries) {
+            nextId = Math.max(nextId, e.id + 1);
+        }
+    }
+
+    /**
+     * @return entries in the order they were added, deleted ones leave their place to the last one
+     */
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Reads only the header and the metadata of the records, thumbnails are read when needed.
+     */
+    private void readIndex() throws IOException {
+        entries.clear();
+        if (!indexFile.isFile()) {
+            if (hasDrawingFiles()) {
+                throw new IOException("No index");
+            }
+            writeIndex();
+            return;
+        }
+        ByteBuffer b = map();
+        if (b.limit() < INDEX_HEADER_LENGTH || b.getInt(0) != INDEX_MAGIC || b.getShort(4) != VERSION
+                || b.getShort(6) != THUMB_SIZE) {
+            throw new IOException("Bad index");
+        }
+        int count = b.getInt(8);
+        if (count < 0 || INDEX_HEADER_LENGTH + (long) count * RECORD_LENGTH > b.limit()) {
+            throw new IOException("Truncated index");
+        }
+        byte[] name = new byte[NAME_BYTES];
+        for (int slot = 0; slot < count; slot++) {
+            b.position(INDEX_HEADER_LENGTH + slot * RECORD_LENGTH);
+            long id = b.getLong();
+            long modified = b.getLong();
+            int width = b.getShort() & 0xFFFF;
+            int height = b.getShort() & 0xFFFF;
+            int frames = b.getShort() & 0xFFFF;
+            int interval = b.getShort() & 0xFFFF;
+            int tw = b.get() & 0xFF;
+            int th = b.get() & 0xFF;
+            int nameLength = Math.min(b.get() & 0xFF, NAME_BYTES);
+            b.get(name, 0, nameLength);
+            if (width == 0 || height == 0 || tw == 0 || th == 0 || tw > THUMB_SIZE || th > THUMB_SIZE) {
+                throw new IOException("Bad record " + slot);
+            }
+            entries.add(new Entry(id, new String(name, 0, nameLength, StandardCharsets.UTF_8), modified,
+                    new PanelGeometry(width, height), frames, interval, tw, th, slot));
+        }
+        index = b;
+    }
+
+    private boolean hasDrawingFiles() {
+        String[] names = dir.list();
+        if (names != null) {
+            for (String n : names) {
+                if (n.endsWith(SUFFIX)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private ByteBuffer map() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r"); FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Reads every drawing file again, slow but only needed if the index is lost.
+     */
+    private void rebuildIndex() throws IOException {
+        entries.clear();
+        index = null;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            /* By id, the order they were added */
+            Arrays.sort(files, (a, b) -> a.getName().length() != b.getName().length()
+                    ? a.getName().length() - b.getName().length() : a.getName().compareTo(b.getName()));
+            for (File f : files) {
+                String n = f.getName();
+                if (n.endsWith(TMP_SUFFIX)) {
+                    f.delete();
+                    continue;
+                }
+                if (!n.endsWith(SUFFIX)) {
+                    continue;
+                }
+                long id;
+                try {
+                    id = Long.parseLong(n.substring(0, n.length() - SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                Header h;
+                int[] first;
+                try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+                    h = readHeader(raf, f);
+                    first = readFrame(raf, h, 0);
+                } catch (IOException | IllegalArgumentException e) {
+                    /* Not ours or broken, left alone */
+                    continue;
+                }
+                Entry entry = newEntry(id, h.name, f.lastModified(), h.geometry, h.frameCount, h.frameIntervalMs, entries.size());
+                entries.add(entry);
+                thumbs.add(thumbnail(first, entry));
+            }
+        }
+        writeIndex();
+        thumbs.clear();
+    }
+
+    private void writeIndex() throws IOException {
+        File tmp = new File(dir, INDEX + TMP_SUFFIX);
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            ByteBuffer b = ByteBuffer.allocate(INDEX_HEADER_LENGTH);
+            b.putInt(INDEX_MAGIC).putShort((short) VERSION).putShort((short) THUMB_SIZE).putInt(entries.size());
+            out.write(b.array());
+            for (int i = 0; i < entries.size(); i++) {
+                out.write(record(entries.get(i), thumbs.get(i)).array());
+            }
+        }
+        if (!tmp.renameTo(indexFile)) {
+            throw new IOException("Can't replace " + indexFile);
+        }
+        index = null;
+    }
+
+    /**
+     * Saves a new drawing.
+     *
+     * @param frames row major ARGB of geometry.getPixels() each, alpha is ignored
+     */
+    Entry add(String name, PanelGeometry geometry, int frameIntervalMs, List<int[]> frames) throws IOException {
+        long id = nextId++;
+        Entry entry = newEntry(id, name, System.currentTimeMillis(), geometry, frames.size(), frameIntervalMs, entries.size());
+        writeDrawing(entry, frames);
+        writeRecord(entry, thumbnail(frames.get(0), entry), entries.size() + 1);
+        entries.add(entry);
+        return entry;
+    }
+
+    /**
+     * Saves new frames over a drawing, with the same name.
+     *
+     * @return the entry that replaces the old one
+     */
+    Entry replace(Entry old, PanelGeometry geometry, int frameIntervalMs, List<int[]> frames) throws IOException {
+        check(old);
+        Entry entry = newEntry(old.id, old.name, System.currentTimeMillis(), geometry, frames.size(), frameIntervalMs, old.slot);
+        writeDrawing(entry, frames);
+        writeRecord(entry, thumbnail(frames.get(0), entry), entries.size());
+        entries.set(old.slot, entry);
+        return entry;
+    }
+
+    /**
+     * The last record takes the place of the deleted one.
+     */
+    void delete(Entry entry) throws IOException {
+        check(entry);
+        int last = entries.size() - 1;
+        if (entry.slot != last) {
+            Entry moved = entries.get(last);
+            byte[] thumb = new byte[RECORD_LENGTH - META_LENGTH];
+            readThumbnailFrame(moved, thumb);
+            moved.slot = entry.slot;
+            writeRecord(moved, thumb, last + 1);
+            entries.set(moved.slot, moved);
+        }
+        /* Count last, the moved record is in both places until then */
+        writeCount(last);
+        entries.remove(last);
+        new File(dir, entry.id + SUFFIX).delete();
+    }
+
+    private void check(Entry entry) {
+        if (entry.slot >= entries.size() || entries.get(entry.slot) != entry) {
+            throw new IllegalArgumentException("Not in the library: " + entry);
+        }
+    }
+
+    private static Entry newEntry(long id, String name, long modified, PanelGeometry geometry, int frameCount, int frameIntervalMs, int slot) {
+        if (frameCount <= 0 || frameCount > 0xFFFF || frameIntervalMs < 0 || frameIntervalMs > 0xFFFF
+                || geometry.width > 0xFFFF || geometry.height > 0xFFFF) {
+            throw new IllegalArgumentException("Can't save " + frameCount + " frames of " + geometry + " every " + frameIntervalMs + "ms");
+        }
+        /* Whole characters that fit */
+        while (name.getBytes(StandardCharsets.UTF_8).length > NAME_BYTES) {
+            name = name.substring(0, name.offsetByCodePoints(name.length(), -1));
+        }
+        int longest = Math.max(geometry.width, geometry.height);
+        int tw = Math.max(1, (int) ((long) geometry.width * Math.min(THUMB_SIZE, longest) / longest));
+        int th = Math.max(1, (int) ((long) geometry.height * Math.min(THUMB_SIZE, longest) / longest));
+        return new Entry(id, name, modified, geometry, frameCount, frameIntervalMs, tw, th, slot);
+    }
+
+    private static byte[] thumbnail(int[] argb, Entry entry) {
+        PanelGeometry g = entry.geometry;
+        int[] thumb = new int[entry.thumbWidth * entry.thumbHeight];
+        new AreaScaler(g.width, g.height, entry.thumbWidth, entry.thumbHeight).scale(argb, 0, g.width, thumb);
+        byte[] res = new byte[RECORD_LENGTH - META_LENGTH];
+        FrameFormat.toFrame(thumb, entry.thumbWidth, entry.thumbHeight, res);
+        return res;
+    }
+
+    private static ByteBuffer record(Entry e, byte[] thumb) {
+        ByteBuffer b = ByteBuffer.allocate(RECORD_LENGTH);
+        byte[] name = e.name.getBytes(StandardCharsets.UTF_8);
+        b.putLong(e.id).putLong(e.modified).putShort((short) e.geometry.width).putShort((short) e.geometry.height)
+                .putShort((short) e.frameCount).putShort((short) e.frameIntervalMs)
+                .put((byte) e.thumbWidth).put((byte) e.thumbHeight).put((byte) name.length).put(name);
+        b.position(META_LENGTH);
+        b.put(thumb, 0, RECORD_LENGTH - META_LENGTH);
+        b.flip();
+        return b;
+    }
+
+    private void writeRecord(Entry entry, byte[] thumb, int count) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw"); FileChannel channel = raf.getChannel()) {
+            channel.write(record(entry, thumb), INDEX_HEADER_LENGTH + (long) entry.slot * RECORD_LENGTH);
+            ByteBuffer b = ByteBuffer.allocate(4).putInt(count);
+            b.flip();
+            channel.write(b, 8);
+        }
+        index = null;
+    }
+
+    private void writeCount(int count) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw"); FileChannel channel = raf.getChannel()) {
+            ByteBuffer b = ByteBuffer.allocate(4).putInt(count);
+            b.flip();
+            channel.write(b, 8);
+            channel.truncate(INDEX_HEADER_LENGTH + (long) count * RECORD_LENGTH);
+        }
+        index = null;
+    }
+
+    private void writeDrawing(Entry entry, List<int[]> frames) throws IOException {
+        PanelGeometry g = entry.geometry;
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = ByteBuffer.allocate(DRAWING_HEADER_LENGTH + name.length + frames.size() * g.getFrameLength());
+        b.putInt(DRAWING_MAGIC).putShort((short) VERSION).putShort((short) g.width).putShort((short) g.height)
+                .putShort((short) entry.frameCount).putShort((short) entry.frameIntervalMs).put((byte) name.length).put(name);
+        byte[] frame = new byte[g.getFrameLength()];
+        for (int[] argb : frames) {
+            if (argb.length != g.getPixels()) {
+                throw new IllegalArgumentException("Frame of " + argb.length + " pixels is not " + g);
+            }
+            FrameFormat.toFrame(argb, g.width, g.height, frame);
+            b.put(frame);
+        }
+        File file = new File(dir, entry.id + SUFFIX);
+        File tmp = new File(dir, entry.id + SUFFIX + TMP_SUFFIX);
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(b.array());
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can't replace " + file);
+        }
+    }
+
+    /**
+     * @return the thumbnail, row major ARGB of entry.thumbWidth x entry.thumbHeight
+     */
+    int[] readThumbnail(Entry entry) throws IOException {
+        byte[] frame = new byte[entry.thumbWidth * entry.thumbHeight * FrameFormat.PIXEL_SIZE];
+        readThumbnailFrame(entry, frame);
+        int[] argb = new int[entry.thumbWidth * entry.thumbHeight];
+        FrameFormat.toArgb(frame, entry.thumbWidth, entry.thumbHeight, argb);
+        return argb;
+    }
+
+    private void readThumbnailFrame(Entry entry, byte[] out) throws IOException {
+        check(entry);
+        if (index == null) {
+            index = map();
+        }
+        index.position(INDEX_HEADER_LENGTH + entry.slot * RECORD_LENGTH + META_LENGTH);
+        index.get(out, 0, Math.min(out.length, RECORD_LENGTH - META_LENGTH));
+    }
+
+    /**
+     * @return every frame, row major ARGB of entry.geometry
+     */
+    List<int[]> load(Entry entry) throws IOException {
+        File file = new File(dir, entry.id + SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            Header h = readHeader(raf, file);
+            if (!h.geometry.equals(entry.geometry) || h.frameCount != entry.frameCount) {
+                throw new IOException("Index out of date for " + file);
+            }
+            List<int[]> res = new ArrayList<>(h.frameCount);
+            for (int i = 0; i < h.frameCount; i++) {
+                res.add(readFrame(raf, h, i));
+            }
+            return res;
+        }
+    }
+
+    private static class Header {
+        PanelGeometry geometry;
+        int frameCount;
+        int frameIntervalMs;
+        String name;
+        int length;
+    }
+
+    private static Header readHeader(RandomAccessFile raf, File file) throws IOException {
+        byte[] fixed = new byte[DRAWING_HEADER_LENGTH];
+        raf.seek(0);
+        raf.readFully(fixed);
+        ByteBuffer b = ByteBuffer.wrap(fixed);
+        if (b.getInt() != DRAWING_MAGIC || b.getShort() != VERSION) {
+            throw new IOException("Not a drawing: " + file);
+        }
+        Header h = new Header();
+        int width = b.getShort() & 0xFFFF;
+        int height = b.getShort() & 0xFFFF;
+        h.frameCount = b.getShort() & 0xFFFF;
+        h.frameIntervalMs = b.getShort() & 0xFFFF;
+        byte[] name = new byte[b.get() & 0xFF];
+        raf.readFully(name);
+        h.name = new String(name, StandardCharsets.UTF_8);
+        h.length = DRAWING_HEADER_LENGTH + name.length;
+        if (width == 0 || height == 0 || h.frameCount == 0) {
+            throw new IOException("Bad drawing: " + file);
+        }
+        h.geometry = new PanelGeometry(width, height);
+        if (raf.length() != h.length + (long) h.frameCount * h.geometry.getFrameLength()) {
+            throw new IOException("Truncated drawing: " + file);
+        }
+        return h;
+    }
+
+    private static int[] readFrame(RandomAccessFile raf, Header h, int index) throws IOException {
+        byte[] frame = new byte[h.geometry.getFrameLength()];
+        raf.seek(h.length + (long) index * frame.length);
+        raf.readFully(frame);
+        int[] argb = new int[h.geometry.getPixels()];
+        FrameFormat.toArgb(frame, h.geometry.width, h.geometry.height, argb);
+        return argb;
+    }
+}
@@ -0,0 +1,128 @@
+package org.aalku.pixelmatrixfun;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Delivers events to listeners on its own thread, so publishing from the BLE thread never waits
+ * for a listener.
+ *
+ * Each topic keeps only the latest value. Values published while a delivery is pending replace it
+ * and a topic is delivered at most once per interval, so a stream of frames becomes a few status
+ * updates per second.
+ */
+class EventBus {
+
+    public static class Topic<T> {
+        private final EventBus bus;
+        private final long minIntervalNanos;
+        private final CopyOnWriteArrayList<Consumer<T>> listeners = new CopyOnWriteArrayList<>();
+        private final AtomicReference<T> latest;
+        private final AtomicReference<T> pending = new AtomicReference<>(null);
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final AtomicLong lastDeliveryNanos = new AtomicLong(0L);
+        private final AtomicLong published = new AtomicLong(0L);
+        private final AtomicLong delivered = new AtomicLong(0L);
+
+        private Topic(EventBus bus, long minIntervalMs, T initial) {
+            this.bus = bus;
+            this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMs);
+            this.latest = new AtomicReference<>(initial);
+        }
+
+        /**
+         * Never blocks. Replaces a value that was not delivered yet.
+         */
+        public void publish(T value) {
+            latest.set(value);
+            pending.set(value);
+            published.incrementAndGet();
+            if (scheduled.compareAndSet(false, true)) {
+                long wait = lastDeliveryNanos.get() + minIntervalNanos - System.nanoTime();
+                bus.schedule(this::deliver, Math.max(0L, wait));
+            }
+        }
+
+        private void deliver() {
+            /* Cleared before taking the value so a value published meanwhile schedules again */
+            scheduled.set(false);
+            T value = pending.getAndSet(null);
+            if (value == null) {
+                return;
+            }
+            lastDeliveryNanos.set(System.nanoTime());
+            delivered.incrementAndGet();
+            for (Consumer<T> l : listeners) {
+                try {
+                    l.accept(value);
+                } catch (RuntimeException e) {
+                    /* One broken listener must not starve the others */
+                }
+            }
+        }
+
+        /**
+         * @return the last value published, delivered or not
+         */
+        public T get() {
+            return latest.get();
+        }
+
+        public void subscribe(Consumer<T> listener) {
+            listeners.add(listener);
+        }
+
+        public void unsubscribe(Consumer<T> listener) {
+            listeners.remove(listener);
+        }
+
+        public int getListenerCount() {
+            return listeners.size();
+        }
+
+        public long getPublished() {
+            return published.get();
+        }
+
+        public long getDelivered() {
+            return delivered.get();
+        }
+    }
+
+    private final ScheduledExecutorService executor;
+
+    EventBus() {
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "EventBus");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param minIntervalMs minimum time between deliveries, 0 to deliver as soon as possible
+     * @param initial value returned by get() before anything is published
+     */
+    <T> Topic<T> topic(long minIntervalMs, T initial) {
+        return new Topic<>(this, minIntervalMs, initial);
+    }
+
+    private void schedule(Runnable task, long delayNanos) {
+        try {
+            executor.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            /* Closed */
+        }
+    }
+
+    void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,78 @@
+package org.aalku.pixelmatrixfun;
+
+/**
+ * Credit based flow control for writes without response.
+ *
+ * Every chunk sent takes a credit and gets a sequence number. The device returns credits as it
+ * consumes chunks, in order, so returning n credits acknowledges the next n chunks.
+ */
+class FlowWindow {
+
+    private int size;
+    private long sentSeq = 0;
+    private long ackedSeq = 0;
+
+    FlowWindow(int size) {
+        setSize(size);
+    }
+
+    synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * Changes the number of chunks allowed in flight. It applies to the next acquire.
+     */
+    synchronized void setSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Window size must be positive: " + size);
+        }
+        this.size = size;
+    }
+
+    /**
+     * @return the sequence number of the chunk about to be sent or -1 if the window is full
+     */
+    synchronized long tryAcquire() {
+        if (sentSeq - ackedSeq >= size) {
+            return -1;
+        }
+        return ++sentSeq;
+    }
+
+    /**
+     * Gives back the credit of the last chunk acquired, when it was not sent after all.
+     *
+     * @return false if seq is not the last chunk acquired or it is already acknowledged
+     */
+    synchronized boolean cancel(long seq) {
+        if (seq != sentSeq || seq <= ackedSeq) {
+            return false;
+        }
+        sentSeq--;
+        return true;
+    }
+
+    /**
+     * @return the sequence number of the last acknowledged chunk
+     */
+    synchronized long release(int credits) {
+        ackedSeq = Math.min(sentSeq, ackedSeq + credits);
+        return ackedSeq;
+    }
+
+    synchronized long getAckedSeq() {
+        return ackedSeq;
+    }
+
+    synchronized int inFlight() {
+        return (int) (sentSeq - ackedSeq);
+    }
+
+    /**
+     * Forgets chunks in flight, as after a disconnection.
+     */
+    synchronized void reset() {
+        ackedSeq = sentSeq;
+    }
+}
@@ -0,0 +1,300 @@
+package org.aalku.pixelmatrixfun;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Clips already converted to device frames, a file each, so playing one again costs no decoding
+ * and no conversion: frames are read straight from the file mapped in memory.
+ *
+ * Clip file: MAGIC, version, width, height (2 bytes each), frame count, frame interval in ms (4
+ * bytes each), then the frames one after the other, FrameFormat.frameLength bytes each.
+ *
+ * Clips are named after a key of everything their frames depend on, like the source, the panel
+ * size and the color settings. The total size is bounded and the least recently used clips are
+ * deleted first. Use time is kept as the file modification time so it survives restarts. A clip
+ * being played can be deleted, its mapping stays valid until it's unreferenced.
+ */
+class FrameCache {
+
+    static final int MAGIC = 0x504D4643;
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 18;
+
+    private static final String SUFFIX = ".frames";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    private final long maxBytes;
+    /* File name to size, least recently used first */
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0L;
+
+    FrameCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+        File[] list = dir.listFiles();
+        if (list == null) {
+            return;
+        }
+        Arrays.sort(list, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File f : list) {
+            if (f.getName().endsWith(SUFFIX)) {
+                files.put(f.getName(), f.length());
+                totalBytes += f.length();
+            } else if (f.getName().endsWith(TMP_SUFFIX)) {
+                /* Left by an import that did not finish */
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the clip of the key or null if it's not cached, as when the system deleted its file
+     */
+    synchronized Clip open(String key) throws IOException {
+        String name = fileName(key);
+        if (files.get(name) == null) {
+            return null;
+        }
+        File file = new File(dir, name);
+        try {
+            Clip clip = map(file);
+            file.setLastModified(System.currentTimeMillis());
+            return clip;
+        } catch (FileNotFoundException e) {
+            /* The cache dir is cleared when storage is low */
+            remove(name);
+            return null;
+        } catch (IOException e) {
+            remove(name);
+            throw e;
+        }
+    }
+
+    /**
+     * Starts writing the clip of the key. Nothing is visible until commit().
+     */
+    Writer create(String key, PanelGeometry geometry, int frameIntervalMs) throws IOException {
+        return new Writer(fileName(key), geometry, frameIntervalMs);
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    synchronized int getClipCount() {
+        return files.size();
+    }
+
+    synchronized boolean contains(String key) {
+        return files.containsKey(fileName(key));
+    }
+
+    private static String fileName(String key) {
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) + SUFFIX;
+    }
+
+    private synchronized void added(String name, long length) {
+        Long old = files.put(name, length);
+        totalBytes += length - (old == null ? 0L : old);
+        Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            /* The new one stays even if it's bigger than the whole cache, it's about to be played */
+            if (!e.getKey().equals(name)) {
+                new File(dir, e.getKey()).delete();
+                totalBytes -= e.getValue();
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized void remove(String name) {
+        Long length = files.remove(name);
+        if (length != null) {
+            totalBytes -= length;
+            new File(dir, name).delete();
+        }
+    }
+
+    private static Clip map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER_LENGTH || buffer.getInt(0) != MAGIC || (buffer.getShort(4) & 0xFFFF) != VERSION) {
+                throw new IOException("Not a clip: " + file);
+            }
+            int width = buffer.getShort(6) & 0xFFFF;
+            int height = buffer.getShort(8) & 0xFFFF;
+            int frameCount = buffer.getInt(10);
+            int interval = buffer.getInt(14);
+            int frameLength = FrameFormat.frameLength(width, height);
+            if (width == 0 || height == 0 || interval <= 0 || frameCount <= 0 || HEADER_LENGTH + (long) frameCount * frameLength != buffer.limit()) {
+                throw new IOException("Truncated clip: " + file);
+            }
+            return new Clip(new PanelGeometry(width, height), frameCount, interval, buffer);
+        }
+    }
+
+    /**
+     * Frames of a cached clip, read from the mapped file.
+     */
+    static class Clip {
+        private final PanelGeometry geometry;
+        private final int frameCount;
+        private final int frameIntervalMs;
+        private final int frameLength;
+        private final ByteBuffer buffer;
+
+        private Clip(PanelGeometry geometry, int frameCount, int frameIntervalMs, ByteBuffer buffer) {
+            this.geometry = geometry;
+            this.frameCount = frameCount;
+            this.frameIntervalMs = frameIntervalMs;
+            this.frameLength = geometry.getFrameLength();
+            this.buffer = buffer;
+        }
+
+        PanelGeometry getGeometry() {
+            return geometry;
+        }
+
+        int getFrameCount() {
+            return frameCount;
+        }
+
+        int getFrameIntervalMs() {
+            return frameIntervalMs;
+        }
+
+        double getFps() {
+            return 1000d / frameIntervalMs;
+        }
+
+        /**
+         * @param out at least getGeometry().getFrameLength() bytes
+         */
+        synchronized void readFrame(int index, byte[] out) {
+            buffer.position(HEADER_LENGTH + index * frameLength);
+            buffer.get(out, 0, frameLength);
+        }
+
+        /**
+         * Frames for an AnimationPlayer, each in a new array as the send pipeline keeps them until
+         * they are acknowledged.
+         */
+        AnimationPlayer.FrameSource source(boolean loop) {
+            return new AnimationPlayer.FrameSource() {
+                private int next = 0;
+
+                @Override
+                public byte[] nextFrame() {
+                    if (next == frameCount) {
+                        if (!loop) {
+                            return null;
+                        }
+                        next = 0;
+                    }
+                    byte[] frame = new byte[frameLength];
+                    readFrame(next++, frame);
+                    return frame;
+                }
+            };
+        }
+    }
+
+    /**
+     * Writes a clip into a temporary file that commit() renames. Closing it without committing
+     * deletes it.
+     */
+    class Writer implements Closeable {
+        private final String name;
+        private final PanelGeometry geometry;
+        private final File tmp;
+        private final FileOutputStream out;
+        private final FileChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        private final int frameIntervalMs;
+        private int frameCount = 0;
+        private boolean done = false;
+
+        private Writer(String name, PanelGeometry geometry, int frameIntervalMs) throws IOException {
+            if (geometry.width > 0xFFFF || geometry.height > 0xFFFF) {
+                throw new IllegalArgumentException("Panel too big " + geometry);
+            }
+            this.name = name;
+            this.geometry = geometry;
+            this.frameIntervalMs = frameIntervalMs;
+            this.tmp = File.createTempFile(name, TMP_SUFFIX, dir);
+            this.out = new FileOutputStream(tmp);
+            this.channel = out.getChannel();
+            /* Frame count is 0 until commit */
+            out.write(header().array());
+        }
+
+        private ByteBuffer header() {
+            header.clear();
+            header.putInt(MAGIC).putShort((short) VERSION).putShort((short) geometry.width).putShort((short) geometry.height)
+                    .putInt(frameCount).putInt(frameIntervalMs);
+            header.flip();
+            return header;
+        }
+
+        void add(byte[] frame) throws IOException {
+            if (frame.length != geometry.getFrameLength()) {
+                throw new IllegalArgumentException("Frame length " + frame.length + " is not " + geometry.getFrameLength());
+            }
+            out.write(frame);
+            frameCount++;
+        }
+
+        int getFrameCount() {
+            return frameCount;
+        }
+
+        /**
+         * @return the clip, now cached
+         */
+        Clip commit() throws IOException {
+            if (frameCount == 0) {
+                throw new IOException("No frames");
+            }
+            channel.write(header(), 0);
+            out.close();
+            done = true;
+            File file = new File(dir, name);
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Can't replace " + file);
+            }
+            added(name, file.length());
+            return map(file);
+        }
+
+        @Override
+        public void close() {
+            if (!done) {
+                done = true;
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    /* Deleted anyway */
+                }
+                tmp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.aalku.pixelmatrixfun;
+
+/**
+ * Converts ARGB pixels into device frames for the LEDs.
+ *
+ * One pass over the pixels maps each channel through a table with gamma and brightness, so
+ * colors don't look washed out, and adds up the levels. If the estimated current is over the
+ * budget the frame is then scaled down to fit it.
+ */
+public class FrameConverter {
+
+    /* WS2812 style LED, each channel at full level */
+    static final int MA_PER_CHANNEL = 20;
+
+    /* Budget scales are 16.16 fixed point */
+    static final int SCALE_ONE = 1 << 16;
+
+    public static final double DEFAULT_GAMMA = 2.2;
+    public static final int DEFAULT_CURRENT_BUDGET_MA = 2000;
+
+    private volatile double gamma = DEFAULT_GAMMA;
+    private volatile int brightness = 255;
+    private volatile int currentBudgetMa = DEFAULT_CURRENT_BUDGET_MA;
+    private volatile byte[] lut = makeLut(DEFAULT_GAMMA, 255);
+
+    public synchronized void setGamma(double gamma) {
+        if (gamma <= 0d) {
+            throw new IllegalArgumentException("Gamma must be positive: " + gamma);
+        }
+        this.gamma = gamma;
+        lut = makeLut(gamma, brightness);
+    }
+
+    public double getGamma() {
+        return gamma;
+    }
+
+    /**
+     * @param brightness 0 to 255
+     */
+    public synchronized void setBrightness(int brightness) {
+        this.brightness = Math.max(0, Math.min(255, brightness));
+        lut = makeLut(gamma, this.brightness);
+    }
+
+    public int getBrightness() {
+        return brightness;
+    }
+
+    /**
+     * @param ma most current the panel may draw, 0 or less for no limit
+     */
+    public void setCurrentBudget(int ma) {
+        this.currentBudgetMa = ma;
+    }
+
+    public int getCurrentBudget() {
+        return currentBudgetMa;
+    }
+
+    /**
+     * Estimated current of a device frame.
+     */
+    static int currentMa(byte[] frame) {
+        long levels = 0;
+        for (byte b : frame) {
+            levels += b & 0xFF;
+        }
+        return (int) (levels * MA_PER_CHANNEL / 255);
+    }
+
+    /**
+     * @return most channel levels a frame may add up to, 0 for no limit
+     */
+    long getMaxLevels() {
+        long budget = currentBudgetMa;
+        return budget <= 0 ? 0 : budget * 255 / MA_PER_CHANNEL;
+    }
+
+    /**
+     * @return the 0x00RRGGBB levels of a color with gamma and brightness, before the budget
+     */
+    int toLevels(int argb) {
+        byte[] lut = this.lut;
+        return (lut[(argb >> 16) & 0xFF] & 0xFF) << 16 | (lut[(argb >> 8) & 0xFF] & 0xFF) << 8 | (lut[argb & 0xFF] & 0xFF);
+    }
+
+    /**
+     * @return the scale toFrame gives a frame adding up to these levels, SCALE_ONE if it fits
+     */
+    static int budgetScale(long levels, long maxLevels) {
+        if (maxLevels <= 0 || levels <= maxLevels) {
+            return SCALE_ONE;
+        }
+        /* Rounding down keeps it within the budget */
+        return (int) ((maxLevels << 16) / levels);
+    }
+
+    /**
+     * @return 0x00RRGGBB levels with each channel scaled as toFrame does
+     */
+    static int scale(int rgb, int scale) {
+        return ((((rgb >> 16) & 0xFF) * scale) >>> 16) << 16
+                | ((((rgb >> 8) & 0xFF) * scale) >>> 16) << 8
+                | (((rgb & 0xFF) * scale) >>> 16);
+    }
+
+    static int levelSum(int rgb) {
+        return ((rgb >> 16) & 0xFF) + ((rgb >> 8) & 0xFF) + (rgb & 0xFF);
+    }
+
+    private static byte[] makeLut(double gamma, int brightness) {
+        byte[] res = new byte[256];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = (byte) Math.round(Math.pow(i / 255.0, gamma) * brightness);
+        }
+        return res;
+    }
+
+    /**
+     * Like FrameFormat.toFrame, with gamma, brightness and current budget.
+     *
+     * @return the estimated current of the frame in mA
+     */
+    public int toFrame(int[] argb, int width, int height, byte[] out) {
+        byte[] lut = this.lut;
+        long levels = 0;
+        int pixels = width * height;
+        for (int x = 0; x < width; x++) {
+            int p = x * height * FrameFormat.PIXEL_SIZE;
+            for (int i = x; i < pixels; i += width) {
+                int c = argb[i];
+                byte r = lut[(c >> 16) & 0xFF];
+                byte g = lut[(c >> 8) & 0xFF];
+                byte b = lut[c & 0xFF];
+                out[p] = r;
+                out[p + 1] = g;
+                out[p + 2] = b;
+                levels += (r & 0xFF) + (g & 0xFF) + (b & 0xFF);
+                p += FrameFormat.PIXEL_SIZE;
+            }
+        }
+        return limit(out, FrameFormat.frameLength(width, height), levels);
+    }
+
+    /**
+     * Scales a device frame made some other way to the current budget, as toFrame does. Its
+     * levels already have gamma and brightness.
+     *
+     * @return the estimated current of the frame in mA
+     */
+    int limit(byte[] frame) {
+        long levels = 0;
+        for (byte b : frame) {
+            levels += b & 0xFF;
+        }
+        return limit(frame, frame.length, levels);
+    }
+
+    private int limit(byte[] out, int len, long levels) {
+        int scale = budgetScale(levels, getMaxLevels());
+        if (scale == SCALE_ONE) {
+            return (int) (levels * MA_PER_CHANNEL / 255);
+        }
+        levels = 0;
+        for (int i = 0; i < len; i++) {
+            int v = ((out[i] & 0xFF) * scale) >>> 16;
+            out[i] = (byte) v;
+            levels += v;
+        }
+        return (int) (levels * MA_PER_CHANNEL / 255);
+    }
+}
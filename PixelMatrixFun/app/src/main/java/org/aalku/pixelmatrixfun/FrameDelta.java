@@ -0,0 +1,90 @@
+package org.aalku.pixelmatrixfun;
+
+/**
+ * Delta encoding of a full frame against the frame the device already shows.
+ *
+ * Frames are the 3 bytes per pixel buffers sent to SEND_BITMAP. A delta is a list of runs,
+ * each one being [pixelOffsetHi, pixelOffsetLo, pixelCount, rgb * pixelCount], that must be
+ * applied in order over the previous frame. Offsets are 16 bits, so frames of more than MAX_PIXELS
+ * pixels are always sent whole.
+ */
+class FrameDelta {
+
+    static final int PIXEL_SIZE = 3;
+    static final int RUN_HEADER = 3;
+    static final int MAX_RUN = 255;
+    static final int MAX_PIXELS = 1 << 16;
+
+    /* Merging two runs separated by a single unchanged pixel costs the same as a new header */
+    private static final int MAX_GAP = RUN_HEADER / PIXEL_SIZE;
+
+    private FrameDelta() {
+    }
+
+    /**
+     * @return the delta from previous to frame or null if it is not smaller than the full frame
+     */
+    static byte[] encode(byte[] previous, byte[] frame) {
+        if (previous == null || previous.length != frame.length || frame.length / PIXEL_SIZE > MAX_PIXELS) {
+            return null;
+        }
+        int pixels = frame.length / PIXEL_SIZE;
+        byte[] out = new byte[frame.length];
+        int outLen = 0;
+        int p = 0;
+        while (p < pixels) {
+            if (samePixel(previous, frame, p)) {
+                p++;
+                continue;
+            }
+            /* Extend the run while there are changes close enough */
+            int start = p;
+            int end = p + 1;
+            int q = end;
+            while (q < pixels && q - start < MAX_RUN) {
+                if (!samePixel(previous, frame, q)) {
+                    end = q + 1;
+                } else if (q - end >= MAX_GAP) {
+                    break;
+                }
+                q++;
+            }
+            int count = end - start;
+            int runLen = RUN_HEADER + count * PIXEL_SIZE;
+            if (outLen + runLen >= frame.length) {
+                return null;
+            }
+            out[outLen] = (byte) ((start >> 8) & 0xFF);
+            out[outLen + 1] = (byte) (start & 0xFF);
+            out[outLen + 2] = (byte) (count & 0xFF);
+            System.arraycopy(frame, start * PIXEL_SIZE, out, outLen + RUN_HEADER, count * PIXEL_SIZE);
+            outLen += runLen;
+            p = end;
+        }
+        byte[] res = new byte[outLen];
+        System.arraycopy(out, 0, res, 0, outLen);
+        return res;
+    }
+
+    /**
+     * Applies a delta over target, as the device does.
+     */
+    static void apply(byte[] target, byte[] delta) {
+        int pos = 0;
+        while (pos + RUN_HEADER <= delta.length) {
+            int start = ((delta[pos] & 0xFF) << 8) | (delta[pos + 1] & 0xFF);
+            int count = delta[pos + 2] & 0xFF;
+            int len = count * PIXEL_SIZE;
+            System.arraycopy(delta, pos + RUN_HEADER, target, start * PIXEL_SIZE, len);
+            pos += RUN_HEADER + len;
+        }
+        if (pos != delta.length) {
+            throw new IllegalArgumentException("Truncated delta");
+        }
+    }
+
+    private static boolean samePixel(byte[] a, byte[] b, int p) {
+        int i = p * PIXEL_SIZE;
+        return a[i] == b[i] && a[i + 1] == b[i + 1] && a[i + 2] == b[i + 2];
+    }
+}
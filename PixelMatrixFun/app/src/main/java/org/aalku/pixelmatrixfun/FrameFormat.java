@@ -0,0 +1,57 @@
+package org.aalku.pixelmatrixfun;
+
+/**
+ * Device frame format: 3 bytes (r, g, b) per pixel, column by column.
+ */
+class FrameFormat {
+
+    static final int PIXEL_SIZE = 3;
+
+    private FrameFormat() {
+    }
+
+    static int frameLength(int width, int height) {
+        return width * height * PIXEL_SIZE;
+    }
+
+    /**
+     * Copies the w x h tile at (x0, y0) of a frame. Columns are contiguous in both, so it's one
+     * copy per column.
+     */
+    static void copyTile(byte[] src, int srcHeight, int x0, int y0, byte[] dst, int w, int h) {
+        for (int x = 0; x < w; x++) {
+            System.arraycopy(src, ((x0 + x) * srcHeight + y0) * PIXEL_SIZE, dst, x * h * PIXEL_SIZE, h * PIXEL_SIZE);
+        }
+    }
+
+    /**
+     * Converts row major ARGB pixels, as Bitmap.getPixels gives them, into out.
+     */
+    static void toFrame(int[] argb, int width, int height, byte[] out) {
+        /* The buffer may be bigger, as when reused */
+        int pixels = width * height;
+        for (int x = 0; x < width; x++) {
+            int p = x * height * PIXEL_SIZE;
+            for (int i = x; i < pixels; i += width) {
+                int c = argb[i];
+                out[p] = (byte) (c >> 16);
+                out[p + 1] = (byte) (c >> 8);
+                out[p + 2] = (byte) c;
+                p += PIXEL_SIZE;
+            }
+        }
+    }
+
+    /**
+     * The other way round, into opaque row major ARGB pixels.
+     */
+    static void toArgb(byte[] frame, int width, int height, int[] argb) {
+        for (int x = 0; x < width; x++) {
+            int p = x * height * PIXEL_SIZE;
+            for (int i = x; i < width * height; i += width) {
+                argb[i] = 0xFF000000 | (frame[p] & 0xFF) << 16 | (frame[p + 1] & 0xFF) << 8 | (frame[p + 2] & 0xFF);
+                p += PIXEL_SIZE;
+            }
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package org.aalku.pixelmatrixfun;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decodes picked images into panel sized bitmaps on its own thread.
+ *
+ * The bounds are read first and an ImportPlan decides the crop and subsampling, so a 50 MP photo
+ * is never decoded at full size. Only the crop is decoded if the format has a region decoder.
+ * The crop is area averaged to the panel, bilinear scaling aliases at these ratios. Importing
+ * another image cancels the one in progress: it's checked between stages, and the input stream
+ * fails once cancelled so a decode in progress stops too.
+ *
+ * GIFs and videos are sampled every ANIMATION_FRAME_MS and converted to device frames once, into
+ * a FrameCache clip that is played from then on.
+ */
+@RequiresApi(api = Build.VERSION_CODES.N)
+class ImageImporter {
+
+    /* GIF frame delays and video frame rates vary, frames are sampled at this interval */
+    static final int ANIMATION_FRAME_MS = 50;
+    /* Longer clips are cut */
+    static final int MAX_ANIMATION_MS = 30_000;
+
+    private final ContentResolver resolver;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final AtomicReference<Job<?>> current = new AtomicReference<>(null);
+
+    private static class Job<T> {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        volatile boolean cancelled = false;
+
+        void cancel() {
+            cancelled = true;
+            result.cancel(false);
+        }
+
+        void checkCancelled() {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+        }
+    }
+
+    ImageImporter(ContentResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * @return the image cropped and scaled to the panel, cancelled if another import starts first
+     */
+    CompletionStage<Bitmap> importImage(Uri uri, PanelGeometry geometry) {
+        Job<Bitmap> job = start();
+        executor.execute(() -> run(job, () -> decode(job, uri, geometry)));
+        return job.result;
+    }
+
+    /**
+     * Same for a bitmap already in memory, like the camera thumbnail.
+     */
+    CompletionStage<Bitmap> importBitmap(Bitmap bitmap, PanelGeometry geometry) {
+        Job<Bitmap> job = start();
+        executor.execute(() -> run(job, () -> {
+            ImportPlan plan = new ImportPlan(bitmap.getWidth(), bitmap.getHeight(), geometry.width, geometry.height);
+            return scale(bitmap, plan.cropX, plan.cropY, plan.cropWidth, plan.cropHeight, geometry);
+        }));
+        return job.result;
+    }
+
+    /**
+     * Decodes a GIF or a video into a clip of device frames with the colors of the converter. It's
+     * decoded only if it's not cached already.
+     *
+     * @return the clip, cancelled if another import starts first
+     */
+    CompletionStage<FrameCache.Clip> importAnimation(Uri uri, PanelGeometry geometry, FrameConverter converter, FrameCache cache) {
+        Job<FrameCache.Clip> job = start();
+        executor.execute(() -> run(job, () -> {
+            String key = uri + " " + geometry + " every " + ANIMATION_FRAME_MS + "ms gamma " + converter.getGamma()
+                    + " brightness " + converter.getBrightness() + " budget " + converter.getCurrentBudget();
+            FrameCache.Clip clip = cache.open(key);
+            if (clip != null) {
+                Log.i("IMPORT", "Cached clip of " + clip.getFrameCount() + " frames");
+                return clip;
+            }
+            long start = System.nanoTime();
+            try (FrameCache.Writer writer = cache.create(key, geometry, ANIMATION_FRAME_MS)) {
+                FrameWriter frames = new FrameWriter(writer, geometry, converter);
+                String type = resolver.getType(uri);
+                if (type != null && type.startsWith("video/")) {
+                    decodeVideo(job, uri, frames);
+                } else {
+                    decodeGif(job, uri, frames);
+                }
+                clip = writer.commit();
+            }
+            Log.i("IMPORT", String.format("Clip of %d frames in %.0fms, cache %d KB in %d clips", clip.getFrameCount(),
+                    (System.nanoTime() - start) / 1e6, cache.getTotalBytes() / 1024, cache.getClipCount()));
+            return clip;
+        }));
+        return job.result;
+    }
+
+    void cancel() {
+        Job<?> job = current.getAndSet(null);
+        if (job != null) {
+            job.cancel();
+        }
+    }
+
+    void close() {
+        cancel();
+        executor.shutdownNow();
+    }
+
+    private <T> Job<T> start() {
+        Job<T> job = new Job<>();
+        Job<?> old = current.getAndSet(job);
+        if (old != null) {
+            old.cancel();
+        }
+        return job;
+    }
+
+    private interface Decode<T> {
+        T decode() throws IOException;
+    }
+
+    private <T> void run(Job<T> job, Decode<T> decode) {
+        if (job.cancelled) {
+            return;
+        }
+        try {
+            job.result.complete(decode.decode());
+        } catch (CancellationException e) {
+            job.result.cancel(false);
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            if (job.cancelled) {
+                /* The stream fails once cancelled */
+                job.result.cancel(false);
+            } else {
+                job.result.completeExceptionally(e);
+            }
+        } finally {
+            current.compareAndSet(job, null);
+        }
+    }
+
+    private Bitmap decode(Job<?> job, Uri uri, PanelGeometry geometry) throws IOException {
+        long start = System.nanoTime();
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try (InputStream in = open(job, uri)) {
+            BitmapFactory.decodeStream(in, null, bounds);
+        }
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Not an image: " + uri);
+        }
+        job.checkCancelled();
+        ImportPlan plan = new ImportPlan(bounds.outWidth, bounds.outHeight, geometry.width, geometry.height);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = plan.sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap decoded = decodeRegion(job, uri, plan, options);
+        boolean region = decoded != null;
+        if (decoded == null) {
+            job.checkCancelled();
+            try (InputStream in = open(job, uri)) {
+                decoded = BitmapFactory.decodeStream(in, null, options);
+            }
+        }
+        job.checkCancelled();
+        if (decoded == null) {
+            throw new IOException("Can't decode " + uri);
+        }
+        long decodedBytes = decoded.getAllocationByteCount();
+        Bitmap scaled;
+        if (region) {
+            scaled = scale(decoded, 0, 0, decoded.getWidth(), decoded.getHeight(), geometry);
+        } else {
+            /* Whole image subsampled, the crop scales with it */
+            int s = plan.sampleSize;
+            int w = Math.min(decoded.getWidth(), Math.max(1, plan.cropWidth / s));
+            int h = Math.min(decoded.getHeight(), Math.max(1, plan.cropHeight / s));
+            scaled = scale(decoded, Math.min(plan.cropX / s, decoded.getWidth() - w), Math.min(plan.cropY / s, decoded.getHeight() - h), w, h, geometry);
+        }
+        decoded.recycle();
+        Log.i("IMPORT", String.format("%s in %.0fms, %s decode %d KB instead of %d KB", plan, (System.nanoTime() - start) / 1e6,
+                region ? "region" : "sampled", decodedBytes / 1024, plan.getFullDecodeBytes() / 1024));
+        return scaled;
+    }
+
+    /**
+     * @return the w x h area of bitmap at x, y area averaged to the panel size
+     */
+    private static Bitmap scale(Bitmap bitmap, int x, int y, int w, int h, PanelGeometry geometry) {
+        int[] src = new int[w * h];
+        bitmap.getPixels(src, 0, w, x, y, w, h);
+        int[] dst = new int[geometry.getPixels()];
+        new AreaScaler(w, h, geometry.width, geometry.height).scale(src, 0, w, dst);
+        return Bitmap.createBitmap(dst, geometry.width, geometry.height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * @return the crop decoded alone, or null if the format has no region decoder
+     */
+    private Bitmap decodeRegion(Job<?> job, Uri uri, ImportPlan plan, BitmapFactory.Options options) throws IOException {
+        BitmapRegionDecoder decoder;
+        try (InputStream in = open(job, uri)) {
+            decoder = BitmapRegionDecoder.newInstance(in, false);
+        } catch (IOException e) {
+            /* Only JPEG, PNG and WebP have one */
+            return null;
+        }
+        try {
+            Rect rect = new Rect(plan.cropX, plan.cropY, plan.cropX + plan.cropWidth, plan.cropY + plan.cropHeight);
+            return decoder.decodeRegion(rect, options);
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * Crops, scales and converts frames into a clip, with buffers made once per frame size.
+     */
+    private static class FrameWriter {
+        final FrameCache.Writer writer;
+        final PanelGeometry geometry;
+        final FrameConverter converter;
+        final int[] panel;
+        final byte[] frame;
+        ImportPlan plan = null;
+        AreaScaler scaler = null;
+        int[] pixels = null;
+
+        FrameWriter(FrameCache.Writer writer, PanelGeometry geometry, FrameConverter converter) {
+            this.writer = writer;
+            this.geometry = geometry;
+            this.converter = converter;
+            panel = new int[geometry.getPixels()];
+            frame = new byte[geometry.getFrameLength()];
+        }
+
+        void add(Bitmap bitmap) throws IOException {
+            if (plan == null || plan.srcWidth != bitmap.getWidth() || plan.srcHeight != bitmap.getHeight()) {
+                plan = new ImportPlan(bitmap.getWidth(), bitmap.getHeight(), geometry.width, geometry.height);
+                scaler = new AreaScaler(plan.cropWidth, plan.cropHeight, geometry.width, geometry.height);
+                pixels = new int[plan.cropWidth * plan.cropHeight];
+            }
+            bitmap.getPixels(pixels, 0, plan.cropWidth, plan.cropX, plan.cropY, plan.cropWidth, plan.cropHeight);
+            scaler.scale(pixels, 0, plan.cropWidth, panel);
+            converter.toFrame(panel, geometry.width, geometry.height, frame);
+            writer.add(frame);
+        }
+    }
+
+    /**
+     * Movie is deprecated for AnimatedImageDrawable, but that one can't be stepped frame by frame.
+     * It's not imported, a deprecated import is warned about even where it's used suppressed.
+     */
+    @SuppressWarnings("deprecation")
+    private void decodeGif(Job<?> job, Uri uri, FrameWriter frames) throws IOException {
+        byte[] bytes;
+        try (InputStream in = open(job, uri)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            bytes = out.toByteArray();
+        }
+        android.graphics.Movie movie = android.graphics.Movie.decodeByteArray(bytes, 0, bytes.length);
+        if (movie == null || movie.width() <= 0 || movie.height() <= 0) {
+            throw new IOException("Can't decode " + uri);
+        }
+        Bitmap bitmap = Bitmap.createBitmap(movie.width(), movie.height(), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        /* 0 for a still GIF */
+        int duration = Math.min(Math.max(movie.duration(), 1), MAX_ANIMATION_MS);
+        try {
+            for (int t = 0; t < duration; t += ANIMATION_FRAME_MS) {
+                job.checkCancelled();
+                movie.setTime(t);
+                canvas.drawColor(Color.BLACK, PorterDuff.Mode.SRC);
+                movie.draw(canvas, 0, 0);
+                frames.add(bitmap);
+            }
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private void decodeVideo(Job<?> job, Uri uri, FrameWriter frames) throws IOException {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try (ParcelFileDescriptor fd = resolver.openFileDescriptor(uri, "r")) {
+            if (fd == null) {
+                throw new IOException("Can't open " + uri);
+            }
+            retriever.setDataSource(fd.getFileDescriptor());
+            String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            long end = Math.min(Math.max(duration == null ? 0L : Long.parseLong(duration), 1L), MAX_ANIMATION_MS);
+            for (long t = 0; t < end; t += ANIMATION_FRAME_MS) {
+                job.checkCancelled();
+                Bitmap bitmap = retriever.getFrameAtTime(t * 1000, MediaMetadataRetriever.OPTION_CLOSEST);
+                if (bitmap == null) {
+                    break;
+                }
+                try {
+                    frames.add(bitmap);
+                } finally {
+                    bitmap.recycle();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            /* Not a video or a bad duration */
+            throw new IOException("Can't decode " + uri, e);
+        } finally {
+            retriever.release();
+        }
+    }
+
+    /**
+     * @return the stream of the uri, which fails once the job is cancelled
+     */
+    private InputStream open(Job<?> job, Uri uri) throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Can't open " + uri);
+        }
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                checkCancelled();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                checkCancelled();
+                return super.read(b, off, len);
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                checkCancelled();
+                return super.skip(n);
+            }
+
+            private void checkCancelled() throws IOException {
+                if (job.cancelled) {
+                    throw new InterruptedIOException("Import cancelled");
+                }
+            }
+        };
+    }
+}
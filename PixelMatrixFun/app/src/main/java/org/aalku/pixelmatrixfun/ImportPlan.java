@@ -0,0 +1,91 @@
+package org.aalku.pixelmatrixfun;
+
+/**
+ * How to decode an image of srcWidth x srcHeight for a panel of width x height without decoding
+ * more than it takes: the centered crop with the panel aspect ratio and the largest power of two
+ * subsampling that still leaves MIN_OVERSAMPLE source pixels per panel pixel for the final scaling.
+ *
+ * Only the bounds of the image are needed, so it's computed before decoding anything.
+ */
+class ImportPlan {
+
+    /* Decoded pixels per panel pixel, at least, on each axis */
+    static final int MIN_OVERSAMPLE = 2;
+
+    static final int BYTES_PER_PIXEL = 4;
+
+    final int srcWidth;
+    final int srcHeight;
+    final int width;
+    final int height;
+
+    final int cropX;
+    final int cropY;
+    final int cropWidth;
+    final int cropHeight;
+    final int sampleSize;
+
+    ImportPlan(int srcWidth, int srcHeight, int width, int height) {
+        if (srcWidth <= 0 || srcHeight <= 0) {
+            throw new IllegalArgumentException("Bad image size " + srcWidth + "x" + srcHeight);
+        }
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.width = width;
+        this.height = height;
+        int cw = srcWidth;
+        int ch = srcHeight;
+        if ((long) srcWidth * height > (long) srcHeight * width) {
+            cw = (int) Math.max(1L, (long) srcHeight * width / height);
+        } else {
+            ch = (int) Math.max(1L, (long) srcWidth * height / width);
+        }
+        this.cropWidth = cw;
+        this.cropHeight = ch;
+        this.cropX = (srcWidth - cw) / 2;
+        this.cropY = (srcHeight - ch) / 2;
+        int sample = 1;
+        while (cw / (sample * 2) >= width * MIN_OVERSAMPLE && ch / (sample * 2) >= height * MIN_OVERSAMPLE) {
+            sample *= 2;
+        }
+        this.sampleSize = sample;
+    }
+
+    /**
+     * @return size of the crop once decoded with sampleSize, decoders round up
+     */
+    int getDecodedWidth() {
+        return (cropWidth + sampleSize - 1) / sampleSize;
+    }
+
+    int getDecodedHeight() {
+        return (cropHeight + sampleSize - 1) / sampleSize;
+    }
+
+    /**
+     * @return ARGB bytes of decoding only the crop, subsampled
+     */
+    long getRegionDecodeBytes() {
+        return (long) getDecodedWidth() * getDecodedHeight() * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * @return ARGB bytes of decoding the whole image subsampled, when the format has no region decoder
+     */
+    long getSampledDecodeBytes() {
+        return (long) ((srcWidth + sampleSize - 1) / sampleSize) * ((srcHeight + sampleSize - 1) / sampleSize) * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * @return ARGB bytes of decoding the whole image at full resolution
+     */
+    long getFullDecodeBytes() {
+        return (long) srcWidth * srcHeight * BYTES_PER_PIXEL;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%dx%d crop %dx%d+%d+%d sample %d -> %dx%d", srcWidth, srcHeight,
+                cropWidth, cropHeight, cropX, cropY, sampleSize, width, height);
+    }
+}
@@ -0,0 +1,166 @@
+package org.aalku.pixelmatrixfun;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Send queue with priority lanes. Messages are sent in chunks and the scheduler is asked for the
+ * next message at every chunk boundary, so a message in a higher lane goes before the remaining
+ * chunks of a lower lane message. Each lane is FIFO and has at most one message started.
+ */
+class LaneScheduler<M> {
+
+    public enum Lane {
+        /* Finger drawing */
+        INTERACTIVE,
+        NORMAL,
+        /* Full bitmaps */
+        BULK
+    }
+
+    public static class LaneStats {
+        public final Lane lane;
+        public final int depth;
+        public final long started;
+        public final double avgWaitMs;
+        public final double maxWaitMs;
+
+        LaneStats(Lane lane, int depth, long started, double avgWaitMs, double maxWaitMs) {
+            this.lane = lane;
+            this.depth = depth;
+            this.started = started;
+            this.avgWaitMs = avgWaitMs;
+            this.maxWaitMs = maxWaitMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: depth %d, started %d, wait avg %.1fms max %.1fms", lane, depth, started, avgWaitMs, maxWaitMs);
+        }
+    }
+
+    private static class Entry<M> {
+        final M msg;
+        final long enqueuedNanos;
+
+        Entry(M msg, long enqueuedNanos) {
+            this.msg = msg;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    private static final Lane[] LANES = Lane.values();
+
+    private final List<ArrayDeque<Entry<M>>> queues = new ArrayList<>(LANES.length);
+    private final Object[] current = new Object[LANES.length];
+    private final long[] started = new long[LANES.length];
+    private final long[] waitTotalNanos = new long[LANES.length];
+    private final long[] waitMaxNanos = new long[LANES.length];
+
+    LaneScheduler() {
+        for (int i = 0; i < LANES.length; i++) {
+            queues.add(new ArrayDeque<>());
+        }
+    }
+
+    synchronized void add(Lane lane, M msg) {
+        queues.get(lane.ordinal()).add(new Entry<>(msg, System.nanoTime()));
+    }
+
+    /**
+     * @param canStart tells whether a queued message can start while the started ones are unfinished
+     * @return the message to send the next chunk of or null if there is nothing that can be sent
+     */
+    @SuppressWarnings("unchecked")
+    synchronized M next(Predicate<M> canStart) {
+        for (int l = 0; l < LANES.length; l++) {
+            if (current[l] != null) {
+                return (M) current[l];
+            }
+            Entry<M> head = queues.get(l).peek();
+            if (head != null && canStart.test(head.msg)) {
+                queues.get(l).poll();
+                current[l] = head.msg;
+                long wait = System.nanoTime() - head.enqueuedNanos;
+                started[l]++;
+                waitTotalNanos[l] += wait;
+                waitMaxNanos[l] = Math.max(waitMaxNanos[l], wait);
+                return head.msg;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the queued messages that match, in every lane. Started messages are not removed.
+     *
+     * @return the removed messages
+     */
+    synchronized List<M> removeQueued(Predicate<M> filter) {
+        List<M> removed = new ArrayList<>();
+        for (ArrayDeque<Entry<M>> queue : queues) {
+            Iterator<Entry<M>> it = queue.iterator();
+            while (it.hasNext()) {
+                M msg = it.next().msg;
+                if (filter.test(msg)) {
+                    it.remove();
+                    removed.add(msg);
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * The started message of the lane is done.
+     */
+    synchronized void finish(Lane lane) {
+        current[lane.ordinal()] = null;
+    }
+
+    /**
+     * @return the started and unfinished message of the lane, null if none
+     */
+    @SuppressWarnings("unchecked")
+    synchronized M getStarted(Lane lane) {
+        return (M) current[lane.ordinal()];
+    }
+
+    synchronized boolean isEmpty() {
+        for (int l = 0; l < LANES.length; l++) {
+            if (current[l] != null || !queues.get(l).isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the lane has nothing started or queued
+     */
+    synchronized boolean isEmpty(Lane lane) {
+        int l = lane.ordinal();
+        return current[l] == null && queues.get(l).isEmpty();
+    }
+
+    /**
+     * @return messages started or queued in every lane
+     */
+    synchronized int size() {
+        int size = 0;
+        for (int l = 0; l < LANES.length; l++) {
+            size += queues.get(l).size() + (current[l] != null ? 1 : 0);
+        }
+        return size;
+    }
+
+    synchronized LaneStats getStats(Lane lane) {
+        int l = lane.ordinal();
+        int depth = queues.get(l).size() + (current[l] != null ? 1 : 0);
+        double avg = started[l] > 0 ? waitTotalNanos[l] / 1e6 / started[l] : 0d;
+        return new LaneStats(lane, depth, started[l], avg, waitMaxNanos[l] / 1e6);
+    }
+}
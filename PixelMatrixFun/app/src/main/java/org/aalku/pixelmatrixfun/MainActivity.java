@@ -1,15 +1,16 @@
 package org.aalku.pixelmatrixfun;
 
 import android.Manifest;
+import android.app.AlertDialog;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.net.Uri;
+import android.graphics.Color;
 import android.os.Build;
 import android.os.Bundle;
-import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
+import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -19,22 +20,37 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 @RequiresApi(api = Build.VERSION_CODES.N)
 public class MainActivity extends AppCompatActivity {
 
+    private static final int PREVIEW_SIZE = 160;
+    private static final int CAMERA_PERMISSION_REQUEST = 1;
+    /* Columns scrolled per second */
+    private static final int SCROLL_FPS = 10;
+
     private TextView statusText;
     AtomicReference<Bitmap> readyToSendBitmap = new AtomicReference<>(null);
     private DeviceService deviceService;
+    private ImageImporter importer;
+    private final ScheduledExecutorService animationExecutor = Executors.newSingleThreadScheduledExecutor();
+    private AnimationPlayer animationPlayer = null;
+    private PreviewPipeline livePreview = null;
+    private final Consumer<String> statusListener = s->setStatusText(s);
 
     @RequiresApi(api = Build.VERSION_CODES.N)
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        deviceService = new DeviceService(getBaseContext());
-        deviceService.addStatusListener(s->setStatusText(s));
+        deviceService = ((PixelMatrixFunApp) getApplication()).getDeviceService();
+        deviceService.addStatusListener(statusListener);
+        importer = new ImageImporter(getContentResolver());
         setContentView(R.layout.activity_main);
         statusText = this.findViewById(R.id.statusText);
 
@@ -53,7 +69,14 @@ public class MainActivity extends AppCompatActivity {
     @RequiresApi(api = Build.VERSION_CODES.N)
     @Override
     protected void onDestroy() {
-        deviceService.close();
+        deviceService.removeStatusListener(statusListener);
+        importer.close();
+        stopAnimation();
+        stopLivePreview();
+        animationExecutor.shutdown();
+        if (isFinishing()) {
+            ((PixelMatrixFunApp) getApplication()).closeDeviceService();
+        }
         super.onDestroy();
     }
 
@@ -63,52 +86,194 @@ public class MainActivity extends AppCompatActivity {
         startActivityForResult(intent, 0);
     }
 
+    public void selectAnimation(View view) {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("*/*");
+        intent.putExtra(Intent.EXTRA_MIME_TYPES, new String[]{"image/gif", "video/*"});
+        startActivityForResult(intent, 2);
+    }
+
     public void takePicture(View view) {
         Intent intent  = new Intent(android.provider.MediaStore.ACTION_IMAGE_CAPTURE);
         startActivityForResult(intent, 1);
     }
 
+    /**
+     * Starts or stops sending the camera to the panel.
+     */
+    public void toggleLivePreview(View view) {
+        if (livePreview != null) {
+            stopLivePreview();
+            setStatusText("Live preview stopped");
+        } else if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.CAMERA}, CAMERA_PERMISSION_REQUEST);
+        } else {
+            startLivePreview();
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == CAMERA_PERMISSION_REQUEST && grantResults.length > 0
+                && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            startLivePreview();
+        }
+    }
+
+    private void startLivePreview() {
+        stopAnimation();
+        PanelGeometry g = deviceService.getGeometry();
+        PreviewPipeline pipeline = new PreviewPipeline(g.width, g.height, deviceService);
+        pipeline.setConverter(deviceService.getFrameConverter());
+        livePreview = pipeline;
+        setStatusText("Opening camera...");
+        CameraSource.open(this).whenComplete((camera, e) -> runOnUiThread(() -> {
+            if (camera == null) {
+                Log.e("PREVIEW", "Can't open camera", e);
+                Toast.makeText(this, "Can't open camera", Toast.LENGTH_SHORT).show();
+                if (livePreview == pipeline) {
+                    livePreview = null;
+                }
+                return;
+            }
+            if (livePreview != pipeline) {
+                /* Stopped while opening */
+                camera.close();
+                return;
+            }
+            setStatusText("Live preview");
+            new Thread(() -> {
+                try {
+                    pipeline.run(camera);
+                } finally {
+                    camera.close();
+                    Log.i("PREVIEW", String.format("Live preview: %d frames, %d sent, %d dropped",
+                            pipeline.getProcessed(), pipeline.getSent(), pipeline.getDropped()));
+                }
+            }, "LivePreview").start();
+        }));
+    }
+
+    private void stopLivePreview() {
+        if (livePreview != null) {
+            livePreview.stop();
+            livePreview = null;
+        }
+    }
+
     protected void onActivityResult(int requestCode, int resultCode, Intent imageReturnedIntent) {
         super.onActivityResult(requestCode, resultCode, imageReturnedIntent);
         if(resultCode != RESULT_OK) {
             return;
         }
+        long start = System.nanoTime();
+        PanelGeometry g = deviceService.getGeometry();
+        if (requestCode == 2) {
+            animationSelected(imageReturnedIntent, g, start);
+            return;
+        }
+        CompletionStage<Bitmap> imported;
         switch(requestCode) {
             case 0:
-                Uri selectedImage = imageReturnedIntent.getData();
-                try {
-                    Bitmap bitmap = MediaStore.Images.Media.getBitmap(this.getContentResolver(), selectedImage);
-                    bitmapSelected(bitmap);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
+                imported = importer.importImage(imageReturnedIntent.getData(), g);
                 break;
             case 1:
-                Bitmap bitmap = (Bitmap) imageReturnedIntent.getExtras().get("data");
-                bitmapSelected(bitmap);
+                imported = importer.importBitmap((Bitmap) imageReturnedIntent.getExtras().get("data"), g);
                 break;
+            default:
+                return;
         }
+        setStatusText("Loading image...");
+        imported.whenComplete((bitmap, e) -> runOnUiThread(() -> {
+            if (bitmap != null) {
+                bitmapSelected(bitmap);
+                Log.i("IMPORT", String.format("Preview in %.0fms", (System.nanoTime() - start) / 1e6));
+            } else if (!(e instanceof CancellationException)) {
+                Log.e("IMPORT", "Can't load image", e);
+                Toast.makeText(this, "Can't load image", Toast.LENGTH_SHORT).show();
+            }
+        }));
     }
 
-    private void bitmapSelected(Bitmap src) {
+    private void animationSelected(Intent intent, PanelGeometry g, long start) {
+        setStatusText("Loading animation...");
+        PixelMatrixFunApp app = (PixelMatrixFunApp) getApplication();
+        importer.importAnimation(intent.getData(), g, deviceService.getFrameConverter(), app.getFrameCache())
+                .whenComplete((clip, e) -> runOnUiThread(() -> {
+                    if (clip != null) {
+                        Log.i("IMPORT", String.format("Animation ready in %.0fms", (System.nanoTime() - start) / 1e6));
+                        playAnimation(clip);
+                    } else if (!(e instanceof CancellationException)) {
+                        Log.e("IMPORT", "Can't load animation", e);
+                        Toast.makeText(this, "Can't load animation", Toast.LENGTH_SHORT).show();
+                    }
+                }));
+    }
+
+    /**
+     * Asks for a message and scrolls it on the device until another image is sent.
+     */
+    public void scrollText(View view) {
+        EditText input = new EditText(this);
+        new AlertDialog.Builder(this)
+                .setTitle("Text")
+                .setView(input)
+                .setPositiveButton("Scroll", (dialog, which) -> playText(input.getText().toString()))
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void playText(String text) {
+        stopAnimation();
+        stopLivePreview();
+        PanelGeometry g = deviceService.getGeometry();
+        /* White with gamma and brightness, the frames are scaled to the current budget */
+        FrameConverter converter = deviceService.getFrameConverter();
+        TextScroller scroller = new TextScroller(text, g.width, g.height, converter.toLevels(Color.WHITE), Color.BLACK, true);
+        scroller.setConverter(converter);
+        animationPlayer = new AnimationPlayer(scroller, deviceService, animationExecutor);
+        animationPlayer.start(SCROLL_FPS);
+        setStatusText("Scrolling " + text.length() + " characters");
+    }
+
+    /**
+     * Loops the clip on the device until another image is sent.
+     */
+    private void playAnimation(FrameCache.Clip clip) {
+        stopAnimation();
+        stopLivePreview();
+        animationPlayer = new AnimationPlayer(clip.source(true), deviceService, animationExecutor);
+        animationPlayer.start(clip.getFps());
+        setStatusText("Playing " + clip.getFrameCount() + " frames");
+    }
+
+    private void stopAnimation() {
+        if (animationPlayer != null) {
+            animationPlayer.stop();
+            Log.i("IMPORT", "Animation " + animationPlayer.getStats());
+            animationPlayer = null;
+        }
+    }
+
+    /**
+     * @param scaledBitmap already the panel size
+     */
+    private void bitmapSelected(Bitmap scaledBitmap) {
         ImageView imagePreview = findViewById(R.id.imagePreview);
-        Bitmap scaledBitmap = Bitmap.createScaledBitmap(crop(src), 16, 16, true);
+        int w = scaledBitmap.getWidth();
+        int h = scaledBitmap.getHeight();
         this.readyToSendBitmap.set(scaledBitmap);
-        Bitmap previewBitmap = Bitmap.createScaledBitmap(scaledBitmap, 160, 160, false);
+        /* Whole pixels, about 160 on the longest side */
+        int zoom = Math.max(1, PREVIEW_SIZE / Math.max(w, h));
+        Bitmap previewBitmap = Bitmap.createScaledBitmap(scaledBitmap, w * zoom, h * zoom, false);
         imagePreview.setImageBitmap(previewBitmap);
     }
 
-    private Bitmap crop(Bitmap bitmap) {
-        int w = bitmap.getWidth();
-        int h = bitmap.getHeight();
-        int size = Math.min(w,h);
-        int xo = (w - size) /2;
-        int yo = (h - size)/2;
-        return Bitmap.createBitmap(bitmap, xo, yo, size, size);
-    }
-
     @RequiresApi(api = Build.VERSION_CODES.N)
     public void send(View view) {
+        stopAnimation();
+        stopLivePreview();
         deviceService.sendBitmap(readyToSendBitmap.get());
     }
 
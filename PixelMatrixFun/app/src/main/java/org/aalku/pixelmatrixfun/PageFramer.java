@@ -0,0 +1,87 @@
+package org.aalku.pixelmatrixfun;
+
+/**
+ * Builds the value of each chunk write without allocating in steady state.
+ *
+ * A characteristic value is a whole array, so there is one buffer per length, created the first
+ * time that length is used. BluetoothGatt copies the value when the write is requested, so the
+ * same buffer can be used again for the next chunk once writeCharacteristic returns.
+ *
+ * Paged characteristics get the header [seq, totalLenHi, totalLenLo, offsetHi, offsetLo] plus the
+ * encoding tag if there is one, written in place before the payload. Wide pages have 3 bytes for
+ * totalLen and offset, for devices that announced their geometry.
+ */
+class PageFramer {
+
+    static final int PAGE_HEADER = 5;
+    static final int WIDE_PAGE_HEADER = 7;
+
+    private final byte[][] buffers;
+
+    /**
+     * @param maxLength longest write, header included
+     */
+    PageFramer(int maxLength) {
+        this.buffers = new byte[maxLength + 1][];
+    }
+
+    static int headerLength(int encoding) {
+        return headerLength(encoding, false);
+    }
+
+    static int headerLength(int encoding, boolean wide) {
+        int header = wide ? WIDE_PAGE_HEADER : PAGE_HEADER;
+        return encoding < 0 ? header : header + 1;
+    }
+
+    /**
+     * @return len bytes of src from offset, as they are
+     */
+    byte[] chunk(byte[] src, int offset, int len) {
+        byte[] res = buffer(len);
+        System.arraycopy(src, offset, res, 0, len);
+        return res;
+    }
+
+    /**
+     * @param encoding page encoding tag or -1 if pages are not tagged
+     * @return a page with len bytes of src from offset
+     */
+    byte[] page(int seq, int encoding, byte[] src, int offset, int len) {
+        return page(seq, encoding, false, src, offset, len);
+    }
+
+    /**
+     * @param wide 24 bit totalLen and offset
+     */
+    byte[] page(int seq, int encoding, boolean wide, byte[] src, int offset, int len) {
+        int headerLen = headerLength(encoding, wide);
+        byte[] res = buffer(headerLen + len);
+        int totalLen = src.length;
+        int pos = 0;
+        res[pos++] = (byte) (seq & 0xFF);
+        if (wide) {
+            res[pos++] = (byte) ((totalLen >> 16) & 0xFF);
+        }
+        res[pos++] = (byte) ((totalLen >> 8) & 0xFF);
+        res[pos++] = (byte) ((totalLen     ) & 0xFF);
+        if (wide) {
+            res[pos++] = (byte) ((offset >> 16) & 0xFF);
+        }
+        res[pos++] = (byte) ((offset >> 8) & 0xFF);
+        res[pos++] = (byte) ((offset     ) & 0xFF);
+        if (encoding >= 0) {
+            res[pos] = (byte) (encoding & 0xFF);
+        }
+        System.arraycopy(src, offset, res, headerLen, len);
+        return res;
+    }
+
+    private byte[] buffer(int length) {
+        byte[] res = buffers[length];
+        if (res == null) {
+            res = buffers[length] = new byte[length];
+        }
+        return res;
+    }
+}
@@ -0,0 +1,52 @@
+package org.aalku.pixelmatrixfun;
+
+/**
+ * Size of the panel in pixels, as the device announces it in HELO. Devices that don't announce it
+ * are DeviceProtocol.WIDTH x DeviceProtocol.HEIGHT.
+ */
+public final class PanelGeometry {
+
+    static final PanelGeometry DEFAULT = new PanelGeometry(DeviceProtocol.WIDTH, DeviceProtocol.HEIGHT);
+
+    /* Pages carry 24 bit lengths and offsets */
+    static final int MAX_FRAME_LENGTH = 0xFFFFFF;
+
+    public final int width;
+    public final int height;
+
+    public PanelGeometry(int width, int height) {
+        if (width <= 0 || height <= 0 || width > MAX_FRAME_LENGTH / height
+                || FrameFormat.frameLength(width, height) > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Bad geometry " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getPixels() {
+        return width * height;
+    }
+
+    public int getFrameLength() {
+        return FrameFormat.frameLength(width, height);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PanelGeometry)) {
+            return false;
+        }
+        PanelGeometry g = (PanelGeometry) o;
+        return width == g.width && height == g.height;
+    }
+
+    @Override
+    public int hashCode() {
+        return width * 31 + height;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height;
+    }
+}
@@ -0,0 +1,106 @@
+package org.aalku.pixelmatrixfun;
+
+/**
+ * Pixels waiting to be sent to SEND_PIXEL, one slot per panel pixel.
+ *
+ * A pixel drawn again before it is sent just replaces the color in its slot (last write wins), so
+ * it's sent once. Dirty slots are tracked in a bit set and drained in scan order, row by row, so
+ * strokes go out as runs of neighbours. Packets are [x, y, r, g, b] tuples, or
+ * [xHi, xLo, yHi, yLo, r, g, b] if a coordinate does not fit in a byte.
+ */
+class PixelCoalescer {
+
+    static final int PIXEL_TUPLE = 5;
+    static final int WIDE_PIXEL_TUPLE = 7;
+
+    private final int width;
+    private final int height;
+    private final boolean wide;
+    private final int[] colors;
+    private final long[] dirty;
+    private int dirtyCount = 0;
+    private long oldestDirtyNanos = 0L;
+
+    PixelCoalescer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.wide = width > 256 || height > 256;
+        this.colors = new int[width * height];
+        this.dirty = new long[(width * height + 63) / 64];
+    }
+
+    synchronized void set(int x, int y, int color, long nanos) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return;
+        }
+        int i = y * width + x;
+        colors[i] = color;
+        long bit = 1L << (i & 63);
+        if ((dirty[i >> 6] & bit) == 0) {
+            dirty[i >> 6] |= bit;
+            if (dirtyCount++ == 0) {
+                oldestDirtyNanos = nanos;
+            }
+        }
+    }
+
+    /**
+     * @return bytes per pixel in the packets
+     */
+    int getTupleSize() {
+        return wide ? WIDE_PIXEL_TUPLE : PIXEL_TUPLE;
+    }
+
+    synchronized int getDirtyCount() {
+        return dirtyCount;
+    }
+
+    /**
+     * @return when the oldest pixel not sent yet was drawn, only meaningful if there are dirty pixels
+     */
+    synchronized long getOldestDirtyNanos() {
+        return oldestDirtyNanos;
+    }
+
+    /**
+     * Takes up to maxPixels dirty pixels into a packet.
+     *
+     * @return the packet or null if there is nothing to send
+     */
+    synchronized byte[] drain(int maxPixels) {
+        int n = Math.min(maxPixels, dirtyCount);
+        if (n <= 0) {
+            return null;
+        }
+        byte[] packet = new byte[n * getTupleSize()];
+        int pos = 0;
+        for (int w = 0; w < dirty.length && pos < packet.length; w++) {
+            while (dirty[w] != 0 && pos < packet.length) {
+                int b = Long.numberOfTrailingZeros(dirty[w]);
+                dirty[w] &= ~(1L << b);
+                int i = (w << 6) + b;
+                int color = colors[i];
+                int x = i % width;
+                int y = i / width;
+                if (wide) {
+                    packet[pos++] = (byte) (x >> 8);
+                    packet[pos++] = (byte) x;
+                    packet[pos++] = (byte) (y >> 8);
+                    packet[pos++] = (byte) y;
+                } else {
+                    packet[pos++] = (byte) x;
+                    packet[pos++] = (byte) y;
+                }
+                packet[pos++] = (byte) ((color >> 16) & 0xff);
+                packet[pos++] = (byte) ((color >> 8) & 0xff);
+                packet[pos++] = (byte) (color & 0xff);
+            }
+        }
+        dirtyCount -= n;
+        /* What is left keeps the old time, so its deadline can only come early */
+        if (dirtyCount == 0) {
+            oldestDirtyNanos = 0L;
+        }
+        return packet;
+    }
+}
@@ -0,0 +1,192 @@
+package org.aalku.pixelmatrixfun;
+
+import java.util.Arrays;
+
+/**
+ * Pixels of a drawing, row major ARGB, and the rectangle of cells changed since clearDirty().
+ *
+ * Strokes are kept per pointer id, each new point is joined to the last one of its pointer with a
+ * line of cells so fast moves leave no gaps. Nothing is allocated after construction.
+ */
+class PixelGrid {
+
+    interface CellListener {
+        /**
+         * Called for each cell that changed color.
+         */
+        void onCell(int x, int y, int color);
+    }
+
+    /* Pointer ids are small, higher ones are not tracked */
+    static final int MAX_POINTERS = 32;
+
+    final int width;
+    final int height;
+    private final int[] pixels;
+
+    private int dirtyLeft;
+    private int dirtyTop;
+    private int dirtyRight;
+    private int dirtyBottom;
+
+    private final int[] lastX = new int[MAX_POINTERS];
+    private final int[] lastY = new int[MAX_POINTERS];
+
+    private CellListener listener = null;
+
+    PixelGrid(int width, int height, int color) {
+        this.width = width;
+        this.height = height;
+        pixels = new int[width * height];
+        Arrays.fill(pixels, color);
+        Arrays.fill(lastX, -1);
+        markAllDirty();
+    }
+
+    void setListener(CellListener listener) {
+        this.listener = listener;
+    }
+
+    int get(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    /**
+     * @return true if the cell changed, the listener has been told then
+     */
+    boolean set(int x, int y, int color) {
+        int i = y * width + x;
+        if (pixels[i] == color) {
+            return false;
+        }
+        pixels[i] = color;
+        if (dirtyRight < dirtyLeft) {
+            dirtyLeft = dirtyRight = x;
+            dirtyTop = dirtyBottom = y;
+        } else {
+            dirtyLeft = Math.min(dirtyLeft, x);
+            dirtyRight = Math.max(dirtyRight, x);
+            dirtyTop = Math.min(dirtyTop, y);
+            dirtyBottom = Math.max(dirtyBottom, y);
+        }
+        CellListener l = listener;
+        if (l != null) {
+            l.onCell(x, y, color);
+        }
+        return true;
+    }
+
+    /**
+     * Starts a stroke of the pointer at a cell.
+     */
+    void down(int pointerId, int x, int y, int color) {
+        set(x, y, color);
+        if (pointerId >= 0 && pointerId < MAX_POINTERS) {
+            lastX[pointerId] = x;
+            lastY[pointerId] = y;
+        }
+    }
+
+    /**
+     * Continues the stroke of the pointer to a cell, or starts one if there was none.
+     */
+    void moveTo(int pointerId, int x, int y, int color) {
+        if (pointerId < 0 || pointerId >= MAX_POINTERS || lastX[pointerId] < 0) {
+            down(pointerId, x, y, color);
+            return;
+        }
+        line(lastX[pointerId], lastY[pointerId], x, y, color);
+        lastX[pointerId] = x;
+        lastY[pointerId] = y;
+    }
+
+    void up(int pointerId) {
+        if (pointerId >= 0 && pointerId < MAX_POINTERS) {
+            lastX[pointerId] = -1;
+        }
+    }
+
+    void upAll() {
+        Arrays.fill(lastX, -1);
+    }
+
+    /**
+     * Bresenham line, both ends included.
+     */
+    void line(int x0, int y0, int x1, int y1, int color) {
+        int dx = Math.abs(x1 - x0);
+        int dy = -Math.abs(y1 - y0);
+        int sx = x0 < x1 ? 1 : -1;
+        int sy = y0 < y1 ? 1 : -1;
+        int err = dx + dy;
+        while (true) {
+            set(x0, y0, color);
+            if (x0 == x1 && y0 == y1) {
+                return;
+            }
+            int e2 = 2 * err;
+            if (e2 >= dy) {
+                err += dy;
+                x0 += sx;
+            }
+            if (e2 <= dx) {
+                err += dx;
+                y0 += sy;
+            }
+        }
+    }
+
+    /**
+     * @param argb width * height pixels, all of them are dirty then
+     */
+    void setPixels(int[] argb) {
+        System.arraycopy(argb, 0, pixels, 0, pixels.length);
+        markAllDirty();
+    }
+
+    void getPixels(int[] argb) {
+        System.arraycopy(pixels, 0, argb, 0, pixels.length);
+    }
+
+    /**
+     * The array itself, to copy the dirty rect out of it.
+     */
+    int[] pixels() {
+        return pixels;
+    }
+
+    boolean isDirty() {
+        return dirtyRight >= dirtyLeft;
+    }
+
+    int getDirtyLeft() {
+        return dirtyLeft;
+    }
+
+    int getDirtyTop() {
+        return dirtyTop;
+    }
+
+    /**
+     * Inclusive, as getDirtyBottom()
+     */
+    int getDirtyRight() {
+        return dirtyRight;
+    }
+
+    int getDirtyBottom() {
+        return dirtyBottom;
+    }
+
+    void clearDirty() {
+        dirtyLeft = 0;
+        dirtyRight = -1;
+    }
+
+    private void markAllDirty() {
+        dirtyLeft = 0;
+        dirtyTop = 0;
+        dirtyRight = width - 1;
+        dirtyBottom = height - 1;
+    }
+}
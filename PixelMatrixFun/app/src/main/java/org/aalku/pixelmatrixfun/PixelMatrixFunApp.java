@@ -0,0 +1,57 @@
+package org.aalku.pixelmatrixfun;
+
+import android.app.Application;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Owns the device connection so it outlives the activities that use it.
+ */
+@RequiresApi(api = Build.VERSION_CODES.N)
+public class PixelMatrixFunApp extends Application {
+
+    /* Converted clips, in the cache dir so the system can clear it */
+    private static final long FRAME_CACHE_BYTES = 32L << 20;
+
+    private DeviceService deviceService;
+    private FrameCache frameCache;
+    private DrawingLibrary drawingLibrary;
+
+    public synchronized DeviceService getDeviceService() {
+        if (deviceService == null) {
+            deviceService = new DeviceService(this);
+        }
+        return deviceService;
+    }
+
+    synchronized FrameCache getFrameCache() {
+        if (frameCache == null) {
+            frameCache = new FrameCache(new File(getCacheDir(), "frames"), FRAME_CACHE_BYTES);
+        }
+        return frameCache;
+    }
+
+    /**
+     * @return the saved drawings, opened the first time
+     */
+    synchronized DrawingLibrary getDrawingLibrary() throws IOException {
+        if (drawingLibrary == null) {
+            drawingLibrary = new DrawingLibrary(new File(getFilesDir(), "drawings"));
+        }
+        return drawingLibrary;
+    }
+
+    /**
+     * Disconnects. The next getDeviceService() connects again.
+     */
+    public synchronized void closeDeviceService() {
+        if (deviceService != null) {
+            deviceService.close();
+            deviceService = null;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.aalku.pixelmatrixfun;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Continuous pixelated preview: reads frames from a source, crops the centered area with the panel
+ * aspect ratio, area averages it down to the panel and sends it whenever the link is free.
+ *
+ * Every buffer is allocated once (again only if the source size changes) so frames make no garbage.
+ * Device frames are triple buffered: one in flight, one ready to send and one being written. A
+ * ready frame that was not sent before the next one is processed is dropped.
+ */
+public class PreviewPipeline {
+
+    public interface Source {
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * Fills argb with the current frame, row major, getWidth() * getHeight() pixels.
+         *
+         * @return false when there are no more frames
+         */
+        boolean read(int[] argb);
+    }
+
+    public interface Listener {
+        /**
+         * Called with the panel pixels of each processed frame. The array is reused afterwards.
+         */
+        void onPreview(int[] argb, int width, int height);
+    }
+
+    private final int panelWidth;
+    private final int panelHeight;
+    private final AnimationPlayer.FrameSink sink;
+    private volatile Listener listener = null;
+    private volatile FrameConverter converter = null;
+
+    private int[] source = new int[0];
+    private final int[] panel;
+    private AreaScaler scaler = null;
+    private int scalerWidth = 0;
+    private int scalerHeight = 0;
+    private int cropOffset = 0;
+    private AreaScaler.Dither dither = AreaScaler.Dither.NONE;
+    private int levels = 256;
+
+    private final byte[][] frames = new byte[3][];
+    private int work = 0;
+    private int ready = -1;
+    private int inFlight = -1;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong processed = new AtomicLong(0L);
+    private final AtomicLong sent = new AtomicLong(0L);
+    private final AtomicLong dropped = new AtomicLong(0L);
+
+    public PreviewPipeline(int panelWidth, int panelHeight, AnimationPlayer.FrameSink sink) {
+        this.panelWidth = panelWidth;
+        this.panelHeight = panelHeight;
+        this.sink = sink;
+        panel = new int[panelWidth * panelHeight];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new byte[FrameFormat.frameLength(panelWidth, panelHeight)];
+        }
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param converter color correction for the device frames, null to send colors as they are
+     */
+    public void setConverter(FrameConverter converter) {
+        this.converter = converter;
+    }
+
+    /**
+     * Dithering to the color depth the panel really shows, see AreaScaler. Call it before run().
+     */
+    public void setDither(AreaScaler.Dither dither, int levels) {
+        this.dither = dither;
+        this.levels = levels;
+        if (scaler != null) {
+            scaler.setDither(dither, levels);
+        }
+    }
+
+    /**
+     * Processes frames in the calling thread until the source ends or stop() is called.
+     */
+    public void run(Source source) {
+        running.set(true);
+        while (running.get() && processNext(source)) {
+            // Next
+        }
+        running.set(false);
+    }
+
+    public void stop() {
+        running.set(false);
+    }
+
+    /**
+     * @return false if the source had no frame
+     */
+    boolean processNext(Source src) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        if (source.length != w * h) {
+            source = new int[w * h];
+        }
+        if (!src.read(source)) {
+            return false;
+        }
+        cropAndScale(source, w, h);
+        Listener l = listener;
+        if (l != null) {
+            l.onPreview(panel, panelWidth, panelHeight);
+        }
+        byte[] frame;
+        synchronized (this) {
+            frame = frames[work];
+        }
+        FrameConverter converter = this.converter;
+        if (converter != null) {
+            converter.toFrame(panel, panelWidth, panelHeight, frame);
+        } else {
+            FrameFormat.toFrame(panel, panelWidth, panelHeight, frame);
+        }
+        processed.incrementAndGet();
+        publish();
+        return true;
+    }
+
+    private void publish() {
+        synchronized (this) {
+            int old = ready;
+            ready = work;
+            if (old >= 0) {
+                dropped.incrementAndGet();
+                work = old;
+            } else {
+                work = freeBuffer();
+            }
+        }
+        sendReady();
+    }
+
+    private int freeBuffer() {
+        for (int i = 0; i < frames.length; i++) {
+            if (i != ready && i != inFlight) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("No free buffer");
+    }
+
+    private void sendReady() {
+        byte[] frame;
+        synchronized (this) {
+            if (inFlight >= 0 || ready < 0) {
+                return;
+            }
+            inFlight = ready;
+            ready = -1;
+            frame = frames[inFlight];
+        }
+        sink.sendFrame(frame).whenComplete((ok, e) -> {
+            if (e == null && Boolean.TRUE.equals(ok)) {
+                sent.incrementAndGet();
+            }
+            synchronized (this) {
+                inFlight = -1;
+            }
+            sendReady();
+        });
+    }
+
+    /**
+     * Area average of the centered crop of src into the panel buffer. The scaler is made again
+     * only when the source size changes.
+     */
+    private void cropAndScale(int[] src, int w, int h) {
+        if (scaler == null || w != scalerWidth || h != scalerHeight) {
+            ImportPlan crop = new ImportPlan(w, h, panelWidth, panelHeight);
+            scaler = new AreaScaler(crop.cropWidth, crop.cropHeight, panelWidth, panelHeight);
+            scaler.setDither(dither, levels);
+            scalerWidth = w;
+            scalerHeight = h;
+            cropOffset = crop.cropY * w + crop.cropX;
+        }
+        scaler.scale(src, cropOffset, w, panel);
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,929 @@
+package org.aalku.pixelmatrixfun;
+
+import org.aalku.pixelmatrixfun.LaneScheduler.Lane;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static org.aalku.pixelmatrixfun.DeviceProtocol.*;
+
+/**
+ * Everything between the send calls and the transport: lanes, chunking and paging, frame
+ * encoding, credits and HELO. It knows nothing of Android so it can run against a simulated
+ * device.
+ *
+ * Connection: connected(transport, credits), then setMtu if it changes, then ready() when the
+ * transport can take writes. disconnected() when the link is lost.
+ *
+ * A failed write is retried from the offset of its chunk with exponential backoff. If it keeps
+ * failing the link is reset and the message resumes once connected again: pixels and clears from
+ * that offset, frames from the start since the device may have reset with the link.
+ *
+ * The panel geometry comes with HELO. The buffers sized by it are made again only when it changes,
+ * which normally happens once, before ready() on the first connection.
+ */
+class SendPipeline {
+
+    static final int TX_SIZE = 256; // Initial chunk size, ChunkSizer adapts it
+
+    /* Pixels go as soon as the interactive lane is free, they are coalesced while it is busy */
+    private static final long PIXEL_FLUSH_DEADLINE_MS = 0L;
+
+    /* A failed write is tried again after 20, 40, 80, 160 and 320ms, then the link is reset */
+    static final long RETRY_BASE_MS = 20L;
+    static final int MAX_WRITE_RETRIES = 5;
+    /* Link resets a message can resume after before it fails */
+    static final int MAX_RESUMES = 1;
+
+    private final ScheduledExecutorService executor;
+    private final Consumer<String> status;
+
+    private final AtomicReference<Transport> transportRef = new AtomicReference<>(null);
+
+    private final LaneScheduler<WriteBytesMessage> sendQueue = new LaneScheduler<>();
+    /* Made once, ART allocates a bound method reference every time it's evaluated */
+    private final Predicate<WriteBytesMessage> canStart = this::canStart;
+    private final AtomicLong supersededFrames = new AtomicLong(0L);
+    private final AtomicReference<WriteBytesMessage> currentlySending = new AtomicReference<>(null);
+    private final AtomicBoolean sendLock = new AtomicBoolean(true);
+
+    /* Pipelined mode: chunks written without response while the device returns credits */
+    private final AtomicInteger pipelineWindow = new AtomicInteger(0);
+    private final AtomicBoolean pipelineActive = new AtomicBoolean(false);
+    private final FlowWindow flowWindow = new FlowWindow(1);
+    private final ConcurrentLinkedDeque<WriteBytesMessage> awaitingAck = new ConcurrentLinkedDeque<>();
+
+    private final ChunkSizer chunkSizer = new ChunkSizer(TX_SIZE, true);
+    private final PageFramer pageFramer = new PageFramer(ChunkSizer.MAX_WRITE_SIZE);
+    private long chunkStartNanos = 0L;
+    private int chunkBytes = 0;
+    private int chunkOffset = 0;
+    /* Flow window sequence number of the chunk, 0 if it was written with response */
+    private long chunkSeq = 0;
+    private boolean chunkInFlight = false;
+
+    /* Consecutive failed writes and when the first of them failed, 0 if the last write was fine */
+    private int failedWrites = 0;
+    private long failingSinceNanos = 0L;
+    private final AtomicBoolean retryScheduled = new AtomicBoolean(false);
+
+    /* Panel size the device announced, the default if it did not */
+    private final AtomicReference<PanelGeometry> geometry = new AtomicReference<>(PanelGeometry.DEFAULT);
+    /* The device announced its geometry on this link, so it takes wide pages */
+    private final AtomicBoolean widePages = new AtomicBoolean(false);
+
+    /* Colors of pixels and clears go through it, as frames do before they get here */
+    private final FrameConverter frameConverter = new FrameConverter();
+    /* What the panel shows, to keep pixels and clears within the current budget */
+    private volatile CurrentEstimate shown = new CurrentEstimate(WIDTH, HEIGHT);
+
+    /* Pixels drawn and not sent yet */
+    private volatile PixelCoalescer pendingPixels = new PixelCoalescer(WIDTH, HEIGHT);
+    private final AtomicLong pixelFlushDeadlineMs = new AtomicLong(PIXEL_FLUSH_DEADLINE_MS);
+    private final AtomicBoolean pixelFlushScheduled = new AtomicBoolean(false);
+
+    /* Last full frame acknowledged by the device, if we know what it is showing */
+    private final AtomicReference<byte[]> frameShadow = new AtomicReference<>(null);
+    private final AtomicBoolean deltaEnabled = new AtomicBoolean(true);
+
+    /* Bitmap encodings the device announced in HELO, 0 means it does not know about page encoding tags */
+    private final AtomicInteger bitmapEncodings = new AtomicInteger(0);
+    private BitmapCodec bitmapCodec = new BitmapCodec(FrameFormat.frameLength(WIDTH, HEIGHT));
+
+    /* Last HELO time, 0 if none yet and -1 if the device has no HELO */
+    private final AtomicLong lastHelo = new AtomicLong(0L);
+
+    private final ConcurrentHashMap<UUID, AtomicInteger> seq = new ConcurrentHashMap<>();
+
+    private final TransferMetrics metrics = new TransferMetrics();
+
+    /**
+     * @param executor for retries and pixel flush deadlines
+     * @param status receives status text
+     */
+    SendPipeline(ScheduledExecutorService executor, Consumer<String> status) {
+        this.executor = executor;
+        this.status = status;
+    }
+
+    /**
+     * The link is up. Writes wait for ready().
+     *
+     * @param credits the device notifies credits, so chunks can be written without response
+     */
+    synchronized void connected(Transport transport, boolean credits) {
+        sendLock.set(true);
+        retryScheduled.set(false);
+        failedWrites = 0;
+        lastHelo.set(transport.hasCharacteristic(HELO_UUID) ? 0L : -1L);
+        bitmapEncodings.set(0);
+        widePages.set(false);
+        flowWindow.reset();
+        pipelineActive.set(credits);
+        chunkSizer.setLimits(ChunkSizer.DEFAULT_MTU, !isPipelined());
+        transportRef.set(transport);
+    }
+
+    synchronized void setMtu(int mtu) {
+        chunkSizer.setLimits(mtu, !isPipelined());
+    }
+
+    /**
+     * The transport takes writes from now on.
+     */
+    synchronized void ready() {
+        if (transportRef.get() != null) {
+            metrics.ready(System.nanoTime());
+            sendLock.set(false);
+            internalWrite();
+        }
+    }
+
+    synchronized void disconnected() {
+        metrics.disconnected(System.nanoTime());
+        sendLock.set(true);
+        retryScheduled.set(false);
+        transportRef.set(null);
+        frameShadow.set(null);
+        shown.reset();
+        rewindStarted();
+        pipelineActive.set(false);
+        flowWindow.reset();
+        failAwaitingAck(new IOException("Disconnected"));
+    }
+
+    /**
+     * Started frames start again, to be prepared for the new link: a delta or an encoding chosen
+     * for the old one may not apply to what the device shows now. Other messages resume after the
+     * last chunk known to be received, sending one again is harmless.
+     */
+    private void rewindStarted() {
+        WriteBytesMessage sending = currentlySending.getAndSet(null);
+        long acked = flowWindow.getAckedSeq();
+        for (Lane lane : Lane.values()) {
+            WriteBytesMessage m = sendQueue.getStarted(lane);
+            if (m == null) {
+                continue;
+            }
+            if (m.getFrame() != null) {
+                m.restart();
+            } else if (m.getLastChunkSeq() > acked) {
+                /* Chunks written without response may be lost and we can't tell which */
+                m.rewind(0);
+            } else if (m == sending && chunkInFlight) {
+                m.rewind(chunkOffset);
+            }
+            /* Sequence numbers start again with the next link */
+            m.setLastChunkSeq(0);
+        }
+        chunkInFlight = false;
+    }
+
+    boolean isConnected() {
+        return transportRef.get() != null;
+    }
+
+    /**
+     * @return when the last HELO was received, 0 if none yet and -1 if the device has no HELO
+     */
+    long getLastHelo() {
+        return lastHelo.get();
+    }
+
+    synchronized void onNotification(UUID uuid, byte[] value) {
+        if (uuid.equals(HELO_UUID)) {
+            lastHelo.set(System.currentTimeMillis());
+            metrics.helo(System.nanoTime());
+            onHelo(value);
+        } else if (uuid.equals(CREDITS_UUID)) {
+            onCredits(value);
+        }
+    }
+
+    /**
+     * HELO may carry capabilities: [HELO_CAPS_MAGIC, bitmap encodings mask], optionally followed
+     * by [widthHi, widthLo, heightHi, heightLo].
+     */
+    private void onHelo(byte[] value) {
+        if (value == null || value.length < HELO_CAPS_LENGTH || value[0] != HELO_CAPS_MAGIC) {
+            return;
+        }
+        bitmapEncodings.set((value[1] & 0xFF) | BitmapCodec.RAW_ONLY);
+        if (value.length >= HELO_GEOMETRY_LENGTH) {
+            int width = ((value[2] & 0xFF) << 8) | (value[3] & 0xFF);
+            int height = ((value[4] & 0xFF) << 8) | (value[5] & 0xFF);
+            try {
+                setGeometry(new PanelGeometry(width, height));
+                widePages.set(true);
+            } catch (IllegalArgumentException e) {
+                status.accept(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Buffers are sized again and frames of the old size that did not start are failed. Pixels
+     * not sent yet are dropped, they were drawn for the old size.
+     */
+    private void setGeometry(PanelGeometry g) {
+        if (g.equals(geometry.get())) {
+            return;
+        }
+        geometry.set(g);
+        pendingPixels = new PixelCoalescer(g.width, g.height);
+        shown = new CurrentEstimate(g.width, g.height);
+        bitmapCodec = new BitmapCodec(g.getFrameLength());
+        frameShadow.set(null);
+        List<WriteBytesMessage> wrongSize = sendQueue.removeQueued(m -> m.getFrame() != null && m.getFrame().length != g.getFrameLength());
+        for (WriteBytesMessage m : wrongSize) {
+            metrics.messageFailed();
+            m.completeExceptionally(new IOException("Frame does not fit the " + g + " panel"));
+        }
+        status.accept("Panel is " + g);
+    }
+
+    PanelGeometry getGeometry() {
+        return geometry.get();
+    }
+
+    /**
+     * @return bitmap encodings mask the device announced, 0 if none
+     */
+    int getBitmapEncodings() {
+        return bitmapEncodings.get();
+    }
+
+    CompletionStage<Boolean> sendFrame(byte[] frame, Lane lane) {
+        return sendFrame(frame, lane, null, null);
+    }
+
+    /**
+     * Like sendFrame, but the last page waits for present, so several devices can show their
+     * frames at about the same time.
+     *
+     * @param prepared completed when everything but the last page is sent
+     * @param present the last page is sent once it completes, normally or not
+     */
+    CompletionStage<Boolean> sendFrame(byte[] frame, Lane lane, CompletableFuture<Void> prepared, CompletionStage<?> present) {
+        if (!isConnected()) {
+            return notConnected();
+        }
+        PanelGeometry g = geometry.get();
+        if (frame.length != g.getFrameLength()) {
+            return failed(new IllegalArgumentException("Frame is " + frame.length + " bytes, the panel is " + g));
+        }
+        shown.frame(frame, frameConverter.getMaxLevels());
+        return writeFrame(frame, SEND_BITMAP_UUID, lane, prepared, present);
+    }
+
+    /**
+     * Gamma, brightness and current budget. Frames are converted by the caller, pixels and clears
+     * here.
+     */
+    FrameConverter getFrameConverter() {
+        return frameConverter;
+    }
+
+    /**
+     * @param color ARGB, converted with the gamma and brightness and within the current budget
+     */
+    void sendPixel(int x, int y, int color) {
+        int levels = shown.pixel(x, y, frameConverter.toLevels(color), frameConverter.getMaxLevels());
+        pendingPixels.set(x, y, levels, System.nanoTime());
+        flushPixels();
+    }
+
+    /**
+     * @param color ARGB, converted as a frame of that color would be
+     */
+    CompletionStage<Boolean> clear(int color) {
+        if (!isConnected()) {
+            return notConnected();
+        }
+        int levels = frameConverter.toLevels(color);
+        int scale = FrameConverter.budgetScale((long) FrameConverter.levelSum(levels) * geometry.get().getPixels(),
+                frameConverter.getMaxLevels());
+        color = FrameConverter.scale(levels, scale);
+        shown.clear(color, scale);
+        byte[] pixelsBytes = new byte[4];
+        pixelsBytes[0] = (byte) ((color >> 16) & 0xff);
+        pixelsBytes[1] = (byte) ((color >> 8 ) & 0xff);
+        pixelsBytes[2] = (byte) ((color      ) & 0xff);
+        pixelsBytes[3] = (byte) (getSeq(CLEAR_UUID) & 0xff);
+        return enqueue(new WriteBytesMessage(CLEAR_UUID, pixelsBytes, null, Lane.NORMAL));
+    }
+
+    private static CompletionStage<Boolean> notConnected() {
+        return failed(new IOException("Not connected"));
+    }
+
+    private static CompletionStage<Boolean> failed(Throwable cause) {
+        CompletableFuture<Boolean> errorCf = new CompletableFuture<>();
+        errorCf.completeExceptionally(cause);
+        return errorCf;
+    }
+
+    /**
+     * Pending pixels are sent when the interactive lane is free and the oldest one has waited the
+     * flush deadline or there are enough to fill a chunk. Meanwhile more pixels are coalesced.
+     */
+    private synchronized void flushPixels() {
+        PixelCoalescer pendingPixels = this.pendingPixels;
+        int dirty = pendingPixels.getDirtyCount();
+        if (dirty == 0 || !sendQueue.isEmpty(Lane.INTERACTIVE)) {
+            /* Called again by internalWrite when the lane is free */
+            return;
+        }
+        int maxPixels = Math.max(1, chunkSizer.getChunkSize() / pendingPixels.getTupleSize());
+        long waited = System.nanoTime() - pendingPixels.getOldestDirtyNanos();
+        long deadline = TimeUnit.MILLISECONDS.toNanos(pixelFlushDeadlineMs.get());
+        if (dirty < maxPixels && waited < deadline) {
+            if (!pixelFlushScheduled.getAndSet(true)) {
+                executor.schedule(() -> {
+                    pixelFlushScheduled.set(false);
+                    flushPixels();
+                }, deadline - waited, TimeUnit.NANOSECONDS);
+            }
+            return;
+        }
+        if (isConnected()) {
+            enqueue(new WriteBytesMessage(SEND_PIXEL_UUID, pendingPixels.drain(maxPixels), null, Lane.INTERACTIVE));
+        }
+    }
+
+    /**
+     * @param ms longest time a pixel waits for others to share its write, 0 sends it right away
+     */
+    void setPixelFlushDeadline(long ms) {
+        pixelFlushDeadlineMs.set(Math.max(0L, ms));
+    }
+
+    long getPixelFlushDeadline() {
+        return pixelFlushDeadlineMs.get();
+    }
+
+    private int getSeq(UUID key) {
+        return seq.computeIfAbsent(key, k->new AtomicInteger(0)).incrementAndGet();
+    }
+
+    boolean isDeltaEnabled() {
+        return deltaEnabled.get();
+    }
+
+    void setDeltaEnabled(boolean enabled) {
+        deltaEnabled.set(enabled);
+    }
+
+    int getPipelineWindow() {
+        return pipelineWindow.get();
+    }
+
+    /**
+     * Max chunks written without response before the device returns credits. 0 waits for
+     * every write response, as devices without the credits characteristic need.
+     */
+    synchronized void setPipelineWindow(int chunks) {
+        if (chunks < 0) {
+            throw new IllegalArgumentException("Negative window: " + chunks);
+        }
+        pipelineWindow.set(chunks);
+        if (chunks > 0) {
+            flowWindow.setSize(chunks);
+        }
+        chunkSizer.setLimits(chunkSizer.getMtu(), !isPipelined());
+    }
+
+    int getMtu() {
+        return chunkSizer.getMtu();
+    }
+
+    int getChunkSize() {
+        return chunkSizer.getChunkSize();
+    }
+
+    double getBytesPerSecond() {
+        return chunkSizer.getBytesPerSecond();
+    }
+
+    LaneScheduler.LaneStats getLaneStats(Lane lane) {
+        return sendQueue.getStats(lane);
+    }
+
+    long getSupersededFrames() {
+        return supersededFrames.get();
+    }
+
+    /**
+     * @param warm connected to the cached address without scanning
+     */
+    void recordTimeToReady(boolean warm, long nanos) {
+        metrics.timeToReady(warm, nanos);
+    }
+
+    TransferMetrics.Snapshot getMetrics() {
+        return metrics.snapshot(sendQueue.size());
+    }
+
+    private boolean isPipelined() {
+        return pipelineActive.get() && pipelineWindow.get() > 0;
+    }
+
+    /**
+     * A new frame supersedes the frames not started yet for the same characteristic, so there is
+     * never more than one waiting. Their futures are cancelled. A frame already started is finished.
+     */
+    private synchronized CompletionStage<Boolean> writeFrame(byte[] frame, UUID uuid, Lane lane, CompletableFuture<Void> prepared, CompletionStage<?> present) {
+        List<WriteBytesMessage> superseded = sendQueue.removeQueued(m -> m.getFrame() != null && m.getTarget().equals(uuid));
+        for (WriteBytesMessage old : superseded) {
+            supersededFrames.incrementAndGet();
+            old.cancel();
+        }
+        WriteBytesMessage msg = new WriteBytesMessage(uuid, frame, frame, lane);
+        if (present != null) {
+            msg.setPresent(prepared, present);
+            present.whenComplete((v, e) -> executor.execute(this::internalWrite));
+        }
+        return enqueue(msg);
+    }
+
+    private synchronized CompletionStage<Boolean> enqueue(WriteBytesMessage msg) {
+        sendQueue.add(msg.getLane(), msg);
+        metrics.queueDepth(sendQueue.size());
+        internalWrite();
+        return msg.getFuture();
+    }
+
+    /**
+     * Messages of different lanes are interleaved at chunk boundaries. Frames don't interleave with
+     * other frames so paging and the shadow frame stay consistent.
+     */
+    private boolean canStart(WriteBytesMessage msg) {
+        return msg.getFrame() == null || getStartedFrame() == null;
+    }
+
+    private WriteBytesMessage getStartedFrame() {
+        for (Lane lane : Lane.values()) {
+            WriteBytesMessage m = sendQueue.getStarted(lane);
+            if (m != null && m.getFrame() != null) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Chooses between a delta or the full frame. It's called when the message is about to be sent,
+     * so every previous message has been acknowledged and the shadow frame is what the device shows.
+     */
+    private void prepareFrame(Transport transport, WriteBytesMessage msg) {
+        byte[] frame = msg.getFrame();
+        byte[] delta = null;
+        /* The shadow is only what the device shows if nothing is waiting for credits */
+        if (deltaEnabled.get() && transport.hasCharacteristic(SEND_DELTA_UUID) && awaitingAck.isEmpty()) {
+            delta = FrameDelta.encode(frameShadow.get(), frame);
+        }
+        if (delta != null) {
+            msg.setPayload(SEND_DELTA_UUID, delta);
+        } else {
+            int encodings = bitmapEncodings.get();
+            if (encodings != 0) {
+                BitmapCodec.Encoded encoded = bitmapCodec.encode(frame, encodings);
+                msg.setPayload(msg.getTarget(), encoded.bytes);
+                msg.setEncoding(encoded.encoding);
+            } else {
+                msg.setPayload(msg.getTarget(), frame);
+            }
+        }
+    }
+
+    private synchronized void internalWrite() {
+        Transport transport = transportRef.get();
+        if (transport != null && !sendLock.getAndSet(true)) {
+            /* Let's see if there is something else to send */
+            flushPixels();
+            WriteBytesMessage msg = this.sendQueue.next(canStart);
+            if (msg == null) {
+                sendLock.set(false);
+                return;
+            }
+            if (!msg.isStarted()) {
+                msg.setStarted();
+                if (msg.getFrame() != null) {
+                    prepareFrame(transport, msg);
+                } else {
+                    /* Pixels or clear change the frame in the device */
+                    frameShadow.set(null);
+                    WriteBytesMessage frameMsg = getStartedFrame();
+                    if (frameMsg != null) {
+                        /* The frame will be shown after this, so this has to be done again then */
+                        frameMsg.addReplay(msg);
+                    }
+                }
+            }
+            int offset = msg.getOffset();
+            UUID uuid = msg.getCharacteristic();
+            boolean paged = uuid.equals(SEND_BITMAP_UUID) || uuid.equals(SEND_DELTA_UUID);
+            int chunkSize = chunkSizer.getChunkSize();
+            boolean wide = widePages.get();
+            if (paged) {
+                chunkSize -= PageFramer.headerLength(msg.getEncoding(), wide);
+            } else if (uuid.equals(SEND_PIXEL_UUID)) {
+                /* Never split a pixel */
+                chunkSize -= chunkSize % pendingPixels.getTupleSize();
+            }
+            if (msg.mustWaitToPresent(chunkSize)) {
+                /* The device shows the frame with the last page. Resumed when present completes */
+                msg.prepared();
+                sendLock.set(false);
+                return;
+            }
+            currentlySending.set(msg);
+            boolean pipelined = isPipelined();
+            long chunkSeq = 0;
+            if (pipelined) {
+                chunkSeq = flowWindow.tryAcquire();
+                if (chunkSeq < 0) {
+                    /* Resumed by onCredits */
+                    sendLock.set(false);
+                    return;
+                }
+            }
+            int len = msg.next(chunkSize);
+            byte[] bytes;
+            if (len > 0 && paged) {
+                bytes = pageFramer.page(getSeq(uuid), msg.getEncoding(), wide, msg.getBytes(), offset, len);
+            } else {
+                bytes = pageFramer.chunk(msg.getBytes(), offset, len);
+            }
+            chunkStartNanos = System.nanoTime();
+            chunkBytes = bytes.length;
+            chunkOffset = offset;
+            this.chunkSeq = chunkSeq;
+            boolean ok = transport.write(uuid, bytes, !pipelined);
+            if (ok) {
+                chunkInFlight = true;
+                if (pipelined) {
+                    msg.setLastChunkSeq(chunkSeq);
+                }
+            } else {
+                if (pipelined) {
+                    /* The device will not return a credit for it */
+                    flowWindow.cancel(chunkSeq);
+                }
+                msg.rewind(offset);
+                metrics.writeRetried();
+                sendLock.set(false);
+                status.accept("Error sending");
+                executor.schedule(this::internalWrite, 100, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Result of the last write requested.
+     */
+    synchronized void onWriteComplete(boolean success) {
+        chunkInFlight = false;
+        WriteBytesMessage sending = currentlySending.get();
+        if (sending == null) {
+            sendLock.set(false);
+            return;
+        }
+        if (success) {
+            sendLock.set(false);
+            failedWrites = 0;
+            if (failingSinceNanos != 0L) {
+                metrics.writeRecovered(System.nanoTime() - failingSinceNanos);
+                failingSinceNanos = 0L;
+            }
+            long nanos = System.nanoTime() - chunkStartNanos;
+            chunkSizer.onChunkAcked(chunkBytes, nanos);
+            metrics.chunkAcked(chunkBytes, nanos);
+            if (sending.isDone()) {
+                currentlySending.set(null);
+                status.accept(sentStatus(sending));
+                sendQueue.finish(sending.getLane());
+                for (WriteBytesMessage replay : sending.getReplays()) {
+                    sendQueue.add(replay.getLane(), new WriteBytesMessage(replay.getCharacteristic(), replay.getBytes(), null, replay.getLane()));
+                }
+                if (sending.getLastChunkSeq() > flowWindow.getAckedSeq()) {
+                    /* Written without response, completed by onCredits */
+                    awaitingAck.add(sending);
+                } else {
+                    onMessageSent(sending);
+                }
+            }
+            internalWrite();
+        } else {
+            onWriteFailed(sending);
+        }
+    }
+
+    /**
+     * The chunk is sent again after a backoff, writes wait meanwhile. After MAX_WRITE_RETRIES the
+     * link is reset and the message resumes once connected again, unless it did already.
+     */
+    private void onWriteFailed(WriteBytesMessage sending) {
+        chunkSizer.onChunkFailed();
+        metrics.writeFailed();
+        if (chunkSeq > 0 && flowWindow.cancel(chunkSeq)) {
+            /* The device will not return a credit for it, and the seq goes to the next chunk */
+            sending.setLastChunkSeq(chunkSeq - 1);
+        }
+        sending.rewind(chunkOffset);
+        if (failedWrites++ == 0 && failingSinceNanos == 0L) {
+            failingSinceNanos = System.nanoTime();
+        }
+        if (failedWrites <= MAX_WRITE_RETRIES) {
+            metrics.writeRetried();
+            status.accept("Error sending, retrying");
+            retryScheduled.set(true);
+            executor.schedule(this::retry, RETRY_BASE_MS << (failedWrites - 1), TimeUnit.MILLISECONDS);
+            return;
+        }
+        failedWrites = 0;
+        currentlySending.set(null);
+        if (sending.getResumes() < MAX_RESUMES) {
+            sending.addResume();
+            metrics.messageResumed();
+            status.accept("Write error, reconnecting");
+        } else {
+            failingSinceNanos = 0L;
+            metrics.messageFailed();
+            sendQueue.finish(sending.getLane());
+            frameShadow.set(null);
+            sending.completeExceptionally(new IOException("Write error"));
+        }
+        Transport transport = transportRef.get();
+        if (transport != null) {
+            transport.disconnect();
+        }
+    }
+
+    private synchronized void retry() {
+        if (retryScheduled.getAndSet(false)) {
+            sendLock.set(false);
+            internalWrite();
+        }
+    }
+
+    /**
+     * Once per message, formatting status for every chunk is garbage on the binder thread.
+     */
+    private static String sentStatus(WriteBytesMessage msg) {
+        return String.format("Sent %d bytes to %s", msg.getLength(), msg.getCharacteristic().toString());
+    }
+
+    private void onMessageSent(WriteBytesMessage msg) {
+        byte[] frame = msg.getFrame();
+        if (frame != null) {
+            /* Copy since callers may reuse their frame buffers once the send is complete */
+            byte[] shadow = frameShadow.get();
+            if (shadow == null || shadow.length != frame.length) {
+                shadow = new byte[frame.length];
+            }
+            System.arraycopy(frame, 0, shadow, 0, frame.length);
+            frameShadow.set(shadow);
+        }
+        metrics.messageSent(msg.getCharacteristic(), msg.getEnqueuedNanos());
+        msg.complete(true);
+    }
+
+    /**
+     * The device returns [credits] as it consumes chunks written without response.
+     */
+    private void onCredits(byte[] value) {
+        if (value == null || value.length < 1) {
+            return;
+        }
+        long acked = flowWindow.release(value[0] & 0xFF);
+        WriteBytesMessage msg;
+        while ((msg = awaitingAck.peek()) != null && msg.getLastChunkSeq() <= acked) {
+            awaitingAck.poll();
+            onMessageSent(msg);
+        }
+        internalWrite();
+    }
+
+    private void failAwaitingAck(Throwable cause) {
+        WriteBytesMessage msg;
+        while ((msg = awaitingAck.poll()) != null) {
+            metrics.messageFailed();
+            msg.completeExceptionally(cause);
+        }
+    }
+
+    private static class WriteBytesMessage {
+        private UUID c;
+        private byte[] bytes;
+        private final byte[] frame;
+        private final UUID target;
+        private final Lane lane;
+        private boolean started = false;
+        private List<WriteBytesMessage> replays = Collections.emptyList();
+        private int encoding = -1;
+        private int offset = 0;
+        private long lastChunkSeq = 0;
+        private int resumes = 0;
+        private CompletableFuture<Void> prepared = null;
+        private CompletionStage<?> present = null;
+        private final long enqueuedNanos = System.nanoTime();
+        private final CompletableFuture<Boolean> cf = new CompletableFuture<>();
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public CompletionStage<Boolean> getFuture() {
+            return cf;
+        }
+
+        public long getEnqueuedNanos() {
+            return enqueuedNanos;
+        }
+
+        private WriteBytesMessage(UUID c, byte[] bytes, byte[] frame, Lane lane) {
+            this.c = c;
+            this.bytes = bytes;
+            this.frame = frame;
+            this.target = c;
+            this.lane = lane;
+        }
+
+        /**
+         * @return the characteristic it was sent to, even if a delta is sent instead
+         */
+        public UUID getTarget() {
+            return target;
+        }
+
+        public void cancel() {
+            cf.cancel(false);
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        public boolean isStarted() {
+            return started;
+        }
+
+        public void setStarted() {
+            this.started = true;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Messages sent while this one was partially sent, to send again after it.
+         */
+        public List<WriteBytesMessage> getReplays() {
+            return replays;
+        }
+
+        public void addReplay(WriteBytesMessage msg) {
+            if (replays.isEmpty()) {
+                replays = new ArrayList<>();
+            }
+            replays.add(msg);
+        }
+
+        /**
+         * @return the full frame this message shows in the device or null if it's not a frame
+         */
+        public byte[] getFrame() {
+            return frame;
+        }
+
+        public void setPayload(UUID c, byte[] bytes) {
+            this.c = c;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the page encoding tag or -1 if pages are not tagged
+         */
+        public int getEncoding() {
+            return encoding;
+        }
+
+        public void setEncoding(int encoding) {
+            this.encoding = encoding;
+        }
+
+        /**
+         * Moves to the next chunk, which starts at the offset before the call.
+         *
+         * @return the chunk length
+         */
+        public int next(int maxLen) {
+            int len = Math.min(bytes.length-offset, maxLen);
+            if (len == 0) {
+                /* Special case to send an empty msg at the end. This and isDone() work together to achieve that. */
+                offset++;
+            } else {
+                offset += len;
+            }
+            return len;
+        }
+
+        /**
+         * Back to the frame as it was queued, so it's prepared again when it's next.
+         */
+        public void restart() {
+            started = false;
+            c = target;
+            bytes = frame;
+            encoding = -1;
+            offset = 0;
+        }
+
+        /**
+         * Undo next() so the chunk is sent again.
+         */
+        public void rewind(int offset) {
+            this.offset = offset;
+        }
+
+        /**
+         * @return the flow window sequence number of the last chunk written without response, 0 if none
+         */
+        public long getLastChunkSeq() {
+            return lastChunkSeq;
+        }
+
+        public void setLastChunkSeq(long lastChunkSeq) {
+            this.lastChunkSeq = lastChunkSeq;
+        }
+
+        public void setPresent(CompletableFuture<Void> prepared, CompletionStage<?> present) {
+            this.prepared = prepared;
+            this.present = present;
+        }
+
+        /**
+         * @return true if the next chunk is the last one with data and present did not complete
+         */
+        public boolean mustWaitToPresent(int chunkSize) {
+            return present != null && offset < bytes.length && bytes.length - offset <= chunkSize
+                    && !present.toCompletableFuture().isDone();
+        }
+
+        public void prepared() {
+            if (prepared != null) {
+                prepared.complete(null);
+            }
+        }
+
+        /**
+         * @return link resets this message was resumed after
+         */
+        public int getResumes() {
+            return resumes;
+        }
+
+        public void addResume() {
+            resumes++;
+        }
+
+        public boolean isDone() {
+            /* We use > so there is an empty msg in the end.
+             This is important since the las characteristicWrite may be automatically repeated later */
+            return offset > bytes.length;
+        }
+
+        public UUID getCharacteristic() {
+            return c;
+        }
+
+        public void complete(boolean value) {
+            cf.complete(value);
+        }
+
+        public void completeExceptionally(Throwable ex) {
+            cf.completeExceptionally(ex);
+        }
+
+        public int getLength() {
+            return bytes.length;
+        }
+    }
+}
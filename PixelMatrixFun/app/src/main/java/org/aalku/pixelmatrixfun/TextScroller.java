@@ -0,0 +1,303 @@
+package org.aalku.pixelmatrixfun;
+
+/**
+ * Scrolls a message from right to left, one column per frame.
+ *
+ * The text is laid out as a virtual strip of columns (panel width blank, glyphs separated by a blank
+ * column, panel width blank) that is never materialized: a cursor walks the message and each step
+ * shifts the frame one column, which is a single copy in the column major device format, and draws
+ * only the new column. Memory does not depend on the message length.
+ */
+public class TextScroller implements AnimationPlayer.FrameSource {
+
+    /**
+     * Glyphs of ASCII 32..126, 5 columns each, bit 0 is the top row.
+     */
+    private static final int[] FONT_5X7 = {
+            0x00, 0x00, 0x00, 0x00, 0x00, // ' '
+            0x00, 0x00, 0x5F, 0x00, 0x00, // !
+            0x00, 0x07, 0x00, 0x07, 0x00, // "
+            0x14, 0x7F, 0x14, 0x7F, 0x14, // #
+            0x24, 0x2A, 0x7F, 0x2A, 0x12, // $
+            0x23, 0x13, 0x08, 0x64, 0x62, // %
+            0x36, 0x49, 0x55, 0x22, 0x50, // &
+            0x00, 0x05, 0x03, 0x00, 0x00, // '
+            0x00, 0x1C, 0x22, 0x41, 0x00, // (
+            0x00, 0x41, 0x22, 0x1C, 0x00, // )
+            0x08, 0x2A, 0x1C, 0x2A, 0x08, // *
+            0x08, 0x08, 0x3E, 0x08, 0x08, // +
+            0x00, 0x50, 0x30, 0x00, 0x00, // ,
+            0x08, 0x08, 0x08, 0x08, 0x08, // -
+            0x00, 0x60, 0x60, 0x00, 0x00, // .
+            0x20, 0x10, 0x08, 0x04, 0x02, // /
+            0x3E, 0x51, 0x49, 0x45, 0x3E, // 0
+            0x00, 0x42, 0x7F, 0x40, 0x00, // 1
+            0x42, 0x61, 0x51, 0x49, 0x46, // 2
+            0x21, 0x41, 0x45, 0x4B, 0x31, // 3
+            0x18, 0x14, 0x12, 0x7F, 0x10, // 4
+            0x27, 0x45, 0x45, 0x45, 0x39, // 5
+            0x3C, 0x4A, 0x49, 0x49, 0x30, // 6
+            0x01, 0x71, 0x09, 0x05, 0x03, // 7
+            0x36, 0x49, 0x49, 0x49, 0x36, // 8
+            0x06, 0x49, 0x49, 0x29, 0x1E, // 9
+            0x00, 0x36, 0x36, 0x00, 0x00, // :
+            0x00, 0x56, 0x36, 0x00, 0x00, // ;
+            0x08, 0x14, 0x22, 0x41, 0x00, // <
+            0x14, 0x14, 0x14, 0x14, 0x14, // =
+            0x00, 0x41, 0x22, 0x14, 0x08, // >
+            0x02, 0x01, 0x51, 0x09, 0x06, // ?
+            0x32, 0x49, 0x79, 0x41, 0x3E, // @
+            0x7E, 0x11, 0x11, 0x11, 0x7E, // A
+            0x7F, 0x49, 0x49, 0x49, 0x36, // B
+            0x3E, 0x41, 0x41, 0x41, 0x22, // C
+            0x7F, 0x41, 0x41, 0x22, 0x1C, // D
+            0x7F, 0x49, 0x49, 0x49, 0x41, // E
+            0x7F, 0x09, 0x09, 0x01, 0x01, // F
+            0x3E, 0x41, 0x41, 0x51, 0x32, // G
+            0x7F, 0x08, 0x08, 0x08, 0x7F, // H
+            0x00, 0x41, 0x7F, 0x41, 0x00, // I
+            0x20, 0x40, 0x41, 0x3F, 0x01, // J
+            0x7F, 0x08, 0x14, 0x22, 0x41, // K
+            0x7F, 0x40, 0x40, 0x40, 0x40, // L
+            0x7F, 0x02, 0x04, 0x02, 0x7F, // M
+            0x7F, 0x04, 0x08, 0x10, 0x7F, // N
+            0x3E, 0x41, 0x41, 0x41, 0x3E, // O
+            0x7F, 0x09, 0x09, 0x09, 0x06, // P
+            0x3E, 0x41, 0x51, 0x21, 0x5E, // Q
+            0x7F, 0x09, 0x19, 0x29, 0x46, // R
+            0x46, 0x49, 0x49, 0x49, 0x31, // S
+            0x01, 0x01, 0x7F, 0x01, 0x01, // T
+            0x3F, 0x40, 0x40, 0x40, 0x3F, // U
+            0x1F, 0x20, 0x40, 0x20, 0x1F, // V
+            0x7F, 0x20, 0x18, 0x20, 0x7F, // W
+            0x63, 0x14, 0x08, 0x14, 0x63, // X
+            0x03, 0x04, 0x78, 0x04, 0x03, // Y
+            0x61, 0x51, 0x49, 0x45, 0x43, // Z
+            0x00, 0x7F, 0x41, 0x41, 0x00, // [
+            0x02, 0x04, 0x08, 0x10, 0x20, // backslash
+            0x00, 0x41, 0x41, 0x7F, 0x00, // ]
+            0x04, 0x02, 0x01, 0x02, 0x04, // ^
+            0x40, 0x40, 0x40, 0x40, 0x40, // _
+            0x00, 0x01, 0x02, 0x04, 0x00, // `
+            0x20, 0x54, 0x54, 0x54, 0x78, // a
+            0x7F, 0x48, 0x44, 0x44, 0x38, // b
+            0x38, 0x44, 0x44, 0x44, 0x20, // c
+            0x38, 0x44, 0x44, 0x48, 0x7F, // d
+            0x38, 0x54, 0x54, 0x54, 0x18, // e
+            0x08, 0x7E, 0x09, 0x01, 0x02, // f
+            0x08, 0x14, 0x54, 0x54, 0x3C, // g
+            0x7F, 0x08, 0x04, 0x04, 0x78, // h
+            0x00, 0x44, 0x7D, 0x40, 0x00, // i
+            0x20, 0x40, 0x44, 0x3D, 0x00, // j
+            0x00, 0x7F, 0x10, 0x28, 0x44, // k
+            0x00, 0x41, 0x7F, 0x40, 0x00, // l
+            0x7C, 0x04, 0x18, 0x04, 0x78, // m
+            0x7C, 0x08, 0x04, 0x04, 0x78, // n
+            0x38, 0x44, 0x44, 0x44, 0x38, // o
+            0x7C, 0x14, 0x14, 0x14, 0x08, // p
+            0x08, 0x14, 0x14, 0x18, 0x7C, // q
+            0x7C, 0x08, 0x04, 0x04, 0x08, // r
+            0x48, 0x54, 0x54, 0x54, 0x20, // s
+            0x04, 0x3F, 0x44, 0x40, 0x20, // t
+            0x3C, 0x40, 0x40, 0x20, 0x7C, // u
+            0x1C, 0x20, 0x40, 0x20, 0x1C, // v
+            0x3C, 0x40, 0x30, 0x40, 0x3C, // w
+            0x44, 0x28, 0x10, 0x28, 0x44, // x
+            0x0C, 0x50, 0x50, 0x50, 0x3C, // y
+            0x44, 0x64, 0x54, 0x4C, 0x44, // z
+            0x00, 0x08, 0x36, 0x41, 0x00, // {
+            0x00, 0x00, 0x7F, 0x00, 0x00, // |
+            0x00, 0x41, 0x36, 0x08, 0x00, // }
+            0x08, 0x04, 0x08, 0x10, 0x08, // ~
+    };
+
+    private static final int FIRST_CHAR = 32;
+    private static final int FONT_WIDTH = 5;
+    static final int FONT_HEIGHT = 7;
+
+    /* Glyph cache: trimmed columns of every glyph, one after another */
+    private static final GlyphCache GLYPHS = new GlyphCache();
+
+    static class GlyphCache {
+        final byte[] columns;
+        final short[] start;
+        final byte[] width;
+
+        GlyphCache() {
+            int glyphs = FONT_5X7.length / FONT_WIDTH;
+            start = new short[glyphs];
+            width = new byte[glyphs];
+            byte[] cols = new byte[FONT_5X7.length];
+            int len = 0;
+            for (int g = 0; g < glyphs; g++) {
+                int first = 0;
+                int last = FONT_WIDTH - 1;
+                while (first <= last && FONT_5X7[g * FONT_WIDTH + first] == 0) {
+                    first++;
+                }
+                while (last >= first && FONT_5X7[g * FONT_WIDTH + last] == 0) {
+                    last--;
+                }
+                start[g] = (short) len;
+                if (first > last) {
+                    /* Space */
+                    cols[len++] = 0;
+                    cols[len++] = 0;
+                } else {
+                    for (int c = first; c <= last; c++) {
+                        cols[len++] = (byte) FONT_5X7[g * FONT_WIDTH + c];
+                    }
+                }
+                width[g] = (byte) (len - start[g]);
+            }
+            columns = new byte[len];
+            System.arraycopy(cols, 0, columns, 0, len);
+        }
+
+        int glyph(char ch) {
+            int g = ch - FIRST_CHAR;
+            return g >= 0 && g < width.length ? g : '?' - FIRST_CHAR;
+        }
+    }
+
+    private final CharSequence text;
+    private final int width;
+    private final int height;
+    private final int yOffset;
+    private final boolean loop;
+    private final byte[] fg = new byte[3];
+    private final byte[] bg = new byte[3];
+    private final byte[] frame;
+    private volatile FrameConverter converter = null;
+
+    /* Cursor over the virtual strip */
+    private int leadingBlank;
+    private int charIndex;
+    private int glyphColumn;
+    private int trailingBlank;
+
+    public TextScroller(CharSequence text, int width, int height, int color, int background, boolean loop) {
+        this.text = text;
+        this.width = width;
+        this.height = height;
+        this.yOffset = Math.max(0, (height - FONT_HEIGHT) / 2);
+        this.loop = loop;
+        setRgb(fg, color);
+        setRgb(bg, background);
+        frame = new byte[FrameFormat.frameLength(width, height)];
+        for (int p = 0; p < frame.length; p += 3) {
+            System.arraycopy(bg, 0, frame, p, 3);
+        }
+        rewind();
+    }
+
+    /**
+     * @param converter current budget the frames are scaled to, null to send them as they are.
+     * The colors are taken as device levels, gamma and brightness are not applied to them.
+     */
+    public void setConverter(FrameConverter converter) {
+        this.converter = converter;
+    }
+
+    private static void setRgb(byte[] rgb, int color) {
+        rgb[0] = (byte) (color >> 16);
+        rgb[1] = (byte) (color >> 8);
+        rgb[2] = (byte) color;
+    }
+
+    private void rewind() {
+        leadingBlank = width;
+        charIndex = 0;
+        glyphColumn = 0;
+        trailingBlank = width;
+    }
+
+    /**
+     * @return total columns of the strip, that is the number of steps of a full scroll
+     */
+    public int getStripLength() {
+        int len = width * 2;
+        for (int i = 0; i < text.length(); i++) {
+            len += GLYPHS.width[GLYPHS.glyph(text.charAt(i))] + 1;
+        }
+        return len;
+    }
+
+    /**
+     * @return bits of the next column of the strip, -1 at the end
+     */
+    private int nextColumn() {
+        if (leadingBlank > 0) {
+            leadingBlank--;
+            return 0;
+        }
+        if (charIndex < text.length()) {
+            int g = GLYPHS.glyph(text.charAt(charIndex));
+            int w = GLYPHS.width[g];
+            int bits = glyphColumn < w ? GLYPHS.columns[GLYPHS.start[g] + glyphColumn] & 0xFF : 0;
+            if (++glyphColumn > w) {
+                /* Glyph plus one blank column */
+                glyphColumn = 0;
+                charIndex++;
+            }
+            return bits;
+        }
+        if (trailingBlank > 0) {
+            trailingBlank--;
+            return 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Scrolls the frame one column.
+     *
+     * @return false at the end of the message if not looping
+     */
+    public boolean step() {
+        int bits = nextColumn();
+        if (bits < 0) {
+            if (!loop) {
+                return false;
+            }
+            rewind();
+            /* The trailing blank already scrolled the panel clean */
+            leadingBlank = 0;
+            bits = nextColumn();
+        }
+        int columnLen = height * 3;
+        System.arraycopy(frame, columnLen, frame, 0, frame.length - columnLen);
+        int p = frame.length - columnLen;
+        for (int y = 0; y < height; y++, p += 3) {
+            int row = y - yOffset;
+            byte[] rgb = row >= 0 && row < FONT_HEIGHT && (bits & (1 << row)) != 0 ? fg : bg;
+            frame[p] = rgb[0];
+            frame[p + 1] = rgb[1];
+            frame[p + 2] = rgb[2];
+        }
+        return true;
+    }
+
+    /**
+     * Current frame, changed in place by step().
+     */
+    byte[] getFrame() {
+        return frame;
+    }
+
+    /**
+     * @return a copy of the frame after the next step, as the player may still be sending the previous one
+     */
+    @Override
+    public byte[] nextFrame() {
+        if (!step()) {
+            return null;
+        }
+        byte[] res = frame.clone();
+        FrameConverter converter = this.converter;
+        if (converter != null) {
+            converter.limit(res);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,308 @@
+package org.aalku.pixelmatrixfun;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Numbers about transfers, recorded without locks from the BLE thread and read as snapshots.
+ *
+ * Times are recorded in microseconds into histograms with power of two buckets, so percentiles
+ * are accurate to a factor of two at worst and recording is a few atomic adds.
+ */
+public class TransferMetrics {
+
+    public static class Histogram {
+        /* Bucket i counts values in [2^(i-1), 2^i) us, bucket 0 counts 0 */
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong(0L);
+        private final AtomicLong sum = new AtomicLong(0L);
+        private final AtomicLong sumSquares = new AtomicLong(0L);
+        private final AtomicLong max = new AtomicLong(0L);
+
+        public void record(long micros) {
+            long v = Math.max(0L, micros);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(v)));
+            count.incrementAndGet();
+            sum.addAndGet(v);
+            sumSquares.addAndGet(v * v);
+            long m;
+            while ((m = max.get()) < v && !max.compareAndSet(m, v)) {
+                // Retry
+            }
+        }
+
+        public HistogramSnapshot snapshot() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return new HistogramSnapshot(count.get(), sum.get(), sumSquares.get(), max.get(), counts);
+        }
+    }
+
+    public static class HistogramSnapshot {
+        public final long count;
+        public final double meanMs;
+        public final double stdDevMs;
+        public final double p50Ms;
+        public final double p90Ms;
+        public final double p99Ms;
+        public final double maxMs;
+
+        HistogramSnapshot(long count, long sum, long sumSquares, long max, long[] buckets) {
+            this.count = count;
+            double mean = count > 0 ? sum / (double) count : 0d;
+            double variance = count > 0 ? Math.max(0d, sumSquares / (double) count - mean * mean) : 0d;
+            this.meanMs = mean / 1000.0;
+            this.stdDevMs = Math.sqrt(variance) / 1000.0;
+            this.p50Ms = percentile(buckets, count, 0.50, max) / 1000.0;
+            this.p90Ms = percentile(buckets, count, 0.90, max) / 1000.0;
+            this.p99Ms = percentile(buckets, count, 0.99, max) / 1000.0;
+            this.maxMs = max / 1000.0;
+        }
+
+        /**
+         * @return upper bound of the bucket of the percentile, never above the max
+         */
+        private static double percentile(long[] buckets, long count, double p, long max) {
+            long rank = (long) Math.ceil(count * p);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(i == 0 ? 0L : 1L << i, max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d mean=%.1fms sd=%.1fms p50<=%.1fms p90<=%.1fms p99<=%.1fms max=%.1fms",
+                    count, meanMs, stdDevMs, p50Ms, p90Ms, p99Ms, maxMs);
+        }
+    }
+
+    public static class Snapshot {
+        public final long timeMillis;
+        /* Enqueue to complete, by characteristic the message was written to */
+        public final Map<String, HistogramSnapshot> messageLatency;
+        public final HistogramSnapshot chunkRoundTrip;
+        public final HistogramSnapshot heloInterval;
+        public final HistogramSnapshot reconnect;
+        /* First failed write to the next good one, retries and reconnections included */
+        public final HistogramSnapshot writeRecovery;
+        /* Connection attempt to ready, after a scan or straight to the cached address */
+        public final HistogramSnapshot coldTimeToReady;
+        public final HistogramSnapshot warmTimeToReady;
+        public final long bytesSent;
+        public final double bytesPerSecond;
+        public final int queueDepth;
+        public final int maxQueueDepth;
+        public final long messagesSent;
+        public final long messagesFailed;
+        public final long writeFailures;
+        public final long writeRetries;
+        public final long messagesResumed;
+
+        Snapshot(TransferMetrics m, int queueDepth) {
+            this.timeMillis = System.currentTimeMillis();
+            Map<String, HistogramSnapshot> latency = new TreeMap<>();
+            for (Map.Entry<UUID, Histogram> e : m.messageLatency.entrySet()) {
+                latency.put(name(e.getKey()), e.getValue().snapshot());
+            }
+            this.messageLatency = Collections.unmodifiableMap(latency);
+            this.chunkRoundTrip = m.chunkRoundTrip.snapshot();
+            this.heloInterval = m.heloInterval.snapshot();
+            this.reconnect = m.reconnect.snapshot();
+            this.writeRecovery = m.writeRecovery.snapshot();
+            this.coldTimeToReady = m.coldTimeToReady.snapshot();
+            this.warmTimeToReady = m.warmTimeToReady.snapshot();
+            this.bytesSent = m.bytesSent.get();
+            long busy = m.busyMicros.get();
+            this.bytesPerSecond = busy > 0 ? bytesSent * 1e6 / busy : 0d;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = m.maxQueueDepth.get();
+            this.messagesSent = m.messagesSent.get();
+            this.messagesFailed = m.messagesFailed.get();
+            this.writeFailures = m.writeFailures.get();
+            this.writeRetries = m.writeRetries.get();
+            this.messagesResumed = m.messagesResumed.get();
+        }
+
+        /**
+         * @return one "name: value" line per number
+         */
+        public List<String> toLines() {
+            List<String> lines = new ArrayList<>();
+            lines.add("time: " + timeMillis);
+            for (Map.Entry<String, HistogramSnapshot> e : messageLatency.entrySet()) {
+                lines.add("latency." + e.getKey() + ": " + e.getValue());
+            }
+            lines.add("chunkRoundTrip: " + chunkRoundTrip);
+            lines.add(String.format("bytesPerSecond: %.0f", bytesPerSecond));
+            lines.add("bytesSent: " + bytesSent);
+            lines.add("queueDepth: " + queueDepth);
+            lines.add("maxQueueDepth: " + maxQueueDepth);
+            lines.add("messagesSent: " + messagesSent);
+            lines.add("messagesFailed: " + messagesFailed);
+            lines.add("writeFailures: " + writeFailures);
+            lines.add("writeRetries: " + writeRetries);
+            lines.add("writeRecovery: " + writeRecovery);
+            lines.add("messagesResumed: " + messagesResumed);
+            lines.add("heloInterval: " + heloInterval);
+            lines.add("reconnect: " + reconnect);
+            lines.add("coldTimeToReady: " + coldTimeToReady);
+            lines.add("warmTimeToReady: " + warmTimeToReady);
+            return lines;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (String line : toLines()) {
+                sb.append(line).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+    private final ConcurrentHashMap<UUID, Histogram> messageLatency = new ConcurrentHashMap<>();
+    private final Histogram chunkRoundTrip = new Histogram();
+    private final Histogram heloInterval = new Histogram();
+    private final Histogram reconnect = new Histogram();
+    private final Histogram writeRecovery = new Histogram();
+    private final Histogram coldTimeToReady = new Histogram();
+    private final Histogram warmTimeToReady = new Histogram();
+    private final AtomicLong bytesSent = new AtomicLong(0L);
+    private final AtomicLong busyMicros = new AtomicLong(0L);
+    private final AtomicInteger maxQueueDepth = new AtomicInteger(0);
+    private final AtomicLong messagesSent = new AtomicLong(0L);
+    private final AtomicLong messagesFailed = new AtomicLong(0L);
+    private final AtomicLong writeFailures = new AtomicLong(0L);
+    private final AtomicLong writeRetries = new AtomicLong(0L);
+    private final AtomicLong messagesResumed = new AtomicLong(0L);
+    private final AtomicLong lastHeloNanos = new AtomicLong(0L);
+    private final AtomicLong disconnectedNanos = new AtomicLong(0L);
+
+    void messageSent(UUID characteristic, long enqueuedNanos) {
+        Histogram h = messageLatency.get(characteristic);
+        if (h == null) {
+            h = messageLatency.computeIfAbsent(characteristic, k -> new Histogram());
+        }
+        h.record((System.nanoTime() - enqueuedNanos) / 1000);
+        messagesSent.incrementAndGet();
+    }
+
+    void messageFailed() {
+        messagesFailed.incrementAndGet();
+    }
+
+    void chunkAcked(int bytes, long nanos) {
+        chunkRoundTrip.record(nanos / 1000);
+        bytesSent.addAndGet(bytes);
+        busyMicros.addAndGet(nanos / 1000);
+    }
+
+    void writeFailed() {
+        writeFailures.incrementAndGet();
+    }
+
+    /**
+     * A write was refused or failed and will be tried again.
+     */
+    void writeRetried() {
+        writeRetries.incrementAndGet();
+    }
+
+    /**
+     * A write went fine after some failed.
+     */
+    void writeRecovered(long nanos) {
+        writeRecovery.record(nanos / 1000);
+    }
+
+    /**
+     * A message will resume after the link is reset.
+     */
+    void messageResumed() {
+        messagesResumed.incrementAndGet();
+    }
+
+    void queueDepth(int depth) {
+        int m;
+        while ((m = maxQueueDepth.get()) < depth && !maxQueueDepth.compareAndSet(m, depth)) {
+            // Retry
+        }
+    }
+
+    void helo(long nanos) {
+        long last = lastHeloNanos.getAndSet(nanos);
+        if (last != 0L) {
+            heloInterval.record((nanos - last) / 1000);
+        }
+    }
+
+    void disconnected(long nanos) {
+        disconnectedNanos.compareAndSet(0L, nanos);
+        lastHeloNanos.set(0L);
+    }
+
+    /**
+     * Ready to send again. The time since the disconnection counts as a reconnect.
+     */
+    void ready(long nanos) {
+        long since = disconnectedNanos.getAndSet(0L);
+        if (since != 0L) {
+            reconnect.record((nanos - since) / 1000);
+        }
+    }
+
+    /**
+     * @param warm connected to the cached address without scanning
+     */
+    void timeToReady(boolean warm, long nanos) {
+        (warm ? warmTimeToReady : coldTimeToReady).record(nanos / 1000);
+    }
+
+    Snapshot snapshot(int queueDepth) {
+        return new Snapshot(this, queueDepth);
+    }
+
+    /**
+     * Appends the snapshot to the file, so runs with different firmware or phones can be compared.
+     */
+    static void dump(Snapshot snapshot, File file) throws IOException {
+        try (Writer w = new FileWriter(file, true)) {
+            w.write(snapshot.toString());
+            w.write('\n');
+        }
+    }
+
+    static String name(UUID characteristic) {
+        if (characteristic.equals(DeviceProtocol.SEND_BITMAP_UUID)) {
+            return "bitmap";
+        } else if (characteristic.equals(DeviceProtocol.SEND_DELTA_UUID)) {
+            return "delta";
+        } else if (characteristic.equals(DeviceProtocol.SEND_PIXEL_UUID)) {
+            return "pixel";
+        } else if (characteristic.equals(DeviceProtocol.CLEAR_UUID)) {
+            return "clear";
+        }
+        return characteristic.toString();
+    }
+}
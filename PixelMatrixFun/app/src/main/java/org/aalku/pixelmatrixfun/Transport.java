@@ -0,0 +1,23 @@
+package org.aalku.pixelmatrixfun;
+
+import java.util.UUID;
+
+/**
+ * Link to a connected device, as the send pipeline sees it.
+ *
+ * Only one write is requested at a time. Its result, and notifications from the device, are
+ * reported to the SendPipeline the transport was connected to.
+ */
+interface Transport {
+
+    boolean hasCharacteristic(UUID uuid);
+
+    /**
+     * Requests a write. The caller reuses value once this returns, so it must be copied if kept.
+     *
+     * @return false if the write could not be requested, there will be no result then
+     */
+    boolean write(UUID uuid, byte[] value, boolean withResponse);
+
+    void disconnect();
+}
@@ -0,0 +1,146 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AnimationPlayerTest {
+
+    @Test
+    public void player_keepsOnlyNewestFramePending() {
+        ManualSink sink = new ManualSink();
+        AnimationPlayer player = new AnimationPlayer(counter(10), sink, null);
+        player.tick();
+        player.tick();
+        player.tick();
+        player.tick();
+        /* Frame 0 is being sent, 1 and 2 were replaced by 3 */
+        assertEquals(1, sink.inFlight.size());
+        assertEquals(0, sink.frames.get(0)[0]);
+        sink.completeAll();
+        assertEquals(2, sink.frames.size());
+        assertEquals(3, sink.frames.get(1)[0]);
+        sink.completeAll();
+        AnimationPlayer.Stats stats = player.getStats();
+        assertEquals(2, stats.sent);
+        assertEquals(2, stats.dropped);
+        assertEquals(0, stats.failed);
+    }
+
+    @Test
+    public void player_countsFailedFrames() {
+        ManualSink sink = new ManualSink();
+        AnimationPlayer player = new AnimationPlayer(counter(2), sink, null);
+        player.tick();
+        sink.inFlight.remove(0).completeExceptionally(new RuntimeException("Write error"));
+        player.tick();
+        sink.completeAll();
+        player.tick();
+        assertFalse(player.isRunning());
+        assertEquals(1, player.getStats().sent);
+        assertEquals(1, player.getStats().failed);
+    }
+
+    @Test
+    public void player_stopEndsPlaying() {
+        ManualSink sink = new ManualSink();
+        AnimationPlayer player = new AnimationPlayer(counter(10), sink, null);
+        player.tick();
+        player.tick();
+        player.stop();
+        /* The pending frame is dropped, the one being sent is waited for */
+        assertTrue(player.isRunning());
+        player.tick();
+        sink.completeAll();
+        assertFalse(player.isRunning());
+        assertEquals(1, sink.frames.size());
+        assertEquals(1, player.getStats().sent);
+        assertEquals(1, player.getStats().dropped);
+    }
+
+    @Test
+    public void player_pacesToLinkCapacity() throws Exception {
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+        try {
+            /* 60 fps wanted over a link that takes 40ms per frame */
+            FakeLinkSink sink = new FakeLinkSink(executor, 40);
+            AnimationPlayer player = new AnimationPlayer(counter(60), sink, executor);
+            player.start(60);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (player.isRunning() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            AnimationPlayer.Stats stats = player.getStats();
+            Benchmark.report("Animation: %s", stats);
+            assertFalse(player.isRunning());
+            assertEquals(60, stats.sent + stats.dropped);
+            assertTrue(stats.dropped > 0);
+            /* Never more than a frame in flight */
+            assertEquals(1, sink.maxInFlight);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static AnimationPlayer.FrameSource counter(int frames) {
+        int[] next = {0};
+        return () -> next[0] < frames ? new byte[] {(byte) next[0]++} : null;
+    }
+
+    private static class ManualSink implements AnimationPlayer.FrameSink {
+        final List<byte[]> frames = new ArrayList<>();
+        final List<CompletableFuture<Boolean>> inFlight = new ArrayList<>();
+
+        @Override
+        public CompletionStage<Boolean> sendFrame(byte[] frame) {
+            CompletableFuture<Boolean> cf = new CompletableFuture<>();
+            frames.add(frame);
+            inFlight.add(cf);
+            return cf;
+        }
+
+        void completeAll() {
+            List<CompletableFuture<Boolean>> list = new ArrayList<>(inFlight);
+            inFlight.clear();
+            for (CompletableFuture<Boolean> cf : list) {
+                cf.complete(true);
+            }
+        }
+    }
+
+    /**
+     * Link that takes a fixed time to deliver each frame.
+     */
+    private static class FakeLinkSink implements AnimationPlayer.FrameSink {
+        private final ScheduledExecutorService executor;
+        private final long millisPerFrame;
+        private int inFlight = 0;
+        int maxInFlight = 0;
+
+        FakeLinkSink(ScheduledExecutorService executor, long millisPerFrame) {
+            this.executor = executor;
+            this.millisPerFrame = millisPerFrame;
+        }
+
+        @Override
+        public synchronized CompletionStage<Boolean> sendFrame(byte[] frame) {
+            CompletableFuture<Boolean> cf = new CompletableFuture<>();
+            maxInFlight = Math.max(maxInFlight, ++inFlight);
+            executor.schedule(() -> {
+                synchronized (this) {
+                    inFlight--;
+                }
+                cf.complete(true);
+            }, millisPerFrame, TimeUnit.MILLISECONDS);
+            return cf;
+        }
+    }
+}
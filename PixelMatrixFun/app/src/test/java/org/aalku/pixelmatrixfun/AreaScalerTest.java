@@ -0,0 +1,236 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AreaScalerTest {
+
+    @Test
+    public void scaler_matchesAreaAverage() {
+        Random random = new Random(1);
+        int[][] sizes = {{64, 64, 16, 16}, {100, 37, 16, 16}, {1280, 720, 64, 32}, {17, 5, 16, 16}, {3, 2, 16, 16}, {16, 16, 16, 16}};
+        for (int[] size : sizes) {
+            int[] src = new int[size[0] * size[1]];
+            for (int i = 0; i < src.length; i++) {
+                src[i] = random.nextInt();
+            }
+            int[] dst = new int[size[2] * size[3]];
+            new AreaScaler(size[0], size[1], size[2], size[3]).scale(src, 0, size[0], dst);
+            double[] expected = reference(src, size[0], size[1], size[2], size[3]);
+            for (int i = 0; i < dst.length; i++) {
+                for (int ch = 0; ch < 4; ch++) {
+                    int v = (dst[i] >>> (24 - ch * 8)) & 0xFF;
+                    assertEquals("" + size[0] + "x" + size[1] + " at " + i, expected[i * 4 + ch], v, 0.5);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void scaler_cropWithStride() {
+        /* 4x4 of 2x2 blocks of one color, inside a bigger image */
+        int stride = 12;
+        int[] src = new int[stride * 10];
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                src[(y + 3) * stride + x + 5] = 0xFF000000 | (y / 2 * 2 + x / 2) * 0x10;
+            }
+        }
+        int[] dst = new int[4];
+        new AreaScaler(4, 4, 2, 2).scale(src, 3 * stride + 5, stride, dst);
+        assertArrayEquals(new int[]{0xFF000000, 0xFF000010, 0xFF000020, 0xFF000030}, dst);
+    }
+
+    @Test
+    public void scaler_ditherKeepsLocalMean() {
+        /* A slow gradient, 8 levels per channel are 36 apart */
+        int w = 64;
+        int h = 64;
+        int[] src = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int v = 60 + x * 40 / w;
+                src[y * w + x] = 0xFF000000 | v << 16 | v << 8 | v;
+            }
+        }
+        for (AreaScaler.Dither dither : AreaScaler.Dither.values()) {
+            AreaScaler scaler = new AreaScaler(w, h, w, h);
+            scaler.setDither(dither, 8);
+            int[] dst = new int[w * h];
+            scaler.scale(src, 0, w, dst);
+            /* Mean of 8x8 blocks against the source */
+            double worst = 0;
+            for (int by = 0; by < h; by += 8) {
+                for (int bx = 0; bx < w; bx += 8) {
+                    double diff = 0;
+                    for (int y = by; y < by + 8; y++) {
+                        for (int x = bx; x < bx + 8; x++) {
+                            int q = dst[y * w + x] & 0xFF;
+                            /* One of the 8 levels */
+                            assertEquals(q, (q * 7 + 127) / 255 * 255 / 7);
+                            diff += q - (src[y * w + x] & 0xFF);
+                        }
+                    }
+                    worst = Math.max(worst, Math.abs(diff / 64));
+                }
+            }
+            Benchmark.report("Dither %s to 8 levels: worst 8x8 mean error %.1f", dither, worst);
+            if (dither == AreaScaler.Dither.NONE) {
+                assertTrue(worst > 10);
+            } else {
+                assertTrue(worst < 4);
+            }
+        }
+    }
+
+    /**
+     * Bilinear sampling, as createScaledBitmap with filter, against area averaging on a fine
+     * pattern, both measured against the double precision area average.
+     */
+    @Test
+    public void scaler_qualityAgainstBilinear() {
+        int w = 1280;
+        int h = 720;
+        int[] src = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                /* Stripes of 3 pixels and a zone plate, what aliases most */
+                int r = (x / 3) % 2 == 0 ? 255 : 0;
+                int g = (int) (127.5 + 127.5 * Math.cos((x * x + y * y) * 0.0005));
+                int b = (x + y) * 255 / (w + h);
+                src[y * w + x] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+        int cw = h;
+        int offset = (w - cw) / 2;
+        int[][] sizes = {{16, 16}, {64, 64}};
+        for (int[] size : sizes) {
+            int[] crop = new int[cw * h];
+            for (int y = 0; y < h; y++) {
+                System.arraycopy(src, y * w + offset, crop, y * cw, cw);
+            }
+            double[] expected = reference(crop, cw, h, size[0], size[1]);
+            int[] area = new int[size[0] * size[1]];
+            new AreaScaler(cw, h, size[0], size[1]).scale(src, offset, w, area);
+            int[] bilinear = bilinear(crop, cw, h, size[0], size[1]);
+            double areaPsnr = psnr(area, expected);
+            double bilinearPsnr = psnr(bilinear, expected);
+            Benchmark.report("720x720 -> %dx%d PSNR against area reference: area scaler %.1f dB, bilinear %.1f dB",
+                    size[0], size[1], areaPsnr, bilinearPsnr);
+            assertTrue(areaPsnr > 50);
+            assertTrue(bilinearPsnr + 10 < areaPsnr);
+        }
+    }
+
+    @Test
+    public void scaler_throughputBenchmark() {
+        int[][] sources = {{320, 240}, {640, 480}, {1280, 720}, {1920, 1080}, {4000, 3000}};
+        int[][] panels = {{16, 16}, {64, 64}};
+        Random random = new Random(1);
+        for (int[] source : sources) {
+            int w = source[0];
+            int h = source[1];
+            int[] src = new int[w * h];
+            for (int i = 0; i < src.length; i++) {
+                src[i] = random.nextInt();
+            }
+            for (int[] panel : panels) {
+                ImportPlan crop = new ImportPlan(w, h, panel[0], panel[1]);
+                int offset = crop.cropY * w + crop.cropX;
+                AreaScaler scaler = new AreaScaler(crop.cropWidth, crop.cropHeight, panel[0], panel[1]);
+                scaler.setDither(AreaScaler.Dither.ORDERED, 32);
+                int[] dst = new int[panel[0] * panel[1]];
+                int frames = (int) Math.max(5, 20_000_000L / src.length);
+                for (int i = 0; i < frames; i++) {
+                    scaler.scale(src, offset, w, dst);
+                }
+                long allocated = Benchmark.allocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < frames; i++) {
+                    scaler.scale(src, offset, w, dst);
+                }
+                double ms = (System.nanoTime() - start) / 1e6 / frames;
+                allocated = Benchmark.allocatedBytes() - allocated;
+                Benchmark.report("Area scale %dx%d -> %dx%d: %.2fms/frame (%.0f fps, %.0f MP/s), %d bytes allocated",
+                        w, h, panel[0], panel[1], ms, 1000 / ms, (double) crop.cropWidth * crop.cropHeight / ms / 1000,
+                        allocated);
+                /* Nothing per frame, whatever the number of frames */
+                assertTrue(allocated < 1024);
+            }
+        }
+    }
+
+    /**
+     * Each output pixel is the mean of the source rectangle it covers, in doubles.
+     */
+    private static double[] reference(int[] src, int w, int h, int width, int height) {
+        double[] res = new double[width * height * 4];
+        double sx = (double) w / width;
+        double sy = (double) h / height;
+        for (int py = 0; py < height; py++) {
+            for (int px = 0; px < width; px++) {
+                double x0 = px * sx;
+                double x1 = x0 + sx;
+                double y0 = py * sy;
+                double y1 = y0 + sy;
+                double[] sum = new double[4];
+                for (int y = (int) y0; y < Math.ceil(y1); y++) {
+                    double wy = Math.min(y1, y + 1) - Math.max(y0, y);
+                    for (int x = (int) x0; x < Math.ceil(x1); x++) {
+                        double wx = Math.min(x1, x + 1) - Math.max(x0, x);
+                        int c = src[y * w + x];
+                        for (int ch = 0; ch < 4; ch++) {
+                            sum[ch] += ((c >>> (24 - ch * 8)) & 0xFF) * wx * wy;
+                        }
+                    }
+                }
+                for (int ch = 0; ch < 4; ch++) {
+                    res[(py * width + px) * 4 + ch] = sum[ch] / (sx * sy);
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Samples the 4 source pixels around each output pixel center.
+     */
+    private static int[] bilinear(int[] src, int w, int h, int width, int height) {
+        int[] res = new int[width * height];
+        for (int py = 0; py < height; py++) {
+            double fy = Math.max(0, (py + 0.5) * h / height - 0.5);
+            int y0 = Math.min((int) fy, h - 1);
+            int y1 = Math.min(y0 + 1, h - 1);
+            double dy = fy - y0;
+            for (int px = 0; px < width; px++) {
+                double fx = Math.max(0, (px + 0.5) * w / width - 0.5);
+                int x0 = Math.min((int) fx, w - 1);
+                int x1 = Math.min(x0 + 1, w - 1);
+                double dx = fx - x0;
+                int c = 0;
+                for (int shift = 0; shift < 32; shift += 8) {
+                    double top = ((src[y0 * w + x0] >>> shift) & 0xFF) * (1 - dx) + ((src[y0 * w + x1] >>> shift) & 0xFF) * dx;
+                    double bottom = ((src[y1 * w + x0] >>> shift) & 0xFF) * (1 - dx) + ((src[y1 * w + x1] >>> shift) & 0xFF) * dx;
+                    c |= (int) Math.round(top * (1 - dy) + bottom * dy) << shift;
+                }
+                res[py * width + px] = c;
+            }
+        }
+        return res;
+    }
+
+    private static double psnr(int[] argb, double[] expected) {
+        double sum = 0;
+        for (int i = 0; i < argb.length; i++) {
+            for (int ch = 1; ch < 4; ch++) {
+                double d = ((argb[i] >>> (24 - ch * 8)) & 0xFF) - expected[i * 4 + ch];
+                sum += d * d;
+            }
+        }
+        double mse = Math.max(sum / (argb.length * 3), 1e-6);
+        return 10 * Math.log10(255 * 255 / mse);
+    }
+}
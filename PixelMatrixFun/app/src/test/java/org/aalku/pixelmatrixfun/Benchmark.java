@@ -0,0 +1,79 @@
+package org.aalku.pixelmatrixfun;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measuring for the benchmark tests. They assert on what they count, like allocated bytes, and
+ * only report timings, which are printed if the benchmarks property is set, as
+ * ./gradlew test -Pbenchmarks does.
+ */
+final class Benchmark {
+
+    private static final boolean REPORT = Boolean.getBoolean("benchmarks");
+    private static final boolean ALLOCATION = allocationSupported();
+
+    private Benchmark() {
+    }
+
+    /**
+     * Prints a line of results if benchmarks are reported.
+     */
+    static void report(String format, Object... args) {
+        if (REPORT) {
+            System.out.println(String.format(format, args));
+        }
+    }
+
+    /**
+     * @return true if allocatedBytes() measures anything on this JVM
+     */
+    static boolean canMeasureAllocation() {
+        return ALLOCATION;
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far, always 0 if the JVM can't tell
+     */
+    static long allocatedBytes() {
+        return ALLOCATION ? Allocation.BEAN.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0L;
+    }
+
+    /**
+     * @return bytes allocated so far by the threads alive, always 0 if the JVM can't tell
+     */
+    static long allThreadsAllocatedBytes() {
+        if (!ALLOCATION) {
+            return 0L;
+        }
+        long total = 0;
+        for (long id : Allocation.BEAN.getAllThreadIds()) {
+            total += Math.max(0L, Allocation.BEAN.getThreadAllocatedBytes(id));
+        }
+        return total;
+    }
+
+    private static boolean allocationSupported() {
+        try {
+            return Allocation.BEAN != null;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /* Apart, so the HotSpot interface is only loaded if it's there */
+    private static final class Allocation {
+        static final com.sun.management.ThreadMXBean BEAN = bean();
+
+        private static com.sun.management.ThreadMXBean bean() {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+                if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                    return threads;
+                }
+            }
+            return null;
+        }
+    }
+}
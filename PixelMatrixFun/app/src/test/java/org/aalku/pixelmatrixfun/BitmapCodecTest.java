@@ -0,0 +1,169 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BitmapCodecTest {
+
+    private static final int SIZE = 16;
+    private static final int FRAME_LEN = SIZE * SIZE * 3;
+
+    /* Same colors as the DrawActivity color picker */
+    private static final int[] PICKER_COLORS = {
+            0x000000, 0x555555, 0x0000AA, 0x5555FF, 0x00AA00, 0x55FF55, 0x00AAAA, 0x55FFFF,
+            0xAA0000, 0xFF5555, 0xAA00AA, 0xFF55FF, 0xAA5500, 0xFFFF55, 0xAAAAAA, 0xFFFFFF };
+
+    @Test
+    public void codec_roundTripsEveryEncoding() {
+        BitmapCodec codec = new BitmapCodec(FRAME_LEN);
+        for (byte[] frame : corpus(new Random(1), 50)) {
+            for (int encoding = BitmapCodec.RAW; encoding <= BitmapCodec.PALETTE_RLE; encoding++) {
+                BitmapCodec.Encoded encoded = codec.encode(frame, BitmapCodec.RAW_ONLY | (1 << encoding));
+                assertTrue(encoded.encoding == BitmapCodec.RAW || encoded.encoding == encoding);
+                assertArrayEquals(frame, BitmapCodec.decode(encoded.encoding, encoded.bytes, FRAME_LEN));
+            }
+            BitmapCodec.Encoded best = codec.encode(frame, BitmapCodec.ALL);
+            assertTrue(best.bytes.length <= FRAME_LEN);
+            assertArrayEquals(frame, BitmapCodec.decode(best.encoding, best.bytes, FRAME_LEN));
+        }
+    }
+
+    @Test
+    public void codec_rawOnlyDoesNotEncode() {
+        byte[] frame = drawing(new Random(2));
+        BitmapCodec.Encoded encoded = new BitmapCodec(FRAME_LEN).encode(frame, BitmapCodec.RAW_ONLY);
+        assertEquals(BitmapCodec.RAW, encoded.encoding);
+        assertSame(frame, encoded.bytes);
+    }
+
+    @Test
+    public void codec_solidFrame() {
+        byte[] frame = new byte[FRAME_LEN];
+        BitmapCodec.Encoded encoded = new BitmapCodec(FRAME_LEN).encode(frame, BitmapCodec.ALL);
+        /* Two runs of 255 + 1 pixels either as RLE or as palette RLE */
+        assertEquals(2 * 4, encoded.bytes.length);
+        assertArrayEquals(frame, BitmapCodec.decode(encoded.encoding, encoded.bytes, FRAME_LEN));
+    }
+
+    @Test
+    public void codec_benchmark() {
+        BitmapCodec codec = new BitmapCodec(FRAME_LEN);
+        benchmark(codec, "drawings", drawings(new Random(3), 200));
+        benchmark(codec, "photos", photos(new Random(4), 200));
+    }
+
+    private static void benchmark(BitmapCodec codec, String name, List<byte[]> frames) {
+        int rounds = 50;
+        long bytes = 0;
+        int[] chosen = new int[4];
+        for (byte[] frame : frames) {
+            BitmapCodec.Encoded encoded = codec.encode(frame, BitmapCodec.ALL);
+            bytes += encoded.bytes.length;
+            chosen[encoded.encoding]++;
+        }
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (byte[] frame : frames) {
+                codec.encode(frame, BitmapCodec.ALL);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        Benchmark.report("%s: ratio %.3f, %.1f us/frame, encodings raw/rle/palette/paletteRle=%d/%d/%d/%d",
+                name, bytes / (double) (frames.size() * FRAME_LEN), nanos / 1000.0 / (rounds * frames.size()),
+                chosen[0], chosen[1], chosen[2], chosen[3]);
+        /* Never bigger than raw */
+        assertTrue(bytes <= (long) frames.size() * FRAME_LEN);
+    }
+
+    static List<byte[]> corpus(Random random, int n) {
+        List<byte[]> res = drawings(random, n);
+        res.addAll(photos(random, n));
+        return res;
+    }
+
+    static List<byte[]> drawings(Random random, int n) {
+        List<byte[]> res = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            res.add(drawing(random));
+        }
+        return res;
+    }
+
+    static List<byte[]> photos(Random random, int n) {
+        List<byte[]> res = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            res.add(photo(random));
+        }
+        return res;
+    }
+
+    /**
+     * Background plus some lines and boxes with the picker colors, as drawn in DrawActivity.
+     */
+    static byte[] drawing(Random random) {
+        int[] pixels = new int[SIZE * SIZE];
+        int background = PICKER_COLORS[random.nextInt(4)];
+        Arrays.fill(pixels, background);
+        int shapes = 1 + random.nextInt(6);
+        for (int s = 0; s < shapes; s++) {
+            int color = PICKER_COLORS[random.nextInt(PICKER_COLORS.length)];
+            int x0 = random.nextInt(SIZE);
+            int y0 = random.nextInt(SIZE);
+            int x1 = Math.min(SIZE, x0 + 1 + random.nextInt(8));
+            int y1 = Math.min(SIZE, y0 + 1 + random.nextInt(8));
+            boolean line = random.nextBoolean();
+            for (int x = x0; x < x1; x++) {
+                for (int y = y0; y < y1; y++) {
+                    if (!line || x == x0 || y == y0) {
+                        pixels[y * SIZE + x] = color;
+                    }
+                }
+            }
+        }
+        return toFrame(pixels);
+    }
+
+    /**
+     * Smooth gradients with noise, like a photo scaled down to the panel.
+     */
+    static byte[] photo(Random random) {
+        int[] pixels = new int[SIZE * SIZE];
+        int[] base = { random.nextInt(256), random.nextInt(256), random.nextInt(256) };
+        int[] dx = { random.nextInt(17) - 8, random.nextInt(17) - 8, random.nextInt(17) - 8 };
+        int[] dy = { random.nextInt(17) - 8, random.nextInt(17) - 8, random.nextInt(17) - 8 };
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                int argb = 0;
+                for (int c = 0; c < 3; c++) {
+                    int v = base[c] + dx[c] * x + dy[c] * y + random.nextInt(9) - 4;
+                    argb = (argb << 8) | Math.max(0, Math.min(255, v));
+                }
+                pixels[y * SIZE + x] = argb;
+            }
+        }
+        return toFrame(pixels);
+    }
+
+    /**
+     * Column major like DeviceService.getBitmapBytes.
+     */
+    static byte[] toFrame(int[] pixels) {
+        byte[] out = new byte[pixels.length * 3];
+        for (int x = 0; x < SIZE; x++) {
+            for (int y = 0; y < SIZE; y++) {
+                int rgb = pixels[y * SIZE + x];
+                int p = (x * SIZE + y) * 3;
+                out[p] = (byte) (rgb >> 16);
+                out[p + 1] = (byte) (rgb >> 8);
+                out[p + 2] = (byte) rgb;
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,69 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChunkSizerTest {
+
+    @Test
+    public void sizer_usesNegotiatedMtu() {
+        ChunkSizer sizer = new ChunkSizer(256, false);
+        assertEquals(20, sizer.getChunkSize());
+        sizer.setLimits(185, false);
+        assertEquals(182, sizer.getChunkSize());
+        sizer.setLimits(517, false);
+        assertEquals(512, sizer.getChunkSize());
+    }
+
+    @Test
+    public void sizer_startsNearInitialSize() {
+        ChunkSizer sizer = new ChunkSizer(256, true);
+        assertEquals(240, sizer.getChunkSize());
+        sizer.setLimits(247, true);
+        assertEquals(244, sizer.getChunkSize());
+    }
+
+    @Test
+    public void sizer_shrinksOnFailure() {
+        ChunkSizer sizer = new ChunkSizer(512, true);
+        sizer.setLimits(247, true);
+        assertEquals(512, sizer.getChunkSize());
+        sizer.onChunkFailed();
+        assertEquals(488, sizer.getChunkSize());
+        sizer.onChunkFailed();
+        assertEquals(244, sizer.getChunkSize());
+        sizer.onChunkFailed();
+        assertEquals(244, sizer.getChunkSize());
+    }
+
+    @Test
+    public void sizer_findsFastestSize() {
+        ChunkSizer sizer = new ChunkSizer(20, true);
+        for (int i = 0; i < 2000; i++) {
+            int size = sizer.getChunkSize();
+            sizer.onChunkAcked(size, simulatedNanos(size));
+        }
+        /* Measure where it stays once it has explored */
+        int[] chosen = new int[ChunkSizer.MAX_WRITE_SIZE + 1];
+        for (int i = 0; i < 800; i++) {
+            int size = sizer.getChunkSize();
+            chosen[size]++;
+            sizer.onChunkAcked(size, simulatedNanos(size));
+        }
+        assertTrue(chosen[200] > 400);
+        assertTrue(sizer.getBytesPerSecond() > 0);
+    }
+
+    /**
+     * Each 20 bytes fragment takes 1ms, plus 10ms per write, plus a penalty on writes over 200 bytes
+     * (as if the device needed more time to process big writes).
+     */
+    private static long simulatedNanos(int size) {
+        long micros = 10000 + (size + 19) / 20 * 1000;
+        if (size > 200) {
+            micros += 20000;
+        }
+        return micros * 1000;
+    }
+}
@@ -0,0 +1,269 @@
+package org.aalku.pixelmatrixfun;
+
+import org.aalku.pixelmatrixfun.ConnectionStateMachine.State;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import static org.aalku.pixelmatrixfun.ConnectionStateMachine.*;
+import static org.junit.Assert.*;
+
+public class ConnectionStateMachineTest {
+
+    /**
+     * Time only moves with advance(), tasks run on the calling thread.
+     */
+    private static class ManualTimer implements Timer {
+        private final List<FutureTask<?>> tasks = new ArrayList<>();
+        private final List<Long> due = new ArrayList<>();
+        private long now = 0L;
+
+        @Override
+        public Future<?> schedule(Runnable task, long delayMs) {
+            FutureTask<?> f = new FutureTask<>(task, null);
+            tasks.add(f);
+            due.add(now + delayMs);
+            return f;
+        }
+
+        void advance(long ms) {
+            long end = now + ms;
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < tasks.size(); i++) {
+                    if (!tasks.get(i).isCancelled() && due.get(i) <= end && (next < 0 || due.get(i) < due.get(next))) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                now = due.get(next);
+                FutureTask<?> task = tasks.remove(next);
+                due.remove(next);
+                task.run();
+            }
+            now = end;
+        }
+    }
+
+    private static class RecordingActions implements Actions {
+        boolean cached = false;
+        final List<String> calls = new ArrayList<>();
+        final List<State> states = new ArrayList<>();
+
+        @Override
+        public boolean connectCached() {
+            calls.add("connectCached");
+            return cached;
+        }
+
+        @Override
+        public void startScan() {
+            calls.add("startScan");
+        }
+
+        @Override
+        public void stopScan() {
+            calls.add("stopScan");
+        }
+
+        @Override
+        public void discover() {
+            calls.add("discover");
+        }
+
+        @Override
+        public void close() {
+            calls.add("close");
+        }
+
+        @Override
+        public void stateChanged(State from, State to) {
+            assertNotEquals(from, to);
+            states.add(to);
+        }
+
+        String lastCall() {
+            return calls.get(calls.size() - 1);
+        }
+    }
+
+    private final ManualTimer timer = new ManualTimer();
+    private final RecordingActions actions = new RecordingActions();
+    private final ConnectionStateMachine machine = new ConnectionStateMachine(timer, actions);
+
+    private void connectAfterScan() {
+        machine.start();
+        assertEquals(State.SCANNING, machine.getState());
+        assertTrue(machine.onDeviceFound());
+        assertEquals("stopScan", actions.lastCall());
+        linkUpAndReady();
+        assertFalse(machine.isWarm());
+    }
+
+    private void linkUpAndReady() {
+        assertEquals(State.CONNECTING, machine.getState());
+        machine.onLinkUp();
+        assertEquals(State.DISCOVERING, machine.getState());
+        assertEquals("discover", actions.lastCall());
+        machine.onReady(true);
+        assertEquals(State.READY, machine.getState());
+    }
+
+    @Test
+    public void machine_coldConnect() {
+        connectAfterScan();
+        assertEquals(Arrays.asList(State.SCANNING, State.CONNECTING, State.DISCOVERING, State.READY), actions.states);
+        assertFalse(machine.onDeviceFound());
+        assertTrue(machine.getLastTimeToReadyNanos() > 0);
+    }
+
+    @Test
+    public void machine_warmConnect() {
+        actions.cached = true;
+        machine.start();
+        assertEquals("connectCached", actions.lastCall());
+        linkUpAndReady();
+        assertTrue(machine.isWarm());
+        assertEquals(Arrays.asList(State.CONNECTING, State.DISCOVERING, State.READY), actions.states);
+    }
+
+    @Test
+    public void machine_cachedAddressTimesOutThenScans() {
+        actions.cached = true;
+        machine.start();
+        timer.advance(WARM_CONNECT_TIMEOUT_MS - 1);
+        assertEquals(State.CONNECTING, machine.getState());
+        timer.advance(1);
+        assertEquals(Arrays.asList("connectCached", "close", "startScan"), actions.calls);
+        assertEquals(State.SCANNING, machine.getState());
+        assertTrue(machine.onDeviceFound());
+        linkUpAndReady();
+        assertFalse(machine.isWarm());
+
+        /* Once connected the cached address is tried first again */
+        machine.onLinkDown();
+        assertEquals(State.BACKOFF, machine.getState());
+        timer.advance(BACKOFF_BASE_MS);
+        assertEquals("connectCached", actions.lastCall());
+        assertEquals(State.CONNECTING, machine.getState());
+    }
+
+    @Test
+    public void machine_cachedAddressFailsThenScans() {
+        actions.cached = true;
+        machine.start();
+        machine.onLinkDown();
+        assertEquals(State.SCANNING, machine.getState());
+        assertEquals(Arrays.asList("connectCached", "close", "startScan"), actions.calls);
+    }
+
+    @Test
+    public void machine_backoffIsExponentialAndBounded() {
+        machine.start();
+        long expected = BACKOFF_BASE_MS;
+        for (int i = 0; i < 10; i++) {
+            timer.advance(SCAN_TIMEOUT_MS);
+            assertEquals(State.BACKOFF, machine.getState());
+            timer.advance(expected - 1);
+            assertEquals(State.BACKOFF, machine.getState());
+            timer.advance(1);
+            assertEquals(State.SCANNING, machine.getState());
+            expected = Math.min(BACKOFF_MAX_MS, expected * 2);
+        }
+        assertEquals(BACKOFF_MAX_MS, expected);
+        /* A connection resets it */
+        assertTrue(machine.onDeviceFound());
+        linkUpAndReady();
+        machine.onLinkDown();
+        timer.advance(BACKOFF_BASE_MS);
+        assertEquals(State.SCANNING, machine.getState());
+    }
+
+    @Test
+    public void machine_heloWatchdog() {
+        connectAfterScan();
+        for (int i = 0; i < 10; i++) {
+            timer.advance(HELO_TIMEOUT_MS - 1);
+            machine.onHelo();
+        }
+        assertEquals(State.READY, machine.getState());
+        timer.advance(HELO_TIMEOUT_MS);
+        assertEquals(State.DEGRADED, machine.getState());
+        assertTrue(machine.getState().isConnected());
+        machine.onHelo();
+        assertEquals(State.READY, machine.getState());
+        timer.advance(HELO_TIMEOUT_MS);
+        assertEquals(State.DEGRADED, machine.getState());
+        timer.advance(DEGRADED_TIMEOUT_MS);
+        assertEquals(State.BACKOFF, machine.getState());
+        assertEquals("close", actions.lastCall());
+        timer.advance(BACKOFF_BASE_MS);
+        assertEquals(State.SCANNING, machine.getState());
+    }
+
+    @Test
+    public void machine_noHeloNoWatchdog() {
+        machine.start();
+        machine.onDeviceFound();
+        machine.onLinkUp();
+        machine.onReady(false);
+        timer.advance(60000);
+        assertEquals(State.READY, machine.getState());
+        assertEquals(0, machine.getTimerWakeups());
+    }
+
+    @Test
+    public void machine_discoveryTimeoutAndFailure() {
+        machine.start();
+        machine.onDeviceFound();
+        machine.onLinkUp();
+        timer.advance(DISCOVERY_TIMEOUT_MS);
+        assertEquals(State.BACKOFF, machine.getState());
+        assertEquals("close", actions.lastCall());
+        timer.advance(BACKOFF_BASE_MS);
+        machine.onDeviceFound();
+        machine.onLinkUp();
+        machine.onDiscoveryFailed();
+        assertEquals(State.BACKOFF, machine.getState());
+        /* Late callbacks of the dropped connection change nothing */
+        machine.onReady(true);
+        machine.onLinkUp();
+        machine.onHelo();
+        assertEquals(State.BACKOFF, machine.getState());
+    }
+
+    @Test
+    public void machine_stop() {
+        connectAfterScan();
+        machine.stop();
+        assertEquals(State.IDLE, machine.getState());
+        assertEquals("close", actions.lastCall());
+        int calls = actions.calls.size();
+        timer.advance(600000);
+        assertEquals(calls, actions.calls.size());
+        machine.start();
+        assertEquals(State.SCANNING, machine.getState());
+    }
+
+    /**
+     * A minute connected with HELO every second: the old loop woke up every second, the
+     * machine only when a timeout fires.
+     */
+    @Test
+    public void machine_wakeupsWhileConnected() {
+        connectAfterScan();
+        for (int s = 0; s < 60; s++) {
+            timer.advance(1000);
+            machine.onHelo();
+        }
+        assertEquals(State.READY, machine.getState());
+        assertEquals(0, machine.getTimerWakeups());
+        Benchmark.report("60s connected: polling loop 60 wakeups, state machine %d", machine.getTimerWakeups());
+    }
+}
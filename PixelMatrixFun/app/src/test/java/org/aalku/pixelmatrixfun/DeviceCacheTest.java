@@ -0,0 +1,53 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class DeviceCacheTest {
+
+    private static Map<UUID, Integer> handles() {
+        Map<UUID, Integer> handles = new HashMap<>();
+        handles.put(DeviceProtocol.SEND_BITMAP_UUID, 12);
+        handles.put(DeviceProtocol.HELO_UUID, 15);
+        handles.put(DeviceProtocol.CLEAR_UUID, 19);
+        return handles;
+    }
+
+    @Test
+    public void cache_saveAndLoad() throws Exception {
+        File file = File.createTempFile("device", ".properties");
+        file.deleteOnExit();
+        new DeviceCache("24:0A:C4:12:34:56", handles()).save(file);
+        DeviceCache cache = DeviceCache.load(file);
+        assertNotNull(cache);
+        assertEquals("24:0A:C4:12:34:56", cache.getAddress());
+        assertEquals(handles(), cache.getHandles());
+        assertTrue(cache.sameLayout(handles()));
+        Map<UUID, Integer> changed = handles();
+        changed.put(DeviceProtocol.CLEAR_UUID, 21);
+        assertFalse(cache.sameLayout(changed));
+        DeviceCache.delete(file);
+        assertNull(DeviceCache.load(file));
+    }
+
+    @Test
+    public void cache_badFile() throws Exception {
+        File file = File.createTempFile("device", ".properties");
+        file.deleteOnExit();
+        assertNull(DeviceCache.load(file));
+        try (Writer w = new FileWriter(file)) {
+            w.write("address=24:0A:C4:12:34:56\nhandle.nonsense=3\nhandle." + DeviceProtocol.HELO_UUID + "=x\n");
+        }
+        DeviceCache cache = DeviceCache.load(file);
+        assertEquals("24:0A:C4:12:34:56", cache.getAddress());
+        assertTrue(cache.getHandles().isEmpty());
+    }
+}
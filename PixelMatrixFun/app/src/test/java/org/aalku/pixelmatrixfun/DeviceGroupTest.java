@@ -0,0 +1,191 @@
+package org.aalku.pixelmatrixfun;
+
+import org.aalku.pixelmatrixfun.LaneScheduler.Lane;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.aalku.pixelmatrixfun.DeviceProtocol.*;
+import static org.junit.Assert.*;
+
+public class DeviceGroupTest {
+
+    /**
+     * A pipeline on a simulated device, as a DeviceService would be on a real one.
+     */
+    private static class SimulatedPanel implements DeviceGroup.Panel {
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        final SendPipeline pipeline = new SendPipeline(executor, s -> {});
+        final SimulatedDevice device;
+
+        SimulatedPanel(SimulatedDevice device) {
+            this.device = device;
+            device.connect(pipeline);
+        }
+
+        @Override
+        public CompletionStage<Boolean> sendFrame(byte[] frame, Lane lane, CompletableFuture<Void> prepared, CompletionStage<?> present) {
+            return pipeline.sendFrame(frame, lane, prepared, present);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return pipeline.isConnected();
+        }
+
+        @Override
+        public TransferMetrics.Snapshot getMetrics() {
+            return pipeline.getMetrics();
+        }
+
+        @Override
+        public void close() {
+            device.shutdown();
+            executor.shutdownNow();
+        }
+    }
+
+    private final List<DeviceGroup> groups = new ArrayList<>();
+
+    @After
+    public void close() {
+        for (DeviceGroup g : groups) {
+            g.close();
+        }
+    }
+
+    private DeviceGroup group(int columns, int rows, double... intervalsMs) {
+        List<SimulatedPanel> panels = new ArrayList<>();
+        for (int i = 0; i < columns * rows; i++) {
+            panels.add(new SimulatedPanel(new SimulatedDevice().setConnectionInterval(intervalsMs[i % intervalsMs.length])));
+        }
+        DeviceGroup group = new DeviceGroup(columns, rows, WIDTH, HEIGHT, panels, Executors.newSingleThreadScheduledExecutor());
+        groups.add(group);
+        return group;
+    }
+
+    private static SimulatedDevice device(DeviceGroup group, int i) {
+        return ((SimulatedPanel) group.getPanels().get(i)).device;
+    }
+
+    private static boolean await(CompletionStage<Boolean> cf) throws Exception {
+        return cf.toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void group_tiles() throws Exception {
+        DeviceGroup group = group(2, 2, 7.5);
+        assertEquals(32, group.getWidth());
+        assertEquals(32, group.getHeight());
+        assertTrue(group.isConnected());
+        byte[] canvas = new byte[FrameFormat.frameLength(32, 32)];
+        new Random(1).nextBytes(canvas);
+        assertTrue(await(group.sendFrame(canvas, Lane.NORMAL)));
+        for (int i = 0; i < 4; i++) {
+            int x0 = (i % 2) * WIDTH;
+            int y0 = (i / 2) * HEIGHT;
+            SimulatedDevice device = device(group, i);
+            for (int x = 0; x < WIDTH; x++) {
+                for (int y = 0; y < HEIGHT; y++) {
+                    int p = ((x0 + x) * 32 + y0 + y) * FrameFormat.PIXEL_SIZE;
+                    int color = ((canvas[p] & 0xFF) << 16) | ((canvas[p + 1] & 0xFF) << 8) | (canvas[p + 2] & 0xFF);
+                    assertEquals(color, device.getColor(x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void group_failedPanelDoesNotBlockOthers() throws Exception {
+        DeviceGroup group = group(4, 1, 7.5);
+        device(group, 2).disconnect();
+        long end = System.currentTimeMillis() + 5000;
+        while (group.getPanels().get(2).isConnected() && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertFalse(group.isConnected());
+        long start = System.nanoTime();
+        try {
+            await(group.sendFrame(new byte[FrameFormat.frameLength(64, 16)], Lane.NORMAL));
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("Not connected", e.getCause().getMessage());
+        }
+        /* The others don't wait for the present timeout */
+        for (int i : new int[] {0, 1, 3}) {
+            end = System.currentTimeMillis() + 5000;
+            while (device(group, i).getFramesShown() == 0 && System.currentTimeMillis() < end) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, device(group, i).getFramesShown());
+        }
+        assertTrue((System.nanoTime() - start) / 1e6 < DeviceGroup.PRESENT_TIMEOUT_MS);
+    }
+
+    /**
+     * 4x1 panels with different connection intervals: throughput per panel and in total, and how
+     * far apart the panels show each frame, with and without holding the last page.
+     */
+    @Test
+    public void group_throughputAndSkewBenchmark() throws Exception {
+        int frames = 20;
+        DeviceGroup group = group(4, 1, 7.5, 15, 11.25, 30);
+        Random random = new Random(2);
+        double syncSkew = 0d;
+        for (int f = 0; f < frames; f++) {
+            byte[] canvas = new byte[FrameFormat.frameLength(group.getWidth(), group.getHeight())];
+            random.nextBytes(canvas);
+            assertTrue(await(group.sendFrame(canvas, Lane.NORMAL)));
+            syncSkew = Math.max(syncSkew, deviceSkewMs(group));
+        }
+        DeviceGroup.Stats stats = group.getStats();
+        assertEquals(frames, stats.frames);
+        double sum = 0d;
+        for (double b : stats.panelBytesPerSecond) {
+            assertTrue(b > 0);
+            sum += b;
+        }
+        assertEquals(stats.bytesPerSecond, sum, 1e-6);
+
+        /* The same without presentation, every panel shows its tile when it has it */
+        DeviceGroup unsynced = group(4, 1, 7.5, 15, 11.25, 30);
+        double unsyncedSkew = 0d;
+        for (int f = 0; f < frames; f++) {
+            byte[] canvas = new byte[FrameFormat.frameLength(group.getWidth(), group.getHeight())];
+            random.nextBytes(canvas);
+            List<CompletableFuture<Boolean>> sent = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                byte[] tile = new byte[FrameFormat.frameLength(WIDTH, HEIGHT)];
+                FrameFormat.copyTile(canvas, HEIGHT, i * WIDTH, 0, tile, WIDTH, HEIGHT);
+                sent.add(((SimulatedPanel) unsynced.getPanels().get(i)).pipeline.sendFrame(tile, Lane.NORMAL).toCompletableFuture());
+            }
+            for (CompletableFuture<Boolean> cf : sent) {
+                assertTrue(await(cf));
+            }
+            unsyncedSkew = Math.max(unsyncedSkew, deviceSkewMs(unsynced));
+        }
+        Benchmark.report("Group 4x1: %s", stats);
+        Benchmark.report("Group 4x1 device skew max: presented %.1fms, unsynchronized %.1fms", syncSkew, unsyncedSkew);
+        assertTrue(syncSkew < unsyncedSkew);
+    }
+
+    private static double deviceSkewMs(DeviceGroup group) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < group.getPanels().size(); i++) {
+            long t = device(group, i).getLastShownNanos();
+            min = Math.min(min, t);
+            max = Math.max(max, t);
+        }
+        return (max - min) / 1e6;
+    }
+}
@@ -0,0 +1,217 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+public class DrawingLibraryTest {
+
+    private static final PanelGeometry PANEL = new PanelGeometry(16, 16);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void library_roundTrip() throws Exception {
+        File dir = folder.newFolder();
+        DrawingLibrary library = new DrawingLibrary(dir);
+        assertTrue(library.getEntries().isEmpty());
+        int[] drawing = randomPixels(PANEL, new Random(1));
+        List<int[]> animation = Arrays.asList(randomPixels(new PanelGeometry(64, 32), new Random(2)),
+                randomPixels(new PanelGeometry(64, 32), new Random(3)));
+        library.add("Smile", PANEL, 0, Collections.singletonList(drawing));
+        library.add("Wave \u00e1\u00e9\u00ed", new PanelGeometry(64, 32), 100, animation);
+
+        /* Opened again, as the gallery does */
+        library = new DrawingLibrary(dir);
+        List<DrawingLibrary.Entry> entries = library.getEntries();
+        assertEquals(2, entries.size());
+        DrawingLibrary.Entry smile = entries.get(0);
+        assertEquals("Smile", smile.name);
+        assertEquals(PANEL, smile.geometry);
+        assertArrayEquals(drawing, library.load(smile).get(0));
+        /* A 16x16 drawing is its own thumbnail */
+        assertArrayEquals(drawing, library.readThumbnail(smile));
+
+        DrawingLibrary.Entry wave = entries.get(1);
+        assertEquals("Wave \u00e1\u00e9\u00ed", wave.name);
+        assertEquals(2, wave.frameCount);
+        assertEquals(100, wave.frameIntervalMs);
+        assertEquals(16, wave.thumbWidth);
+        assertEquals(8, wave.thumbHeight);
+        List<int[]> loaded = library.load(wave);
+        assertArrayEquals(animation.get(0), loaded.get(0));
+        assertArrayEquals(animation.get(1), loaded.get(1));
+        int[] thumb = new int[16 * 8];
+        new AreaScaler(64, 32, 16, 8).scale(animation.get(0), 0, 64, thumb);
+        assertArrayEquals(thumb, library.readThumbnail(wave));
+    }
+
+    @Test
+    public void library_replaceAndDelete() throws Exception {
+        File dir = folder.newFolder();
+        DrawingLibrary library = new DrawingLibrary(dir);
+        Random random = new Random(1);
+        for (int i = 0; i < 4; i++) {
+            library.add("d" + i, PANEL, 0, Collections.singletonList(randomPixels(PANEL, random)));
+        }
+        int[] replaced = randomPixels(PANEL, random);
+        DrawingLibrary.Entry d1 = library.replace(library.getEntries().get(1), PANEL, 0, Collections.singletonList(replaced));
+        assertEquals("d1", d1.name);
+        library.delete(library.getEntries().get(0));
+        /* The last one takes its place */
+        assertEquals(Arrays.asList("d3", "d1", "d2"), names(library));
+        library.delete(d1);
+        try {
+            library.delete(d1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            /* Already deleted */
+        }
+
+        library = new DrawingLibrary(dir);
+        assertEquals(Arrays.asList("d3", "d2"), names(library));
+        assertEquals(2 + 1, dir.list().length);
+        assertEquals(DrawingLibrary.INDEX_HEADER_LENGTH + 2 * DrawingLibrary.RECORD_LENGTH, new File(dir, "index.bin").length());
+        DrawingLibrary.Entry d4 = library.add("d4", PANEL, 0, Collections.singletonList(replaced));
+        assertArrayEquals(replaced, library.readThumbnail(d4));
+        assertEquals(Arrays.asList("d3", "d2", "d4"), names(library));
+    }
+
+    @Test
+    public void library_rebuildsLostIndex() throws Exception {
+        File dir = folder.newFolder();
+        DrawingLibrary library = new DrawingLibrary(dir);
+        Random random = new Random(1);
+        List<int[]> drawings = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            drawings.add(randomPixels(PANEL, random));
+            library.add("d" + i, PANEL, 0, Collections.singletonList(drawings.get(i)));
+        }
+        assertTrue(new File(dir, "index.bin").delete());
+        library = new DrawingLibrary(dir);
+        assertEquals(12, library.getEntries().size());
+        for (int i = 0; i < 12; i++) {
+            DrawingLibrary.Entry e = library.getEntries().get(i);
+            assertEquals("d" + i, e.name);
+            assertArrayEquals(drawings.get(i), library.readThumbnail(e));
+        }
+    }
+
+    /**
+     * Opening the gallery of a large library: the index against decoding a PNG per drawing for
+     * its thumbnail, with ImageIO standing in for BitmapFactory. Then loading one drawing. Timings
+     * are reported.
+     */
+    @Test
+    public void library_loadBenchmark() throws Exception {
+        int[][] libraries = {{16, 16, 5000}, {64, 64, 1000}};
+        for (int[] spec : libraries) {
+            PanelGeometry g = new PanelGeometry(spec[0], spec[1]);
+            int count = spec[2];
+            File dir = folder.newFolder();
+            File pngDir = folder.newFolder();
+            Random random = new Random(1);
+            DrawingLibrary library = new DrawingLibrary(dir);
+            long start = System.nanoTime();
+            int[] pixels = null;
+            for (int i = 0; i < count; i++) {
+                pixels = randomPixels(g, random);
+                library.add("Drawing " + i, g, 0, Collections.singletonList(pixels));
+                BufferedImage image = new BufferedImage(g.width, g.height, BufferedImage.TYPE_INT_ARGB);
+                image.setRGB(0, 0, g.width, g.height, pixels, 0, g.width);
+                ImageIO.write(image, "png", new File(pngDir, i + ".png"));
+            }
+            double saveMs = (System.nanoTime() - start) / 1e6 / count;
+
+            /* Warm up both paths */
+            readAllThumbnails(new DrawingLibrary(dir));
+            decodeAllPngs(pngDir, g);
+
+            start = System.nanoTime();
+            DrawingLibrary opened = new DrawingLibrary(dir);
+            double openMs = (System.nanoTime() - start) / 1e6;
+            start = System.nanoTime();
+            long check = readAllThumbnails(opened);
+            double thumbsMs = (System.nanoTime() - start) / 1e6;
+            start = System.nanoTime();
+            check += decodeAllPngs(pngDir, g);
+            double pngMs = (System.nanoTime() - start) / 1e6;
+
+            DrawingLibrary.Entry last = opened.getEntries().get(count - 1);
+            int loads = 1000;
+            start = System.nanoTime();
+            for (int i = 0; i < loads; i++) {
+                check += opened.load(last).get(0)[i % g.getPixels()];
+            }
+            double loadUs = (System.nanoTime() - start) / 1e3 / loads;
+            start = System.nanoTime();
+            for (int i = 0; i < loads; i++) {
+                BufferedImage image = ImageIO.read(new File(pngDir, (count - 1) + ".png"));
+                check += image.getRGB(i % g.width, 0);
+            }
+            double pngLoadUs = (System.nanoTime() - start) / 1e3 / loads;
+
+            Benchmark.report("Library of %d %s drawings (%.2fms to save each): index open %.1fms, all thumbnails %.1fms; PNG thumbnails %.0fms; load one %.0f us, PNG %.0f us (%d)",
+                    count, g, saveMs, openMs, thumbsMs, pngMs, loadUs, pngLoadUs, check & 1);
+            assertEquals(count, opened.getEntries().size());
+            assertEquals("Drawing " + (count - 1), last.name);
+            assertArrayEquals(pixels, opened.load(last).get(0));
+        }
+    }
+
+    private static long readAllThumbnails(DrawingLibrary library) throws Exception {
+        long check = 0;
+        for (DrawingLibrary.Entry e : library.getEntries()) {
+            check += library.readThumbnail(e)[0];
+        }
+        return check;
+    }
+
+    /**
+     * Without an index every drawing is decoded and scaled down for the gallery.
+     */
+    private static long decodeAllPngs(File dir, PanelGeometry g) throws Exception {
+        long check = 0;
+        int tw = Math.min(g.width, DrawingLibrary.THUMB_SIZE);
+        int th = Math.min(g.height, DrawingLibrary.THUMB_SIZE);
+        AreaScaler scaler = new AreaScaler(g.width, g.height, tw, th);
+        int[] pixels = new int[g.getPixels()];
+        int[] thumb = new int[tw * th];
+        for (File f : dir.listFiles()) {
+            BufferedImage image = ImageIO.read(f);
+            image.getRGB(0, 0, g.width, g.height, pixels, 0, g.width);
+            scaler.scale(pixels, 0, g.width, thumb);
+            check += thumb[0];
+        }
+        return check;
+    }
+
+    private static List<String> names(DrawingLibrary library) {
+        List<String> res = new ArrayList<>();
+        for (DrawingLibrary.Entry e : library.getEntries()) {
+            res.add(e.name);
+        }
+        return res;
+    }
+
+    private static int[] randomPixels(PanelGeometry g, Random random) {
+        int[] res = new int[g.getPixels()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,140 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class EventBusTest {
+
+    private final EventBus bus = new EventBus();
+
+    @After
+    public void close() {
+        bus.close();
+    }
+
+    private static <T> void awaitLast(List<T> received, T value) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while ((received.isEmpty() || !received.get(received.size() - 1).equals(value)) && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertEquals(value, received.get(received.size() - 1));
+    }
+
+    @Test
+    public void topic_deliversOffThePublishingThread() throws Exception {
+        EventBus.Topic<String> topic = bus.topic(0, "");
+        AtomicReference<Thread> thread = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        topic.subscribe(s -> {
+            thread.set(Thread.currentThread());
+            latch.countDown();
+        });
+        topic.publish("hello");
+        assertEquals("hello", topic.get());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), thread.get());
+    }
+
+    @Test
+    public void topic_coalescesToLatestValue() throws Exception {
+        EventBus.Topic<Integer> topic = bus.topic(100, 0);
+        List<Integer> received = new CopyOnWriteArrayList<>();
+        topic.subscribe(received::add);
+        for (int i = 1; i <= 10000; i++) {
+            topic.publish(i);
+        }
+        awaitLast(received, 10000);
+        assertEquals(10000, topic.getPublished());
+        assertTrue(received.size() <= 2);
+        for (int i = 1; i < received.size(); i++) {
+            assertTrue(received.get(i) > received.get(i - 1));
+        }
+    }
+
+    /**
+     * A stream of statuses, like one per chunk, is delivered a few times per second at most.
+     */
+    @Test
+    public void topic_rateLimited() throws Exception {
+        EventBus.Topic<String> topic = bus.topic(50, "");
+        List<Long> times = new CopyOnWriteArrayList<>();
+        List<String> received = new CopyOnWriteArrayList<>();
+        topic.subscribe(s -> {
+            times.add(System.nanoTime());
+            received.add(s);
+        });
+        long start = System.nanoTime();
+        long end = System.currentTimeMillis() + 500;
+        int n = 0;
+        while (System.currentTimeMillis() < end) {
+            topic.publish("chunk " + n++);
+            Thread.sleep(1);
+        }
+        topic.publish("done");
+        awaitLast(received, "done");
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(times.get(times.size() - 1) - start);
+        /* The newest value each time, in order */
+        assertEquals(received.size(), topic.getDelivered());
+        assertTrue(topic.getDelivered() < topic.getPublished());
+        for (int i = 1; i < received.size() - 1; i++) {
+            assertTrue(chunk(received.get(i)) > chunk(received.get(i - 1)));
+        }
+        Benchmark.report("Rate limited status: %d published, %d delivered in %dms", topic.getPublished(), topic.getDelivered(), elapsedMs);
+    }
+
+    private static int chunk(String status) {
+        return status.isEmpty() ? -1 : Integer.parseInt(status.substring("chunk ".length()));
+    }
+
+    @Test
+    public void topic_subscribeWhilePublishing() throws Exception {
+        EventBus.Topic<Integer> topic = bus.topic(0, 0);
+        AtomicInteger errors = new AtomicInteger();
+        Thread publisher = new Thread(() -> {
+            for (int i = 1; i <= 100000; i++) {
+                topic.publish(i);
+            }
+        });
+        publisher.start();
+        for (int i = 0; i < 1000; i++) {
+            Consumer<Integer> l = v -> {
+                if (v <= 0) {
+                    errors.incrementAndGet();
+                }
+            };
+            topic.subscribe(l);
+            topic.unsubscribe(l);
+        }
+        publisher.join();
+        List<Integer> received = new CopyOnWriteArrayList<>();
+        topic.subscribe(received::add);
+        topic.publish(-1);
+        awaitLast(received, -1);
+        assertEquals(1, topic.getListenerCount());
+        assertEquals(0, errors.get());
+    }
+
+    @Test
+    public void topic_brokenListenerDoesNotStopOthers() throws Exception {
+        EventBus.Topic<String> topic = bus.topic(0, "");
+        List<String> received = new CopyOnWriteArrayList<>();
+        topic.subscribe(s -> {
+            throw new IllegalStateException(s);
+        });
+        topic.subscribe(received::add);
+        topic.publish("a");
+        awaitLast(received, "a");
+        topic.publish("b");
+        awaitLast(received, "b");
+    }
+}
@@ -0,0 +1,117 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.Test;
+
+import java.util.PriorityQueue;
+
+import static org.junit.Assert.*;
+
+public class FlowWindowTest {
+
+    @Test
+    public void window_limitsChunksInFlight() {
+        FlowWindow window = new FlowWindow(3);
+        assertEquals(1, window.tryAcquire());
+        assertEquals(2, window.tryAcquire());
+        assertEquals(3, window.tryAcquire());
+        assertEquals(-1, window.tryAcquire());
+        assertEquals(2, window.release(2));
+        assertEquals(1, window.inFlight());
+        assertEquals(4, window.tryAcquire());
+        assertEquals(5, window.tryAcquire());
+        assertEquals(-1, window.tryAcquire());
+    }
+
+    @Test
+    public void window_ignoresExtraCredits() {
+        FlowWindow window = new FlowWindow(2);
+        window.tryAcquire();
+        assertEquals(1, window.release(5));
+        assertEquals(0, window.inFlight());
+        assertEquals(2, window.tryAcquire());
+    }
+
+    @Test
+    public void window_resetForgetsChunksInFlight() {
+        FlowWindow window = new FlowWindow(2);
+        window.tryAcquire();
+        window.tryAcquire();
+        window.reset();
+        assertEquals(0, window.inFlight());
+        assertEquals(3, window.tryAcquire());
+    }
+
+    @Test
+    public void window_cancelUndoesAcquire() {
+        FlowWindow window = new FlowWindow(3);
+        assertEquals(1, window.tryAcquire());
+        assertEquals(2, window.tryAcquire());
+        long refused = window.tryAcquire();
+        assertEquals(3, refused);
+        /* Refused by the stack in the middle of the window: the chunks in flight are still unacknowledged */
+        assertTrue(window.cancel(refused));
+        assertEquals(0, window.getAckedSeq());
+        assertEquals(2, window.inFlight());
+        assertEquals(3, window.tryAcquire());
+        assertEquals(-1, window.tryAcquire());
+        /* Only the last chunk acquired can be given back */
+        assertFalse(window.cancel(2));
+        assertEquals(3, window.release(3));
+        assertFalse(window.cancel(3));
+        assertEquals(0, window.inFlight());
+    }
+
+    @Test
+    public void window_pipelinedIsFasterThanStopAndWait() {
+        int chunks = 100;
+        /* A 7.5ms connection interval with 2 chunks per interval and 15ms to get a response or credit back */
+        FakeGattLink link = new FakeGattLink(3750, 15000);
+        long stopAndWait = link.send(chunks, 1);
+        long pipelined = link.send(chunks, 8);
+        /* Every chunk waits for the one before */
+        assertEquals(chunks * (3750L + 15000L), stopAndWait);
+        assertTrue(pipelined * 3 < stopAndWait);
+        /* The link is saturated with a big enough window */
+        assertEquals(chunks * 3750L + 15000L, link.send(chunks, 16), 3750L);
+    }
+
+    /**
+     * Simulated GATT link with virtual time in microseconds. A write is accepted by the local stack
+     * after txTime and the device's response or credit comes back after roundTrip.
+     */
+    private static class FakeGattLink {
+        private final long txTime;
+        private final long roundTrip;
+
+        FakeGattLink(long txTime, long roundTrip) {
+            this.txTime = txTime;
+            this.roundTrip = roundTrip;
+        }
+
+        /**
+         * @param window 1 to wait for each response like WRITE_TYPE_DEFAULT
+         * @return time until every chunk is acknowledged
+         */
+        long send(int chunks, int window) {
+            FlowWindow flow = new FlowWindow(window);
+            PriorityQueue<long[]> credits = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+            long now = 0;
+            long lastAck = 0;
+            int sent = 0;
+            while (flow.getAckedSeq() < chunks) {
+                while (!credits.isEmpty() && credits.peek()[0] <= now) {
+                    lastAck = credits.poll()[0];
+                    flow.release(1);
+                }
+                if (sent < chunks && flow.tryAcquire() > 0) {
+                    sent++;
+                    now += txTime;
+                    credits.add(new long[] {now + roundTrip});
+                } else if (!credits.isEmpty()) {
+                    now = Math.max(now, credits.peek()[0]);
+                }
+            }
+            return lastAck;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+public class FrameCacheTest {
+
+    private static final PanelGeometry PANEL = new PanelGeometry(16, 16);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void cache_roundTrip() throws Exception {
+        File dir = folder.newFolder();
+        List<byte[]> frames = randomFrames(5, 1);
+        FrameCache cache = new FrameCache(dir, 1 << 20);
+        assertNull(cache.open("clip"));
+        write(cache, "clip", frames);
+
+        /* Another instance, as after a restart */
+        FrameCache.Clip clip = new FrameCache(dir, 1 << 20).open("clip");
+        assertEquals(PANEL, clip.getGeometry());
+        assertEquals(5, clip.getFrameCount());
+        assertEquals(50, clip.getFrameIntervalMs());
+        AnimationPlayer.FrameSource once = clip.source(false);
+        for (byte[] frame : frames) {
+            assertArrayEquals(frame, once.nextFrame());
+        }
+        assertNull(once.nextFrame());
+        AnimationPlayer.FrameSource loop = clip.source(true);
+        for (int i = 0; i < 12; i++) {
+            assertArrayEquals(frames.get(i % 5), loop.nextFrame());
+        }
+    }
+
+    @Test
+    public void cache_evictsLeastRecentlyUsed() throws Exception {
+        File dir = folder.newFolder();
+        long clipBytes = FrameCache.HEADER_LENGTH + 10L * PANEL.getFrameLength();
+        FrameCache cache = new FrameCache(dir, clipBytes * 2);
+        write(cache, "a", randomFrames(10, 1));
+        write(cache, "b", randomFrames(10, 2));
+        assertNotNull(cache.open("a"));
+        write(cache, "c", randomFrames(10, 3));
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+        assertEquals(clipBytes * 2, cache.getTotalBytes());
+        assertEquals(2, dir.listFiles().length);
+
+        /* Bigger than the whole cache, it stays alone */
+        write(cache, "d", randomFrames(30, 4));
+        assertEquals(1, cache.getClipCount());
+        assertEquals(30, cache.open("d").getFrameCount());
+    }
+
+    @Test
+    public void cache_unfinishedClipLeavesNothing() throws Exception {
+        File dir = folder.newFolder();
+        FrameCache cache = new FrameCache(dir, 1 << 20);
+        try (FrameCache.Writer writer = cache.create("clip", PANEL, 50)) {
+            writer.add(randomFrames(1, 1).get(0));
+        }
+        assertFalse(cache.contains("clip"));
+        assertEquals(0, dir.listFiles().length);
+        try (FrameCache.Writer writer = cache.create("clip", PANEL, 50)) {
+            writer.commit();
+            fail();
+        } catch (IOException e) {
+            /* No frames */
+        }
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void cache_deletedFileIsMiss() throws Exception {
+        File dir = folder.newFolder();
+        FrameCache cache = new FrameCache(dir, 1 << 20);
+        write(cache, "a", randomFrames(5, 1));
+        write(cache, "b", randomFrames(5, 2));
+        /* As the system does with cache dirs when storage is low */
+        for (File f : dir.listFiles()) {
+            assertTrue(f.delete());
+        }
+        assertNull(cache.open("a"));
+        assertFalse(cache.contains("a"));
+        assertEquals(1, cache.getClipCount());
+
+        /* Imported again */
+        List<byte[]> frames = randomFrames(5, 3);
+        write(cache, "a", frames);
+        assertArrayEquals(frames.get(0), cache.open("a").source(false).nextFrame());
+    }
+
+    /**
+     * CPU of playing a clip, reported: cold it's decoded, scaled and converted frame by frame and written
+     * to the cache, with ImageIO standing in for the GIF decoder; warm it's only read from the
+     * mapped file.
+     */
+    @Test
+    public void cache_playbackBenchmark() throws Exception {
+        int w = 480;
+        int h = 270;
+        int count = 40;
+        List<byte[]> encoded = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            encoded.add(testPng(w, h, i));
+        }
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        FrameConverter converter = new FrameConverter();
+        FrameCache cache = new FrameCache(folder.newFolder(), 32 << 20);
+        /* Warm up the JIT with a clip of its own */
+        cold(cache, "warm-up", encoded, converter);
+        cache.open("warm-up").source(false).nextFrame();
+
+        long cpu = bean.getCurrentThreadCpuTime();
+        FrameCache.Clip clip = cold(cache, "clip", encoded, converter);
+        double coldUs = (bean.getCurrentThreadCpuTime() - cpu) / 1e3 / count;
+
+        int loops = 50;
+        cpu = bean.getCurrentThreadCpuTime();
+        AnimationPlayer.FrameSource source = cache.open("clip").source(true);
+        long check = 0;
+        for (int i = 0; i < count * loops; i++) {
+            check += source.nextFrame()[i % PANEL.getFrameLength()];
+        }
+        double warmUs = (bean.getCurrentThreadCpuTime() - cpu) / 1e3 / (count * loops);
+        Benchmark.report("Clip %dx%d, %d frames: cold %.0f us CPU/frame, warm %.2f us CPU/frame (%d)",
+                w, h, count, coldUs, warmUs, check & 1);
+        assertEquals(count, clip.getFrameCount());
+        /* Warm it plays what cold wrote */
+        AnimationPlayer.FrameSource written = clip.source(false);
+        AnimationPlayer.FrameSource read = cache.open("clip").source(false);
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(written.nextFrame(), read.nextFrame());
+        }
+        assertNull(read.nextFrame());
+    }
+
+    private static FrameCache.Clip cold(FrameCache cache, String key, List<byte[]> encoded, FrameConverter converter) throws IOException {
+        AreaScaler scaler = null;
+        int[] pixels = null;
+        int[] panel = new int[PANEL.getPixels()];
+        byte[] frame = new byte[PANEL.getFrameLength()];
+        try (FrameCache.Writer writer = cache.create(key, PANEL, 50)) {
+            for (byte[] png : encoded) {
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+                ImportPlan plan = new ImportPlan(image.getWidth(), image.getHeight(), PANEL.width, PANEL.height);
+                if (scaler == null) {
+                    scaler = new AreaScaler(plan.cropWidth, plan.cropHeight, PANEL.width, PANEL.height);
+                    pixels = new int[plan.cropWidth * plan.cropHeight];
+                }
+                image.getRGB(plan.cropX, plan.cropY, plan.cropWidth, plan.cropHeight, pixels, 0, plan.cropWidth);
+                scaler.scale(pixels, 0, plan.cropWidth, panel);
+                converter.toFrame(panel, PANEL.width, PANEL.height, frame);
+                writer.add(frame);
+            }
+            return writer.commit();
+        }
+    }
+
+    private static void write(FrameCache cache, String key, List<byte[]> frames) throws IOException {
+        try (FrameCache.Writer writer = cache.create(key, PANEL, 50)) {
+            for (byte[] frame : frames) {
+                writer.add(frame);
+            }
+            writer.commit();
+        }
+    }
+
+    private static List<byte[]> randomFrames(int count, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> res = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] frame = new byte[PANEL.getFrameLength()];
+            random.nextBytes(frame);
+            res.add(frame);
+        }
+        return res;
+    }
+
+    /**
+     * A moving gradient, frame by frame.
+     */
+    private static byte[] testPng(int width, int height, int frame) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x + frame * 8) * 255 / width & 0xFF;
+                int g = y * 255 / height;
+                int b = (x ^ y) & 0xFF;
+                row[x] = r << 16 | g << 8 | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
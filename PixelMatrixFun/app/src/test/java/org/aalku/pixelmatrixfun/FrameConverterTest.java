@@ -0,0 +1,165 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameConverterTest {
+
+    private static final int SIZE = 16;
+
+    @Test
+    public void converter_linearIsPlainFrame() {
+        FrameConverter converter = new FrameConverter();
+        converter.setGamma(1.0);
+        converter.setCurrentBudget(0);
+        int[] argb = randomPixels(new Random(1), SIZE * SIZE);
+        byte[] expected = new byte[FrameFormat.frameLength(SIZE, SIZE)];
+        byte[] out = new byte[expected.length];
+        FrameFormat.toFrame(argb, SIZE, SIZE, expected);
+        converter.toFrame(argb, SIZE, SIZE, out);
+        assertArrayEquals(expected, out);
+    }
+
+    @Test
+    public void converter_gammaAndBrightness() {
+        FrameConverter converter = new FrameConverter();
+        byte[] out = new byte[3];
+        converter.toFrame(new int[] {0xFF80FF00}, 1, 1, out);
+        /* 128 is about 22% of the light with gamma 2.2 */
+        assertArrayEquals(new byte[] {56, (byte) 255, 0}, out);
+        converter.setBrightness(128);
+        converter.toFrame(new int[] {0xFF80FF00}, 1, 1, out);
+        assertArrayEquals(new byte[] {28, (byte) 128, 0}, out);
+    }
+
+    @Test
+    public void converter_limitsCurrent() {
+        FrameConverter converter = new FrameConverter();
+        int[] white = new int[SIZE * SIZE];
+        java.util.Arrays.fill(white, 0xFFFFFFFF);
+        byte[] out = new byte[FrameFormat.frameLength(SIZE, SIZE)];
+        converter.setCurrentBudget(0);
+        assertEquals(256 * 3 * FrameConverter.MA_PER_CHANNEL, converter.toFrame(white, SIZE, SIZE, out));
+        converter.setCurrentBudget(2000);
+        int ma = converter.toFrame(white, SIZE, SIZE, out);
+        assertEquals(ma, FrameConverter.currentMa(out));
+        assertTrue(ma <= 2000);
+        assertTrue(ma > 1900);
+        /* Scaled evenly, still white */
+        assertEquals(out[0], out[1]);
+        assertEquals(out[0], out[out.length - 1]);
+        /* Under the budget nothing changes */
+        int[] dim = new int[SIZE * SIZE];
+        dim[0] = 0xFFFFFFFF;
+        converter.toFrame(dim, SIZE, SIZE, out);
+        assertEquals((byte) 255, out[0]);
+    }
+
+    @Test
+    public void converter_biggerBufferOnlyFirstPixels() {
+        FrameConverter converter = new FrameConverter();
+        int[] argb = randomPixels(new Random(3), SIZE * SIZE);
+        byte[] expected = new byte[FrameFormat.frameLength(SIZE, SIZE)];
+        converter.toFrame(argb, SIZE, SIZE, expected);
+        /* A reused buffer of a bigger panel, the rest is not part of the frame */
+        int[] reused = java.util.Arrays.copyOf(argb, SIZE * SIZE * 2);
+        java.util.Arrays.fill(reused, SIZE * SIZE, reused.length, 0xFFFFFFFF);
+        byte[] out = new byte[expected.length];
+        converter.toFrame(reused, SIZE, SIZE, out);
+        assertArrayEquals(expected, out);
+        FrameFormat.toFrame(argb, SIZE, SIZE, expected);
+        FrameFormat.toFrame(reused, SIZE, SIZE, out);
+        assertArrayEquals(expected, out);
+    }
+
+    @Test
+    public void converter_limitsCurrentOfLargestFrame() {
+        /* The largest frame a geometry allows, its levels add up to more than an int holds */
+        PanelGeometry g = new PanelGeometry(2048, 2730);
+        int[] white = new int[g.getPixels()];
+        java.util.Arrays.fill(white, 0xFFFFFFFF);
+        byte[] out = new byte[g.getFrameLength()];
+        FrameConverter converter = new FrameConverter();
+        converter.setCurrentBudget(2000);
+        int ma = converter.toFrame(white, g.width, g.height, out);
+        assertTrue(ma <= 2000);
+        assertEquals(ma, FrameConverter.currentMa(out));
+    }
+
+    /**
+     * JMH style: warm up, then the best of several timed rounds, reported. The old loop is the one
+     * getBitmapBytes had, with Color.red/green/blue per pixel and row/column index math.
+     */
+    @Test
+    public void converter_benchmark() {
+        int[] argb = randomPixels(new Random(7), SIZE * SIZE);
+        byte[] out = new byte[FrameFormat.frameLength(SIZE, SIZE)];
+        FrameConverter converter = new FrameConverter();
+        converter.setCurrentBudget(500);
+        int ops = 20000;
+        double old = bench(() -> oldLoop(argb, SIZE, SIZE, out), ops);
+        double plain = bench(() -> FrameFormat.toFrame(argb, SIZE, SIZE, out), ops);
+        double converted = bench(() -> converter.toFrame(argb, SIZE, SIZE, out), ops);
+        Benchmark.report("Convert 16x16: old loop %.0f ns/op, plain %.0f ns/op, gamma+budget %.0f ns/op", old, plain, converted);
+        assertTrue(FrameConverter.currentMa(out) <= 500);
+        /* Frames make no garbage */
+        long allocated = Benchmark.allocatedBytes();
+        for (int i = 0; i < ops; i++) {
+            converter.toFrame(argb, SIZE, SIZE, out);
+        }
+        assertTrue(Benchmark.allocatedBytes() - allocated < 1024);
+    }
+
+    private static double bench(Runnable op, int ops) {
+        for (int i = 0; i < ops; i++) {
+            op.run();
+        }
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                op.run();
+            }
+            best = Math.min(best, (System.nanoTime() - start) / (double) ops);
+        }
+        return best;
+    }
+
+    private static int red(int color) {
+        return (color >> 16) & 0xFF;
+    }
+
+    private static int green(int color) {
+        return (color >> 8) & 0xFF;
+    }
+
+    private static int blue(int color) {
+        return color & 0xFF;
+    }
+
+    private static void oldLoop(int[] pixelsInt, int w, int h, byte[] out) {
+        for (int x = 0; x < w; x++) {
+            for (int y = 0; y < h; y++) {
+                int argb = pixelsInt[y*w+x];
+                byte red = (byte) red(argb);
+                byte green = (byte) green(argb);
+                byte blue = (byte) blue(argb);
+                int p = (x * h + y) * 3;
+                out[p] = red;
+                out[p + 1] = green;
+                out[p + 2] = blue;
+            }
+        }
+    }
+
+    private static int[] randomPixels(Random random, int count) {
+        int[] res = new int[count];
+        for (int i = 0; i < count; i++) {
+            res[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        return res;
+    }
+}
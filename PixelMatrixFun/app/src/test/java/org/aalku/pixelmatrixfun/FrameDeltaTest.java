@@ -0,0 +1,89 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameDeltaTest {
+
+    private static final int FRAME_LEN = 16 * 16 * 3;
+
+    @Test
+    public void delta_reconstructsFrame() {
+        Random random = new Random(1);
+        byte[] device = randomFrame(random);
+        for (int i = 0; i < 200; i++) {
+            byte[] frame = device.clone();
+            int changes = random.nextInt(40);
+            for (int c = 0; c < changes; c++) {
+                int p = random.nextInt(FRAME_LEN / 3) * 3;
+                frame[p] = (byte) random.nextInt(256);
+                frame[p + 1] = (byte) random.nextInt(256);
+                frame[p + 2] = (byte) random.nextInt(256);
+            }
+            byte[] delta = FrameDelta.encode(device, frame);
+            if (delta != null) {
+                assertTrue(delta.length < frame.length);
+                FrameDelta.apply(device, delta);
+            } else {
+                device = frame.clone();
+            }
+            assertArrayEquals(frame, device);
+        }
+    }
+
+    @Test
+    public void delta_identicalFrameIsEmpty() {
+        byte[] frame = randomFrame(new Random(2));
+        assertEquals(0, FrameDelta.encode(frame, frame.clone()).length);
+    }
+
+    @Test
+    public void delta_singlePixel() {
+        byte[] previous = new byte[FRAME_LEN];
+        byte[] frame = new byte[FRAME_LEN];
+        frame[300] = 1;
+        byte[] delta = FrameDelta.encode(previous, frame);
+        assertArrayEquals(new byte[] {0, 100, 1, 1, 0, 0}, delta);
+    }
+
+    @Test
+    public void delta_fallsBackToFullFrame() {
+        Random random = new Random(3);
+        assertNull(FrameDelta.encode(randomFrame(random), randomFrame(random)));
+        assertNull(FrameDelta.encode(null, randomFrame(random)));
+        assertNull(FrameDelta.encode(new byte[3], randomFrame(random)));
+    }
+
+    @Test
+    public void delta_offsetsMustFit() {
+        byte[] previous = new byte[FrameFormat.frameLength(256, 256)];
+        byte[] frame = previous.clone();
+        frame[frame.length - 1] = 1;
+        assertEquals(FrameDelta.RUN_HEADER + FrameDelta.PIXEL_SIZE, FrameDelta.encode(previous, frame).length);
+        byte[] larger = new byte[FrameFormat.frameLength(257, 256)];
+        assertNull(FrameDelta.encode(larger, larger.clone()));
+    }
+
+    @Test
+    public void delta_longRunsAreSplit() {
+        byte[] previous = new byte[3000 * 3];
+        byte[] frame = previous.clone();
+        for (int p = 0; p < 600; p++) {
+            frame[p * 3] = (byte) p;
+            frame[p * 3 + 1] = 1;
+        }
+        byte[] delta = FrameDelta.encode(previous, frame);
+        assertNotNull(delta);
+        FrameDelta.apply(previous, delta);
+        assertArrayEquals(frame, previous);
+    }
+
+    private static byte[] randomFrame(Random random) {
+        byte[] frame = new byte[FRAME_LEN];
+        random.nextBytes(frame);
+        return frame;
+    }
+}
@@ -0,0 +1,190 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.Test;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Iterator;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import static org.junit.Assert.*;
+
+public class ImportPlanTest {
+
+    @Test
+    public void plan_centeredCropWithPanelAspect() {
+        ImportPlan landscape = new ImportPlan(4000, 3000, 16, 16);
+        assertEquals(500, landscape.cropX);
+        assertEquals(0, landscape.cropY);
+        assertEquals(3000, landscape.cropWidth);
+        assertEquals(3000, landscape.cropHeight);
+
+        ImportPlan wide = new ImportPlan(3000, 4000, 128, 32);
+        assertEquals(0, wide.cropX);
+        assertEquals(3000, wide.cropWidth);
+        assertEquals(750, wide.cropHeight);
+        assertEquals((4000 - 750) / 2, wide.cropY);
+    }
+
+    @Test
+    public void plan_subsamplesKeepingOversample() {
+        ImportPlan plan = new ImportPlan(8000, 6000, 16, 16);
+        /* 6000 / 128 = 46 >= 32, 6000 / 256 = 23 < 32 */
+        assertEquals(128, plan.sampleSize);
+        assertTrue(plan.getDecodedWidth() >= 16 * ImportPlan.MIN_OVERSAMPLE);
+        assertTrue(plan.getRegionDecodeBytes() < 10_000);
+        assertEquals(8000L * 6000 * 4, plan.getFullDecodeBytes());
+
+        /* Small images are not subsampled, nor scaled up before the final scaling */
+        assertEquals(1, new ImportPlan(40, 40, 16, 16).sampleSize);
+        assertEquals(1, new ImportPlan(8, 8, 16, 16).sampleSize);
+        assertEquals(2, new ImportPlan(256, 256, 64, 64).sampleSize);
+    }
+
+    /**
+     * The old import path against the plan, with the JDK decoder standing in for BitmapFactory:
+     * a full decode then crop and scale, against decoding only the crop with source subsampling.
+     * Unlike libjpeg on Android, ImageIO still reads every DCT block when subsampling, so the time
+     * saved here is a lower bound. Memory is what the plan is about.
+     */
+    @Test
+    public void plan_importBenchmark() throws Exception {
+        int[][] sizes = {{4000, 3000}, {6000, 4000}};
+        for (int[] size : sizes) {
+            byte[] jpeg = testJpeg(size[0], size[1]);
+            /* Warm up both paths */
+            fullDecode(jpeg, 16, 16);
+            plannedDecode(jpeg, 16, 16);
+
+            System.gc();
+            resetHeapPeak();
+            long allocated = Benchmark.allocatedBytes();
+            long start = System.nanoTime();
+            BufferedImage full = fullDecode(jpeg, 16, 16);
+            double fullMs = (System.nanoTime() - start) / 1e6;
+            long fullAllocated = Benchmark.allocatedBytes() - allocated;
+            long fullPeak = heapPeak();
+
+            System.gc();
+            resetHeapPeak();
+            allocated = Benchmark.allocatedBytes();
+            start = System.nanoTime();
+            BufferedImage planned = plannedDecode(jpeg, 16, 16);
+            double plannedMs = (System.nanoTime() - start) / 1e6;
+            long plannedAllocated = Benchmark.allocatedBytes() - allocated;
+            long plannedPeak = heapPeak();
+
+            Benchmark.report("Import %dx%d (%d KB jpeg): full decode %.0fms, %d KB allocated, heap peak %d MB; planned %.0fms, %d KB allocated, heap peak %d MB",
+                    size[0], size[1], jpeg.length / 1024, fullMs, fullAllocated / 1024, fullPeak >> 20,
+                    plannedMs, plannedAllocated / 1024, plannedPeak >> 20);
+            assertEquals(16, planned.getWidth());
+            assertEquals(16, planned.getHeight());
+            assertTrue(meanDifference(full, planned) < 16);
+            if (Benchmark.canMeasureAllocation()) {
+                assertTrue(plannedAllocated * 8 < fullAllocated);
+            }
+        }
+    }
+
+    private static BufferedImage fullDecode(byte[] jpeg, int width, int height) throws Exception {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        ImportPlan plan = new ImportPlan(image.getWidth(), image.getHeight(), width, height);
+        BufferedImage crop = image.getSubimage(plan.cropX, plan.cropY, plan.cropWidth, plan.cropHeight);
+        return scale(crop, width, height);
+    }
+
+    private static BufferedImage plannedDecode(byte[] jpeg, int width, int height) throws Exception {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                /* Bounds first */
+                ImportPlan plan = new ImportPlan(reader.getWidth(0), reader.getHeight(0), width, height);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(plan.cropX, plan.cropY, plan.cropWidth, plan.cropHeight));
+                param.setSourceSubsampling(plan.sampleSize, plan.sampleSize, 0, 0);
+                return scale(reader.read(0, param), width, height);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Bilinear, as Bitmap.createScaledBitmap with filter.
+     */
+    private static BufferedImage scale(BufferedImage src, int width, int height) {
+        BufferedImage res = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = res.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(src, 0, 0, width, height, null);
+        g.dispose();
+        return res;
+    }
+
+    /**
+     * A photo-like image: smooth gradients with some noise.
+     */
+    private static byte[] testJpeg(int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(1);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = x * 255 / width;
+                int g = y * 255 / height;
+                int b = Math.min(255, Math.max(0, 128 + random.nextInt(32) - 16));
+                row[x] = r << 16 | g << 8 | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    private static double meanDifference(BufferedImage a, BufferedImage b) {
+        long total = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                int ca = a.getRGB(x, y);
+                int cb = b.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    total += Math.abs(((ca >> shift) & 0xFF) - ((cb >> shift) & 0xFF));
+                }
+            }
+        }
+        return total / (a.getWidth() * a.getHeight() * 3.0);
+    }
+
+    private static void resetHeapPeak() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long heapPeak() {
+        long total = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                total += pool.getPeakUsage().getUsed();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,92 @@
+package org.aalku.pixelmatrixfun;
+
+import org.aalku.pixelmatrixfun.LaneScheduler.Lane;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class LaneSchedulerTest {
+
+    @Test
+    public void scheduler_higherLaneGoesFirst() {
+        LaneScheduler<String> scheduler = new LaneScheduler<>();
+        scheduler.add(Lane.BULK, "bitmap");
+        scheduler.add(Lane.NORMAL, "clear");
+        scheduler.add(Lane.INTERACTIVE, "pixel");
+        assertEquals("pixel", scheduler.next(m -> true));
+        scheduler.finish(Lane.INTERACTIVE);
+        assertEquals("clear", scheduler.next(m -> true));
+        scheduler.finish(Lane.NORMAL);
+        assertEquals("bitmap", scheduler.next(m -> true));
+        scheduler.finish(Lane.BULK);
+        assertNull(scheduler.next(m -> true));
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void scheduler_preemptsAtChunkBoundary() {
+        LaneScheduler<String> scheduler = new LaneScheduler<>();
+        scheduler.add(Lane.BULK, "bitmap");
+        scheduler.add(Lane.BULK, "bitmap2");
+        /* First chunk of the bitmap */
+        assertEquals("bitmap", scheduler.next(m -> true));
+        /* A pixel arrives and goes in the next chunk */
+        scheduler.add(Lane.INTERACTIVE, "pixel");
+        assertEquals("pixel", scheduler.next(m -> true));
+        scheduler.finish(Lane.INTERACTIVE);
+        /* The rest of the bitmap, the lane keeps its order */
+        assertEquals("bitmap", scheduler.next(m -> true));
+        assertEquals("bitmap", scheduler.getStarted(Lane.BULK));
+        scheduler.finish(Lane.BULK);
+        assertEquals("bitmap2", scheduler.next(m -> true));
+    }
+
+    @Test
+    public void scheduler_waitsWhileCantStart() {
+        LaneScheduler<String> scheduler = new LaneScheduler<>();
+        scheduler.add(Lane.BULK, "bitmap");
+        assertEquals("bitmap", scheduler.next(m -> true));
+        scheduler.add(Lane.NORMAL, "frame");
+        /* Frames don't interleave with frames */
+        assertEquals("bitmap", scheduler.next(m -> !m.equals("frame")));
+        scheduler.finish(Lane.BULK);
+        assertEquals("frame", scheduler.next(m -> !m.equals("frame") || scheduler.getStarted(Lane.BULK) == null));
+    }
+
+    @Test
+    public void scheduler_removesOnlyQueued() {
+        LaneScheduler<String> scheduler = new LaneScheduler<>();
+        scheduler.add(Lane.BULK, "frame1");
+        assertEquals("frame1", scheduler.next(m -> true));
+        scheduler.add(Lane.BULK, "frame2");
+        scheduler.add(Lane.INTERACTIVE, "pixel");
+        scheduler.add(Lane.NORMAL, "frame3");
+        /* frame4 supersedes every frame not started yet */
+        assertEquals(Arrays.asList("frame3", "frame2"), scheduler.removeQueued(m -> m.startsWith("frame")));
+        scheduler.add(Lane.BULK, "frame4");
+        assertEquals("pixel", scheduler.next(m -> true));
+        scheduler.finish(Lane.INTERACTIVE);
+        assertEquals("frame1", scheduler.next(m -> true));
+        scheduler.finish(Lane.BULK);
+        assertEquals("frame4", scheduler.next(m -> true));
+        scheduler.finish(Lane.BULK);
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void scheduler_stats() throws InterruptedException {
+        LaneScheduler<String> scheduler = new LaneScheduler<>();
+        scheduler.add(Lane.BULK, "a");
+        scheduler.add(Lane.BULK, "b");
+        assertEquals(2, scheduler.getStats(Lane.BULK).depth);
+        Thread.sleep(5);
+        scheduler.next(m -> true);
+        LaneScheduler.LaneStats stats = scheduler.getStats(Lane.BULK);
+        assertEquals(2, stats.depth);
+        assertEquals(1, stats.started);
+        assertTrue(stats.maxWaitMs >= 5);
+        assertEquals(0, scheduler.getStats(Lane.INTERACTIVE).started);
+    }
+}
@@ -0,0 +1,98 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.Test;
+
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+public class PageFramerTest {
+
+    @Test
+    public void framer_writesHeaderInPlace() {
+        PageFramer framer = new PageFramer(ChunkSizer.MAX_WRITE_SIZE);
+        byte[] frame = new byte[768];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) i;
+        }
+        assertArrayEquals(new byte[] {7, 3, 0, 1, 0x2C, 0x2C, 0x2D}, framer.page(7, -1, frame, 300, 2));
+        assertArrayEquals(new byte[] {8, 3, 0, 0, 0, 2, 0}, framer.page(8, 2, frame, 0, 1));
+        assertArrayEquals(new byte[] {4, 5, 6}, framer.chunk(frame, 4, 3));
+        assertEquals(0, framer.chunk(frame, 768, 0).length);
+    }
+
+    @Test
+    public void framer_widePages() {
+        PageFramer framer = new PageFramer(ChunkSizer.MAX_WRITE_SIZE);
+        byte[] frame = new byte[FrameFormat.frameLength(256, 128)];
+        frame[70000] = 9;
+        assertEquals(8, PageFramer.headerLength(1, true));
+        assertArrayEquals(new byte[] {5, 1, (byte) 0x80, 0, 1, 0x11, 0x70, 3, 9}, framer.page(5, 3, true, frame, 70000, 1));
+    }
+
+    @Test
+    public void framer_reusesBuffers() {
+        PageFramer framer = new PageFramer(ChunkSizer.MAX_WRITE_SIZE);
+        byte[] frame = new byte[768];
+        byte[] first = framer.page(1, -1, frame, 0, 100);
+        assertSame(first, framer.page(2, -1, frame, 100, 100));
+        assertNotSame(first, framer.page(3, 0, frame, 200, 100));
+    }
+
+    /**
+     * The per-chunk work of internalWrite and onCharacteristicWrite that does not need Android:
+     * picking the message, chunk sizing, flow window and framing, over frames sent again and again.
+     */
+    @Test
+    public void framer_noSteadyStateAllocation() {
+        PageFramer framer = new PageFramer(ChunkSizer.MAX_WRITE_SIZE);
+        ChunkSizer sizer = new ChunkSizer(DeviceService.TX_SIZE, false);
+        sizer.setLimits(185, false);
+        FlowWindow window = new FlowWindow(4);
+        byte[] frame = new byte[768];
+        /* The frame being sent, as the started message of its lane */
+        LaneScheduler<byte[]> lanes = new LaneScheduler<>();
+        lanes.add(LaneScheduler.Lane.NORMAL, frame);
+        Predicate<byte[]> canStart = m -> true;
+        /* Warm up, also creates the buffers of every length used */
+        sendFrames(framer, sizer, window, lanes, canStart, 1000);
+        long allocated = Benchmark.allocatedBytes();
+        long start = System.nanoTime();
+        long chunks = sendFrames(framer, sizer, window, lanes, canStart, 20000);
+        long nanos = System.nanoTime() - start;
+        long bytes = Benchmark.allocatedBytes() - allocated;
+        Benchmark.report("Framing: %d chunks, %.0f ns/chunk, %d bytes allocated", chunks, nanos / (double) chunks, bytes);
+        /* Data and the end of message marker at least */
+        assertTrue(chunks >= 20000L * 2);
+        /* Just what the allocation counter itself needs */
+        assertTrue(bytes < 1024);
+    }
+
+    private static long sendFrames(PageFramer framer, ChunkSizer sizer, FlowWindow window, LaneScheduler<byte[]> lanes,
+                                   Predicate<byte[]> canStart, int frames) {
+        long chunks = 0;
+        long nanos = 1_000_000L;
+        int seq = 0;
+        for (int f = 0; f < frames; f++) {
+            int offset = 0;
+            while (true) {
+                /* The same started message every chunk until it's done */
+                byte[] frame = lanes.next(canStart);
+                if (offset > frame.length) {
+                    break;
+                }
+                if (window.tryAcquire() < 0) {
+                    window.release(window.inFlight());
+                    continue;
+                }
+                int len = Math.min(frame.length - offset, sizer.getChunkSize() - PageFramer.headerLength(-1));
+                byte[] bytes = len > 0 ? framer.page(seq++, -1, frame, offset, len) : framer.chunk(frame, offset, 0);
+                offset += Math.max(len, 1);
+                nanos += bytes.length * 1000L;
+                sizer.onChunkAcked(bytes.length, nanos);
+                chunks++;
+            }
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,315 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PixelCoalescerTest {
+
+    private static final int SIZE = 16;
+    private static final int RED = 0xFF0000;
+    private static final int BLUE = 0x0000FF;
+    /* Write with response: the write and its response take a 15ms connection interval each */
+    private static final long WRITE_US = 30_000L;
+
+    @Test
+    public void coalescer_lastWriteWins() {
+        PixelCoalescer coalescer = new PixelCoalescer(SIZE, SIZE);
+        coalescer.set(3, 4, RED, 10L);
+        coalescer.set(3, 4, BLUE, 20L);
+        assertEquals(1, coalescer.getDirtyCount());
+        assertEquals(10L, coalescer.getOldestDirtyNanos());
+        assertArrayEquals(new byte[] {3, 4, 0, 0, (byte) 0xFF}, coalescer.drain(16));
+        assertEquals(0, coalescer.getDirtyCount());
+        assertNull(coalescer.drain(16));
+    }
+
+    @Test
+    public void coalescer_drainsInScanOrder() {
+        PixelCoalescer coalescer = new PixelCoalescer(SIZE, SIZE);
+        coalescer.set(15, 15, RED, 1L);
+        coalescer.set(2, 0, RED, 2L);
+        coalescer.set(1, 0, RED, 3L);
+        coalescer.set(0, 5, BLUE, 4L);
+        coalescer.set(-1, 5, BLUE, 5L);
+        coalescer.set(16, 0, BLUE, 6L);
+        assertEquals(4, coalescer.getDirtyCount());
+        byte[] first = coalescer.drain(3);
+        assertEquals(15, first.length);
+        assertArrayEquals(new int[] {1, 0, 2, 0, 0, 5}, coordinates(first));
+        assertEquals(1, coalescer.getDirtyCount());
+        assertArrayEquals(new int[] {15, 15}, coordinates(coalescer.drain(3)));
+    }
+
+    @Test
+    public void coalescer_wideCoordinates() {
+        PixelCoalescer coalescer = new PixelCoalescer(300, 20);
+        assertEquals(PixelCoalescer.WIDE_PIXEL_TUPLE, coalescer.getTupleSize());
+        assertEquals(PixelCoalescer.PIXEL_TUPLE, new PixelCoalescer(256, 256).getTupleSize());
+        coalescer.set(299, 19, RED, 1L);
+        assertArrayEquals(new byte[] {1, 43, 0, 19, (byte) 0xFF, 0, 0}, coalescer.drain(4));
+    }
+
+    /**
+     * Replays synthetic touch strokes on a simulated link and compares the old per-path merging
+     * with the coalescer: bytes on the wire, writes and how long a pixel waits to be written.
+     */
+    @Test
+    public void coalescer_replayBenchmark() {
+        List<int[]> strokes = strokes(new Random(42), 60);
+        LinkResult legacy = replay(strokes, new LegacySender());
+        LinkResult coalesced = replay(strokes, new CoalescerSender(0L));
+        LinkResult batched = replay(strokes, new CoalescerSender(15_000L));
+        Benchmark.report("Pixels %d: legacy %s", legacy.pixelsDrawn, legacy);
+        Benchmark.report("Pixels %d: coalescer %s", coalesced.pixelsDrawn, coalesced);
+        Benchmark.report("Pixels %d: coalescer 15ms %s", batched.pixelsDrawn, batched);
+        assertArrayEquals(legacy.expected, coalesced.device);
+        assertArrayEquals(legacy.expected, batched.device);
+        assertTrue(coalesced.bytes <= legacy.bytes);
+        assertTrue(coalesced.maxLatencyUs <= legacy.maxLatencyUs);
+    }
+
+    private static int[] coordinates(byte[] packet) {
+        int[] res = new int[packet.length / PixelCoalescer.PIXEL_TUPLE * 2];
+        for (int i = 0; i < res.length / 2; i++) {
+            res[i * 2] = packet[i * PixelCoalescer.PIXEL_TUPLE];
+            res[i * 2 + 1] = packet[i * PixelCoalescer.PIXEL_TUPLE + 1];
+        }
+        return res;
+    }
+
+    /**
+     * Touch samples every 8ms as {timeUs, x, y, color}, one stroke after another. Some strokes
+     * erase with the background color, like a user fixing a drawing.
+     */
+    private static List<int[]> strokes(Random random, int count) {
+        int[] colors = {RED, BLUE, 0x00FF00, 0x000000};
+        List<int[]> samples = new ArrayList<>();
+        int t = 0;
+        for (int s = 0; s < count; s++) {
+            int color = colors[random.nextInt(colors.length)];
+            double x = random.nextDouble() * SIZE;
+            double y = random.nextDouble() * SIZE;
+            double angle = random.nextDouble() * Math.PI * 2;
+            double speed = 0.3 + random.nextDouble() * 1.5;
+            int length = 20 + random.nextInt(60);
+            for (int i = 0; i < length; i++) {
+                angle += (random.nextDouble() - 0.5) * 0.6;
+                x = Math.max(0, Math.min(SIZE - 0.01, x + Math.cos(angle) * speed));
+                y = Math.max(0, Math.min(SIZE - 0.01, y + Math.sin(angle) * speed));
+                samples.add(new int[] {t, (int) x, (int) y, color});
+                t += 8_000;
+            }
+            t += 50_000 + random.nextInt(250_000);
+        }
+        return samples;
+    }
+
+    private interface Sender {
+        /* A pixel changed, as DrawView notifies it */
+        void pixel(long nowUs, int x, int y, int color);
+
+        /* The link is free, returns the next packet or null */
+        byte[] next(long nowUs);
+
+        /* Time each pixel of the packet was first waiting, in order */
+        long[] times();
+    }
+
+    private static class LinkResult {
+        int pixelsDrawn;
+        long writes;
+        long bytes;
+        long maxLatencyUs;
+        double avgLatencyUs;
+        int[] expected = new int[SIZE * SIZE];
+        int[] device = new int[SIZE * SIZE];
+
+        @Override
+        public String toString() {
+            return String.format("%d writes, %d bytes, latency avg %.1fms max %.1fms",
+                    writes, bytes, avgLatencyUs / 1000.0, maxLatencyUs / 1000.0);
+        }
+    }
+
+    /**
+     * One write at a time, each one a connection interval plus the air time of its bytes.
+     */
+    private static LinkResult replay(List<int[]> samples, Sender sender) {
+        LinkResult result = new LinkResult();
+        long busyUntil = 0L;
+        long[] inFlightTimes = null;
+        long latencyTotal = 0L;
+        long latencyCount = 0L;
+        int next = 0;
+        for (long now = 0; next < samples.size() || inFlightTimes != null || now < busyUntil + 100_000; now += 500) {
+            while (next < samples.size() && samples.get(next)[0] <= now) {
+                int[] sample = samples.get(next++);
+                int i = sample[2] * SIZE + sample[1];
+                if (result.expected[i] != sample[3]) {
+                    result.expected[i] = sample[3];
+                    result.pixelsDrawn++;
+                    sender.pixel(now, sample[1], sample[2], sample[3]);
+                }
+            }
+            if (now < busyUntil) {
+                continue;
+            }
+            if (inFlightTimes != null) {
+                for (long t : inFlightTimes) {
+                    latencyTotal += now - t;
+                    latencyCount++;
+                    result.maxLatencyUs = Math.max(result.maxLatencyUs, now - t);
+                }
+                inFlightTimes = null;
+            }
+            byte[] packet = sender.next(now);
+            if (packet != null) {
+                for (int p = 0; p < packet.length; p += PixelCoalescer.PIXEL_TUPLE) {
+                    int color = ((packet[p + 2] & 0xFF) << 16) | ((packet[p + 3] & 0xFF) << 8) | (packet[p + 4] & 0xFF);
+                    result.device[packet[p + 1] * SIZE + packet[p]] = color;
+                }
+                inFlightTimes = sender.times();
+                result.writes++;
+                result.bytes += packet.length;
+                busyUntil = now + WRITE_US + packet.length * 8;
+            }
+        }
+        result.avgLatencyUs = latencyCount > 0 ? latencyTotal / (double) latencyCount : 0d;
+        return result;
+    }
+
+    private static class CoalescerSender implements Sender {
+        private final PixelCoalescer coalescer = new PixelCoalescer(SIZE, SIZE);
+        private final long deadlineUs;
+        private final long[] since = new long[SIZE * SIZE];
+        private long[] times;
+
+        CoalescerSender(long deadlineUs) {
+            this.deadlineUs = deadlineUs;
+        }
+
+        @Override
+        public void pixel(long nowUs, int x, int y, int color) {
+            /* Time + 1 the pixel became dirty, 0 if it is not */
+            int i = y * SIZE + x;
+            if (since[i] == 0) {
+                since[i] = nowUs + 1;
+            }
+            coalescer.set(x, y, color, nowUs);
+        }
+
+        @Override
+        public byte[] next(long nowUs) {
+            int dirty = coalescer.getDirtyCount();
+            if (dirty == 0 || (dirty < 48 && nowUs - coalescer.getOldestDirtyNanos() < deadlineUs)) {
+                return null;
+            }
+            byte[] packet = coalescer.drain(48);
+            times = new long[packet.length / PixelCoalescer.PIXEL_TUPLE];
+            for (int p = 0; p < times.length; p++) {
+                int i = packet[p * PixelCoalescer.PIXEL_TUPLE + 1] * SIZE + packet[p * PixelCoalescer.PIXEL_TUPLE];
+                times[p] = since[i] - 1;
+                since[i] = 0;
+            }
+            return packet;
+        }
+
+        @Override
+        public long[] times() {
+            return times;
+        }
+    }
+
+    /**
+     * What sendPixel did before the coalescer: merge into a pending path of the same color next to
+     * its last pixel, send it if it is full or nothing is waiting to be sent.
+     */
+    private static class LegacySender implements Sender {
+        private static final int PW = 5;
+        private static final int MAX = 16;
+
+        private static class Path {
+            final int color;
+            int lx;
+            int ly;
+            final List<int[]> pixels = new ArrayList<>();
+            final List<Long> times = new ArrayList<>();
+
+            Path(int color) {
+                this.color = color;
+            }
+
+            boolean merge(long nowUs, int x, int y, int color) {
+                if (color != this.color || Math.abs(x - lx) > 1 || Math.abs(y - ly) > 1 || pixels.size() >= MAX) {
+                    return false;
+                }
+                add(nowUs, x, y);
+                return true;
+            }
+
+            void add(long nowUs, int x, int y) {
+                pixels.add(new int[] {x, y});
+                times.add(nowUs);
+                lx = x;
+                ly = y;
+            }
+        }
+
+        private final List<Path> pendingPaths = new ArrayList<>();
+        private final ArrayDeque<Path> queue = new ArrayDeque<>();
+        private long[] times;
+
+        @Override
+        public void pixel(long nowUs, int x, int y, int color) {
+            Path p = null;
+            for (Path pp : pendingPaths) {
+                if (pp.merge(nowUs, x, y, color)) {
+                    p = pp;
+                    break;
+                }
+            }
+            if (p == null) {
+                pendingPaths.add(p = new Path(color));
+                p.add(nowUs, x, y);
+            }
+            if (p.pixels.size() == MAX || queue.isEmpty()) {
+                pendingPaths.remove(p);
+                queue.add(p);
+            }
+        }
+
+        @Override
+        public byte[] next(long nowUs) {
+            if (queue.isEmpty() && !pendingPaths.isEmpty()) {
+                queue.add(pendingPaths.remove(0));
+            }
+            Path p = queue.poll();
+            if (p == null) {
+                return null;
+            }
+            byte[] packet = new byte[p.pixels.size() * PW];
+            times = new long[p.pixels.size()];
+            for (int i = 0; i < times.length; i++) {
+                int[] xy = p.pixels.get(i);
+                packet[i * PW] = (byte) xy[0];
+                packet[i * PW + 1] = (byte) xy[1];
+                packet[i * PW + 2] = (byte) ((p.color >> 16) & 0xff);
+                packet[i * PW + 3] = (byte) ((p.color >> 8) & 0xff);
+                packet[i * PW + 4] = (byte) (p.color & 0xff);
+                times[i] = p.times.get(i);
+            }
+            return packet;
+        }
+
+        @Override
+        public long[] times() {
+            return times;
+        }
+    }
+}
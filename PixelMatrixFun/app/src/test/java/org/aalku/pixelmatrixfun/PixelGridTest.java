@@ -0,0 +1,153 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PixelGridTest {
+
+    private static final int BLACK = 0xFF000000;
+    private static final int WHITE = 0xFFFFFFFF;
+
+    @Test
+    public void grid_dirtyRectOfChangedCells() {
+        PixelGrid grid = new PixelGrid(16, 16, BLACK);
+        /* A new grid is dirty all over, the bitmap has to be filled */
+        assertTrue(grid.isDirty());
+        assertEquals(15, grid.getDirtyRight());
+        grid.clearDirty();
+        assertFalse(grid.isDirty());
+
+        List<int[]> cells = new ArrayList<>();
+        grid.setListener((x, y, color) -> cells.add(new int[]{x, y, color}));
+        assertTrue(grid.set(3, 5, WHITE));
+        assertFalse(grid.set(3, 5, WHITE));
+        assertTrue(grid.set(7, 2, WHITE));
+        assertEquals(2, cells.size());
+        assertArrayEquals(new int[]{3, 5, WHITE}, cells.get(0));
+        assertEquals(3, grid.getDirtyLeft());
+        assertEquals(2, grid.getDirtyTop());
+        assertEquals(7, grid.getDirtyRight());
+        assertEquals(5, grid.getDirtyBottom());
+        assertEquals(WHITE, grid.get(7, 2));
+        assertEquals(WHITE, grid.pixels()[2 * 16 + 7]);
+    }
+
+    @Test
+    public void grid_strokesPerPointerWithoutGaps() {
+        PixelGrid grid = new PixelGrid(16, 16, BLACK);
+        /* Two fingers moving at once, events interleaved as in a batched ACTION_MOVE */
+        grid.down(0, 0, 0, WHITE);
+        grid.down(1, 15, 0, 0xFFFF0000);
+        grid.moveTo(0, 9, 3, WHITE);
+        grid.moveTo(1, 15, 12, 0xFFFF0000);
+        grid.moveTo(0, 9, 15, WHITE);
+        grid.up(1);
+        /* A new stroke of pointer 1 is not joined to the old one */
+        grid.moveTo(1, 0, 15, 0xFF00FF00);
+        grid.upAll();
+
+        for (int y = 0; y <= 12; y++) {
+            assertEquals(0xFFFF0000, grid.get(15, y));
+        }
+        assertEquals(BLACK, grid.get(15, 13));
+        /* 8-connected from (0, 0) to (9, 15) */
+        int x = 0;
+        int y = 0;
+        while (x != 9 || y != 15) {
+            boolean found = false;
+            for (int dy = 1; dy >= 0 && !found; dy--) {
+                for (int dx = 1; dx >= 0 && !found; dx--) {
+                    if ((dx != 0 || dy != 0) && x + dx < 16 && y + dy < 16 && grid.get(x + dx, y + dy) == WHITE) {
+                        x += dx;
+                        y += dy;
+                        found = true;
+                    }
+                }
+            }
+            assertTrue("Gap after " + x + "," + y, found);
+        }
+        assertEquals(0xFF00FF00, grid.get(0, 15));
+        assertEquals(BLACK, grid.get(1, 15));
+    }
+
+    /**
+     * Touch handling as DrawView does it, with timings reported against the old per point path: a String.format log
+     * line and a whole view invalidation per point, with no line between points so fast moves
+     * leave gaps. The listener is the latency hook.
+     */
+    @Test
+    public void grid_touchBenchmark() {
+        int size = 64;
+        float view = 1000f;
+        PixelGrid grid = new PixelGrid(size, size, BLACK);
+        long[] notified = new long[1];
+        long[] handling = new long[2];
+        long[] eventStart = new long[1];
+        grid.setListener((x, y, color) -> {
+            notified[0]++;
+            long nanos = System.nanoTime() - eventStart[0];
+            handling[0] += nanos;
+            handling[1] = Math.max(handling[1], nanos);
+        });
+        /* Two fingers, ACTION_MOVE batches of 4 historical points and the current one */
+        int events = 200_000;
+        float[][] points = new float[events * 5][];
+        Random random = new Random(1);
+        float[] pos = {100f, 100f, 900f, 900f};
+        for (int i = 0; i < points.length; i++) {
+            for (int k = 0; k < 4; k++) {
+                pos[k] = Math.max(0f, Math.min(view - 1, pos[k] + random.nextFloat() * 60f - 30f));
+            }
+            points[i] = pos.clone();
+        }
+        for (int warm = 0; warm < 2; warm++) {
+            notified[0] = handling[0] = handling[1] = 0;
+            int[] colors = {WHITE, 0xFFFF0000};
+            long allocated = Benchmark.allocatedBytes();
+            long start = System.nanoTime();
+            int invalidations = 0;
+            for (int e = 0; e < events; e++) {
+                eventStart[0] = System.nanoTime();
+                int c = colors[e / 1000 % 2];
+                for (int h = 0; h < 5; h++) {
+                    float[] p = points[e * 5 + h];
+                    grid.moveTo(0, (int) (size * p[0] / view), (int) (size * p[1] / view), c);
+                    grid.moveTo(1, (int) (size * p[2] / view), (int) (size * p[3] / view), c);
+                }
+                if (grid.isDirty()) {
+                    invalidations++;
+                    grid.clearDirty();
+                }
+            }
+            double usPerEvent = (System.nanoTime() - start) / 1e3 / events;
+            allocated = Benchmark.allocatedBytes() - allocated;
+
+            /* Old path on the same points, only the current point of each event and without lines */
+            start = System.nanoTime();
+            long legacyLines = 0;
+            int[] pixels = new int[size * size];
+            for (int e = 0; e < events / 10; e++) {
+                float[] p = points[e * 5 + 4];
+                for (int k = 0; k < 4; k += 2) {
+                    int rx = (int) (size * p[k] / view);
+                    int ry = (int) (size * p[k + 1] / view);
+                    legacyLines += String.format("[%s,%s] out of [%s,%s]", rx, ry, size, size).length();
+                    pixels[ry * size + rx] = colors[e / 1000 % 2];
+                }
+            }
+            double legacyUsPerEvent = (System.nanoTime() - start) / 1e3 / (events / 10);
+            if (warm == 1) {
+                Benchmark.report("Touch: %.2f us/event for 10 points, %d pixels notified, handling avg %.2f us max %.0f us, %d dirty frames, %d bytes allocated; legacy logging alone %.2f us/event for 2 points (%d)",
+                        usPerEvent, notified[0], handling[0] / 1e3 / notified[0], handling[1] / 1e3, invalidations, allocated,
+                        legacyUsPerEvent, legacyLines & 1);
+                assertTrue(notified[0] > events);
+                assertTrue(allocated < 1024);
+            }
+        }
+    }
+}
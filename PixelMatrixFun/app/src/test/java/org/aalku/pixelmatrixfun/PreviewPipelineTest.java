@@ -0,0 +1,156 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class PreviewPipelineTest {
+
+    private static final CompletableFuture<Boolean> DONE = CompletableFuture.completedFuture(true);
+
+    @Test
+    public void pipeline_cropsAndScalesCenteredSquare() {
+        List<byte[]> frames = new ArrayList<>();
+        PreviewPipeline pipeline = new PreviewPipeline(2, 2, f -> {
+            frames.add(f.clone());
+            return DONE;
+        });
+        /* 6x4 with red left half and blue right half of the centered 4x4 square, green borders */
+        SyntheticSource source = new SyntheticSource(6, 4, 1) {
+            @Override
+            void fill(int[] argb, int frame) {
+                for (int y = 0; y < 4; y++) {
+                    for (int x = 0; x < 6; x++) {
+                        argb[y * 6 + x] = x == 0 || x == 5 ? 0xFF00FF00 : x < 3 ? 0xFFFF0000 : 0xFF0000FF;
+                    }
+                }
+            }
+        };
+        assertTrue(pipeline.processNext(source));
+        assertFalse(pipeline.processNext(source));
+        /* Column major: (0,0) (0,1) (1,0) (1,1) */
+        assertArrayEquals(new byte[] {-1, 0, 0, -1, 0, 0, 0, 0, -1, 0, 0, -1}, frames.get(0));
+    }
+
+    @Test
+    public void pipeline_averagesBoxes() {
+        int[] preview = new int[1];
+        PreviewPipeline pipeline = new PreviewPipeline(1, 1, f -> DONE);
+        pipeline.setListener((argb, w, h) -> preview[0] = argb[0]);
+        pipeline.processNext(new SyntheticSource(2, 1, 1) {
+            @Override
+            void fill(int[] argb, int frame) {
+                argb[0] = 0xFF000000;
+                argb[1] = 0xFFFF8040;
+            }
+        });
+        /* Only the centered 1x1 square of a 2x1 source */
+        assertEquals(0xFF000000, preview[0]);
+        pipeline.processNext(new SyntheticSource(2, 2, 1) {
+            @Override
+            void fill(int[] argb, int frame) {
+                argb[0] = argb[1] = argb[2] = 0xFF000000;
+                argb[3] = 0xFFFF8040;
+            }
+        });
+        /* Rounded, 0xFF / 4 is 0x3F.C */
+        assertEquals(0xFF402010, preview[0]);
+    }
+
+    @Test
+    public void pipeline_dropsStaleFramesWhileLinkIsBusy() {
+        List<CompletableFuture<Boolean>> inFlight = new ArrayList<>();
+        List<byte[]> sent = new ArrayList<>();
+        PreviewPipeline pipeline = new PreviewPipeline(1, 1, f -> {
+            CompletableFuture<Boolean> cf = new CompletableFuture<>();
+            sent.add(f.clone());
+            inFlight.add(cf);
+            return cf;
+        });
+        SyntheticSource source = new SyntheticSource(1, 1, 10);
+        for (int i = 0; i < 4; i++) {
+            pipeline.processNext(source);
+        }
+        assertEquals(1, sent.size());
+        inFlight.remove(0).complete(true);
+        /* The newest frame (3) goes as soon as the link is free */
+        assertEquals(2, sent.size());
+        assertEquals(3, sent.get(1)[2]);
+        assertEquals(4, pipeline.getProcessed());
+        assertEquals(2, pipeline.getDropped());
+        assertEquals(1, pipeline.getSent());
+    }
+
+    @Test
+    public void pipeline_benchmark() {
+        int[][] sizes = {{320, 240}, {640, 480}, {1280, 720}};
+        for (int[] size : sizes) {
+            PreviewPipeline pipeline = new PreviewPipeline(16, 16, f -> DONE);
+            SyntheticSource source = new SyntheticSource(size[0], size[1], Integer.MAX_VALUE);
+            /* Warm up, also allocates the buffers */
+            for (int i = 0; i < 20; i++) {
+                pipeline.processNext(source);
+            }
+            int frames = 100;
+            long allocated = Benchmark.allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                pipeline.processNext(source);
+            }
+            long nanos = System.nanoTime() - start;
+            long perFrame = (Benchmark.allocatedBytes() - allocated) / frames;
+            Benchmark.report("Preview %dx%d: %.0f frames/s, %d bytes allocated/frame",
+                    size[0], size[1], frames * 1e9 / nanos, perFrame);
+            assertEquals(frames, pipeline.getProcessed() - 20);
+            /* Whatever the sink allocates for the send callback, but no frame buffers */
+            assertTrue(perFrame < 256);
+        }
+    }
+
+    /**
+     * Moving gradient, frame number in the blue channel.
+     */
+    private static class SyntheticSource implements PreviewPipeline.Source {
+        private final int width;
+        private final int height;
+        private final int frames;
+        private int frame = 0;
+
+        SyntheticSource(int width, int height, int frames) {
+            this.width = width;
+            this.height = height;
+            this.frames = frames;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public boolean read(int[] argb) {
+            if (frame >= frames) {
+                return false;
+            }
+            fill(argb, frame++);
+            return true;
+        }
+
+        void fill(int[] argb, int frame) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    argb[y * width + x] = 0xFF000000 | ((x + frame) & 0xFF) << 16 | (y & 0xFF) << 8 | (frame & 0xFF);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package org.aalku.pixelmatrixfun;
+
+import org.aalku.pixelmatrixfun.LaneScheduler.Lane;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.aalku.pixelmatrixfun.DeviceProtocol.HEIGHT;
+import static org.aalku.pixelmatrixfun.DeviceProtocol.WIDTH;
+import static org.junit.Assert.*;
+
+public class SendPipelineTest {
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final SendPipeline pipeline = new SendPipeline(executor, s -> {});
+    private SimulatedDevice device;
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+        if (device != null) {
+            device.shutdown();
+        }
+    }
+
+    private SimulatedDevice connect(SimulatedDevice device) {
+        this.device = device;
+        device.connect(pipeline);
+        return device;
+    }
+
+    private static boolean await(CompletionStage<Boolean> cf) throws Exception {
+        return cf.toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    private static void awaitPixel(SimulatedDevice device, int x, int y, int color) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (device.getColor(x, y) != color && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertEquals(color, device.getColor(x, y));
+    }
+
+    @Test
+    public void pipeline_notConnected() throws Exception {
+        try {
+            await(pipeline.sendFrame(SimulatedDevice.solidFrame(0xFF0000), Lane.NORMAL));
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("Not connected", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void pipeline_framePixelsAndClear() throws Exception {
+        connect(new SimulatedDevice());
+        byte[] frame = randomFrame(new Random(3));
+        assertTrue(await(pipeline.sendFrame(frame, Lane.NORMAL)));
+        assertArrayEquals(frame, device.getFrame());
+        assertTrue(await(pipeline.clear(0x102030)));
+        /* Gamma 2.2 */
+        assertArrayEquals(SimulatedDevice.solidFrame(0x010306), device.getFrame());
+        pipeline.sendPixel(3, 5, 0xFF00FF);
+        pipeline.sendPixel(15, 0, 0x00FF00);
+        awaitPixel(device, 3, 5, 0xFF00FF);
+        awaitPixel(device, 15, 0, 0x00FF00);
+        assertEquals(0x010306, device.getColor(0, 0));
+    }
+
+    /**
+     * Pixels and clears get the gamma and the current budget of frames, so a drawing looks the
+     * same either way and a white clear can't go over the budget.
+     */
+    @Test
+    public void pipeline_pixelsAndClearWithinBudget() throws Exception {
+        connect(new SimulatedDevice());
+        FrameConverter converter = pipeline.getFrameConverter();
+        int[] argb = new int[WIDTH * HEIGHT];
+        Arrays.fill(argb, 0xFFFFFFFF);
+        byte[] white = new byte[FrameFormat.frameLength(WIDTH, HEIGHT)];
+        converter.toFrame(argb, WIDTH, HEIGHT, white);
+        int limited = white[0] & 0xFF;
+        assertTrue(limited < 255);
+        int limitedWhite = limited << 16 | limited << 8 | limited;
+
+        assertTrue(await(pipeline.clear(0xFFFFFFFF)));
+        assertArrayEquals(white, device.getFrame());
+        pipeline.sendPixel(3, 5, 0xFF000000);
+        awaitPixel(device, 3, 5, 0);
+        pipeline.sendPixel(3, 5, 0xFFFFFFFF);
+        awaitPixel(device, 3, 5, limitedWhite);
+        assertTrue(FrameConverter.currentMa(device.getFrame()) <= converter.getCurrentBudget());
+
+        /* On a white frame too, its scale is the same */
+        assertTrue(await(pipeline.clear(0xFF000000)));
+        assertTrue(await(pipeline.sendFrame(white, Lane.NORMAL)));
+        pipeline.sendPixel(7, 7, 0xFF000000);
+        awaitPixel(device, 7, 7, 0);
+        pipeline.sendPixel(7, 7, 0xFFFFFFFF);
+        awaitPixel(device, 7, 7, limitedWhite);
+
+        /* On black, one pixel is far from the budget */
+        assertTrue(await(pipeline.clear(0xFF000000)));
+        pipeline.sendPixel(1, 1, 0xFFFFFFFF);
+        awaitPixel(device, 1, 1, 0xFFFFFF);
+        /* Drawing all of it white stops at the budget */
+        CurrentEstimate expected = new CurrentEstimate(WIDTH, HEIGHT);
+        expected.pixel(1, 1, 0xFFFFFF, converter.getMaxLevels());
+        int[] expectedArgb = new int[WIDTH * HEIGHT];
+        expectedArgb[WIDTH + 1] = 0xFFFFFFFF;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                pipeline.sendPixel(x, y, 0xFFFFFFFF);
+                expectedArgb[y * WIDTH + x] = expected.pixel(x, y, 0xFFFFFF, converter.getMaxLevels());
+            }
+        }
+        byte[] expectedFrame = new byte[white.length];
+        FrameFormat.toFrame(expectedArgb, WIDTH, HEIGHT, expectedFrame);
+        long end = System.currentTimeMillis() + 5000;
+        while (!Arrays.equals(expectedFrame, device.getFrame()) && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertArrayEquals(expectedFrame, device.getFrame());
+        assertTrue(FrameConverter.currentMa(expectedFrame) <= converter.getCurrentBudget());
+        assertTrue(FrameConverter.currentMa(expectedFrame) > converter.getCurrentBudget() - 20);
+    }
+
+    @Test
+    public void pipeline_encodedAndDeltaFrames() throws Exception {
+        connect(new SimulatedDevice().setEncodings(BitmapCodec.ALL).setDelta(true));
+        byte[] frame = SimulatedDevice.solidFrame(0x0000FF);
+        frame[0] = 1;
+        assertTrue(await(pipeline.sendFrame(frame, Lane.NORMAL)));
+        assertArrayEquals(frame, device.getFrame());
+        long encodedBytes = device.getBytes();
+        assertTrue(encodedBytes < frame.length);
+        byte[] next = frame.clone();
+        next[300] = 7;
+        assertTrue(await(pipeline.sendFrame(next, Lane.NORMAL)));
+        assertArrayEquals(next, device.getFrame());
+        assertTrue(device.getBytes() - encodedBytes < 20);
+        assertEquals(2, device.getFramesShown());
+    }
+
+    @Test
+    public void pipeline_announcedGeometry() throws Exception {
+        connect(new SimulatedDevice().setGeometry(300, 80).setDelta(true));
+        /* Random frames are far over any current budget */
+        pipeline.getFrameConverter().setCurrentBudget(0);
+        assertEquals(new PanelGeometry(300, 80), pipeline.getGeometry());
+        try {
+            await(pipeline.sendFrame(SimulatedDevice.solidFrame(0xFF0000), Lane.NORMAL));
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        /* More than 16 bits of frame, and x does not fit in a byte */
+        byte[] frame = randomFrame(new Random(4), 300, 80);
+        assertTrue(await(pipeline.sendFrame(frame, Lane.NORMAL)));
+        assertArrayEquals(frame, device.getFrame());
+        frame[70000] ^= 1;
+        long bytes = device.getBytes();
+        assertTrue(await(pipeline.sendFrame(frame, Lane.NORMAL)));
+        assertArrayEquals(frame, device.getFrame());
+        assertTrue(device.getBytes() - bytes < 20);
+        pipeline.sendPixel(299, 79, 0x00FF00);
+        awaitPixel(device, 299, 79, 0x00FF00);
+    }
+
+    @Test
+    public void pipeline_refusedWriteIsRetried() throws Exception {
+        connect(new SimulatedDevice());
+        device.refuseNextWrites(2);
+        byte[] frame = randomFrame(new Random(5));
+        assertTrue(await(pipeline.sendFrame(frame, Lane.NORMAL)));
+        assertArrayEquals(frame, device.getFrame());
+    }
+
+    /**
+     * A chunk refused or failed while others are in flight gives its credit back without
+     * acknowledging them, so a frame written without response is complete only once the device
+     * has all of it.
+     */
+    @Test
+    public void pipeline_refusedWriteInWindow() throws Exception {
+        badWriteInWindow(true);
+    }
+
+    @Test
+    public void pipeline_failedWriteInWindow() throws Exception {
+        badWriteInWindow(false);
+    }
+
+    private void badWriteInWindow(boolean refused) throws Exception {
+        /* Slow enough for the retries to happen with the first frame still in flight */
+        connect(new SimulatedDevice().setCredits(true).setWriteLatency(400));
+        pipeline.setPipelineWindow(16);
+        Random random = new Random(12);
+        byte[] first = randomFrame(random);
+        assertTrue(await(pipeline.sendFrame(first, Lane.NORMAL)));
+        int writes = (int) device.getWrites();
+        byte[] frame = randomFrame(random);
+        byte[] next = randomFrame(random);
+        /* The first writes of the next frame go bad twice */
+        if (refused) {
+            device.refuseWritesAfter(writes, 2);
+        } else {
+            device.failWritesAfter(writes, 2);
+        }
+        CompletableFuture<byte[]> shownWhenSent = pipeline.sendFrame(frame, Lane.NORMAL).toCompletableFuture()
+                .thenApply(ok -> device.getFrame());
+        CompletionStage<Boolean> nextSent = pipeline.sendFrame(next, Lane.BULK);
+        assertArrayEquals(frame, shownWhenSent.get(10, TimeUnit.SECONDS));
+        assertTrue(await(nextSent));
+        assertArrayEquals(next, device.getFrame());
+        assertTrue(device.getMaxQueued() <= 16);
+    }
+
+    @Test
+    public void pipeline_failedWriteIsRetried() throws Exception {
+        connect(new SimulatedDevice());
+        device.failWritesAfter(1, 2);
+        byte[] frame = randomFrame(new Random(6));
+        assertTrue(await(pipeline.sendFrame(frame, Lane.NORMAL)));
+        assertArrayEquals(frame, device.getFrame());
+        assertTrue(device.isConnected());
+        assertTrue(pipeline.isConnected());
+        TransferMetrics.Snapshot metrics = pipeline.getMetrics();
+        assertEquals(2, metrics.writeFailures);
+        assertEquals(2, metrics.writeRetries);
+        assertEquals(1, metrics.writeRecovery.count);
+        assertTrue(metrics.writeRecovery.meanMs >= SendPipeline.RETRY_BASE_MS * 3);
+    }
+
+    @Test
+    public void pipeline_persistentFailureResumesAfterReconnect() throws Exception {
+        byte[] frame = randomFrame(new Random(7));
+        long cleanBytes = bytesToSend(frame);
+        connect(new SimulatedDevice());
+        device.failWritesAfter(2, SendPipeline.MAX_WRITE_RETRIES + 1);
+        CompletionStage<Boolean> cf = pipeline.sendFrame(frame, Lane.NORMAL);
+        awaitDisconnected();
+        assertFalse(cf.toCompletableFuture().isDone());
+        device.connect(pipeline);
+        assertTrue(await(cf));
+        assertArrayEquals(frame, device.getFrame());
+        assertEquals(1, device.getFramesShown());
+        /* Sent again from the start, the two pages before the failure twice */
+        assertTrue(device.getBytes() > cleanBytes);
+        TransferMetrics.Snapshot metrics = pipeline.getMetrics();
+        assertEquals(1, metrics.messagesResumed);
+        assertEquals(0, metrics.messagesFailed);
+        assertEquals(1, metrics.writeRecovery.count);
+        Benchmark.report("Resumed after reconnect: recovery %s", metrics.writeRecovery);
+    }
+
+    /**
+     * The link drops because the firmware reset, so the device shows nothing after reconnecting.
+     * The frame that was going as a delta of the previous one is sent whole instead.
+     */
+    @Test
+    public void pipeline_resumedFrameAfterDeviceReset() throws Exception {
+        connect(new SimulatedDevice().setDelta(true).setEncodings(BitmapCodec.ALL).setResetOnConnect(true));
+        byte[] frame = SimulatedDevice.solidFrame(0x203040);
+        assertTrue(await(pipeline.sendFrame(frame, Lane.NORMAL)));
+        byte[] next = frame.clone();
+        for (int i = 0; i < next.length; i += 7) {
+            next[i] = (byte) i;
+        }
+        long bytes = device.getBytes();
+        device.failWritesAfter(1, SendPipeline.MAX_WRITE_RETRIES + 1);
+        CompletionStage<Boolean> cf = pipeline.sendFrame(next, Lane.NORMAL);
+        awaitDisconnected();
+        /* The first chunk was a delta */
+        assertTrue(device.getBytes() > bytes);
+        assertFalse(cf.toCompletableFuture().isDone());
+        device.connect(pipeline);
+        assertTrue(await(cf));
+        assertArrayEquals(next, device.getFrame());
+    }
+
+    @Test
+    public void pipeline_persistentFailureGivesUp() throws Exception {
+        connect(new SimulatedDevice());
+        device.failNextWrites(1000);
+        CompletionStage<Boolean> cf = pipeline.sendFrame(randomFrame(new Random(8)), Lane.NORMAL);
+        awaitDisconnected();
+        device.connect(pipeline);
+        try {
+            await(cf);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("Write error", e.getCause().getMessage());
+        }
+        awaitDisconnected();
+        assertFalse(device.isConnected());
+        assertEquals(1, pipeline.getMetrics().messagesFailed);
+    }
+
+    /**
+     * Time from a failed write to the next good one with 5% of writes failing.
+     */
+    @Test
+    public void pipeline_recoveryBenchmark() throws Exception {
+        connect(new SimulatedDevice());
+        device.setFailureRate(0.05);
+        Random random = new Random(10);
+        int frames = 40;
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            byte[] frame = randomFrame(random);
+            assertTrue(await(pipeline.sendFrame(frame, Lane.NORMAL)));
+            assertArrayEquals(frame, device.getFrame());
+        }
+        double fps = frames * 1e9 / (System.nanoTime() - start);
+        TransferMetrics.Snapshot metrics = pipeline.getMetrics();
+        assertTrue(pipeline.isConnected());
+        assertEquals(0, metrics.messagesFailed);
+        Benchmark.report("5%% failed writes: %d failures, %.1f fps, recovery %s", device.getFailures(), fps, metrics.writeRecovery);
+    }
+
+    private void awaitDisconnected() throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (pipeline.isConnected() && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertFalse(device.isConnected());
+        assertFalse(pipeline.isConnected());
+    }
+
+    private static long bytesToSend(byte[] frame) throws Exception {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        SimulatedDevice device = new SimulatedDevice();
+        try {
+            SendPipeline pipeline = new SendPipeline(executor, s -> {});
+            device.connect(pipeline);
+            assertTrue(await(pipeline.sendFrame(frame, Lane.NORMAL)));
+            return device.getBytes();
+        } finally {
+            device.shutdown();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Frames per second on a 7.5ms connection interval, stop-and-wait and with credits, reported.
+     */
+    @Test
+    public void pipeline_throughputBenchmark() throws Exception {
+        int frames = 20;
+        double stopAndWait = framesPerSecond(new SimulatedDevice(), 0, frames);
+        shutdown();
+        SendPipeline pipelined = new SendPipeline(Executors.newSingleThreadScheduledExecutor(), s -> {});
+        SimulatedDevice creditsDevice = new SimulatedDevice().setCredits(true);
+        creditsDevice.connect(pipelined);
+        pipelined.setPipelineWindow(8);
+        Random random = new Random(9);
+        long start = System.nanoTime();
+        byte[] last = null;
+        for (int i = 0; i < frames; i++) {
+            last = randomFrame(random);
+            assertTrue(await(pipelined.sendFrame(last, Lane.NORMAL)));
+        }
+        double withCredits = frames * 1e9 / (System.nanoTime() - start);
+        assertArrayEquals(last, creditsDevice.getFrame());
+        /* Several writes on the air at once instead of one */
+        assertTrue(creditsDevice.getMaxQueued() > 1);
+        creditsDevice.shutdown();
+        Benchmark.report("Simulated 16x16 raw frames: stop-and-wait %.1f fps, credits window 8 %.1f fps", stopAndWait, withCredits);
+    }
+
+    private double framesPerSecond(SimulatedDevice device, int window, int frames) throws Exception {
+        connect(device);
+        pipeline.setPipelineWindow(window);
+        Random random = new Random(8);
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            byte[] frame = randomFrame(random);
+            assertTrue(await(pipeline.sendFrame(frame, Lane.NORMAL)));
+            assertArrayEquals(frame, device.getFrame());
+        }
+        return frames * 1e9 / (System.nanoTime() - start);
+    }
+
+    /**
+     * Throughput and allocation on panels up to 256x128, which needs wide pages. Random frames so
+     * they go raw, with credits on a 7.5ms connection interval.
+     */
+    @Test
+    public void pipeline_largeGeometryBenchmark() throws Exception {
+        int[][] geometries = {{16, 16, 20}, {64, 64, 4}, {128, 32, 4}, {256, 128, 2}};
+        for (int[] g : geometries) {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+            SendPipeline pipeline = new SendPipeline(executor, s -> {});
+            SimulatedDevice device = new SimulatedDevice().setGeometry(g[0], g[1]).setCredits(true).setEncodings(BitmapCodec.ALL);
+            try {
+                device.connect(pipeline);
+                pipeline.setPipelineWindow(8);
+                Random random = new Random(11);
+                byte[][] frames = new byte[g[2]][];
+                for (int i = 0; i < frames.length; i++) {
+                    frames[i] = randomFrame(random, g[0], g[1]);
+                }
+                /* The first frame sizes the buffers */
+                assertTrue(await(pipeline.sendFrame(frames[0], Lane.NORMAL)));
+                long allocated = Benchmark.allThreadsAllocatedBytes();
+                long start = System.nanoTime();
+                for (byte[] frame : frames) {
+                    assertTrue(await(pipeline.sendFrame(frame, Lane.NORMAL)));
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                long perFrame = (Benchmark.allThreadsAllocatedBytes() - allocated) / frames.length;
+                assertArrayEquals(frames[frames.length - 1], device.getFrame());
+                int frameLength = frames[0].length;
+                Benchmark.report("Panel %dx%d: %d bytes/frame, %.2f fps, %.0f B/s, %d bytes allocated per frame",
+                        g[0], g[1], frameLength, frames.length / seconds, frameLength * frames.length / seconds, perFrame);
+                /* Mostly the simulated device, which copies and schedules every write and decodes the frame */
+                assertTrue(perFrame < 3L * frameLength + 64 * 1024);
+            } finally {
+                device.shutdown();
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static byte[] randomFrame(Random random) {
+        return randomFrame(random, DeviceProtocol.WIDTH, DeviceProtocol.HEIGHT);
+    }
+
+    private static byte[] randomFrame(Random random, int width, int height) {
+        byte[] frame = new byte[FrameFormat.frameLength(width, height)];
+        random.nextBytes(frame);
+        return frame;
+    }
+}
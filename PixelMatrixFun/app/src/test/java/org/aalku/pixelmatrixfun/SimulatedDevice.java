@@ -0,0 +1,448 @@
+package org.aalku.pixelmatrixfun;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.aalku.pixelmatrixfun.DeviceProtocol.*;
+
+/**
+ * PixelMatrixFun firmware and BLE link simulated in the JVM, decoding the real wire formats into a
+ * frame buffer.
+ *
+ * Writes take real time on a single radio thread, which also delivers results and notifications
+ * like the binder thread does. A write with response takes two connection intervals per packet
+ * (request and response), a write without response a share of one interval. The device takes
+ * writeLatency to process each write before it counts as done.
+ */
+class SimulatedDevice implements Transport {
+
+    private final ScheduledExecutorService radio = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "SimulatedDevice");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private double connectionIntervalMs = 7.5;
+    private double writeLatencyMs = 0.0;
+    private int mtu = 247;
+    private int packetsPerEvent = 4;
+    private boolean credits = false;
+    private boolean resetOnConnect = false;
+    private boolean delta = false;
+    private int encodings = 0;
+    /* Announced in HELO if set */
+    private PanelGeometry geometry = null;
+    private int width = WIDTH;
+    private int height = HEIGHT;
+
+    private int skipBeforeFailing = 0;
+    private int failNextWrites = 0;
+    private int skipBeforeRefusing = 0;
+    private int refuseNextWrites = 0;
+    private double failureRate = 0d;
+    private final Random random = new Random(1);
+
+    private volatile SendPipeline pipeline;
+    private volatile boolean connected = false;
+    private boolean tagged = false;
+    private boolean wide = false;
+    private long busyUntilNanos = 0L;
+
+    private byte[] frame = new byte[FrameFormat.frameLength(WIDTH, HEIGHT)];
+    private final Map<UUID, byte[]> pages = new HashMap<>();
+
+    private final AtomicLong writes = new AtomicLong(0L);
+    private final AtomicLong bytes = new AtomicLong(0L);
+    private final AtomicInteger framesShown = new AtomicInteger(0);
+    private volatile long lastShownNanos = 0L;
+    private final AtomicInteger failures = new AtomicInteger(0);
+    /* Writes without response received and not processed yet */
+    private int queued = 0;
+    private int maxQueued = 0;
+
+    SimulatedDevice setConnectionInterval(double ms) {
+        this.connectionIntervalMs = ms;
+        return this;
+    }
+
+    SimulatedDevice setWriteLatency(double ms) {
+        this.writeLatencyMs = ms;
+        return this;
+    }
+
+    SimulatedDevice setMtu(int mtu) {
+        this.mtu = mtu;
+        return this;
+    }
+
+    SimulatedDevice setPacketsPerEvent(int packets) {
+        this.packetsPerEvent = packets;
+        return this;
+    }
+
+    /**
+     * Notifies a credit for every write without response it processes.
+     */
+    SimulatedDevice setCredits(boolean credits) {
+        this.credits = credits;
+        return this;
+    }
+
+    /**
+     * The firmware starts again with each link, as when the link dropped because it reset: the
+     * frame is blank and partial pages are lost.
+     */
+    SimulatedDevice setResetOnConnect(boolean reset) {
+        this.resetOnConnect = reset;
+        return this;
+    }
+
+    SimulatedDevice setDelta(boolean delta) {
+        this.delta = delta;
+        return this;
+    }
+
+    /**
+     * @param encodings bitmap encodings mask announced in HELO, 0 for none
+     */
+    SimulatedDevice setEncodings(int encodings) {
+        this.encodings = encodings;
+        return this;
+    }
+
+    /**
+     * A panel of this size, announced in HELO, which also means the device takes wide pages.
+     */
+    synchronized SimulatedDevice setGeometry(int width, int height) {
+        this.geometry = new PanelGeometry(width, height);
+        this.width = width;
+        this.height = height;
+        this.frame = new byte[FrameFormat.frameLength(width, height)];
+        return this;
+    }
+
+    /**
+     * The next writes are requested fine but complete with an error.
+     */
+    synchronized void failNextWrites(int count) {
+        failWritesAfter(0, count);
+    }
+
+    /**
+     * Like failNextWrites, after some good writes.
+     */
+    synchronized void failWritesAfter(int good, int count) {
+        skipBeforeFailing = good;
+        failNextWrites = count;
+    }
+
+    /**
+     * The next writes are refused by the stack, write() returns false.
+     */
+    synchronized void refuseNextWrites(int count) {
+        refuseWritesAfter(0, count);
+    }
+
+    /**
+     * Like refuseNextWrites, after some good writes.
+     */
+    synchronized void refuseWritesAfter(int good, int count) {
+        skipBeforeRefusing = good;
+        refuseNextWrites = count;
+    }
+
+    /**
+     * @param rate probability that a write completes with an error
+     */
+    synchronized void setFailureRate(double rate) {
+        this.failureRate = rate;
+    }
+
+    /**
+     * Connects the pipeline the way DeviceService does: link up, MTU, HELO, then ready.
+     */
+    void connect(SendPipeline pipeline) {
+        this.pipeline = pipeline;
+        runOnRadio(() -> {
+            /* Unless the firmware is reset, partial pages stay for a transfer to resume */
+            synchronized (this) {
+                if (resetOnConnect) {
+                    frame = new byte[frame.length];
+                    pages.clear();
+                }
+                connected = true;
+                queued = 0;
+                tagged = false;
+                wide = false;
+            }
+            pipeline.connected(this, credits);
+            pipeline.setMtu(mtu);
+            if (encodings != 0 || geometry != null) {
+                /* As DeviceService reads it before ready */
+                sendHeloNow();
+            }
+            pipeline.ready();
+        });
+    }
+
+    void sendHelo() {
+        runOnRadio(this::sendHeloNow);
+    }
+
+    private void sendHeloNow() {
+        byte[] helo;
+        synchronized (this) {
+            /* Pages are tagged once capabilities are announced, even if only RAW is supported */
+            tagged = true;
+            wide = geometry != null;
+            if (wide) {
+                helo = new byte[] {HELO_CAPS_MAGIC, (byte) encodings,
+                        (byte) (width >> 8), (byte) width, (byte) (height >> 8), (byte) height};
+            } else {
+                helo = new byte[] {HELO_CAPS_MAGIC, (byte) encodings};
+            }
+        }
+        pipeline.onNotification(HELO_UUID, helo);
+    }
+
+    private void runOnRadio(Runnable r) {
+        try {
+            radio.submit(r).get();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean hasCharacteristic(UUID uuid) {
+        if (uuid.equals(SEND_DELTA_UUID)) {
+            return delta;
+        } else if (uuid.equals(CREDITS_UUID)) {
+            return credits;
+        }
+        return uuid.equals(SEND_BITMAP_UUID) || uuid.equals(SEND_PIXEL_UUID) || uuid.equals(CLEAR_UUID) || uuid.equals(HELO_UUID);
+    }
+
+    @Override
+    public synchronized boolean write(UUID uuid, byte[] value, boolean withResponse) {
+        if (!connected || !hasCharacteristic(uuid)) {
+            return false;
+        }
+        int max = withResponse ? ChunkSizer.MAX_WRITE_SIZE : mtu - ChunkSizer.ATT_HEADER;
+        if (value.length > max) {
+            return false;
+        }
+        if (skipBeforeRefusing > 0) {
+            skipBeforeRefusing--;
+        } else if (refuseNextWrites > 0) {
+            refuseNextWrites--;
+            return false;
+        }
+        boolean fail = false;
+        if (skipBeforeFailing > 0) {
+            skipBeforeFailing--;
+        } else if (failNextWrites > 0) {
+            failNextWrites--;
+            fail = true;
+        } else if (failureRate > 0d && random.nextDouble() < failureRate) {
+            fail = true;
+        }
+        byte[] copy = value.clone();
+        long now = System.nanoTime();
+        int packets = Math.max(1, (value.length + mtu - ChunkSizer.ATT_HEADER - 1) / (mtu - ChunkSizer.ATT_HEADER));
+        double airMs = withResponse ? 2 * connectionIntervalMs * packets : connectionIntervalMs / packetsPerEvent;
+        busyUntilNanos = Math.max(now, busyUntilNanos) + (long) (airMs * 1e6);
+        long doneNanos = busyUntilNanos + (long) (writeLatencyMs * 1e6);
+        boolean failed = fail;
+        if (withResponse) {
+            radio.schedule(() -> complete(uuid, copy, failed, true), doneNanos - now, TimeUnit.NANOSECONDS);
+        } else {
+            /* The stack reports it once it is queued, the device gets it later */
+            radio.execute(() -> pipeline.onWriteComplete(!failed));
+            if (!failed) {
+                maxQueued = Math.max(maxQueued, ++queued);
+                radio.schedule(() -> complete(uuid, copy, false, false), doneNanos - now, TimeUnit.NANOSECONDS);
+            }
+        }
+        return true;
+    }
+
+    private void complete(UUID uuid, byte[] value, boolean failed, boolean withResponse) {
+        SendPipeline p = pipeline;
+        synchronized (this) {
+            if (!connected) {
+                return;
+            }
+            if (!withResponse) {
+                queued--;
+            }
+            if (failed) {
+                failures.incrementAndGet();
+            } else {
+                writes.incrementAndGet();
+                bytes.addAndGet(value.length);
+                receive(uuid, value);
+            }
+        }
+        if (withResponse) {
+            p.onWriteComplete(!failed);
+        } else if (credits) {
+            p.onNotification(CREDITS_UUID, new byte[] {1});
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        synchronized (this) {
+            if (!connected) {
+                return;
+            }
+            connected = false;
+        }
+        SendPipeline p = pipeline;
+        radio.execute(p::disconnected);
+    }
+
+    private void receive(UUID uuid, byte[] value) {
+        if (value.length == 0) {
+            /* End of message marker */
+            return;
+        } else if (uuid.equals(SEND_PIXEL_UUID)) {
+            boolean wideCoordinates = width > 256 || height > 256;
+            int tuple = wideCoordinates ? PixelCoalescer.WIDE_PIXEL_TUPLE : PixelCoalescer.PIXEL_TUPLE;
+            for (int p = 0; p + tuple <= value.length; p += tuple) {
+                int x;
+                int y;
+                if (wideCoordinates) {
+                    x = ((value[p] & 0xFF) << 8) | (value[p + 1] & 0xFF);
+                    y = ((value[p + 2] & 0xFF) << 8) | (value[p + 3] & 0xFF);
+                } else {
+                    x = value[p] & 0xFF;
+                    y = value[p + 1] & 0xFF;
+                }
+                int i = (x * height + y) * FrameFormat.PIXEL_SIZE;
+                System.arraycopy(value, p + tuple - FrameFormat.PIXEL_SIZE, frame, i, FrameFormat.PIXEL_SIZE);
+            }
+        } else if (uuid.equals(CLEAR_UUID)) {
+            for (int i = 0; i < frame.length; i += FrameFormat.PIXEL_SIZE) {
+                System.arraycopy(value, 0, frame, i, FrameFormat.PIXEL_SIZE);
+            }
+        } else {
+            receivePage(uuid, value);
+        }
+    }
+
+    private void receivePage(UUID uuid, byte[] value) {
+        boolean bitmap = uuid.equals(SEND_BITMAP_UUID);
+        int header = wide ? PageFramer.WIDE_PAGE_HEADER : PageFramer.PAGE_HEADER;
+        int headerLen = bitmap && tagged ? header + 1 : header;
+        int totalLen;
+        int offset;
+        if (wide) {
+            totalLen = ((value[1] & 0xFF) << 16) | ((value[2] & 0xFF) << 8) | (value[3] & 0xFF);
+            offset = ((value[4] & 0xFF) << 16) | ((value[5] & 0xFF) << 8) | (value[6] & 0xFF);
+        } else {
+            totalLen = ((value[1] & 0xFF) << 8) | (value[2] & 0xFF);
+            offset = ((value[3] & 0xFF) << 8) | (value[4] & 0xFF);
+        }
+        int len = value.length - headerLen;
+        byte[] data = pages.get(uuid);
+        if (data == null || data.length != totalLen) {
+            data = new byte[totalLen];
+            pages.put(uuid, data);
+        }
+        System.arraycopy(value, headerLen, data, offset, len);
+        if (offset + len < totalLen) {
+            return;
+        }
+        if (bitmap) {
+            int encoding = tagged ? value[header] : BitmapCodec.RAW;
+            byte[] decoded = BitmapCodec.decode(encoding, data, frame.length);
+            System.arraycopy(decoded, 0, frame, 0, frame.length);
+        } else {
+            FrameDelta.apply(frame, data);
+        }
+        lastShownNanos = System.nanoTime();
+        framesShown.incrementAndGet();
+    }
+
+    synchronized byte[] getFrame() {
+        return frame.clone();
+    }
+
+    synchronized int getColor(int x, int y) {
+        int i = (x * height + y) * FrameFormat.PIXEL_SIZE;
+        return ((frame[i] & 0xFF) << 16) | ((frame[i + 1] & 0xFF) << 8) | (frame[i + 2] & 0xFF);
+    }
+
+    /**
+     * @return writes the device processed
+     */
+    long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * @return bytes the device received, headers included
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    int getFramesShown() {
+        return framesShown.get();
+    }
+
+    /**
+     * @return when the last frame was shown, 0 if none
+     */
+    long getLastShownNanos() {
+        return lastShownNanos;
+    }
+
+    /**
+     * @return most writes without response the device had waiting at once
+     */
+    synchronized int getMaxQueued() {
+        return maxQueued;
+    }
+
+    int getFailures() {
+        return failures.get();
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    void shutdown() {
+        radio.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SimulatedDevice[%dx%d, interval %.1fms, mtu %d, credits %s, delta %s, encodings %s]",
+                width, height, connectionIntervalMs, mtu, credits, delta, Integer.toBinaryString(encodings));
+    }
+
+    static byte[] solidFrame(int color) {
+        return solidFrame(WIDTH, HEIGHT, color);
+    }
+
+    static byte[] solidFrame(int width, int height, int color) {
+        byte[] res = new byte[FrameFormat.frameLength(width, height)];
+        for (int i = 0; i < res.length; i += FrameFormat.PIXEL_SIZE) {
+            res[i] = (byte) (color >> 16);
+            res[i + 1] = (byte) (color >> 8);
+            res[i + 2] = (byte) color;
+        }
+        return res;
+    }
+}
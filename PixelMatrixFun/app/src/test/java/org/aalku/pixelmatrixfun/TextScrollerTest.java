@@ -0,0 +1,151 @@
+package org.aalku.pixelmatrixfun;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TextScrollerTest {
+
+    private static final int WHITE = 0xFFFFFF;
+    private static final int BLACK = 0x000000;
+
+    @Test
+    public void scroller_rendersGolden() {
+        TextScroller scroller = new TextScroller("Hi", 8, 8, WHITE, BLACK, false);
+        /* 8 blank columns, H is 5 columns, a blank, i is 3 columns */
+        for (int i = 0; i < 17; i++) {
+            assertTrue(scroller.step());
+        }
+        assertEquals(
+                "...#..#.\n" +
+                "...#....\n" +
+                "...#.##.\n" +
+                "####..#.\n" +
+                "...#..#.\n" +
+                "...#..#.\n" +
+                "...#.###\n" +
+                "........\n",
+                render(scroller.getFrame(), 8, 8));
+    }
+
+    @Test
+    public void scroller_centersVertically() {
+        TextScroller scroller = new TextScroller("I", 4, 11, WHITE, BLACK, false);
+        for (int i = 0; i < 8; i++) {
+            scroller.step();
+        }
+        /* (11 - 7) / 2 rows above, I is 3 columns after 4 blank ones, then its blank column */
+        assertEquals(
+                "....\n" +
+                "....\n" +
+                "###.\n" +
+                ".#..\n" +
+                ".#..\n" +
+                ".#..\n" +
+                ".#..\n" +
+                ".#..\n" +
+                "###.\n" +
+                "....\n" +
+                "....\n",
+                render(scroller.getFrame(), 4, 11));
+    }
+
+    @Test
+    public void scroller_endsBlank() {
+        TextScroller scroller = new TextScroller("Hello, world!", 16, 16, WHITE, BLACK, false);
+        int steps = 0;
+        while (scroller.nextFrame() != null) {
+            steps++;
+        }
+        assertEquals(scroller.getStripLength(), steps);
+        assertEquals(blank(16, 16), render(scroller.getFrame(), 16, 16));
+    }
+
+    @Test
+    public void scroller_keepsToBudget() {
+        FrameConverter converter = new FrameConverter();
+        converter.setCurrentBudget(2000);
+        /* Lit all over, over twice the budget */
+        TextScroller scroller = new TextScroller("####", 16, 16, WHITE, WHITE, false);
+        scroller.setConverter(converter);
+        byte[] frame;
+        int frames = 0;
+        while ((frame = scroller.nextFrame()) != null) {
+            long levels = 0;
+            for (byte b : frame) {
+                levels += b & 0xFF;
+            }
+            assertTrue(levels <= converter.getMaxLevels());
+            /* Scaled evenly, still white */
+            assertEquals(frame[0], frame[frame.length - 1]);
+            assertTrue(frame[0] != 0);
+            frames++;
+        }
+        assertEquals(scroller.getStripLength(), frames);
+        /* The scroller's own frame is not scaled, the next step shifts it as it was */
+        assertEquals((byte) 0xFF, scroller.getFrame()[0]);
+    }
+
+    @Test
+    public void scroller_loops() {
+        TextScroller scroller = new TextScroller("ab", 16, 16, WHITE, BLACK, true);
+        int length = scroller.getStripLength();
+        byte[] first = null;
+        for (int i = 1; i <= length + 10; i++) {
+            assertTrue(scroller.step());
+            if (i == 16 + 10) {
+                first = scroller.getFrame().clone();
+            }
+        }
+        /* The trailing blank clears the panel so the text enters again without a leading blank */
+        assertNotNull(first);
+        assertArrayEquals(first, scroller.getFrame());
+    }
+
+    @Test
+    public void scroller_longMessageDeltas() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 5000) {
+            sb.append("The quick brown fox jumps over the lazy dog. ");
+        }
+        TextScroller scroller = new TextScroller(sb, 16, 16, WHITE, BLACK, false);
+        byte[] previous = scroller.getFrame().clone();
+        long frames = 0;
+        long deltaBytes = 0;
+        long start = System.nanoTime();
+        byte[] frame;
+        while ((frame = scroller.nextFrame()) != null) {
+            byte[] delta = FrameDelta.encode(previous, frame);
+            deltaBytes += delta == null ? frame.length : delta.length;
+            previous = frame;
+            frames++;
+        }
+        long nanos = System.nanoTime() - start;
+        assertEquals(scroller.getStripLength(), frames);
+        Benchmark.report("Scroll: %d frames, %.2f us/frame, %.0f bytes/frame as delta instead of %d",
+                frames, nanos / 1000.0 / frames, deltaBytes / (double) frames, previous.length);
+        assertTrue(deltaBytes < frames * previous.length);
+    }
+
+    private static String blank(int width, int height) {
+        StringBuilder sb = new StringBuilder();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                sb.append('.');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String render(byte[] frame, int width, int height) {
+        StringBuilder sb = new StringBuilder();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                sb.append(frame[(x * height + y) * 3] != 0 ? '#' : '.');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package org.aalku.pixelmatrixfun;
+
+import org.aalku.pixelmatrixfun.LaneScheduler.Lane;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TransferMetricsTest {
+
+    @Test
+    public void histogram_percentiles() {
+        TransferMetrics.Histogram h = new TransferMetrics.Histogram();
+        for (int i = 1; i <= 100; i++) {
+            h.record(i * 1000L);
+        }
+        TransferMetrics.HistogramSnapshot s = h.snapshot();
+        assertEquals(100, s.count);
+        assertEquals(50.5, s.meanMs, 0.01);
+        assertEquals(28.9, s.stdDevMs, 0.1);
+        assertEquals(100.0, s.maxMs, 0.001);
+        /* Within a power of two */
+        assertTrue(s.p50Ms >= 50 && s.p50Ms < 100);
+        assertTrue(s.p99Ms >= 99 && s.p99Ms <= 100);
+    }
+
+    @Test
+    public void histogram_concurrentRecording() throws InterruptedException {
+        TransferMetrics.Histogram h = new TransferMetrics.Histogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            long value = (t + 1) * 1000L;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    h.record(value);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        TransferMetrics.HistogramSnapshot s = h.snapshot();
+        assertEquals(400000, s.count);
+        assertEquals(2.5, s.meanMs, 0.001);
+        assertEquals(4.0, s.maxMs, 0.001);
+    }
+
+    @Test
+    public void metrics_fromPipeline() throws Exception {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        SendPipeline pipeline = new SendPipeline(executor, s -> {});
+        SimulatedDevice device = new SimulatedDevice();
+        try {
+            device.connect(pipeline);
+            device.refuseNextWrites(1);
+            for (int i = 0; i < 5; i++) {
+                assertTrue(pipeline.sendFrame(SimulatedDevice.solidFrame(i), Lane.NORMAL).toCompletableFuture().get(10, TimeUnit.SECONDS));
+            }
+            assertTrue(pipeline.clear(0).toCompletableFuture().get(10, TimeUnit.SECONDS));
+            device.sendHelo();
+            Thread.sleep(20);
+            device.sendHelo();
+            device.disconnect();
+            Thread.sleep(20);
+            device.connect(pipeline);
+
+            TransferMetrics.Snapshot s = pipeline.getMetrics();
+            assertEquals(5, s.messageLatency.get("bitmap").count);
+            assertEquals(1, s.messageLatency.get("clear").count);
+            assertEquals(6, s.messagesSent);
+            assertEquals(1, s.writeRetries);
+            assertEquals(0, s.writeFailures);
+            assertEquals(device.getBytes(), s.bytesSent);
+            assertTrue(s.bytesPerSecond > 0);
+            assertTrue(s.chunkRoundTrip.p50Ms > 0);
+            assertEquals(1, s.heloInterval.count);
+            assertTrue(s.heloInterval.meanMs >= 20);
+            assertEquals(1, s.reconnect.count);
+            assertTrue(s.reconnect.meanMs > 0);
+            assertEquals(0, s.queueDepth);
+
+            File file = File.createTempFile("metrics", ".txt");
+            file.deleteOnExit();
+            TransferMetrics.dump(s, file);
+            TransferMetrics.dump(pipeline.getMetrics(), file);
+            String text = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+            assertTrue(text.contains("latency.bitmap: n=5 "));
+            assertEquals(2, text.split("writeRetries: 1").length - 1);
+            Benchmark.report("%s", s.toString().trim());
+        } finally {
+            device.shutdown();
+            executor.shutdownNow();
+        }
+    }
+}